@@ -0,0 +1,349 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.charset.Charset;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * A cache of the class files produced by an {@link
+ * XmlAdapterBytecodeGenerator}, keyed by everything that determines
+ * their contents: the adapter's name, the names of the interface and
+ * implementation class it binds, and the {@linkplain
+ * XmlAdapterBytecodeGenerator#GENERATOR_VERSION generator version}.
+ *
+ * <p>Entries are held in memory, evicting the least recently used
+ * ones once a fixed number is reached, and, if a directory was
+ * supplied at construction time, on disk as well.  Each disk entry is
+ * a file named by the SHA-256 digest of its key, so a directory may
+ * be shared by any number of builds and processes; stale entries are
+ * never consulted once the generator version changes, and may simply
+ * be deleted.</p>
+ *
+ * <p>This class is safe for use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see XmlAdapterBytecodeGenerator#setCache(AdapterBytecodeCache)
+ */
+public class AdapterBytecodeCache {
+
+  /**
+   * The default maximum number of class files an {@link
+   * AdapterBytecodeCache} will hold in memory.
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 1024;
+
+  private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+  private static final char[] HEX_DIGITS = "0123456789abcdef".toCharArray();
+
+  private final int maximumSize;
+
+  /**
+   * The directory holding disk entries.  This field may be {@code
+   * null}, in which case entries are held only in memory.
+   */
+  private final Path directory;
+
+  /**
+   * Class files indexed by their in-memory keys, in access order.
+   * Guarded by {@code this}.
+   */
+  private final LinkedHashMap<String, byte[]> entries;
+
+  private long hits;
+
+  private long misses;
+
+  /**
+   * Creates a new {@link AdapterBytecodeCache} that holds at most
+   * {@link #DEFAULT_MAXIMUM_SIZE} class files, in memory only.
+   */
+  public AdapterBytecodeCache() {
+    this(DEFAULT_MAXIMUM_SIZE, null);
+  }
+
+  /**
+   * Creates a new {@link AdapterBytecodeCache} that holds at most the
+   * supplied number of class files in memory and, if the supplied
+   * {@code directory} is not {@code null}, every class file it is
+   * given on disk as well.
+   *
+   * @param maximumSize the maximum number of class files to hold in
+   * memory; must be greater than zero
+   *
+   * @param directory the directory in which to store class files; may
+   * be {@code null}; it is created when first needed
+   *
+   * @exception IllegalArgumentException if {@code maximumSize} is
+   * less than or equal to zero
+   */
+  public AdapterBytecodeCache(final int maximumSize, final File directory) {
+    super();
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize <= 0: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    this.directory = directory == null ? null : directory.toPath();
+    this.entries = new LinkedHashMap<String, byte[]>(16, 0.75f, true) {
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected final boolean removeEldestEntry(final Map.Entry<String, byte[]> eldest) {
+          return this.size() > AdapterBytecodeCache.this.maximumSize;
+        }
+      };
+  }
+
+  /**
+   * Returns the maximum number of class files this {@link
+   * AdapterBytecodeCache} will hold in memory.
+   *
+   * @return a number greater than zero
+   */
+  public final int getMaximumSize() {
+    return this.maximumSize;
+  }
+
+  /**
+   * Returns the directory in which this {@link AdapterBytecodeCache}
+   * stores class files, or {@code null} if it holds them only in
+   * memory.
+   *
+   * @return a {@link File}, or {@code null}
+   */
+  public final File getDirectory() {
+    return this.directory == null ? null : this.directory.toFile();
+  }
+
+  /**
+   * Returns the number of class files currently held in memory.
+   *
+   * @return the number of class files held in memory
+   */
+  public final synchronized int size() {
+    return this.entries.size();
+  }
+
+  /**
+   * Returns the number of calls to the {@link #get(String, String,
+   * String)} method that found a class file, in memory or on disk.
+   *
+   * @return the number of hits
+   */
+  public final synchronized long getHits() {
+    return this.hits;
+  }
+
+  /**
+   * Returns the number of calls to the {@link #get(String, String,
+   * String)} method that found nothing.
+   *
+   * @return the number of misses
+   */
+  public final synchronized long getMisses() {
+    return this.misses;
+  }
+
+  /**
+   * Returns a copy of the class file previously {@linkplain
+   * #put(String, String, String, byte[]) stored} under the supplied
+   * names, or {@code null} if there is none.
+   *
+   * <p>Memory is consulted first.  A class file found only on disk is
+   * brought into memory.  A disk entry that is not a class file, or
+   * that cannot be read, is treated as absent.</p>
+   *
+   * @param adapterClassName the name of the adapter class; must not
+   * be {@code null}
+   *
+   * @param interfaceClassName the name of the interface it adapts;
+   * must not be {@code null}
+   *
+   * @param implementationClassName the name of the implementation
+   * class; must not be {@code null}
+   *
+   * @return a new array holding the cached class file, or {@code
+   * null}
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null}
+   */
+  public byte[] get(final String adapterClassName, final String interfaceClassName, final String implementationClassName) {
+    final String key = key(adapterClassName, interfaceClassName, implementationClassName);
+    byte[] classBytes;
+    synchronized (this) {
+      classBytes = this.entries.get(key);
+      if (classBytes != null) {
+        this.hits++;
+        return classBytes.clone();
+      }
+    }
+    if (this.directory != null) {
+      try {
+        classBytes = Files.readAllBytes(this.getPath(key));
+      } catch (final IOException absentOrUnreadable) {
+        classBytes = null;
+      }
+      if (classBytes != null && !isClassFile(classBytes)) {
+        classBytes = null;
+      }
+    }
+    synchronized (this) {
+      if (classBytes == null) {
+        this.misses++;
+        return null;
+      }
+      this.hits++;
+      this.entries.put(key, classBytes);
+    }
+    return classBytes.clone();
+  }
+
+  /**
+   * Stores a copy of the supplied class file under the supplied
+   * names, in memory and, if this {@link AdapterBytecodeCache} has a
+   * {@linkplain #getDirectory() directory}, on disk.
+   *
+   * <p>Disk entries are {@linkplain AtomicFileReplacement replaced
+   * atomically}, so concurrent readers never see a partial
+   * file.</p>
+   *
+   * @param adapterClassName the name of the adapter class; must not
+   * be {@code null}
+   *
+   * @param interfaceClassName the name of the interface it adapts;
+   * must not be {@code null}
+   *
+   * @param implementationClassName the name of the implementation
+   * class; must not be {@code null}
+   *
+   * @param classBytes the class file; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null} or {@code classBytes} is not a class file
+   *
+   * @exception IOException if the disk entry could not be written,
+   * in which case the memory entry is nevertheless in place
+   */
+  public void put(final String adapterClassName, final String interfaceClassName, final String implementationClassName, final byte[] classBytes) throws IOException {
+    final String key = key(adapterClassName, interfaceClassName, implementationClassName);
+    if (classBytes == null) {
+      throw new IllegalArgumentException("classBytes", new NullPointerException("classBytes"));
+    }
+    if (!isClassFile(classBytes)) {
+      throw new IllegalArgumentException("!isClassFile(classBytes)");
+    }
+    final byte[] copy = classBytes.clone();
+    synchronized (this) {
+      this.entries.put(key, copy);
+    }
+    if (this.directory != null) {
+      Files.createDirectories(this.directory);
+      AtomicFileReplacement.replace(this.getPath(key), copy, false);
+    }
+  }
+
+  /**
+   * Discards every class file held in memory.  Disk entries are left
+   * alone.
+   */
+  public synchronized void clear() {
+    this.entries.clear();
+  }
+
+  /**
+   * Returns the {@link Path} of the disk entry for the supplied
+   * in-memory key.
+   */
+  private final Path getPath(final String key) {
+    assert this.directory != null;
+    final MessageDigest digest;
+    try {
+      digest = MessageDigest.getInstance("SHA-256");
+    } catch (final NoSuchAlgorithmException impossible) {
+      // Every Java platform is required to support SHA-256.
+      throw new IllegalStateException(impossible);
+    }
+    final byte[] hash = digest.digest(key.getBytes(UTF_8));
+    final char[] hex = new char[hash.length * 2];
+    for (int i = 0; i < hash.length; i++) {
+      hex[i * 2] = HEX_DIGITS[(hash[i] >> 4) & 0xF];
+      hex[i * 2 + 1] = HEX_DIGITS[hash[i] & 0xF];
+    }
+    return this.directory.resolve(new String(hex) + ".class");
+  }
+
+  /**
+   * Returns the in-memory key for the supplied names, which includes
+   * the {@linkplain XmlAdapterBytecodeGenerator#GENERATOR_VERSION
+   * generator version}.
+   */
+  private static final String key(final String adapterClassName, final String interfaceClassName, final String implementationClassName) {
+    if (adapterClassName == null) {
+      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
+    }
+    if (interfaceClassName == null) {
+      throw new IllegalArgumentException("interfaceClassName", new NullPointerException("interfaceClassName"));
+    }
+    if (implementationClassName == null) {
+      throw new IllegalArgumentException("implementationClassName", new NullPointerException("implementationClassName"));
+    }
+    // A slash cannot appear in a binary class name, so it separates
+    // the parts unambiguously.
+    return new StringBuilder(adapterClassName.length() + interfaceClassName.length() + implementationClassName.length() + 8)
+      .append(XmlAdapterBytecodeGenerator.GENERATOR_VERSION).append('/')
+      .append(adapterClassName).append('/')
+      .append(interfaceClassName).append('/')
+      .append(implementationClassName)
+      .toString();
+  }
+
+  /**
+   * Returns {@code true} if the supplied bytes begin with the class
+   * file magic number.
+   */
+  private static final boolean isClassFile(final byte[] bytes) {
+    assert bytes != null;
+    return bytes.length > 10 && (bytes[0] & 0xFF) == 0xCA && (bytes[1] & 0xFF) == 0xFE && (bytes[2] & 0xFF) == 0xBA && (bytes[3] & 0xFF) == 0xBE;
+  }
+
+}
@@ -0,0 +1,434 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.IOException;
+
+import java.lang.invoke.MethodHandles;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Type;
+
+import java.security.ProtectionDomain;
+
+import java.util.Map;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import javassist.CannotCompileException;
+import javassist.NotFoundException;
+
+import javassist.bytecode.BadBytecode;
+
+/**
+ * Generates and defines {@link UniversalXmlAdapter} subclasses at
+ * runtime, on demand, for the interfaces in a {@link BindingTable},
+ * so that adapters may be used without any build step.
+ *
+ * <p>An adapter is generated by an {@link
+ * XmlAdapterBytecodeGenerator} the first time it is {@linkplain
+ * #getAdapterClass(Class) asked for} and defined in the package and
+ * {@link ClassLoader} of the interface it adapts: on Java 9 and
+ * later by means of a {@linkplain
+ * MethodHandles#privateLookupIn(Class, MethodHandles.Lookup) private
+ * lookup} in the interface, and otherwise by reflectively calling
+ * the interface {@link ClassLoader}'s {@code protected} {@code
+ * defineClass} method, as the {@link InterfaceDecorationAgent} does.
+ * Adapters are ordinary, named classes, so an {@linkplain
+ * InterfaceDecorator decorated interface} whose {@link
+ * javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter} annotation
+ * names one will find it.  Only if neither is permitted is an adapter
+ * defined in a child of the interface's {@link ClassLoader}, where it
+ * is usable but cannot be found by name.</p>
+ *
+ * <p>Adapter classes are cached per interface {@link Class} in a
+ * {@link ClassValue}, so repeated lookups take no locks, and they are
+ * never written anywhere: by default, the {@link
+ * XmlAdapterBytecodeGenerator} used does not {@linkplain
+ * XmlAdapterBytecodeGenerator#getCache() cache} their bytes either,
+ * since the classes themselves are cached.</p>
+ *
+ * <p>This class is safe for use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #getAdapterClass(Class)
+ *
+ * @see XmlAdapterBytecodeGenerator
+ */
+public class AdapterClassDefiner {
+
+  private static final Logger logger = Logger.getLogger(AdapterClassDefiner.class.getName());
+
+  /**
+   * {@code MethodHandles#privateLookupIn(Class, Lookup)}, or {@code
+   * null} before Java 9.
+   */
+  private static final Method privateLookupInMethod;
+
+  /**
+   * {@code MethodHandles.Lookup#defineClass(byte[])}, or {@code null}
+   * before Java 9.
+   */
+  private static final Method lookupDefineClassMethod;
+
+  /**
+   * {@link ClassLoader}'s {@code protected} {@code defineClass(String,
+   * byte[], int, int, ProtectionDomain)} method, made accessible, or
+   * {@code null} if it is inaccessible, as it is on Java 9 and later
+   * unless the {@code java.lang} package has been opened to this
+   * class.
+   */
+  private static final Method classLoaderDefineClassMethod;
+
+  static {
+    Method privateLookupIn = null;
+    Method lookupDefineClass = null;
+    try {
+      privateLookupIn = MethodHandles.class.getMethod("privateLookupIn", Class.class, MethodHandles.Lookup.class);
+      lookupDefineClass = MethodHandles.Lookup.class.getMethod("defineClass", byte[].class);
+    } catch (final NoSuchMethodException beforeJava9) {
+      privateLookupIn = null;
+      lookupDefineClass = null;
+    }
+    privateLookupInMethod = privateLookupIn;
+    lookupDefineClassMethod = lookupDefineClass;
+
+    Method classLoaderDefineClass = null;
+    try {
+      classLoaderDefineClass = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+      classLoaderDefineClass.setAccessible(true);
+    } catch (final NoSuchMethodException e) {
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "<clinit>", "ClassLoader#defineClass is unavailable", e);
+      classLoaderDefineClass = null;
+    } catch (final RuntimeException e) {
+      // SecurityException, or, on Java 9 and later, the
+      // InaccessibleObjectException thrown when java.lang has not
+      // been opened to us.
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "<clinit>", "ClassLoader#defineClass is inaccessible", e);
+      classLoaderDefineClass = null;
+    }
+    classLoaderDefineClassMethod = classLoaderDefineClass;
+  }
+
+  private final BindingTable bindings;
+
+  private final XmlAdapterBytecodeGenerator generator;
+
+  /**
+   * Whether adapters may be defined by means of a {@linkplain
+   * MethodHandles#privateLookupIn(Class, MethodHandles.Lookup) private
+   * lookup}; {@code false} only in tests of the pre-Java 9 path.
+   */
+  private final boolean privateLookup;
+
+  private final ClassValue<Class<?>> adapterClasses;
+
+  /**
+   * Creates a new {@link AdapterClassDefiner} for the supplied
+   * bindings that uses a new {@link XmlAdapterBytecodeGenerator}
+   * without a {@linkplain XmlAdapterBytecodeGenerator#getCache()
+   * cache}.
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; may be {@code null}
+   *
+   * @exception IllegalArgumentException if {@code bindings} contains
+   * a {@code null} key or value
+   */
+  public AdapterClassDefiner(final Map<? extends String, ? extends String> bindings) {
+    this(bindings, null);
+  }
+
+  /**
+   * Creates a new {@link AdapterClassDefiner} for the supplied
+   * bindings that uses the supplied {@link
+   * XmlAdapterBytecodeGenerator}.
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; may be {@code null}
+   *
+   * @param generator the {@link XmlAdapterBytecodeGenerator} that
+   * names and generates adapters; if {@code null}, a new one without
+   * a {@linkplain XmlAdapterBytecodeGenerator#getCache() cache} will
+   * be used instead
+   *
+   * @exception IllegalArgumentException if {@code bindings} contains
+   * a {@code null} key or value
+   */
+  public AdapterClassDefiner(final Map<? extends String, ? extends String> bindings, final XmlAdapterBytecodeGenerator generator) {
+    this(bindings, generator, true);
+  }
+
+  AdapterClassDefiner(final Map<? extends String, ? extends String> bindings, final XmlAdapterBytecodeGenerator generator, final boolean privateLookup) {
+    super();
+    this.privateLookup = privateLookup && privateLookupInMethod != null && lookupDefineClassMethod != null;
+    this.bindings = BindingTable.of(bindings);
+    if (generator == null) {
+      this.generator = new XmlAdapterBytecodeGenerator();
+    } else {
+      this.generator = generator;
+    }
+    this.adapterClasses = new ClassValue<Class<?>>() {
+        @Override
+        protected final Class<?> computeValue(final Class<?> interfaceClass) {
+          return defineAdapterClass(interfaceClass);
+        }
+      };
+  }
+
+  /**
+   * Returns the {@link BindingTable} this {@link AdapterClassDefiner}
+   * defines adapters for.
+   *
+   * @return a non-{@code null} {@link BindingTable}
+   */
+  public final BindingTable getBindings() {
+    return this.bindings;
+  }
+
+  /**
+   * Returns the {@link UniversalXmlAdapter} subclass that adapts the
+   * supplied interface to the implementation class it is bound to,
+   * generating and defining it if necessary, or {@code null} if the
+   * supplied interface is not bound.
+   *
+   * <p>The first call for a given interface {@link Class} loads its
+   * implementation class, without initializing it, and then looks for
+   * an adapter with the right name in the interface's {@link
+   * ClassLoader}.  If one exists&mdash;because an {@link
+   * InterfaceDecorationAgent} defined it, or because it was generated
+   * ahead of time, say&mdash;and it adapts the same two types, it is
+   * returned.  Otherwise the adapter is generated and defined.  Subsequent calls return the same
+   * {@link Class} without locking.</p>
+   *
+   * @param interfaceClass the interface {@link Class}; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return a {@link Class} whose {@linkplain Class#getSuperclass()
+   * superclass} is {@link UniversalXmlAdapter}, or {@code null}
+   *
+   * @exception TypeNotPresentException if the bound implementation
+   * class could not be loaded
+   *
+   * @exception IllegalStateException if the adapter could not be
+   * generated
+   *
+   * @exception LinkageError if the adapter could not be defined
+   */
+  public final Class<?> getAdapterClass(final Class<?> interfaceClass) {
+    if (interfaceClass == null) {
+      return null;
+    }
+    return this.adapterClasses.get(interfaceClass);
+  }
+
+  private final Class<?> defineAdapterClass(final Class<?> interfaceClass) {
+    assert interfaceClass != null;
+    final Class<?> implementationClass = this.bindings.getImplementationClass(interfaceClass);
+    if (implementationClass == null) {
+      return null;
+    }
+    final String interfaceName = interfaceClass.getName();
+    final String implementationClassName = implementationClass.getName();
+    final String packageName = this.generator.getAdapterPackageName(interfaceName, implementationClassName);
+    final String adapterClassName = this.generator.getAdapterClassName(packageName, interfaceName, implementationClassName);
+
+    ClassLoader loader = interfaceClass.getClassLoader();
+    if (loader == null) {
+      loader = AdapterClassDefiner.class.getClassLoader();
+    }
+    Class<?> returnValue = findAdapterClass(loader, adapterClassName, interfaceClass, implementationClass);
+    if (returnValue != null) {
+      return returnValue;
+    }
+
+    final byte[] classBytes;
+    try {
+      classBytes = this.generator.generate(adapterClassName, interfaceName, implementationClassName);
+    } catch (final BadBytecode e) {
+      throw new IllegalStateException("Could not generate " + adapterClassName, e);
+    } catch (final CannotCompileException e) {
+      throw new IllegalStateException("Could not generate " + adapterClassName, e);
+    } catch (final IOException e) {
+      throw new IllegalStateException("Could not generate " + adapterClassName, e);
+    } catch (final NotFoundException e) {
+      throw new IllegalStateException("Could not generate " + adapterClassName, e);
+    }
+    assert classBytes != null;
+
+    try {
+      if (this.privateLookup) {
+        final Package interfacePackage = interfaceClass.getPackage();
+        if (packageName.equals(interfacePackage == null ? "" : interfacePackage.getName())) {
+          returnValue = defineInPackage(interfaceClass, adapterClassName, classBytes);
+        }
+      }
+      if (returnValue == null && interfaceClass.getClassLoader() != null) {
+        returnValue = defineInClassLoader(loader, adapterClassName, classBytes, interfaceClass.getProtectionDomain());
+      }
+      if (returnValue == null) {
+        logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "defineAdapterClass", "Defining {0} in a child ClassLoader; it will not be found by name", adapterClassName);
+        returnValue = new AdapterClassLoader(loader).define(adapterClassName, classBytes);
+      }
+    } catch (final LinkageError e) {
+      // Someone else may have got there first.
+      returnValue = findAdapterClass(loader, adapterClassName, interfaceClass, implementationClass);
+      if (returnValue == null) {
+        throw e;
+      }
+    }
+    assert returnValue != null;
+    return returnValue;
+  }
+
+  /**
+   * Returns the {@link Class} with the supplied name that the supplied
+   * {@link ClassLoader} loads, provided that it is a {@link
+   * UniversalXmlAdapter} subclass adapting the supplied interface to
+   * the supplied implementation class, or {@code null}.
+   */
+  private static final Class<?> findAdapterClass(final ClassLoader loader, final String adapterClassName, final Class<?> interfaceClass, final Class<?> implementationClass) {
+    final Class<?> c;
+    try {
+      c = Class.forName(adapterClassName, false, loader);
+    } catch (final ClassNotFoundException absent) {
+      return null;
+    } catch (final LinkageError unusable) {
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "findAdapterClass", "Could not load " + adapterClassName, unusable);
+      return null;
+    }
+    if (c.getSuperclass() != UniversalXmlAdapter.class) {
+      return null;
+    }
+    final Type genericSuperclass = c.getGenericSuperclass();
+    if (!(genericSuperclass instanceof ParameterizedType)) {
+      return null;
+    }
+    final Type[] typeArguments = ((ParameterizedType)genericSuperclass).getActualTypeArguments();
+    if (typeArguments.length != 2 || typeArguments[0] != interfaceClass || typeArguments[1] != implementationClass) {
+      return null;
+    }
+    return c;
+  }
+
+  /**
+   * Defines the supplied class in the package of the supplied
+   * interface {@link Class} by means of a {@linkplain
+   * MethodHandles#privateLookupIn(Class, MethodHandles.Lookup) private
+   * lookup}, and returns it, or returns {@code null} if the Java
+   * platform or the interface's module does not permit that.
+   */
+  private static final Class<?> defineInPackage(final Class<?> interfaceClass, final String adapterClassName, final byte[] classBytes) {
+    assert interfaceClass != null;
+    assert classBytes != null;
+    if (privateLookupInMethod == null || lookupDefineClassMethod == null) {
+      return null;
+    }
+    try {
+      final Object lookup = privateLookupInMethod.invoke(null, interfaceClass, MethodHandles.lookup());
+      return (Class<?>)lookupDefineClassMethod.invoke(lookup, (Object)classBytes);
+    } catch (final IllegalAccessException e) {
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "defineInPackage", "Could not define " + adapterClassName + " in its interface's package", e);
+    } catch (final InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof LinkageError) {
+        throw (LinkageError)cause;
+      }
+      // Most likely the IllegalAccessException thrown when the
+      // interface's module is not open to us.
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "defineInPackage", "Could not define " + adapterClassName + " in its interface's package", cause);
+    }
+    return null;
+  }
+
+
+  /**
+   * Defines the supplied class in the supplied {@link ClassLoader} by
+   * reflectively calling its {@code protected} {@code defineClass}
+   * method, and returns it, or returns {@code null} if that method is
+   * inaccessible.
+   */
+  private static final Class<?> defineInClassLoader(final ClassLoader loader, final String adapterClassName, final byte[] classBytes, final ProtectionDomain protectionDomain) {
+    assert loader != null;
+    assert classBytes != null;
+    if (classLoaderDefineClassMethod == null) {
+      return null;
+    }
+    try {
+      return (Class<?>)classLoaderDefineClassMethod.invoke(loader, adapterClassName, classBytes, 0, classBytes.length, protectionDomain);
+    } catch (final IllegalAccessException e) {
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "defineInClassLoader", "Could not define " + adapterClassName + " in its interface's ClassLoader", e);
+    } catch (final InvocationTargetException e) {
+      final Throwable cause = e.getCause();
+      if (cause instanceof LinkageError) {
+        throw (LinkageError)cause;
+      }
+      logger.logp(Level.FINE, AdapterClassDefiner.class.getName(), "defineInClassLoader", "Could not define " + adapterClassName + " in its interface's ClassLoader", cause);
+    }
+    return null;
+  }
+
+  /**
+   * Returns {@code true} if adapters can be defined directly in an
+   * interface's {@link ClassLoader} without the aid of a {@linkplain
+   * MethodHandles#privateLookupIn(Class, MethodHandles.Lookup) private
+   * lookup}, as they can on Java 8 and earlier.
+   */
+  static final boolean canDefineInClassLoader() {
+    return classLoaderDefineClassMethod != null;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link ClassLoader} that defines a single adapter as a child of
+   * its interface's {@link ClassLoader}, for use when the adapter
+   * cannot be defined in that {@link ClassLoader} directly.
+   */
+  private static final class AdapterClassLoader extends ClassLoader {
+
+    private AdapterClassLoader(final ClassLoader parent) {
+      super(parent);
+    }
+
+    private final Class<?> define(final String className, final byte[] classBytes) {
+      return this.defineClass(className, classBytes, 0, classBytes.length);
+    }
+
+  }
+
+}
@@ -0,0 +1,439 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+
+/**
+ * A pre-built class file for a {@link UniversalXmlAdapter} subclass
+ * from which the class file for any particular adapter is produced by
+ * splicing in the names that vary from one adapter to the next.
+ *
+ * <p>Every adapter class file is the same apart from six {@code
+ * CONSTANT_Utf8} constant pool entries: the adapter's internal name,
+ * its {@code Signature} attribute, the internal names of the
+ * interface and implementation class, and the descriptors of its
+ * specialized {@code marshal} and {@code unmarshal} methods.  The
+ * template places those entries last in the constant pool, so that
+ * every other constant pool index, and every byte outside the
+ * constant pool, is fixed.  Producing an adapter is then a matter of
+ * copying the fixed prefix, the encoded strings and the fixed suffix
+ * into a new array; no <a href="http://javassist.org/">Javassist</a>
+ * {@link javassist.ClassPool} or {@link javassist.CtClass} is
+ * involved.</p>
+ *
+ * <p>The class files produced are equivalent to the Java source:</p>
+ *
+ * <blockquote><pre>public class <i>Adapter</i> extends UniversalXmlAdapter&lt;<i>Interface</i>, <i>Implementation</i>&gt; {
+ *
+ *   public <i>Adapter</i>() {
+ *     super();
+ *   }
+ *
+ *   public <i>Implementation</i> marshal(final <i>Interface</i> unmappableObject) {
+ *     return (<i>Implementation</i>)unmappableObject;
+ *   }
+ *
+ *   public <i>Interface</i> unmarshal(final <i>Implementation</i> mappableObject) {
+ *     return mappableObject;
+ *   }
+ *
+ * }</pre></blockquote>
+ *
+ * <p>As with any such class, {@code javac} would also emit the bridge
+ * methods {@code Object marshal(Object)} and {@code Object
+ * unmarshal(Object)}, which cast their argument and call the
+ * specialized methods; so does this template.  Each adapter therefore
+ * has its own monomorphic {@code marshal} and {@code unmarshal}
+ * implementations rather than sharing those of {@link
+ * UniversalXmlAdapter}, and an object of the wrong type is rejected
+ * with a {@link ClassCastException} as soon as it is marshalled.</p>
+ *
+ * <p>This class is safe for use by multiple threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see XmlAdapterBytecodeGenerator#generate(String, String, String)
+ */
+final class AdapterClassFileTemplate {
+
+  /**
+   * The class file major version of generated adapters (Java 6).
+   */
+  private static final int MAJOR_VERSION = 50;
+
+  private static final int ACC_PUBLIC = 0x0001;
+
+  private static final int ACC_SUPER = 0x0020;
+
+  private static final int ACC_BRIDGE = 0x0040;
+
+  private static final int ACC_SYNTHETIC = 0x1000;
+
+  private static final int CONSTANT_Utf8 = 1;
+
+  private static final int CONSTANT_Class = 7;
+
+  private static final int CONSTANT_Methodref = 10;
+
+  private static final int CONSTANT_NameAndType = 12;
+
+  private static final int ALOAD_0 = 0x2A;
+
+  private static final int ALOAD_1 = 0x2B;
+
+  private static final int ARETURN = 0xB0;
+
+  private static final int RETURN = 0xB1;
+
+  private static final int INVOKEVIRTUAL = 0xB6;
+
+  private static final int INVOKESPECIAL = 0xB7;
+
+  private static final int CHECKCAST = 0xC0;
+
+  private static final String OBJECT_TO_OBJECT = "(Ljava/lang/Object;)Ljava/lang/Object;";
+
+  /*
+   * Constant pool indices.  The last six are the variable entries.
+   */
+
+  private static final int SUPERCLASS_INIT = 1;
+
+  private static final int SUPERCLASS = 2;
+
+  private static final int INIT_NAME_AND_TYPE = 3;
+
+  private static final int SUPERCLASS_NAME = 4;
+
+  private static final int INIT_NAME = 5;
+
+  private static final int INIT_DESCRIPTOR = 6;
+
+  private static final int CODE = 7;
+
+  private static final int SIGNATURE = 8;
+
+  private static final int THIS_CLASS = 9;
+
+  private static final int INTERFACE_CLASS = 10;
+
+  private static final int IMPLEMENTATION_CLASS = 11;
+
+  private static final int MARSHAL_NAME = 12;
+
+  private static final int UNMARSHAL_NAME = 13;
+
+  private static final int BRIDGE_DESCRIPTOR = 14;
+
+  private static final int MARSHAL = 15;
+
+  private static final int MARSHAL_NAME_AND_TYPE = 16;
+
+  private static final int UNMARSHAL = 17;
+
+  private static final int UNMARSHAL_NAME_AND_TYPE = 18;
+
+  private static final int THIS_CLASS_NAME = 19;
+
+  private static final int THIS_CLASS_SIGNATURE = 20;
+
+  private static final int INTERFACE_CLASS_NAME = 21;
+
+  private static final int IMPLEMENTATION_CLASS_NAME = 22;
+
+  private static final int MARSHAL_DESCRIPTOR = 23;
+
+  private static final int UNMARSHAL_DESCRIPTOR = 24;
+
+  private static final int CONSTANT_POOL_COUNT = 25;
+
+  /**
+   * The class file up to, but not including, the {@code
+   * CONSTANT_Utf8} entry holding the adapter's internal name.
+   */
+  private static final byte[] PREFIX;
+
+  /**
+   * The class file from the access flags that follow the constant
+   * pool to the end.
+   */
+  private static final byte[] SUFFIX;
+
+  static {
+    final ByteArrayOutputStream prefix = new ByteArrayOutputStream();
+    final ByteArrayOutputStream suffix = new ByteArrayOutputStream();
+    try {
+      final DataOutputStream out = new DataOutputStream(prefix);
+      out.writeInt(0xCAFEBABE);
+      out.writeShort(0); // minor version
+      out.writeShort(MAJOR_VERSION);
+      out.writeShort(CONSTANT_POOL_COUNT);
+      writeMethodref(out, SUPERCLASS, INIT_NAME_AND_TYPE); // SUPERCLASS_INIT
+      writeClass(out, SUPERCLASS_NAME); // SUPERCLASS
+      writeNameAndType(out, INIT_NAME, INIT_DESCRIPTOR); // INIT_NAME_AND_TYPE
+      writeUtf8(out, UniversalXmlAdapter.class.getName().replace('.', '/')); // SUPERCLASS_NAME
+      writeUtf8(out, "<init>"); // INIT_NAME
+      writeUtf8(out, "()V"); // INIT_DESCRIPTOR
+      writeUtf8(out, "Code"); // CODE
+      writeUtf8(out, "Signature"); // SIGNATURE
+      writeClass(out, THIS_CLASS_NAME); // THIS_CLASS
+      writeClass(out, INTERFACE_CLASS_NAME); // INTERFACE_CLASS
+      writeClass(out, IMPLEMENTATION_CLASS_NAME); // IMPLEMENTATION_CLASS
+      writeUtf8(out, "marshal"); // MARSHAL_NAME
+      writeUtf8(out, "unmarshal"); // UNMARSHAL_NAME
+      writeUtf8(out, OBJECT_TO_OBJECT); // BRIDGE_DESCRIPTOR
+      writeMethodref(out, THIS_CLASS, MARSHAL_NAME_AND_TYPE); // MARSHAL
+      writeNameAndType(out, MARSHAL_NAME, MARSHAL_DESCRIPTOR); // MARSHAL_NAME_AND_TYPE
+      writeMethodref(out, THIS_CLASS, UNMARSHAL_NAME_AND_TYPE); // UNMARSHAL
+      writeNameAndType(out, UNMARSHAL_NAME, UNMARSHAL_DESCRIPTOR); // UNMARSHAL_NAME_AND_TYPE
+      out.flush();
+
+      final DataOutputStream tail = new DataOutputStream(suffix);
+      tail.writeShort(ACC_PUBLIC | ACC_SUPER);
+      tail.writeShort(THIS_CLASS);
+      tail.writeShort(SUPERCLASS);
+      tail.writeShort(0); // interfaces
+      tail.writeShort(0); // fields
+      tail.writeShort(5); // methods
+
+      // public <init>() { super(); }
+      writeMethod(tail, ACC_PUBLIC, INIT_NAME, INIT_DESCRIPTOR, 1, 1,
+                  ALOAD_0,
+                  INVOKESPECIAL, SUPERCLASS_INIT >>> 8, SUPERCLASS_INIT & 0xFF,
+                  RETURN);
+
+      // public Implementation marshal(Interface o) { return (Implementation)o; }
+      writeMethod(tail, ACC_PUBLIC, MARSHAL_NAME, MARSHAL_DESCRIPTOR, 1, 2,
+                  ALOAD_1,
+                  CHECKCAST, IMPLEMENTATION_CLASS >>> 8, IMPLEMENTATION_CLASS & 0xFF,
+                  ARETURN);
+
+      // public Interface unmarshal(Implementation o) { return o; }
+      writeMethod(tail, ACC_PUBLIC, UNMARSHAL_NAME, UNMARSHAL_DESCRIPTOR, 1, 2,
+                  ALOAD_1,
+                  ARETURN);
+
+      // public Object marshal(Object o) { return this.marshal((Interface)o); }
+      writeMethod(tail, ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, MARSHAL_NAME, BRIDGE_DESCRIPTOR, 2, 2,
+                  ALOAD_0,
+                  ALOAD_1,
+                  CHECKCAST, INTERFACE_CLASS >>> 8, INTERFACE_CLASS & 0xFF,
+                  INVOKEVIRTUAL, MARSHAL >>> 8, MARSHAL & 0xFF,
+                  ARETURN);
+
+      // public Object unmarshal(Object o) { return this.unmarshal((Implementation)o); }
+      writeMethod(tail, ACC_PUBLIC | ACC_BRIDGE | ACC_SYNTHETIC, UNMARSHAL_NAME, BRIDGE_DESCRIPTOR, 2, 2,
+                  ALOAD_0,
+                  ALOAD_1,
+                  CHECKCAST, IMPLEMENTATION_CLASS >>> 8, IMPLEMENTATION_CLASS & 0xFF,
+                  INVOKEVIRTUAL, UNMARSHAL >>> 8, UNMARSHAL & 0xFF,
+                  ARETURN);
+
+      // Class attributes
+      tail.writeShort(1);
+      tail.writeShort(SIGNATURE);
+      tail.writeInt(2); // attribute length
+      tail.writeShort(THIS_CLASS_SIGNATURE);
+      tail.flush();
+    } catch (final IOException impossible) {
+      throw new ExceptionInInitializerError(impossible);
+    }
+    PREFIX = prefix.toByteArray();
+    SUFFIX = suffix.toByteArray();
+  }
+
+  private AdapterClassFileTemplate() {
+    super();
+  }
+
+  /**
+   * Returns the class file for a {@link UniversalXmlAdapter} subclass
+   * with the supplied name whose generic superclass is {@code
+   * UniversalXmlAdapter<interfaceClassName,
+   * implementationClassName>}.
+   *
+   * @param adapterClassName the {@linkplain Class#getName() name} of
+   * the adapter class; must not be {@code null}
+   *
+   * @param interfaceClassName the {@linkplain Class#getName() name}
+   * of the interface being adapted; must not be {@code null}
+   *
+   * @param implementationClassName the {@linkplain Class#getName()
+   * name} of its implementation class; must not be {@code null}
+   *
+   * @return a new, non-{@code null} array of bytes holding a valid
+   * class file
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null}, if a name is too long to fit in a class file, or if both
+   * the interface and the implementation class are {@link Object}, in
+   * which case the specialized methods would clash with the bridge
+   * methods
+   */
+  static final byte[] generate(final String adapterClassName, final String interfaceClassName, final String implementationClassName) {
+    if (adapterClassName == null) {
+      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
+    }
+    if (interfaceClassName == null) {
+      throw new IllegalArgumentException("interfaceClassName", new NullPointerException("interfaceClassName"));
+    }
+    if (implementationClassName == null) {
+      throw new IllegalArgumentException("implementationClassName", new NullPointerException("implementationClassName"));
+    }
+    final String interfaceName = interfaceClassName.replace('.', '/');
+    final String implementationName = implementationClassName.replace('.', '/');
+    final String[] strings = new String[] {
+      adapterClassName.replace('.', '/'), // THIS_CLASS_NAME
+      new StringBuilder(96)
+        .append("L").append(UniversalXmlAdapter.class.getName().replace('.', '/'))
+        .append("<L").append(interfaceName)
+        .append(";L").append(implementationName)
+        .append(";>;")
+        .toString(), // THIS_CLASS_SIGNATURE
+      interfaceName, // INTERFACE_CLASS_NAME
+      implementationName, // IMPLEMENTATION_CLASS_NAME
+      "(L" + interfaceName + ";)L" + implementationName + ";", // MARSHAL_DESCRIPTOR
+      "(L" + implementationName + ";)L" + interfaceName + ";" // UNMARSHAL_DESCRIPTOR
+    };
+    assert strings.length == CONSTANT_POOL_COUNT - THIS_CLASS_NAME;
+    if (OBJECT_TO_OBJECT.equals(strings[4])) {
+      throw new IllegalArgumentException("Cannot adapt java.lang.Object to itself");
+    }
+    final int[] lengths = new int[strings.length];
+    int size = PREFIX.length + SUFFIX.length;
+    for (int i = 0; i < strings.length; i++) {
+      lengths[i] = utfLength(strings[i]);
+      size += 3 + lengths[i];
+    }
+    final byte[] classFile = new byte[size];
+    System.arraycopy(PREFIX, 0, classFile, 0, PREFIX.length);
+    int position = PREFIX.length;
+    for (int i = 0; i < strings.length; i++) {
+      position = putUtf8(classFile, position, strings[i], lengths[i]);
+    }
+    System.arraycopy(SUFFIX, 0, classFile, position, SUFFIX.length);
+    assert position + SUFFIX.length == classFile.length;
+    return classFile;
+  }
+
+  private static final void writeUtf8(final DataOutputStream out, final String s) throws IOException {
+    out.writeByte(CONSTANT_Utf8);
+    out.writeUTF(s);
+  }
+
+  private static final void writeClass(final DataOutputStream out, final int nameIndex) throws IOException {
+    out.writeByte(CONSTANT_Class);
+    out.writeShort(nameIndex);
+  }
+
+  private static final void writeNameAndType(final DataOutputStream out, final int nameIndex, final int descriptorIndex) throws IOException {
+    out.writeByte(CONSTANT_NameAndType);
+    out.writeShort(nameIndex);
+    out.writeShort(descriptorIndex);
+  }
+
+  private static final void writeMethodref(final DataOutputStream out, final int classIndex, final int nameAndTypeIndex) throws IOException {
+    out.writeByte(CONSTANT_Methodref);
+    out.writeShort(classIndex);
+    out.writeShort(nameAndTypeIndex);
+  }
+
+  /**
+   * Writes a {@code method_info} structure with a single {@code Code}
+   * attribute holding the supplied instructions, which must not
+   * branch or throw.
+   */
+  private static final void writeMethod(final DataOutputStream out, final int accessFlags, final int nameIndex, final int descriptorIndex, final int maxStack, final int maxLocals, final int... code) throws IOException {
+    out.writeShort(accessFlags);
+    out.writeShort(nameIndex);
+    out.writeShort(descriptorIndex);
+    out.writeShort(1); // attributes
+    out.writeShort(CODE);
+    out.writeInt(12 + code.length); // attribute length
+    out.writeShort(maxStack);
+    out.writeShort(maxLocals);
+    out.writeInt(code.length);
+    for (final int b : code) {
+      out.writeByte(b);
+    }
+    out.writeShort(0); // exception table length
+    out.writeShort(0); // attributes
+  }
+
+  /**
+   * Returns the length of the supplied {@link String} in the modified
+   * UTF-8 encoding used by class files.
+   */
+  private static final int utfLength(final String s) {
+    final int length = s.length();
+    int utfLength = length;
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c == 0 || c > 0x7F) {
+        utfLength += c > 0x7FF ? 2 : 1;
+      }
+    }
+    if (utfLength > 0xFFFF) {
+      throw new IllegalArgumentException("Too long for a class file: " + s);
+    }
+    return utfLength;
+  }
+
+  /**
+   * Writes a {@code CONSTANT_Utf8} entry holding the supplied {@link
+   * String}, whose {@linkplain #utfLength(String) encoded length} is
+   * supplied, into the supplied array at the supplied position and
+   * returns the position that follows it.
+   */
+  private static final int putUtf8(final byte[] bytes, final int position, final String s, final int utfLength) {
+    int p = position;
+    bytes[p++] = (byte)CONSTANT_Utf8;
+    bytes[p++] = (byte)(utfLength >>> 8);
+    bytes[p++] = (byte)utfLength;
+    final int length = s.length();
+    for (int i = 0; i < length; i++) {
+      final char c = s.charAt(i);
+      if (c != 0 && c <= 0x7F) {
+        bytes[p++] = (byte)c;
+      } else if (c <= 0x7FF) {
+        bytes[p++] = (byte)(0xC0 | (c >>> 6));
+        bytes[p++] = (byte)(0x80 | (c & 0x3F));
+      } else {
+        bytes[p++] = (byte)(0xE0 | (c >>> 12));
+        bytes[p++] = (byte)(0x80 | ((c >>> 6) & 0x3F));
+        bytes[p++] = (byte)(0x80 | (c & 0x3F));
+      }
+    }
+    return p;
+  }
+
+}
@@ -0,0 +1,54 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+/**
+ * An {@link ImplementationClassDiscoveryListener} that is also
+ * notified each time an {@link ImplementationClassFinder} finishes
+ * scanning an archive, so that it can act on everything discovered in
+ * that archive without waiting for discovery to end.
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassBinder#setPipelined(boolean)
+ */
+public interface ArchiveScanListener extends ImplementationClassDiscoveryListener {
+
+  /**
+   * Called when every class file in the archive designated by the
+   * supplied {@link ImplementationClassDiscoveryEvent}'s {@linkplain
+   * ImplementationClassDiscoveryEvent#getArchive() archive} has been
+   * scanned.
+   *
+   * @param event the {@link ImplementationClassDiscoveryEvent}
+   * describing the archive; will not be {@code null}
+   */
+  public void archiveScanned(final ImplementationClassDiscoveryEvent event);
+
+}
@@ -0,0 +1,295 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.IOException;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+
+import java.nio.file.attribute.FileAttribute; // for javadoc only
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFileAttributes;
+
+import java.util.Arrays;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Replaces files so that readers, and the file system after a crash,
+ * see either the complete old contents or the complete new contents
+ * and never a truncated or partially written file.
+ *
+ * <p>New contents are written through a {@link FileChannel} to a
+ * uniquely named temporary file in the target's directory, optionally
+ * {@linkplain FileChannel#force(boolean) forced} to storage, and then
+ * moved over the target with {@link StandardCopyOption#ATOMIC_MOVE}.
+ * On file systems that cannot move atomically, a plain replacing move
+ * is used instead.  Because every writer uses its own temporary file,
+ * concurrent replacements of different files never interfere, and
+ * concurrent replacements of the same file leave one complete
+ * version in place.</p>
+ *
+ * <p>A replaced file keeps its POSIX permissions and, where the
+ * process is allowed to set them, its owner and group.  A new file
+ * gets the permissions any other newly created file would get, as
+ * governed by the process' umask.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ */
+final class AtomicFileReplacement {
+
+  private AtomicFileReplacement() {
+    super();
+  }
+
+  /**
+   * Returns {@code true} if the supplied target file exists and
+   * already holds exactly the supplied bytes.
+   *
+   * <p>The file's size is compared first, so a file whose contents
+   * differ in length is never read.</p>
+   *
+   * @param target the file to check; must not be {@code null}
+   *
+   * @param bytes the expected contents; must not be {@code null}
+   *
+   * @return {@code true} if writing {@code bytes} to {@code target}
+   * would change nothing
+   *
+   * @exception IOException if the file could not be read
+   */
+  static final boolean isUnchanged(final Path target, final byte[] bytes) throws IOException {
+    if (target == null) {
+      throw new IllegalArgumentException("target", new NullPointerException("target"));
+    }
+    if (bytes == null) {
+      throw new IllegalArgumentException("bytes", new NullPointerException("bytes"));
+    }
+    return Files.isRegularFile(target) && Files.size(target) == bytes.length && Arrays.equals(bytes, Files.readAllBytes(target));
+  }
+
+  /**
+   * Atomically replaces the contents of the supplied target file with
+   * the supplied bytes, unless the target {@linkplain
+   * #isUnchanged(Path, byte[]) already holds them}, in which case the
+   * target, including its modification time, is left alone.
+   *
+   * @param target the file to replace; must not be {@code null}
+   *
+   * @param bytes the new contents; must not be {@code null}
+   *
+   * @param force whether the new contents, and the directory entry
+   * that names them, should be forced to storage before this method
+   * returns
+   *
+   * @return {@code true} if the file was written; {@code false} if
+   * it already held the supplied bytes
+   *
+   * @exception IOException if the file could not be replaced, in
+   * which case the original file is untouched
+   */
+  static final boolean replace(final Path target, final byte[] bytes, final boolean force) throws IOException {
+    if (isUnchanged(target, bytes)) {
+      return false;
+    }
+    replace(target, new Content() {
+        @Override
+        public final void writeTo(final FileChannel channel) throws IOException {
+          final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+          while (buffer.hasRemaining()) {
+            channel.write(buffer);
+          }
+        }
+      }, force);
+    return true;
+  }
+
+  /**
+   * Atomically replaces the contents of the supplied target file with
+   * whatever the supplied {@link Content} writes.
+   *
+   * @param target the file to replace; must not be {@code null}
+   *
+   * @param content the {@link Content} that writes the new contents;
+   * must not be {@code null}
+   *
+   * @param force whether the new contents, and the directory entry
+   * that names them, should be forced to storage before this method
+   * returns
+   *
+   * @exception IOException if the file could not be replaced, in
+   * which case the original file is untouched
+   */
+  static final void replace(final Path target, final Content content, final boolean force) throws IOException {
+    if (target == null) {
+      throw new IllegalArgumentException("target", new NullPointerException("target"));
+    }
+    if (content == null) {
+      throw new IllegalArgumentException("content", new NullPointerException("content"));
+    }
+    final Path absoluteTarget = target.toAbsolutePath();
+    final Path directory = absoluteTarget.getParent();
+    final Path temporaryFile = createTemporaryFile(directory, "." + absoluteTarget.getFileName());
+    boolean success = false;
+    try {
+      final FileChannel channel = FileChannel.open(temporaryFile, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+      try {
+        content.writeTo(channel);
+        if (force) {
+          channel.force(true);
+        }
+      } finally {
+        channel.close();
+      }
+      copyAttributes(absoluteTarget, temporaryFile);
+      try {
+        Files.move(temporaryFile, absoluteTarget, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+      } catch (final AtomicMoveNotSupportedException notSupported) {
+        Files.move(temporaryFile, absoluteTarget, StandardCopyOption.REPLACE_EXISTING);
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        Files.deleteIfExists(temporaryFile);
+      }
+    }
+    if (force) {
+      forceDirectory(directory);
+    }
+  }
+
+  /**
+   * Creates a new, empty, uniquely named file in the supplied
+   * directory and returns its {@link Path}.
+   *
+   * <p>Unlike {@link Files#createTempFile(Path, String, String,
+   * FileAttribute[])}, which always creates files readable only by
+   * their owner, this method creates the file with the default
+   * permissions for new files.</p>
+   */
+  private static final Path createTemporaryFile(final Path directory, final String prefix) throws IOException {
+    assert directory != null;
+    assert prefix != null;
+    while (true) {
+      final Path temporaryFile = directory.resolve(prefix + Long.toString(ThreadLocalRandom.current().nextLong() & Long.MAX_VALUE, 36) + ".tmp");
+      try {
+        return Files.createFile(temporaryFile);
+      } catch (final FileAlreadyExistsException tryAgain) {
+        // Pick another name.
+      }
+    }
+  }
+
+  /**
+   * Copies the POSIX permissions, and if possible the owner and group,
+   * of the supplied target, if it exists, to the supplied temporary
+   * file that is about to replace it.
+   */
+  private static final void copyAttributes(final Path target, final Path temporaryFile) throws IOException {
+    assert target != null;
+    assert temporaryFile != null;
+    final PosixFileAttributeView targetView = Files.getFileAttributeView(target, PosixFileAttributeView.class);
+    if (targetView == null) {
+      return;
+    }
+    final PosixFileAttributes targetAttributes;
+    try {
+      targetAttributes = targetView.readAttributes();
+    } catch (final NoSuchFileException newFile) {
+      return;
+    }
+    final PosixFileAttributeView temporaryView = Files.getFileAttributeView(temporaryFile, PosixFileAttributeView.class);
+    assert temporaryView != null;
+    try {
+      temporaryView.setGroup(targetAttributes.group());
+      temporaryView.setOwner(targetAttributes.owner());
+    } catch (final IOException notPermitted) {
+      // Only privileged processes may give files away.
+    }
+    // Set permissions last, since changing the owner may clear
+    // set-user-ID and set-group-ID bits.
+    temporaryView.setPermissions(targetAttributes.permissions());
+  }
+
+  /**
+   * Forces the supplied directory's entries to storage so that a
+   * completed move survives a crash.  Not every platform permits a
+   * directory to be opened, so failures are ignored.
+   */
+  private static final void forceDirectory(final Path directory) {
+    assert directory != null;
+    try {
+      final FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ);
+      try {
+        channel.force(true);
+      } finally {
+        channel.close();
+      }
+    } catch (final IOException ignored) {
+
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Writes the new contents of a file being {@linkplain
+   * AtomicFileReplacement#replace(Path, Content, boolean) replaced}.
+   */
+  static interface Content {
+
+    /**
+     * Writes the new contents to the supplied {@link FileChannel},
+     * which is positioned at the start of an empty file and must not
+     * be closed.
+     *
+     * @param channel the {@link FileChannel} to write to; will not be
+     * {@code null}
+     *
+     * @exception IOException if the contents could not be written
+     */
+    public void writeTo(final FileChannel channel) throws IOException;
+
+  }
+
+}
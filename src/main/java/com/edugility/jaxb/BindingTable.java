@@ -0,0 +1,355 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+import java.util.SortedMap;
+import java.util.TreeMap;
+
+/**
+ * An immutable {@link Map} of implementation class names indexed by
+ * the names of the interfaces they implement, optimized for fast
+ * repeated lookups.
+ *
+ * <p>Names are {@linkplain String#intern() interned} and stored in a
+ * pair of parallel arrays sorted by interface name, so lookups by
+ * name are binary searches and no per-entry objects are retained.
+ * Lookups by {@link Class} via the {@link
+ * #getImplementationClass(Class)} method are additionally cached in a
+ * {@link ClassValue}, so after the first lookup for a given interface
+ * they cost no more than a field read.</p>
+ *
+ * <p>{@link BindingTable}s are produced by the {@link
+ * JAXBElementScanner#scan()} method, and may be assembled from {@link
+ * ImplementationClassFinder} output with a {@link Builder}.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JAXBElementScanner#scan()
+ *
+ * @see Builder
+ */
+public final class BindingTable extends AbstractMap<String, String> implements Serializable {
+
+  private static final long serialVersionUID = 1L;
+
+  private static final String[] EMPTY_STRING_ARRAY = new String[0];
+
+  /**
+   * An empty {@link BindingTable}.  This field is never {@code
+   * null}.
+   */
+  public static final BindingTable EMPTY = new BindingTable(EMPTY_STRING_ARRAY, EMPTY_STRING_ARRAY);
+
+  /**
+   * Interface names, sorted, interned and never {@code null}.
+   */
+  private final String[] interfaceNames;
+
+  /**
+   * Implementation class names, interned, never {@code null} and
+   * parallel to {@link #interfaceNames}.
+   */
+  private final String[] implementationClassNames;
+
+  private final transient ClassValue<Class<?>> implementationClasses;
+
+  private transient Set<Entry<String, String>> entrySet;
+
+  private BindingTable(final String[] interfaceNames, final String[] implementationClassNames) {
+    super();
+    assert interfaceNames != null;
+    assert implementationClassNames != null;
+    assert interfaceNames.length == implementationClassNames.length;
+    this.interfaceNames = interfaceNames;
+    this.implementationClassNames = implementationClassNames;
+    this.implementationClasses = new ClassValue<Class<?>>() {
+        @Override
+        protected final Class<?> computeValue(final Class<?> interfaceClass) {
+          return loadImplementationClass(interfaceClass);
+        }
+      };
+  }
+
+  /**
+   * Returns a {@link BindingTable} containing the same mappings as
+   * the supplied {@link Map}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param bindings a {@link Map} of implementation class names
+   * indexed by interface names; may be {@code null} in which case
+   * {@link #EMPTY} is returned
+   *
+   * @return a non-{@code null} {@link BindingTable}
+   *
+   * @exception IllegalArgumentException if {@code bindings} contains
+   * a {@code null} key or value
+   */
+  public static final BindingTable of(final Map<? extends String, ? extends String> bindings) {
+    if (bindings instanceof BindingTable) {
+      return (BindingTable)bindings;
+    }
+    if (bindings == null || bindings.isEmpty()) {
+      return EMPTY;
+    }
+    final SortedMap<String, String> sorted = new TreeMap<String, String>();
+    for (final Entry<? extends String, ? extends String> entry : bindings.entrySet()) {
+      if (entry != null) {
+        final String interfaceName = entry.getKey();
+        if (interfaceName == null) {
+          throw new IllegalArgumentException("bindings", new NullPointerException("interfaceName"));
+        }
+        final String implementationClassName = entry.getValue();
+        if (implementationClassName == null) {
+          throw new IllegalArgumentException("bindings", new NullPointerException("implementationClassName: " + interfaceName));
+        }
+        sorted.put(interfaceName, implementationClassName);
+      }
+    }
+    final int size = sorted.size();
+    final String[] interfaceNames = new String[size];
+    final String[] implementationClassNames = new String[size];
+    int i = 0;
+    for (final Entry<String, String> entry : sorted.entrySet()) {
+      interfaceNames[i] = entry.getKey().intern();
+      implementationClassNames[i] = entry.getValue().intern();
+      i++;
+    }
+    return new BindingTable(interfaceNames, implementationClassNames);
+  }
+
+  /**
+   * Returns the name of the implementation class bound to the
+   * interface with the supplied name, or {@code null} if there is no
+   * such binding.
+   *
+   * @param interfaceName the name of the interface; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return the name of the implementation class, or {@code null}
+   */
+  public final String getImplementationClassName(final String interfaceName) {
+    if (interfaceName == null) {
+      return null;
+    }
+    final int index = Arrays.binarySearch(this.interfaceNames, interfaceName);
+    return index < 0 ? null : this.implementationClassNames[index];
+  }
+
+  /**
+   * Returns the implementation {@link Class} bound to the supplied
+   * interface {@link Class}, or {@code null} if there is no such
+   * binding.
+   *
+   * <p>The implementation class is loaded, without being
+   * initialized, by the {@link ClassLoader} that loaded the supplied
+   * {@code interfaceClass}.  The result is cached per interface
+   * {@link Class}.</p>
+   *
+   * @param interfaceClass the interface {@link Class}; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return the implementation {@link Class}, or {@code null}
+   *
+   * @exception TypeNotPresentException if the bound implementation
+   * class could not be loaded
+   */
+  public final Class<?> getImplementationClass(final Class<?> interfaceClass) {
+    if (interfaceClass == null) {
+      return null;
+    }
+    return this.implementationClasses.get(interfaceClass);
+  }
+
+  private final Class<?> loadImplementationClass(final Class<?> interfaceClass) {
+    assert interfaceClass != null;
+    final String implementationClassName = this.getImplementationClassName(interfaceClass.getName());
+    if (implementationClassName == null) {
+      return null;
+    }
+    try {
+      return Class.forName(implementationClassName, false, interfaceClass.getClassLoader());
+    } catch (final ClassNotFoundException kaboom) {
+      throw new TypeNotPresentException(implementationClassName, kaboom);
+    }
+  }
+
+  @Override
+  public final String get(final Object interfaceName) {
+    return interfaceName instanceof String ? this.getImplementationClassName((String)interfaceName) : null;
+  }
+
+  @Override
+  public final boolean containsKey(final Object interfaceName) {
+    return interfaceName instanceof String && Arrays.binarySearch(this.interfaceNames, (String)interfaceName) >= 0;
+  }
+
+  @Override
+  public final int size() {
+    return this.interfaceNames.length;
+  }
+
+  @Override
+  public final Set<Entry<String, String>> entrySet() {
+    if (this.entrySet == null) {
+      this.entrySet = new AbstractSet<Entry<String, String>>() {
+          @Override
+          public final int size() {
+            return interfaceNames.length;
+          }
+
+          @Override
+          public final Iterator<Entry<String, String>> iterator() {
+            return new Iterator<Entry<String, String>>() {
+              private int index;
+
+              @Override
+              public final boolean hasNext() {
+                return this.index < interfaceNames.length;
+              }
+
+              @Override
+              public final Entry<String, String> next() {
+                if (this.index >= interfaceNames.length) {
+                  throw new NoSuchElementException();
+                }
+                final Entry<String, String> returnValue = new SimpleImmutableEntry<String, String>(interfaceNames[this.index], implementationClassNames[this.index]);
+                this.index++;
+                return returnValue;
+              }
+
+              @Override
+              public final void remove() {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        };
+    }
+    return this.entrySet;
+  }
+
+  private final Object readResolve() throws ObjectStreamException {
+    // Re-establish the transient ClassValue and the interning.
+    final Map<String, String> bindings = new HashMap<String, String>();
+    for (int i = 0; i < this.interfaceNames.length; i++) {
+      bindings.put(this.interfaceNames[i], this.implementationClassNames[i]);
+    }
+    return of(bindings);
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An {@link ImplementationClassRemovalListener} that accumulates
+   * the bindings reported by an {@link ImplementationClassFinder} (or
+   * added explicitly) and {@linkplain #build() builds} {@link
+   * BindingTable}s from them.
+   *
+   * <p>As with {@link JAXBElementScanner#scan()}, if more than one
+   * implementation class is discovered for a given interface, the
+   * last one wins.</p>
+   *
+   * <p>Instances of this class are safe for use by multiple
+   * threads.</p>
+   */
+  public static final class Builder implements ImplementationClassRemovalListener {
+
+    private final SortedMap<String, String> bindings;
+
+    public Builder() {
+      super();
+      this.bindings = new TreeMap<String, String>();
+    }
+
+    public synchronized Builder put(final String interfaceName, final String implementationClassName) {
+      if (interfaceName == null) {
+        throw new IllegalArgumentException("interfaceName", new NullPointerException("interfaceName"));
+      }
+      if (implementationClassName == null) {
+        throw new IllegalArgumentException("implementationClassName", new NullPointerException("implementationClassName"));
+      }
+      this.bindings.put(interfaceName, implementationClassName);
+      return this;
+    }
+
+    public synchronized Builder remove(final String interfaceName, final String implementationClassName) {
+      if (interfaceName != null && implementationClassName != null && implementationClassName.equals(this.bindings.get(interfaceName))) {
+        this.bindings.remove(interfaceName);
+      }
+      return this;
+    }
+
+    public synchronized BindingTable build() {
+      return of(this.bindings);
+    }
+
+    @Override
+    public void discoveryStarted(final ImplementationClassDiscoveryEvent event) {
+
+    }
+
+    @Override
+    public void implementationClassDiscovered(final ImplementationClassDiscoveryEvent event) {
+      if (event != null) {
+        this.put(event.getInterfaceName(), event.getImplementationClassName());
+      }
+    }
+
+    @Override
+    public void implementationClassRemoved(final ImplementationClassDiscoveryEvent event) {
+      if (event != null) {
+        this.remove(event.getInterfaceName(), event.getImplementationClassName());
+      }
+    }
+
+    @Override
+    public void discoveryEnded(final ImplementationClassDiscoveryEvent event) {
+
+    }
+
+  }
+
+}
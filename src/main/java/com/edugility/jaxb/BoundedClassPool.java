@@ -0,0 +1,293 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapters;
+
+import javassist.ClassPool;
+import javassist.CtClass;
+import javassist.NotFoundException;
+
+/**
+ * A {@link ClassPool} that holds at most a fixed number of {@link
+ * CtClass}es, evicting the least recently used ones as new ones are
+ * cached.
+ *
+ * <p>{@link ClassPool#getDefault()} returns a JVM-wide singleton that
+ * caches every {@link CtClass} it ever produces.  In a long-running
+ * process that performs many scans and modifications, that cache
+ * grows without bound.  A {@link BoundedClassPool} is instead meant
+ * to be created per operation or per session (the {@link
+ * InterfaceDecorator}, {@link PackageInfoModifier} and {@link
+ * XmlAdapterBytecodeGenerator} classes each create one by default)
+ * and, because of its size limit, stays small even if it is kept
+ * around.</p>
+ *
+ * <p>{@link CtClass}es that have been modified but not yet
+ * {@linkplain CtClass#isFrozen() frozen} are never evicted, since
+ * doing so would silently discard in-progress edits.  Nor are the
+ * {@linkplain #getSharedCtClass(String) shared types}, such as {@link
+ * XmlJavaTypeAdapter} and {@link UniversalXmlAdapter}, that every
+ * operation performed by this project looks up.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ClassPool
+ */
+public class BoundedClassPool extends ClassPool {
+
+  /**
+   * The default maximum number of {@link CtClass}es a {@link
+   * BoundedClassPool} will cache.
+   */
+  public static final int DEFAULT_MAXIMUM_SIZE = 256;
+
+  private final int maximumSize;
+
+  /**
+   * The names of the {@link CtClass}es cached by this {@link
+   * BoundedClassPool}, in access order.  The values are irrelevant.
+   * Guarded by {@code this}, the same monitor {@link ClassPool} uses.
+   */
+  private final LinkedHashMap<String, Boolean> recency;
+
+  /**
+   * {@link CtClass}es that are exempt from eviction, indexed by name.
+   * Guarded by {@code this}.
+   */
+  private final Map<String, CtClass> sharedCtClasses;
+
+  /**
+   * Creates a new {@link BoundedClassPool} that searches the system
+   * class path and holds at most {@link #DEFAULT_MAXIMUM_SIZE} {@link
+   * CtClass}es.
+   */
+  public BoundedClassPool() {
+    this(DEFAULT_MAXIMUM_SIZE);
+  }
+
+  /**
+   * Creates a new {@link BoundedClassPool} that searches the system
+   * class path and holds at most the supplied number of {@link
+   * CtClass}es.
+   *
+   * @param maximumSize the maximum number of {@link CtClass}es to
+   * cache; must be greater than zero
+   *
+   * @exception IllegalArgumentException if {@code maximumSize} is
+   * less than or equal to zero
+   */
+  public BoundedClassPool(final int maximumSize) {
+    super(true);
+    if (maximumSize <= 0) {
+      throw new IllegalArgumentException("maximumSize <= 0: " + maximumSize);
+    }
+    this.maximumSize = maximumSize;
+    this.recency = new LinkedHashMap<String, Boolean>(16, 0.75f, true);
+    this.sharedCtClasses = new HashMap<String, CtClass>();
+  }
+
+  /**
+   * Returns the maximum number of {@link CtClass}es this {@link
+   * BoundedClassPool} will cache, not counting primitive types.
+   *
+   * @return a number greater than zero
+   */
+  public final int getMaximumSize() {
+    return this.maximumSize;
+  }
+
+  /**
+   * Returns the number of {@link CtClass}es currently cached by this
+   * {@link BoundedClassPool}, not counting primitive types.
+   *
+   * @return the number of cached {@link CtClass}es
+   */
+  public final synchronized int size() {
+    return this.recency.size();
+  }
+
+  /**
+   * Returns a {@link CtClass} for a type, such as {@link
+   * XmlJavaTypeAdapter}, that is looked up over and over by nearly
+   * every operation, and exempts it from eviction so that it is
+   * parsed only once over the life of this {@link BoundedClassPool}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param className the name of the class; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link CtClass}
+   *
+   * @exception NotFoundException if the class could not be found
+   */
+  public final synchronized CtClass getSharedCtClass(final String className) throws NotFoundException {
+    if (className == null) {
+      throw new IllegalArgumentException("className", new NullPointerException("className"));
+    }
+    CtClass returnValue = this.sharedCtClasses.get(className);
+    if (returnValue == null) {
+      returnValue = this.get(className);
+      assert returnValue != null;
+      this.sharedCtClasses.put(className, returnValue);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Returns a {@link CtClass} representing {@link
+   * XmlJavaTypeAdapter}.
+   *
+   * @return a non-{@code null} {@link CtClass}
+   *
+   * @exception NotFoundException if the class could not be found
+   */
+  public final CtClass getXmlJavaTypeAdapterCtClass() throws NotFoundException {
+    return this.getSharedCtClass(XmlJavaTypeAdapter.class.getName());
+  }
+
+  /**
+   * Returns a {@link CtClass} representing {@link
+   * XmlJavaTypeAdapters}.
+   *
+   * @return a non-{@code null} {@link CtClass}
+   *
+   * @exception NotFoundException if the class could not be found
+   */
+  public final CtClass getXmlJavaTypeAdaptersCtClass() throws NotFoundException {
+    return this.getSharedCtClass(XmlJavaTypeAdapters.class.getName());
+  }
+
+  /**
+   * Returns a {@link CtClass} representing {@link
+   * UniversalXmlAdapter}.
+   *
+   * @return a non-{@code null} {@link CtClass}
+   *
+   * @exception NotFoundException if the class could not be found
+   */
+  public final CtClass getUniversalXmlAdapterCtClass() throws NotFoundException {
+    return this.getSharedCtClass(UniversalXmlAdapter.class.getName());
+  }
+
+  /**
+   * Returns the {@link CtClass} named by the supplied {@code
+   * className} from the supplied {@link ClassPool}, using the {@link
+   * #getSharedCtClass(String)} method if the supplied {@link
+   * ClassPool} is a {@link BoundedClassPool}.
+   *
+   * @param classPool the {@link ClassPool} to consult; must not be
+   * {@code null}
+   *
+   * @param className the name of the class; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link CtClass}
+   *
+   * @exception NotFoundException if the class could not be found
+   */
+  static final CtClass getSharedCtClass(final ClassPool classPool, final String className) throws NotFoundException {
+    if (classPool == null) {
+      throw new IllegalArgumentException("classPool", new NullPointerException("classPool"));
+    }
+    if (classPool instanceof BoundedClassPool) {
+      return ((BoundedClassPool)classPool).getSharedCtClass(className);
+    }
+    return classPool.get(className);
+  }
+
+  /**
+   * Overrides the superclass' implementation to record that the
+   * {@link CtClass} named by the supplied {@code className}, if it is
+   * cached, was recently used.
+   */
+  @Override
+  protected synchronized CtClass getCached(final String className) {
+    final CtClass returnValue = super.getCached(className);
+    if (returnValue != null && this.recency != null) {
+      this.recency.get(className);
+    }
+    return returnValue;
+  }
+
+  /**
+   * Overrides the superclass' implementation to evict the least
+   * recently used {@link CtClass}es if this {@link BoundedClassPool}
+   * is full.
+   */
+  @Override
+  protected synchronized void cacheCtClass(final String className, final CtClass c, final boolean dynamic) {
+    super.cacheCtClass(className, c, dynamic);
+    if (this.recency != null && className != null) {
+      this.recency.put(className, Boolean.TRUE);
+      this.evict();
+    }
+  }
+
+  /**
+   * Overrides the superclass' implementation to forget about the
+   * {@link CtClass} named by the supplied {@code className}; this is
+   * what {@link CtClass#detach()} ultimately calls.
+   */
+  @Override
+  protected synchronized CtClass removeCached(final String className) {
+    if (this.recency != null) {
+      this.recency.remove(className);
+      this.sharedCtClasses.remove(className);
+    }
+    return super.removeCached(className);
+  }
+
+  private final void evict() {
+    assert Thread.holdsLock(this);
+    int excess = this.recency.size() - this.maximumSize;
+    if (excess > 0) {
+      final Iterator<Entry<String, Boolean>> iterator = this.recency.entrySet().iterator();
+      assert iterator != null;
+      while (excess > 0 && iterator.hasNext()) {
+        final String className = iterator.next().getKey();
+        if (!this.sharedCtClasses.containsKey(className)) {
+          final CtClass c = super.getCached(className);
+          if (c == null || !c.isModified() || c.isFrozen()) {
+            iterator.remove();
+            super.removeCached(className);
+            excess--;
+          }
+        }
+      }
+    }
+  }
+
+}
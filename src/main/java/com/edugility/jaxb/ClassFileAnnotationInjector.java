@@ -0,0 +1,722 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapters;
+
+/**
+ * Installs annotations into class files by editing their bytes
+ * directly.
+ *
+ * <p>Unlike Javassist, which parses an entire class into a {@link
+ * javassist.CtClass} and re-serializes every method and attribute
+ * when it is asked for its bytecode, this class copies the original
+ * bytes through unchanged except for two splices: any constant pool
+ * entries it needs are appended to the end of the constant pool, and
+ * the class' {@code RuntimeVisibleAnnotations} attribute is patched
+ * in place or, if there isn't one, added.  No {@link
+ * javassist.ClassPool} is involved.</p>
+ *
+ * <p>It can also answer whether a class file already bears the
+ * annotations that would be installed, so that callers can skip all
+ * bytecode work when nothing needs to change.</p>
+ *
+ * <p>Malformed class files cause {@link IllegalArgumentException}s to
+ * be thrown.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see InterfaceDecorator
+ */
+final class ClassFileAnnotationInjector {
+
+  private static final int MAGIC = 0xCAFEBABE;
+
+  private static final byte[] RUNTIME_VISIBLE_ANNOTATIONS = encode("RuntimeVisibleAnnotations");
+
+  private static final byte[] XML_JAVA_TYPE_ADAPTER = encode(descriptor(XmlJavaTypeAdapter.class.getName()));
+
+  private static final byte[] XML_JAVA_TYPE_ADAPTERS = encode(descriptor(XmlJavaTypeAdapters.class.getName()));
+
+  private static final byte[] VALUE = encode("value");
+
+  private static final byte[] TYPE = encode("type");
+
+  private ClassFileAnnotationInjector() {
+    super();
+  }
+
+  /**
+   * Returns the name of the class represented by the supplied class
+   * file bytes.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param classBytes the bytes of a class file; must not be {@code
+   * null}
+   *
+   * @return the non-{@code null} {@linkplain Class#getName() name} of
+   * the class
+   *
+   * @exception IllegalArgumentException if {@code classBytes} is
+   * {@code null} or malformed
+   */
+  static final String getClassName(final byte[] classBytes) {
+    return new ClassFile(classBytes).getClassName();
+  }
+
+  /**
+   * Reads the class file at the supplied {@link URL} fully and
+   * returns its bytes.
+   *
+   * @param location the {@link URL} of a class file; must not be
+   * {@code null}
+   *
+   * @return the non-{@code null} bytes of the class file
+   *
+   * @exception IOException if an input or output error occurs
+   */
+  static final byte[] read(final URL location) throws IOException {
+    if (location == null) {
+      throw new IllegalArgumentException("location", new NullPointerException("location"));
+    }
+    final InputStream stream = location.openStream();
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+      final byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, bytesRead);
+      }
+      return out.toByteArray();
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Returns {@code true} if the class represented by the supplied
+   * class file bytes bears an {@link XmlJavaTypeAdapters} annotation
+   * that already contains, for every entry in the supplied {@link
+   * Map}, an {@link XmlJavaTypeAdapter} whose {@link
+   * XmlJavaTypeAdapter#type() type()} is the entry's key and whose
+   * {@link XmlJavaTypeAdapter#value() value()} is the entry's value.
+   *
+   * <p>Only the constant pool and the annotation attribute are read;
+   * nothing is allocated beyond an index of the constant pool and the
+   * existing adapters' names.</p>
+   *
+   * @param classBytes the bytes of a class file; must not be {@code
+   * null}
+   *
+   * @param bindings a {@link Map} of {@link
+   * javax.xml.bind.annotation.adapters.XmlAdapter} class names
+   * indexed by the names of the types they adapt; may be {@code
+   * null}; entries with {@code null} keys or values are ignored
+   *
+   * @return {@code true} if installing the supplied bindings would
+   * not change the class; {@code false} otherwise
+   *
+   * @exception IllegalArgumentException if {@code classBytes} is
+   * {@code null} or malformed
+   */
+  static final boolean hasXmlJavaTypeAdapters(final byte[] classBytes, final Map<String, String> bindings) {
+    final ClassFile classFile = new ClassFile(classBytes);
+    final int annotationsAttribute = classFile.findAttribute(RUNTIME_VISIBLE_ANNOTATIONS);
+    if (annotationsAttribute < 0) {
+      return false;
+    }
+    final byte[] b = classBytes;
+    final int annotationCount = u2(b, annotationsAttribute + 6);
+    int p = annotationsAttribute + 8;
+    for (int i = 0; i < annotationCount; i++) {
+      if (classFile.utf8Equals(u2(b, p), XML_JAVA_TYPE_ADAPTERS)) {
+        final int pairCount = u2(b, p + 2);
+        int q = p + 4;
+        for (int j = 0; j < pairCount; j++) {
+          if (classFile.utf8Equals(u2(b, q), VALUE) && b[q + 2] == '[') {
+            return containsAll(classFile, q + 3, bindings);
+          }
+          q = skipElementValue(b, q + 2);
+        }
+        return false;
+      }
+      p = skipAnnotation(b, p);
+    }
+    return false;
+  }
+
+  /**
+   * Given the offset of the {@code num_values} item of an array
+   * {@code element_value} holding {@link XmlJavaTypeAdapter}
+   * annotations, returns {@code true} if those annotations cover all
+   * of the supplied bindings.
+   */
+  private static final boolean containsAll(final ClassFile classFile, final int arrayStart, final Map<String, String> bindings) {
+    if (bindings == null || bindings.isEmpty()) {
+      return true;
+    }
+    final byte[] b = classFile.b;
+    final int count = u2(b, arrayStart);
+    final Map<String, String> existing = new HashMap<String, String>();
+    int p = arrayStart + 2;
+    for (int i = 0; i < count; i++) {
+      if (b[p] == '@' && classFile.utf8Equals(u2(b, p + 1), XML_JAVA_TYPE_ADAPTER)) {
+        String type = null;
+        String value = null;
+        final int pairCount = u2(b, p + 3);
+        int q = p + 5;
+        for (int j = 0; j < pairCount; j++) {
+          if (b[q + 2] == 'c') {
+            if (classFile.utf8Equals(u2(b, q), TYPE)) {
+              type = classFile.utf8(u2(b, q + 3));
+            } else if (classFile.utf8Equals(u2(b, q), VALUE)) {
+              value = classFile.utf8(u2(b, q + 3));
+            }
+          }
+          q = skipElementValue(b, q + 2);
+        }
+        if (type != null && value != null) {
+          existing.put(type, value);
+        }
+      }
+      p = skipElementValue(b, p);
+    }
+    for (final Entry<String, String> binding : bindings.entrySet()) {
+      if (binding != null && binding.getKey() != null && binding.getValue() != null) {
+        if (!descriptor(binding.getValue()).equals(existing.get(descriptor(binding.getKey())))) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Returns {@code true} if the class represented by the supplied
+   * class file bytes already bears an {@link XmlJavaTypeAdapter}
+   * annotation whose {@link XmlJavaTypeAdapter#value() value()} is
+   * the class named by the supplied {@code adapterClassName}.
+   *
+   * @param classBytes the bytes of a class file; must not be {@code
+   * null}
+   *
+   * @param adapterClassName the {@linkplain Class#getName() name} of
+   * an {@link javax.xml.bind.annotation.adapters.XmlAdapter}
+   * subclass; must not be {@code null}
+   *
+   * @return {@code true} if {@link #installXmlJavaTypeAdapter(byte[],
+   * String)} would return {@code classBytes} unchanged
+   *
+   * @exception IllegalArgumentException if either parameter is {@code
+   * null} or if {@code classBytes} is malformed
+   */
+  static final boolean hasXmlJavaTypeAdapter(final byte[] classBytes, final String adapterClassName) {
+    if (adapterClassName == null) {
+      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
+    }
+    final ClassFile classFile = new ClassFile(classBytes);
+    final int annotationsAttribute = classFile.findAttribute(RUNTIME_VISIBLE_ANNOTATIONS);
+    if (annotationsAttribute < 0) {
+      return false;
+    }
+    final byte[] b = classBytes;
+    final byte[] adapterDescriptor = encode(descriptor(adapterClassName));
+    final int annotationCount = u2(b, annotationsAttribute + 6);
+    int p = annotationsAttribute + 8;
+    for (int i = 0; i < annotationCount; i++) {
+      if (classFile.utf8Equals(u2(b, p), XML_JAVA_TYPE_ADAPTER)) {
+        final int pairCount = u2(b, p + 2);
+        int q = p + 4;
+        for (int j = 0; j < pairCount; j++) {
+          if (classFile.utf8Equals(u2(b, q), VALUE) && b[q + 2] == 'c' && classFile.utf8Equals(u2(b, q + 3), adapterDescriptor)) {
+            return true;
+          }
+          q = skipElementValue(b, q + 2);
+        }
+        return false;
+      }
+      p = skipAnnotation(b, p);
+    }
+    return false;
+  }
+
+  /**
+   * Returns class file bytes equal to the supplied ones except that
+   * the class bears an {@link XmlJavaTypeAdapter} annotation whose
+   * {@link XmlJavaTypeAdapter#value() value()} is the class named by
+   * the supplied {@code adapterClassName}.
+   *
+   * <p>Other elements of a preexisting {@link XmlJavaTypeAdapter}
+   * annotation, and all other annotations, are preserved.</p>
+   *
+   * <p>If the supplied class file is already so annotated, the very
+   * same array that was supplied is returned; callers may use
+   * reference equality to detect that nothing was changed.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param classBytes the bytes of a class file; must not be {@code
+   * null}
+   *
+   * @param adapterClassName the {@linkplain Class#getName() name} of
+   * an {@link javax.xml.bind.annotation.adapters.XmlAdapter}
+   * subclass; must not be {@code null}
+   *
+   * @return the bytes of the annotated class file; never {@code null}
+   *
+   * @exception IllegalArgumentException if either parameter is {@code
+   * null} or if {@code classBytes} is malformed
+   */
+  static final byte[] installXmlJavaTypeAdapter(final byte[] classBytes, final String adapterClassName) {
+    if (adapterClassName == null) {
+      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
+    }
+    final ClassFile classFile = new ClassFile(classBytes);
+    final byte[] adapterDescriptor = encode(descriptor(adapterClassName));
+
+    final int annotationsAttribute = classFile.findAttribute(RUNTIME_VISIBLE_ANNOTATIONS);
+    if (annotationsAttribute < 0) {
+      // No annotations at all; add a RuntimeVisibleAnnotations
+      // attribute holding just ours.
+      final ByteArrayOutputStream annotations = new ByteArrayOutputStream(16);
+      writeU2(annotations, 1);
+      writeXmlJavaTypeAdapter(annotations, classFile, classFile.utf8Index(XML_JAVA_TYPE_ADAPTER), null, -1, adapterDescriptor);
+      return classFile.toByteArray(-1, classFile.utf8Index(RUNTIME_VISIBLE_ANNOTATIONS), annotations.toByteArray());
+    }
+
+    final byte[] b = classBytes;
+    final int infoStart = annotationsAttribute + 6;
+    final int annotationCount = u2(b, infoStart);
+    int p = infoStart + 2;
+    for (int i = 0; i < annotationCount; i++) {
+      final int annotationStart = p;
+      final int annotationEnd = skipAnnotation(b, annotationStart);
+      if (classFile.utf8Equals(u2(b, annotationStart), XML_JAVA_TYPE_ADAPTER)) {
+        // See if the existing value() element is already correct.
+        final int pairCount = u2(b, annotationStart + 2);
+        int q = annotationStart + 4;
+        for (int j = 0; j < pairCount; j++) {
+          if (classFile.utf8Equals(u2(b, q), VALUE) && b[q + 2] == 'c' && classFile.utf8Equals(u2(b, q + 3), adapterDescriptor)) {
+            return classBytes;
+          }
+          q = skipElementValue(b, q + 2);
+        }
+        final ByteArrayOutputStream annotations = new ByteArrayOutputStream(annotationsAttributeLength(b, annotationsAttribute) + 8);
+        annotations.write(b, infoStart, annotationStart - infoStart);
+        writeXmlJavaTypeAdapter(annotations, classFile, u2(b, annotationStart), b, annotationStart, adapterDescriptor);
+        annotations.write(b, annotationEnd, infoStart + annotationsAttributeLength(b, annotationsAttribute) - annotationEnd);
+        return classFile.toByteArray(annotationsAttribute, u2(b, annotationsAttribute), annotations.toByteArray());
+      }
+      p = annotationEnd;
+    }
+
+    // There are annotations, but ours isn't among them; append it.
+    final int length = annotationsAttributeLength(b, annotationsAttribute);
+    final ByteArrayOutputStream annotations = new ByteArrayOutputStream(length + 16);
+    writeU2(annotations, annotationCount + 1);
+    annotations.write(b, infoStart + 2, length - 2);
+    writeXmlJavaTypeAdapter(annotations, classFile, classFile.utf8Index(XML_JAVA_TYPE_ADAPTER), null, -1, adapterDescriptor);
+    return classFile.toByteArray(annotationsAttribute, u2(b, annotationsAttribute), annotations.toByteArray());
+  }
+
+  /**
+   * Writes an {@code annotation} structure representing {@link
+   * XmlJavaTypeAdapter} to the supplied {@link
+   * ByteArrayOutputStream}, copying all element-value pairs other
+   * than {@code value} from the existing annotation beginning at the
+   * supplied offset, if there is one.
+   */
+  private static final void writeXmlJavaTypeAdapter(final ByteArrayOutputStream out, final ClassFile classFile, final int typeIndex, final byte[] b, final int annotationStart, final byte[] adapterDescriptor) {
+    assert out != null;
+    assert classFile != null;
+    final int adapterIndex = classFile.utf8Index(adapterDescriptor);
+    int valueNameIndex = 0;
+    writeU2(out, typeIndex);
+    if (b == null) {
+      writeU2(out, 1);
+    } else {
+      // Copy every pair except value(), then write value() last.
+      final int pairCount = u2(b, annotationStart + 2);
+      final ByteArrayOutputStream pairs = new ByteArrayOutputStream(32);
+      int keptPairCount = 0;
+      int q = annotationStart + 4;
+      for (int j = 0; j < pairCount; j++) {
+        final int next = skipElementValue(b, q + 2);
+        if (classFile.utf8Equals(u2(b, q), VALUE)) {
+          valueNameIndex = u2(b, q);
+        } else {
+          pairs.write(b, q, next - q);
+          keptPairCount++;
+        }
+        q = next;
+      }
+      writeU2(out, keptPairCount + 1);
+      final byte[] pairBytes = pairs.toByteArray();
+      out.write(pairBytes, 0, pairBytes.length);
+    }
+    writeU2(out, valueNameIndex == 0 ? classFile.utf8Index(VALUE) : valueNameIndex);
+    out.write('c');
+    writeU2(out, adapterIndex);
+  }
+
+  /*
+   * Class file structure helpers.
+   */
+
+
+  private static final int annotationsAttributeLength(final byte[] b, final int attributeStart) {
+    return u4(b, attributeStart + 2);
+  }
+
+  private static final int skipAnnotation(final byte[] b, int p) {
+    final int pairCount = u2(b, p + 2);
+    p += 4;
+    for (int i = 0; i < pairCount; i++) {
+      p = skipElementValue(b, p + 2);
+    }
+    return p;
+  }
+
+  private static final int skipElementValue(final byte[] b, int p) {
+    final int tag = b[p++] & 0xFF;
+    switch (tag) {
+    case 'B': case 'C': case 'D': case 'F': case 'I': case 'J': case 'S': case 'Z': case 's': case 'c':
+      return p + 2;
+    case 'e':
+      return p + 4;
+    case '@':
+      return skipAnnotation(b, p);
+    case '[':
+      final int count = u2(b, p);
+      p += 2;
+      for (int i = 0; i < count; i++) {
+        p = skipElementValue(b, p);
+      }
+      return p;
+    default:
+      throw new IllegalArgumentException("Unknown element_value tag: " + tag);
+    }
+  }
+
+  static final int u2(final byte[] b, final int p) {
+    return ((b[p] & 0xFF) << 8) | (b[p + 1] & 0xFF);
+  }
+
+  static final int u4(final byte[] b, final int p) {
+    return ((b[p] & 0xFF) << 24) | ((b[p + 1] & 0xFF) << 16) | ((b[p + 2] & 0xFF) << 8) | (b[p + 3] & 0xFF);
+  }
+
+  static final void writeU2(final ByteArrayOutputStream out, final int value) {
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  static final void writeU4(final ByteArrayOutputStream out, final int value) {
+    out.write(value >>> 24);
+    out.write(value >>> 16);
+    out.write(value >>> 8);
+    out.write(value);
+  }
+
+  static final String descriptor(final String className) {
+    return "L" + className.replace('.', '/') + ";";
+  }
+
+  /**
+   * Encodes the supplied {@link String} in the modified UTF-8 format
+   * used by {@code CONSTANT_Utf8_info} structures.
+   */
+  static final byte[] encode(final String s) {
+    assert s != null;
+    final ByteArrayOutputStream out = new ByteArrayOutputStream(s.length());
+    for (int i = 0; i < s.length(); i++) {
+      final char c = s.charAt(i);
+      if (c != 0 && c < 0x80) {
+        out.write(c);
+      } else if (c < 0x800) {
+        out.write(0xC0 | (c >> 6));
+        out.write(0x80 | (c & 0x3F));
+      } else {
+        out.write(0xE0 | (c >> 12));
+        out.write(0x80 | ((c >> 6) & 0x3F));
+        out.write(0x80 | (c & 0x3F));
+      }
+    }
+    return out.toByteArray();
+  }
+
+  /**
+   * The bounds of the interesting parts of a class file, together
+   * with any constant pool entries that are to be appended to it.
+   */
+  private static final class ClassFile {
+
+    private final byte[] b;
+
+    /**
+     * The offset of each constant pool entry, indexed by constant
+     * pool index.  Entries for index 0 and for the unusable second
+     * slots of {@code long} and {@code double} constants are zero.
+     */
+    private final int[] constantPoolOffsets;
+
+    private final int constantPoolEnd;
+
+    private final int attributesOffset;
+
+    private final List<byte[]> newUtf8Entries;
+
+    private final List<byte[]> newUtf8Values;
+
+    private ClassFile(final byte[] b) {
+      super();
+      if (b == null) {
+        throw new IllegalArgumentException("classBytes", new NullPointerException("classBytes"));
+      }
+      if (b.length < 10 || u4(b, 0) != MAGIC) {
+        throw new IllegalArgumentException("classBytes does not represent a class file");
+      }
+      this.b = b;
+      try {
+        final int count = u2(b, 8);
+        this.constantPoolOffsets = new int[count];
+        int p = 10;
+        for (int i = 1; i < count; i++) {
+          this.constantPoolOffsets[i] = p;
+          final int tag = b[p] & 0xFF;
+          switch (tag) {
+          case 1: // Utf8
+            p += 3 + u2(b, p + 1);
+            break;
+          case 3: // Integer
+          case 4: // Float
+          case 9: // Fieldref
+          case 10: // Methodref
+          case 11: // InterfaceMethodref
+          case 12: // NameAndType
+          case 17: // Dynamic
+          case 18: // InvokeDynamic
+            p += 5;
+            break;
+          case 5: // Long
+          case 6: // Double
+            p += 9;
+            i++;
+            break;
+          case 7: // Class
+          case 8: // String
+          case 16: // MethodType
+          case 19: // Module
+          case 20: // Package
+            p += 3;
+            break;
+          case 15: // MethodHandle
+            p += 4;
+            break;
+          default:
+            throw new IllegalArgumentException("Unknown constant pool tag " + tag + " at offset " + p);
+          }
+        }
+        this.constantPoolEnd = p;
+
+        // access_flags, this_class, super_class, interfaces
+        p += 6;
+        p += 2 + 2 * u2(b, p);
+
+        // fields, then methods
+        for (int k = 0; k < 2; k++) {
+          final int memberCount = u2(b, p);
+          p += 2;
+          for (int i = 0; i < memberCount; i++) {
+            p = skipAttributes(b, p + 6);
+          }
+        }
+        this.attributesOffset = p;
+        if (skipAttributes(b, p) != b.length) {
+          throw new IllegalArgumentException("classBytes has trailing bytes or is truncated");
+        }
+      } catch (final ArrayIndexOutOfBoundsException e) {
+        throw new IllegalArgumentException("classBytes is truncated", e);
+      }
+      this.newUtf8Entries = new ArrayList<byte[]>(3);
+      this.newUtf8Values = new ArrayList<byte[]>(3);
+    }
+
+    private static final int skipAttributes(final byte[] b, int p) {
+      final int attributeCount = u2(b, p);
+      p += 2;
+      for (int i = 0; i < attributeCount; i++) {
+        p += 6 + u4(b, p + 2);
+      }
+      return p;
+    }
+
+    private final String getClassName() {
+      final int thisClass = u2(this.b, this.constantPoolEnd + 2);
+      return this.utf8(u2(this.b, this.constantPoolOffsets[thisClass] + 1)).replace('/', '.');
+    }
+
+    /**
+     * Decodes and returns the {@code CONSTANT_Utf8_info} entry at the
+     * supplied constant pool index.
+     */
+    private final String utf8(final int index) {
+      if (index <= 0 || index >= this.constantPoolOffsets.length || this.constantPoolOffsets[index] == 0 || this.b[this.constantPoolOffsets[index]] != 1) {
+        throw new IllegalArgumentException("No CONSTANT_Utf8_info at index " + index);
+      }
+      final int p = this.constantPoolOffsets[index];
+      try {
+        return new DataInputStream(new ByteArrayInputStream(this.b, p + 1, u2(this.b, p + 1) + 2)).readUTF();
+      } catch (final IOException e) {
+        throw new IllegalArgumentException("Malformed CONSTANT_Utf8_info at index " + index, e);
+      }
+    }
+
+    /**
+     * Returns the offset of the class attribute whose name is the
+     * supplied encoded {@link String}, or {@code -1} if there is no
+     * such attribute.
+     */
+    private final int findAttribute(final byte[] name) {
+      final int attributeCount = u2(this.b, this.attributesOffset);
+      int p = this.attributesOffset + 2;
+      for (int i = 0; i < attributeCount; i++) {
+        if (this.utf8Equals(u2(this.b, p), name)) {
+          return p;
+        }
+        p += 6 + u4(this.b, p + 2);
+      }
+      return -1;
+    }
+
+    private final boolean utf8Equals(final int index, final byte[] value) {
+      if (index <= 0 || index >= this.constantPoolOffsets.length) {
+        return false;
+      }
+      final int p = this.constantPoolOffsets[index];
+      if (p == 0 || this.b[p] != 1 || u2(this.b, p + 1) != value.length) {
+        return false;
+      }
+      for (int i = 0; i < value.length; i++) {
+        if (this.b[p + 3 + i] != value[i]) {
+          return false;
+        }
+      }
+      return true;
+    }
+
+    /**
+     * Returns the constant pool index of a {@code CONSTANT_Utf8_info}
+     * entry holding the supplied encoded value, arranging for one to
+     * be appended if the constant pool does not already have one.
+     */
+    private final int utf8Index(final byte[] value) {
+      for (int i = 1; i < this.constantPoolOffsets.length; i++) {
+        if (this.utf8Equals(i, value)) {
+          return i;
+        }
+      }
+      final int size = this.newUtf8Values.size();
+      for (int i = 0; i < size; i++) {
+        if (Arrays.equals(this.newUtf8Values.get(i), value)) {
+          return this.constantPoolOffsets.length + i;
+        }
+      }
+      final int index = this.constantPoolOffsets.length + size;
+      if (index > 0xFFFF) {
+        throw new IllegalArgumentException("classBytes has a full constant pool");
+      }
+      if (value.length > 0xFFFF) {
+        throw new IllegalArgumentException("value too long");
+      }
+      final ByteArrayOutputStream entry = new ByteArrayOutputStream(value.length + 3);
+      entry.write(1);
+      writeU2(entry, value.length);
+      entry.write(value, 0, value.length);
+      this.newUtf8Entries.add(entry.toByteArray());
+      this.newUtf8Values.add(value);
+      return index;
+    }
+
+    /**
+     * Returns a new class file consisting of this one's bytes plus
+     * any appended constant pool entries, with the class attribute at
+     * the supplied offset (or, if the offset is negative, a new class
+     * attribute) replaced by one with the supplied name index and
+     * info.
+     */
+    private final byte[] toByteArray(final int attributeOffset, final int attributeNameIndex, final byte[] attributeInfo) {
+      final byte[] b = this.b;
+      final ByteArrayOutputStream out = new ByteArrayOutputStream(b.length + attributeInfo.length + 64);
+      out.write(b, 0, 8);
+      writeU2(out, this.constantPoolOffsets.length + this.newUtf8Entries.size());
+      out.write(b, 10, this.constantPoolEnd - 10);
+      for (final byte[] entry : this.newUtf8Entries) {
+        out.write(entry, 0, entry.length);
+      }
+      out.write(b, this.constantPoolEnd, this.attributesOffset - this.constantPoolEnd);
+      final int attributeCount = u2(b, this.attributesOffset);
+      int p = this.attributesOffset + 2;
+      if (attributeOffset < 0) {
+        writeU2(out, attributeCount + 1);
+        out.write(b, p, b.length - p);
+      } else {
+        writeU2(out, attributeCount);
+        out.write(b, p, attributeOffset - p);
+      }
+      writeU2(out, attributeNameIndex);
+      writeU4(out, attributeInfo.length);
+      out.write(attributeInfo, 0, attributeInfo.length);
+      if (attributeOffset >= 0) {
+        final int attributeEnd = attributeOffset + 6 + u4(b, attributeOffset + 2);
+        out.write(b, attributeEnd, b.length - attributeEnd);
+      }
+      return out.toByteArray();
+    }
+
+  }
+
+}
@@ -27,18 +27,35 @@
  */
 package com.edugility.jaxb;
 
+import java.io.BufferedInputStream;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
+import java.io.InputStream;
 
 import java.net.URI;
+import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Enumeration;
+import java.util.List;
 import java.util.Set;
 
+import java.util.concurrent.TimeUnit;
+
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
 import javassist.bytecode.annotation.Annotation;
 
 import org.scannotation.AnnotationDB;
 
+import org.scannotation.archiveiterator.Filter;
+import org.scannotation.archiveiterator.IteratorFactory;
+import org.scannotation.archiveiterator.StreamIterator;
+
 import javassist.bytecode.ClassFile;
 
 public abstract class ClassFileTrackingAnnotationDB extends AnnotationDB {
@@ -141,6 +158,197 @@ public abstract class ClassFileTrackingAnnotationDB extends AnnotationDB {
     }
   }
   
+  /**
+   * Scans the supplied {@link URI}s, reporting progress to the
+   * supplied {@link ScanProgressListener} and stopping early if the
+   * supplied {@link CancellationToken} is cancelled or the supplied
+   * time budget is exhausted.
+   *
+   * @param uris the {@link URI}s to scan; may be {@code null}
+   *
+   * @param listener a {@link ScanProgressListener}; may be {@code
+   * null}
+   *
+   * @param cancellationToken a {@link CancellationToken}; may be
+   * {@code null}
+   *
+   * @param timeBudgetMillis the maximum number of milliseconds to
+   * spend scanning; zero or less means there is no limit
+   *
+   * @return a non-{@code null} {@link ScanStatus} indicating whether
+   * the scan completed; if it did not, whatever was scanned before
+   * it stopped has already been {@linkplain #populate(Annotation[],
+   * ClassFile) populated}
+   *
+   * @exception IOException if an error occurs during scanning
+   *
+   * @see #scanArchives(ScanProgressListener, CancellationToken, long,
+   * URL...)
+   */
+  public final ScanStatus scanArchives(final Set<URI> uris, final ScanProgressListener listener, final CancellationToken cancellationToken, final long timeBudgetMillis) throws IOException {
+    if (uris == null || uris.isEmpty()) {
+      return ScanStatus.COMPLETE;
+    }
+    final URL[] urls = new URL[uris.size()];
+    int i = 0;
+    for (final URI uri : uris) {
+      urls[i++] = uri == null ? null : uri.toURL();
+    }
+    return this.scanArchives(listener, cancellationToken, timeBudgetMillis, urls);
+  }
+
+  /**
+   * Scans the supplied {@link URL}s one at a time as {@link
+   * AnnotationDB#scanArchives(URL...)} would, calling the {@link
+   * #archiveScanned(URL)} method after each one.
+   *
+   * @param urls the {@link URL}s to scan; may be {@code null}
+   *
+   * @exception IOException if an error occurs during scanning
+   */
+  @Override
+  public void scanArchives(final URL... urls) throws IOException {
+    if (urls != null) {
+      for (final URL url : urls) {
+        if (url != null) {
+          super.scanArchives(url);
+          this.archiveScanned(url);
+        }
+      }
+    }
+  }
+
+  /**
+   * Scans the supplied {@link URL}s, reporting progress to the
+   * supplied {@link ScanProgressListener} and stopping early if the
+   * supplied {@link CancellationToken} is cancelled or the supplied
+   * time budget is exhausted.
+   *
+   * <p>Directories and archives designated by {@code file:} {@link
+   * URL}s are enumerated up front so that the total number of bytes
+   * to scan is known; archives' sizes are read from their central
+   * directories without inflating anything.  Cancellation and the
+   * time budget are checked between class files.  Other kinds of
+   * {@link URL}s are scanned as {@link AnnotationDB#scanArchives(URL...)}
+   * would scan them and contribute no bytes to the totals.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param listener a {@link ScanProgressListener}; may be {@code
+   * null}
+   *
+   * @param cancellationToken a {@link CancellationToken}; may be
+   * {@code null}
+   *
+   * @param timeBudgetMillis the maximum number of milliseconds to
+   * spend scanning; zero or less means there is no limit
+   *
+   * @param urls the {@link URL}s to scan; may be {@code null}
+   *
+   * @return a non-{@code null} {@link ScanStatus} indicating whether
+   * the scan completed
+   *
+   * @exception IOException if an error occurs during scanning
+   */
+  public ScanStatus scanArchives(final ScanProgressListener listener, final CancellationToken cancellationToken, final long timeBudgetMillis, final URL... urls) throws IOException {
+    final Monitor monitor = new Monitor(this, listener, cancellationToken, timeBudgetMillis);
+    final List<Archive> archives = new ArrayList<Archive>();
+    if (urls != null) {
+      for (final URL url : urls) {
+        if (url != null) {
+          final Archive archive = this.createArchive(url);
+          monitor.byteCount += archive.byteCount;
+          archives.add(archive);
+        }
+      }
+    }
+    monitor.archiveCount = archives.size();
+    for (final Archive archive : archives) {
+      final ScanStatus status = archive.scan(monitor);
+      assert status != null;
+      if (!status.isComplete()) {
+        return status;
+      }
+      monitor.archiveScanned(archive.url);
+      this.archiveScanned(archive.url);
+    }
+    return ScanStatus.COMPLETE;
+  }
+
+  /**
+   * Called after every class file in the archive designated by the
+   * supplied {@link URL} has been scanned.
+   *
+   * <p>This implementation does nothing.</p>
+   *
+   * @param archive the {@link URL} of the archive that was scanned;
+   * will not be {@code null}
+   */
+  protected void archiveScanned(final URL archive) {
+
+  }
+
+  private final Archive createArchive(final URL url) throws IOException {
+    assert url != null;
+    if ("file".equals(url.getProtocol())) {
+      File file;
+      try {
+        file = new File(url.toURI());
+      } catch (final URISyntaxException e) {
+        file = new File(url.getPath());
+      }
+      if (file.isDirectory()) {
+        final List<File> classFiles = new ArrayList<File>();
+        this.findClassFiles(file, "", classFiles);
+        return new DirectoryArchive(url, classFiles);
+      } else if (file.isFile()) {
+        return new ZipArchive(url, file);
+      }
+    }
+    return new OpaqueArchive(url);
+  }
+
+  private final void findClassFiles(final File directory, final String packagePrefix, final List<File> classFiles) {
+    final File[] files = directory.listFiles();
+    if (files != null) {
+      for (final File file : files) {
+        if (file != null) {
+          final String name = file.getName();
+          if (file.isDirectory()) {
+            this.findClassFiles(file, packagePrefix + name + ".", classFiles);
+          } else if (this.accepts(packagePrefix + name)) {
+            classFiles.add(file);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns {@code true} if the class file with the supplied name,
+   * expressed either as a path or with periods in place of slashes,
+   * should be scanned, applying the same rules as {@link
+   * AnnotationDB#scanArchives(URL...)}.
+   */
+  private final boolean accepts(String name) {
+    if (name == null || !name.endsWith(".class")) {
+      return false;
+    }
+    if (name.startsWith("/")) {
+      name = name.substring(1);
+    }
+    name = name.replace('/', '.');
+    final String[] ignoredPackages = this.getIgnoredPackages();
+    if (ignoredPackages != null) {
+      for (final String ignoredPackage : ignoredPackages) {
+        if (ignoredPackage != null && name.startsWith(ignoredPackage + ".")) {
+          return false;
+        }
+      }
+    }
+    return true;
+  }
+
   /**
    * Overrides the superclass' implementation to track the
    * {@link ClassFile} being scanned.
@@ -155,4 +363,295 @@ public abstract class ClassFileTrackingAnnotationDB extends AnnotationDB {
   
   protected abstract void populate(final Annotation[] annotations, final ClassFile cf);
 
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * The outcome of a {@linkplain
+   * ClassFileTrackingAnnotationDB#scanArchives(ScanProgressListener,
+   * CancellationToken, long, URL...) monitored scan}.
+   */
+  public static enum ScanStatus {
+
+    /**
+     * Every class file was scanned.
+     */
+    COMPLETE,
+
+    /**
+     * The scan stopped early because its {@link CancellationToken}
+     * was cancelled; results are partial.
+     */
+    CANCELLED,
+
+    /**
+     * The scan stopped early because its time budget was exhausted;
+     * results are partial.
+     */
+    TIMED_OUT;
+
+    public final boolean isComplete() {
+      return this == COMPLETE;
+    }
+
+  }
+
+
+  /**
+   * A flag, safe for use by multiple threads, that tells a
+   * {@linkplain
+   * ClassFileTrackingAnnotationDB#scanArchives(ScanProgressListener,
+   * CancellationToken, long, URL...) monitored scan} to stop at the
+   * next class file boundary.
+   */
+  public static final class CancellationToken {
+
+    private volatile boolean cancelled;
+
+    public CancellationToken() {
+      super();
+    }
+
+    public final void cancel() {
+      this.cancelled = true;
+    }
+
+    public final boolean isCancelled() {
+      return this.cancelled;
+    }
+
+  }
+
+
+  /**
+   * Tracks progress, cancellation and the deadline of one monitored
+   * scan.
+   */
+  private static final class Monitor {
+
+    private final ClassFileTrackingAnnotationDB db;
+
+    private final ScanProgressListener listener;
+
+    private final CancellationToken cancellationToken;
+
+    private final boolean hasDeadline;
+
+    private final long deadline;
+
+    private int archiveCount;
+
+    private int archivesScanned;
+
+    private long byteCount;
+
+    private long bytesScanned;
+
+    private long bytesReported;
+
+    private Monitor(final ClassFileTrackingAnnotationDB db, final ScanProgressListener listener, final CancellationToken cancellationToken, final long timeBudgetMillis) {
+      super();
+      this.db = db;
+      this.listener = listener;
+      this.cancellationToken = cancellationToken;
+      this.hasDeadline = timeBudgetMillis > 0L;
+      this.deadline = this.hasDeadline ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeBudgetMillis) : 0L;
+    }
+
+    /**
+     * Returns a {@link ScanStatus} describing why the scan must stop,
+     * or {@code null} if it may continue.
+     */
+    private final ScanStatus check() {
+      if (this.cancellationToken != null && this.cancellationToken.isCancelled()) {
+        return ScanStatus.CANCELLED;
+      }
+      if (this.hasDeadline && System.nanoTime() - this.deadline >= 0L) {
+        return ScanStatus.TIMED_OUT;
+      }
+      return null;
+    }
+
+    private final void classFileScanned(final URL archive, final long size) {
+      this.bytesScanned += size;
+      // Report roughly every one percent so that huge archives don't
+      // generate an event per class file.
+      if (this.listener != null && (this.bytesScanned - this.bytesReported) * 100L >= this.byteCount) {
+        this.fire(archive);
+      }
+    }
+
+    private final void archiveScanned(final URL archive) {
+      this.archivesScanned++;
+      if (this.listener != null) {
+        this.fire(archive);
+      }
+    }
+
+    private final void fire(final URL archive) {
+      this.bytesReported = this.bytesScanned;
+      this.listener.scanProgressed(new ScanProgressEvent(this.db, archive, this.archivesScanned, this.archiveCount, this.bytesScanned, this.byteCount));
+    }
+
+  }
+
+
+  private abstract class Archive {
+
+    final URL url;
+
+    final long byteCount;
+
+    private Archive(final URL url, final long byteCount) {
+      super();
+      this.url = url;
+      this.byteCount = byteCount;
+    }
+
+    abstract ScanStatus scan(final Monitor monitor) throws IOException;
+
+  }
+
+
+  private final class DirectoryArchive extends Archive {
+
+    private final List<File> classFiles;
+
+    private DirectoryArchive(final URL url, final List<File> classFiles) {
+      super(url, length(classFiles));
+      this.classFiles = classFiles;
+    }
+
+    @Override
+    final ScanStatus scan(final Monitor monitor) throws IOException {
+      for (final File classFile : this.classFiles) {
+        final ScanStatus status = monitor.check();
+        if (status != null) {
+          return status;
+        }
+        final InputStream stream = new BufferedInputStream(new FileInputStream(classFile));
+        try {
+          scanClass(stream);
+        } finally {
+          stream.close();
+        }
+        monitor.classFileScanned(this.url, classFile.length());
+      }
+      return ScanStatus.COMPLETE;
+    }
+
+  }
+
+  private static final long length(final List<File> files) {
+    long length = 0L;
+    for (final File file : files) {
+      length += file.length();
+    }
+    return length;
+  }
+
+
+  private final class ZipArchive extends Archive {
+
+    private final File file;
+
+    private ZipArchive(final URL url, final File file) throws IOException {
+      super(url, centralDirectorySize(file));
+      this.file = file;
+    }
+
+    @Override
+    final ScanStatus scan(final Monitor monitor) throws IOException {
+      final ZipFile zipFile = new ZipFile(this.file);
+      try {
+        final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+        while (entries.hasMoreElements()) {
+          final ZipEntry entry = entries.nextElement();
+          if (entry != null && !entry.isDirectory() && accepts(entry.getName())) {
+            final ScanStatus status = monitor.check();
+            if (status != null) {
+              return status;
+            }
+            final InputStream stream = new BufferedInputStream(zipFile.getInputStream(entry));
+            try {
+              scanClass(stream);
+            } finally {
+              stream.close();
+            }
+            monitor.classFileScanned(this.url, Math.max(0L, entry.getSize()));
+          }
+        }
+      } finally {
+        zipFile.close();
+      }
+      return ScanStatus.COMPLETE;
+    }
+
+  }
+
+  /**
+   * Returns the sum of the uncompressed sizes, as recorded in the
+   * supplied archive's central directory, of the class files that it
+   * contains.
+   */
+  private final long centralDirectorySize(final File file) throws IOException {
+    long size = 0L;
+    final ZipFile zipFile = new ZipFile(file);
+    try {
+      final Enumeration<? extends ZipEntry> entries = zipFile.entries();
+      while (entries.hasMoreElements()) {
+        final ZipEntry entry = entries.nextElement();
+        if (entry != null && !entry.isDirectory() && this.accepts(entry.getName())) {
+          size += Math.max(0L, entry.getSize());
+        }
+      }
+    } finally {
+      zipFile.close();
+    }
+    return size;
+  }
+
+
+  private final class OpaqueArchive extends Archive {
+
+    private OpaqueArchive(final URL url) {
+      super(url, 0L);
+    }
+
+    @Override
+    final ScanStatus scan(final Monitor monitor) throws IOException {
+      final StreamIterator iterator = IteratorFactory.create(this.url, new Filter() {
+          @Override
+          public final boolean accepts(final String name) {
+            return ClassFileTrackingAnnotationDB.this.accepts(name);
+          }
+        });
+      try {
+        InputStream stream;
+        while (true) {
+          final ScanStatus status = monitor.check();
+          if (status != null) {
+            return status;
+          }
+          stream = iterator.next();
+          if (stream == null) {
+            break;
+          }
+          try {
+            scanClass(stream);
+          } finally {
+            stream.close();
+          }
+        }
+      } finally {
+        iterator.close();
+      }
+      return ScanStatus.COMPLETE;
+    }
+
+  }
+
 }
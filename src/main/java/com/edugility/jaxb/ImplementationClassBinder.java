@@ -4,10 +4,9 @@ import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.OutputStream;
 
-import java.net.JarURLConnection;
+import java.net.MalformedURLException;
 import java.net.UnknownServiceException;
 import java.net.URISyntaxException;
 import java.net.URL;
@@ -18,40 +17,350 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
 import java.util.jar.JarFile;
 
 import javassist.CannotCompileException;
-import javassist.CtClass;
 import javassist.NotFoundException;
 
-public class ImplementationClassBinder implements ImplementationClassDiscoveryListener {
+import javassist.bytecode.BadBytecode;
+
+public class ImplementationClassBinder implements ArchiveScanListener {
 
   private String adapterClassNameTemplate;
 
   private final InterfaceDecorator interfaceDecorator;
 
-  private final Map<String, Collection<InterfaceDecorator.Modification>> modifications;
+  /**
+   * {@link InterfaceDecorator.Modification}s waiting to be written,
+   * grouped by the location to which they will be written.
+   */
+  private final ModificationQueue modifications;
+
+  /**
+   * Adapter class names indexed by the names of the interfaces they
+   * should decorate, accumulated during discovery so that they can
+   * be {@linkplain InterfaceDecorator#modifyAll(Map) decorated in one
+   * batch} when discovery ends.
+   */
+  private final Map<String, String> decorations;
+
+  /**
+   * Implementation class names indexed by the names of the
+   * interfaces they implement, accumulated alongside {@link
+   * #decorations} so that adapters can be generated into the
+   * {@linkplain #getOverlayClassLoader() overlay}.
+   */
+  private final Map<String, String> implementationClassNames;
+
+  /**
+   * The directories and archives scanned since discovery started,
+   * which are {@linkplain OverlayClassLoader#addChildFirstLocation(URL)
+   * loaded child-first} by the {@linkplain #getOverlayClassLoader()
+   * overlay} so that the implementation classes and beans in them see
+   * the decorated interfaces.
+   */
+  private final List<URL> scannedArchives;
+
+  private volatile OverlayClassLoader overlayClassLoader;
+
+  private XmlAdapterBytecodeGenerator xmlAdapterBytecodeGenerator;
+
+  private volatile boolean pipelined;
+
+  private volatile int writerThreadCount;
+
+  /**
+   * The {@link ModificationPipeline} in effect for the current
+   * discovery session if this {@link ImplementationClassBinder} is
+   * {@linkplain #isPipelined() pipelined}; {@code null} otherwise.
+   */
+  private ModificationPipeline pipeline;
+
+  private volatile WriteReport lastWriteReport;
+
+  private volatile boolean syncWrites;
+
+  private volatile boolean reproducible;
+
+  /**
+   * The time with which reproducibly rewritten jar entries are
+   * stamped, or a negative number if {@link
+   * JarRewriter#getReproducibleTime()} should supply it.
+   */
+  private volatile long reproducibleTime;
 
   public ImplementationClassBinder() {
     super();
     this.setAdapterClassNameTemplate("%s.%sTo%sAdapter");
-    this.modifications = new HashMap<String, Collection<InterfaceDecorator.Modification>>();
+    this.modifications = new ModificationQueue();
+    this.decorations = new LinkedHashMap<String, String>();
+    this.implementationClassNames = new HashMap<String, String>();
+    this.scannedArchives = new ArrayList<URL>();
+    this.writerThreadCount = Runtime.getRuntime().availableProcessors();
+    this.reproducibleTime = -1L;
     this.interfaceDecorator = new InterfaceDecorator();
   }
 
+  /**
+   * Returns the {@link ModificationQueue} that holds {@linkplain
+   * #queueUpModification(InterfaceDecorator.Modification) queued up}
+   * modifications until they are {@linkplain #processModifications()
+   * processed}, so that its {@linkplain
+   * ModificationQueue#setMemoryThreshold(long) memory threshold} may
+   * be tuned.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return the non-{@code null} {@link ModificationQueue}
+   */
+  public ModificationQueue getModificationQueue() {
+    return this.modifications;
+  }
+
+  /**
+   * Returns {@code true} if this {@link ImplementationClassBinder}
+   * decorates interfaces as their implementation classes are
+   * discovered and writes modifications on background threads while
+   * scanning continues.
+   *
+   * @return {@code true} if this {@link ImplementationClassBinder} is
+   * pipelined
+   *
+   * @see #setPipelined(boolean)
+   */
+  public boolean isPipelined() {
+    return this.pipelined;
+  }
+
+  /**
+   * Sets whether this {@link ImplementationClassBinder} should
+   * decorate interfaces as their implementation classes are
+   * discovered and write modifications on {@linkplain
+   * #getWriterThreadCount() background threads} while scanning
+   * continues, instead of doing all of its work when discovery ends.
+   *
+   * <p>A modification to a class file is written as soon as it is
+   * made; modifications to jar file entries are written as soon as
+   * the jar file has been {@linkplain
+   * ArchiveScanListener#archiveScanned(ImplementationClassDiscoveryEvent)
+   * scanned}.  The new setting takes effect when discovery next
+   * starts.  It has no effect if an {@linkplain
+   * #getOverlayClassLoader() overlay} is set.</p>
+   *
+   * @param pipelined whether this {@link ImplementationClassBinder}
+   * should be pipelined
+   *
+   * @see #isPipelined()
+   */
+  public void setPipelined(final boolean pipelined) {
+    this.pipelined = pipelined;
+  }
+
+  /**
+   * Returns the number of threads that write modifications, whether
+   * while scanning continues, if this {@link
+   * ImplementationClassBinder} is {@linkplain #isPipelined()
+   * pipelined}, or when they are {@linkplain #processModifications()
+   * processed}.
+   *
+   * @return the number of writer threads; always at least {@code 1}
+   */
+  public int getWriterThreadCount() {
+    return this.writerThreadCount;
+  }
+
+  /**
+   * Sets the number of threads that write modifications.  Locations
+   * are independent of one another, so with more than one thread
+   * several class files and jar files are written at once.  The new
+   * setting takes effect when discovery next starts.
+   *
+   * @param writerThreadCount the number of writer threads; values
+   * less than {@code 1} are treated as {@code 1}
+   */
+  public void setWriterThreadCount(final int writerThreadCount) {
+    this.writerThreadCount = Math.max(1, writerThreadCount);
+  }
+
+  /**
+   * Returns {@code true} if every class file and jar file written by
+   * this {@link ImplementationClassBinder} is forced to storage before
+   * it replaces the original.
+   *
+   * @return {@code true} if writes are synchronous
+   *
+   * @see #setSyncWrites(boolean)
+   */
+  public boolean isSyncWrites() {
+    return this.syncWrites;
+  }
+
+  /**
+   * Sets whether every class file and jar file written by this {@link
+   * ImplementationClassBinder} should be forced to storage before it
+   * replaces the original.
+   *
+   * <p>Whatever this setting, files are always written to a temporary
+   * sibling and then atomically moved into place, so a reader never
+   * sees a partially written file.  Forcing additionally guarantees
+   * that, after a crash, the file system holds either the complete
+   * original or the complete replacement.</p>
+   *
+   * @param syncWrites whether writes should be synchronous
+   *
+   * @see #isSyncWrites()
+   */
+  public void setSyncWrites(final boolean syncWrites) {
+    this.syncWrites = syncWrites;
+  }
+
+  /**
+   * Returns {@code true} if jar files written by this {@link
+   * ImplementationClassBinder} are {@linkplain
+   * JarRewriter#rewriteReproducibly(File, Map, boolean, long)
+   * rewritten reproducibly}.
+   *
+   * @return {@code true} if jar files are rewritten reproducibly
+   *
+   * @see #setReproducible(boolean)
+   */
+  public boolean isReproducible() {
+    return this.reproducible;
+  }
+
+  /**
+   * Sets whether jar files written by this {@link
+   * ImplementationClassBinder} should be {@linkplain
+   * JarRewriter#rewriteReproducibly(File, Map, boolean, long)
+   * rewritten reproducibly}: with sorted entries, all stamped with
+   * the {@linkplain #getReproducibleTime() reproducible time}, and
+   * without extra fields, so that the same inputs always produce the
+   * same jar file.
+   *
+   * @param reproducible whether jar files should be rewritten
+   * reproducibly
+   *
+   * @see #isReproducible()
+   */
+  public void setReproducible(final boolean reproducible) {
+    this.reproducible = reproducible;
+  }
+
+  /**
+   * Returns the time, in milliseconds since the epoch, with which
+   * entries in {@linkplain #isReproducible() reproducibly} rewritten
+   * jar files are stamped.
+   *
+   * <p>Unless {@linkplain #setReproducibleTime(long) set}, this is
+   * the value returned by the {@link
+   * JarRewriter#getReproducibleTime()} method, which honors the
+   * {@code SOURCE_DATE_EPOCH} environment variable.</p>
+   *
+   * @return a non-negative time in milliseconds since the epoch
+   */
+  public long getReproducibleTime() {
+    final long reproducibleTime = this.reproducibleTime;
+    if (reproducibleTime < 0L) {
+      return JarRewriter.getReproducibleTime();
+    }
+    return reproducibleTime;
+  }
+
+  /**
+   * Sets the time, in milliseconds since the epoch, with which entries
+   * in {@linkplain #isReproducible() reproducibly} rewritten jar
+   * files are stamped.
+   *
+   * @param reproducibleTime the time; if negative, the value returned
+   * by the {@link JarRewriter#getReproducibleTime()} method will be
+   * used instead
+   */
+  public void setReproducibleTime(final long reproducibleTime) {
+    this.reproducibleTime = reproducibleTime;
+  }
+
   @Override
   public void discoveryStarted(final ImplementationClassDiscoveryEvent event) {
-    this.modifications.clear();
+    if (this.pipeline != null) {
+      this.pipeline.abort();
+      this.pipeline = null;
+    }
+    if (this.isPipelined() && this.getOverlayClassLoader() == null) {
+      this.pipeline = new ModificationPipeline(this, this.getWriterThreadCount());
+    }
+    try {
+      this.modifications.clear();
+    } catch (final IOException wrapMe) {
+      throw new RuntimeException(wrapMe);
+    }
+    this.decorations.clear();
+    this.implementationClassNames.clear();
+    this.scannedArchives.clear();
   }
   
+  /**
+   * Writes, or {@linkplain #getOverlayClassLoader() overlays}, the
+   * modifications discovered since discovery started.
+   *
+   * <p>If the supplied {@link ImplementationClassDiscoveryEvent}
+   * reports a scan that was {@linkplain
+   * ImplementationClassDiscoveryEvent#isComplete() cancelled or timed
+   * out}, the discovered modifications are discarded instead, and any
+   * that a {@linkplain #isPipelined() pipelined} binder has yet to
+   * write are abandoned.</p>
+   *
+   * @param event the {@link ImplementationClassDiscoveryEvent}
+   * describing the end of discovery; may be {@code null}
+   */
   @Override
   public void discoveryEnded(final ImplementationClassDiscoveryEvent event) {
+    final ModificationPipeline pipeline = this.pipeline;
+    this.pipeline = null;
+    if (event != null && !event.isComplete()) {
+      try {
+        if (pipeline != null) {
+          pipeline.abort();
+        }
+        this.lastWriteReport = pipeline == null ? new WriteReport() : pipeline.getWriteReport();
+      } finally {
+        this.decorations.clear();
+        this.implementationClassNames.clear();
+        this.scannedArchives.clear();
+        try {
+          this.modifications.clear();
+        } catch (final IOException wrapMe) {
+          throw new RuntimeException(wrapMe);
+        }
+      }
+      return;
+    }
+    final WriteReport report = pipeline == null ? new WriteReport() : pipeline.getWriteReport();
     try {
-      this.processModifications();
+      try {
+        if (pipeline != null) {
+          pipeline.finish();
+        }
+        this.decorateInterfaces();
+        this.writeModifications(report);
+      } finally {
+        this.lastWriteReport = report;
+      }
+      report.throwFailures();
     } catch (final CannotCompileException wrapMe) {
       throw new RuntimeException(wrapMe);
     } catch (final IOException wrapMe) {
@@ -59,7 +368,14 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
     } catch (final NotFoundException wrapMe) {
       throw new RuntimeException(wrapMe);
     } finally {
-      this.modifications.clear();
+      this.decorations.clear();
+      this.implementationClassNames.clear();
+      this.scannedArchives.clear();
+      try {
+        this.modifications.clear();
+      } catch (final IOException wrapMe) {
+        throw new RuntimeException(wrapMe);
+      }
     }
   }
 
@@ -73,21 +389,19 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
           final String adapterPackageName = this.getAdapterPackageName(interfaceName, implementationClassName);
           final String adapterClassName = this.getAdapterClassName(adapterPackageName, interfaceName, implementationClassName);
           if (adapterClassName != null) {
-            try {
-              final InterfaceDecorator.Modification decoration = this.interfaceDecorator.modify(interfaceName, adapterClassName);
-              if (decoration != null && decoration.isModified()) {
-                if (this.shouldModifyImmediately(decoration.getInterfaceCtClass())) {
-                  this.recordModification(decoration);
-                } else {
-                  this.queueUpModification(decoration);
-                }
+            if (this.pipeline == null) {
+              this.decorations.put(interfaceName, adapterClassName);
+              this.implementationClassNames.put(interfaceName, implementationClassName);
+            } else {
+              try {
+                this.pipeline.add(this.interfaceDecorator.modify(interfaceName, adapterClassName));
+              } catch (final CannotCompileException wrapMe) {
+                throw new RuntimeException(wrapMe);
+              } catch (final IOException wrapMe) {
+                throw new RuntimeException(wrapMe);
+              } catch (final NotFoundException wrapMe) {
+                throw new RuntimeException(wrapMe);
               }
-            } catch (final CannotCompileException kaboom) {
-              throw new RuntimeException(kaboom);
-            } catch (final IOException kaboom) {
-              throw new RuntimeException(kaboom);
-            } catch (final NotFoundException kaboom) {
-              throw new RuntimeException(kaboom);
             }
           }
         }
@@ -95,129 +409,438 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
     }
   }
 
-  public void processModifications() throws CannotCompileException, IOException, NotFoundException {
-    final Iterable<Entry<String, Collection<InterfaceDecorator.Modification>>> modificationEntries = this.modifications.entrySet();
-    if (modificationEntries != null) {
-      for (final Entry<String, Collection<InterfaceDecorator.Modification>> entry : modificationEntries) {
-        if (entry != null) {
-          final String location = entry.getKey();
-          if (location != null) {
-            final Collection<InterfaceDecorator.Modification> mods = entry.getValue();
-            System.out.println("*** working on " + location + " = " + mods);
-            if (mods != null && !mods.isEmpty()) {
-              final URL locationURL = new URL(location);
-              final String scheme = locationURL.getProtocol();
-              assert scheme != null;
-              DataOutputStream outputStream = null;
-              JarFile jarFile = null;
-              try {
-                if ("file".equals(scheme)) {
-                  // Boy, there better only be one modification
-                  if (mods.size() != 1) {
-                    throw new IllegalStateException("file: scheme and more than one modification");
-                  }
-                  final InterfaceDecorator.Modification mod = mods.iterator().next();
-                  if (mod != null) {
-                    File f;
-                    try {
-                      f = new File(locationURL.toURI());
-                    } catch (final URISyntaxException e) {
-                      f = new File(locationURL.getPath());
-                    }
-                    outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-                    this.recordModification(mod, outputStream);
-                  }
-                } else if ("jar".equals(scheme)) {
-                  final URLConnection urlConnection = locationURL.openConnection();
-                  assert urlConnection instanceof JarURLConnection;
-                  jarFile = ((JarURLConnection)urlConnection).getJarFile();
-                  this.recordModifications(mods, jarFile);
-                } else {
-                  throw new UnknownServiceException(scheme);
-                }
-              } finally {
-                if (outputStream != null) {
-                  try {
-                    outputStream.close();
-                  } catch (final IOException ohWell) {
-                    ohWell.printStackTrace();
-                  }
-                }
-                if (jarFile != null) {
-                  try {
-                    jarFile.close();
-                  } catch (final IOException ohWell) {
-                    ohWell.printStackTrace();
-                  }
-                }
-              }
-            }
+  /**
+   * Records the scanned archive so that the {@linkplain
+   * #getOverlayClassLoader() overlay}, if there is one, can load its
+   * classes child-first, and, if this {@link ImplementationClassBinder}
+   * is {@linkplain #isPipelined() pipelined}, hands any modifications
+   * to entries in it to the writer threads.
+   *
+   * @param event the {@link ImplementationClassDiscoveryEvent}
+   * describing the scanned archive; may be {@code null} in which case
+   * no action will be taken
+   */
+  @Override
+  public void archiveScanned(final ImplementationClassDiscoveryEvent event) {
+    if (event != null) {
+      final URL archive = event.getArchive();
+      if (archive != null) {
+        this.scannedArchives.add(archive);
+      }
+      if (this.pipeline != null) {
+        this.pipeline.archiveScanned(archive);
+      }
+    }
+  }
+
+  /**
+   * Returns the {@link OverlayClassLoader} into which decorated
+   * interfaces and their adapters are placed instead of being
+   * written to disk.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the {@link OverlayClassLoader} in effect, or {@code null}
+   * if modifications are written to their original locations
+   *
+   * @see #setOverlayClassLoader(OverlayClassLoader)
+   */
+  public OverlayClassLoader getOverlayClassLoader() {
+    return this.overlayClassLoader;
+  }
+
+  /**
+   * Sets the {@link OverlayClassLoader} into which decorated
+   * interfaces and their generated adapters will be placed.  When an
+   * {@link OverlayClassLoader} is set, no original class file or jar
+   * entry is rewritten.
+   *
+   * <p>Every directory and archive scanned during discovery is
+   * {@linkplain OverlayClassLoader#addChildFirstLocation(URL)
+   * designated child-first} in the {@link OverlayClassLoader}, so
+   * that implementation classes, and the beans that refer to the
+   * decorated interfaces, are defined by it as well and see the
+   * decorated interfaces rather than the originals.  Classes must
+   * therefore be loaded through the {@link OverlayClassLoader} for
+   * the decorations to take effect.</p>
+   *
+   * @param overlayClassLoader the {@link OverlayClassLoader}; may be
+   * {@code null} in which case modifications will be written to
+   * their original locations
+   *
+   * @see #getOverlayClassLoader()
+   */
+  public void setOverlayClassLoader(final OverlayClassLoader overlayClassLoader) {
+    this.overlayClassLoader = overlayClassLoader;
+  }
+
+  /**
+   * Decorates, in one {@linkplain InterfaceDecorator#modifyAll(Map)
+   * batch}, every interface whose implementation class has been
+   * discovered since discovery started, and records or {@linkplain
+   * #queueUpModification(InterfaceDecorator.Modification) queues up}
+   * the resulting {@link InterfaceDecorator.Modification}s.
+   *
+   * <p>If an {@linkplain #getOverlayClassLoader() overlay} has been
+   * set, the decorated interfaces and freshly generated adapters are
+   * placed into it instead.</p>
+   *
+   * @exception CannotCompileException if a modification could not
+   * be recorded
+   *
+   * @exception IOException if an interface could not be read or a
+   * modification could not be recorded
+   *
+   * @exception NotFoundException if a modification could not be
+   * recorded
+   */
+  public void decorateInterfaces() throws CannotCompileException, IOException, NotFoundException {
+    if (!this.decorations.isEmpty()) {
+      final Map<String, InterfaceDecorator.Modification> decorations = this.interfaceDecorator.modifyAll(this.decorations);
+      final OverlayClassLoader overlayClassLoader = this.getOverlayClassLoader();
+      if (overlayClassLoader != null) {
+        this.overlay(overlayClassLoader, decorations);
+        this.decorations.clear();
+        return;
+      }
+      this.decorations.clear();
+      assert decorations != null;
+      for (final InterfaceDecorator.Modification decoration : decorations.values()) {
+        if (decoration != null && decoration.isModified()) {
+          if (this.shouldModifyImmediately(decoration)) {
+            this.recordModification(decoration);
+          } else {
+            this.queueUpModification(decoration);
           }
         }
       }
     }
   }
 
-  public void queueUpModification(final InterfaceDecorator.Modification modification) throws NotFoundException {
-    if (modification != null) {
-      final CtClass c = modification.getInterfaceCtClass();
-      if (c != null) {
-        final URL location = c.getURL();
-        if (location != null) {
-          Collection<InterfaceDecorator.Modification> mods = this.modifications.get(location.toString());
-          if (mods == null) {
-            mods = new ArrayList<InterfaceDecorator.Modification>();
-            this.modifications.put(location.toString(), mods);
+  private final void overlay(final OverlayClassLoader overlayClassLoader, final Map<String, InterfaceDecorator.Modification> decorations) throws CannotCompileException, IOException, NotFoundException {
+    assert overlayClassLoader != null;
+    assert decorations != null;
+    if (this.xmlAdapterBytecodeGenerator == null) {
+      this.xmlAdapterBytecodeGenerator = new XmlAdapterBytecodeGenerator();
+    }
+    for (final URL archive : this.scannedArchives) {
+      overlayClassLoader.addChildFirstLocation(archive);
+    }
+    for (final Entry<String, InterfaceDecorator.Modification> entry : decorations.entrySet()) {
+      final InterfaceDecorator.Modification decoration = entry.getValue();
+      if (decoration != null) {
+        final String interfaceName = entry.getKey();
+        overlayClassLoader.put(decoration);
+        final String adapterClassName = this.decorations.get(interfaceName);
+        final String implementationClassName = this.implementationClassNames.get(interfaceName);
+        if (adapterClassName != null && implementationClassName != null && !overlayClassLoader.contains(adapterClassName)) {
+          try {
+            overlayClassLoader.putAdapter(this.xmlAdapterBytecodeGenerator, adapterClassName, interfaceName, implementationClassName);
+          } catch (final BadBytecode wrapMe) {
+            throw new CannotCompileException(wrapMe);
           }
-          mods.add(modification);
         }
       }
     }
   }
 
-  public void recordModifications(final Iterable<InterfaceDecorator.Modification> mods, final JarFile jarFile) throws IOException {
+  /**
+   * Returns the {@link WriteReport} describing the most recent write
+   * phase, whether it was triggered by the end of discovery or by a
+   * direct call to {@link #processModifications()}.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the most recent {@link WriteReport}, or {@code null} if
+   * nothing has been written yet
+   */
+  public WriteReport getLastWriteReport() {
+    return this.lastWriteReport;
+  }
+
+  /**
+   * Writes every {@linkplain
+   * #queueUpModification(InterfaceDecorator.Modification) queued up}
+   * modification to its location, using up to {@linkplain
+   * #getWriterThreadCount() writer thread count} threads to write
+   * independent locations concurrently.
+   *
+   * <p>A failure to write one location does not prevent the others
+   * from being written.  Once every location has been attempted, the
+   * first failure, if any, is thrown with the others {@linkplain
+   * Throwable#getSuppressed() suppressed}; either way, per-location
+   * timings and failures are available from the {@link
+   * #getLastWriteReport()} method.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link WriteReport}
+   *
+   * @exception CannotCompileException if a modification could not be
+   * written
+   *
+   * @exception IOException if a modification could not be written
+   *
+   * @exception NotFoundException if a modification could not be
+   * written
+   */
+  public WriteReport processModifications() throws CannotCompileException, IOException, NotFoundException {
+    final WriteReport report = new WriteReport();
+    try {
+      this.writeModifications(report);
+    } finally {
+      this.lastWriteReport = report;
+    }
+    report.throwFailures();
+    return report;
+  }
+
+  private final void writeModifications(final WriteReport report) throws IOException {
+    assert report != null;
+    final List<String> locations = new ArrayList<String>(this.modifications.getLocations());
+    final int threadCount = Math.min(this.getWriterThreadCount(), locations.size());
+    if (threadCount <= 1) {
+      for (final String location : locations) {
+        this.writeModifications(location, report);
+      }
+      return;
+    }
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+        @Override
+        public final Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "ImplementationClassBinder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    try {
+      final Map<String, Future<Void>> futures = new LinkedHashMap<String, Future<Void>>();
+      for (final String location : locations) {
+        futures.put(location, executor.submit(new Callable<Void>() {
+            @Override
+            public final Void call() {
+              writeModifications(location, report);
+              return null;
+            }
+          }));
+      }
+      for (final Entry<String, Future<Void>> entry : futures.entrySet()) {
+        try {
+          entry.getValue().get();
+        } catch (final ExecutionException e) {
+          report.record(entry.getKey(), 0L, null, 0L, e.getCause() == null ? e : e.getCause());
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    } finally {
+      executor.shutdownNow();
+    }
+  }
+
+  /**
+   * Writes the modifications queued for the supplied location,
+   * recording the time taken and any failure in the supplied {@link
+   * WriteReport}.
+   */
+  private final void writeModifications(final String location, final WriteReport report) {
+    assert location != null;
+    assert report != null;
+    final long start = System.nanoTime();
+    Collection<InterfaceDecorator.Modification> mods = null;
+    try {
+      mods = this.modifications.get(location);
+      final long bytesWritten = this.processModifications(location, mods);
+      report.record(location, System.nanoTime() - start, mods, bytesWritten, null);
+    } catch (final Exception e) {
+      report.record(location, System.nanoTime() - start, mods, 0L, e);
+    }
+  }
+
+  /**
+   * Writes the supplied {@link InterfaceDecorator.Modification}s,
+   * all of which must share the supplied {@linkplain
+   * ModificationQueue#getKey(URL) location key}, to that location.
+   *
+   * <p>This method is safe to call from multiple threads provided
+   * that no two concurrent calls share a location.</p>
+   *
+   * <p>Modified class files whose new bytes are identical to those
+   * already at their locations are not written.</p>
+   *
+   * @param location the location key; must not be {@code null}
+   *
+   * @param mods the {@link InterfaceDecorator.Modification}s to write;
+   * may be {@code null}
+   *
+   * @return the number of class file bytes actually written
+   *
+   * @exception CannotCompileException if a modification could not be
+   * written
+   *
+   * @exception IOException if a modification could not be written
+   *
+   * @exception NotFoundException if a modification could not be
+   * written
+   */
+  public long processModifications(final String location, final Collection<InterfaceDecorator.Modification> mods) throws CannotCompileException, IOException, NotFoundException {
+    if (location == null) {
+      throw new IllegalArgumentException("location", new NullPointerException("location"));
+    }
+    long bytesWritten = 0L;
+    if (mods != null && !mods.isEmpty()) {
+      final URL locationURL = new URL(location);
+      final String scheme = locationURL.getProtocol();
+      assert scheme != null;
+      if ("file".equals(scheme)) {
+        // Boy, there better only be one modification
+        if (mods.size() != 1) {
+          throw new IllegalStateException("file: scheme and more than one modification");
+        }
+        final InterfaceDecorator.Modification mod = mods.iterator().next();
+        if (mod != null && this.recordModification(mod, toFile(locationURL))) {
+          bytesWritten = mod.toByteArray().length;
+        }
+      } else if ("jar".equals(scheme)) {
+        bytesWritten = this.recordModifications(mods, getArchiveFile(locationURL));
+      } else {
+        throw new UnknownServiceException(scheme);
+      }
+    }
+    return bytesWritten;
+  }
+
+  /**
+   * Adds the supplied {@link InterfaceDecorator.Modification} to the
+   * {@linkplain #getModificationQueue() queue} of modifications that
+   * will be written when they are {@linkplain #processModifications()
+   * processed}.
+   *
+   * @param modification the {@link InterfaceDecorator.Modification};
+   * may be {@code null} in which case no action will be taken
+   *
+   * @exception IOException if the queue could not spill to disk
+   *
+   * @exception NotFoundException never in practice
+   */
+  public void queueUpModification(final InterfaceDecorator.Modification modification) throws IOException, NotFoundException {
+    this.modifications.add(modification);
+  }
+
+  /**
+   * Writes the supplied {@link InterfaceDecorator.Modification}s,
+   * all of which must have {@linkplain
+   * InterfaceDecorator.Modification#getLocation() locations} inside
+   * the supplied {@link JarFile}, to that jar file in a single pass.
+   *
+   * <p>This method behaves exactly as though the {@link
+   * #recordModifications(Iterable, File)} method were called with the
+   * file that the supplied {@link JarFile} names; the {@link JarFile}
+   * itself is neither read nor closed.</p>
+   *
+   * @param mods the {@link InterfaceDecorator.Modification}s to write;
+   * may be {@code null} in which case no action will be taken
+   *
+   * @param jarFile the {@link JarFile} to rewrite; may be {@code
+   * null} in which case no action will be taken
+   *
+   * @return the number of class file bytes actually written
+   *
+   * @exception IllegalArgumentException if a modification's location
+   * is not a {@code jar:} {@link URL}
+   *
+   * @exception IOException if the jar file could not be rewritten
+   *
+   * @see #recordModifications(Iterable, File)
+   */
+  public long recordModifications(final Iterable<InterfaceDecorator.Modification> mods, final JarFile jarFile) throws IOException {
+    if (jarFile == null) {
+      return 0L;
+    }
+    return this.recordModifications(mods, new File(jarFile.getName()));
+  }
+
+  /**
+   * Writes the supplied {@link InterfaceDecorator.Modification}s,
+   * all of which must have {@linkplain
+   * InterfaceDecorator.Modification#getLocation() locations} inside
+   * the supplied jar file, to that jar file in a single pass.
+   *
+   * <p>The jar file is read through a private, {@linkplain
+   * MappedArchive memory-mapped} handle, never through a shared,
+   * cached {@link JarFile}, and may be a ZIP64 archive.</p>
+   *
+   * <p>The jar file is {@linkplain JarRewriter rewritten}: entries
+   * that are not modified are copied without being decompressed, and
+   * only the modified class files are compressed.  Modified class
+   * files whose bytes are identical to the entries they would replace
+   * are skipped, and if all of them are, the jar file is not touched
+   * at all.</p>
+   *
+   * @param mods the {@link InterfaceDecorator.Modification}s to write;
+   * may be {@code null} in which case no action will be taken
+   *
+   * @param jarFile the jar file to rewrite; may be {@code null} in
+   * which case no action will be taken
+   *
+   * @return the number of class file bytes actually written
+   *
+   * @exception IllegalArgumentException if a modification's location
+   * is not a {@code jar:} {@link URL}
+   *
+   * @exception IOException if the jar file could not be rewritten
+   *
+   * @see JarRewriter#rewrite(File, Map)
+   */
+  public long recordModifications(final Iterable<InterfaceDecorator.Modification> mods, final File jarFile) throws IOException {
+    long bytesWritten = 0L;
     if (jarFile != null && mods != null) {
-      final File tempFile = File.createTempFile("icb", ".targetjar");
-      assert tempFile != null;
-      tempFile.deleteOnExit();
-      // TODO: implement
+      final Map<String, byte[]> replacements = new LinkedHashMap<String, byte[]>();
+      for (final InterfaceDecorator.Modification mod : mods) {
+        if (mod != null && mod.isModified()) {
+          final URL location = mod.getLocation();
+          final String externalForm = location == null ? null : location.toExternalForm();
+          final int separatorIndex = externalForm == null ? -1 : externalForm.indexOf("!/");
+          if (separatorIndex < 0) {
+            throw new IllegalArgumentException("Not a jar entry location: " + location);
+          }
+          replacements.put(externalForm.substring(separatorIndex + 2), mod.toByteArray());
+        }
+      }
+      if (!replacements.isEmpty()) {
+        final Set<String> written;
+        if (this.isReproducible()) {
+          written = JarRewriter.rewriteReproducibly(jarFile, replacements, this.isSyncWrites(), this.getReproducibleTime());
+        } else {
+          written = JarRewriter.rewrite(jarFile, replacements, this.isSyncWrites());
+        }
+        for (final String name : written) {
+          bytesWritten += replacements.get(name).length;
+        }
+      }
     }
+    return bytesWritten;
   }
 
   public void recordModification(final InterfaceDecorator.Modification modification) throws CannotCompileException, IOException, NotFoundException {
     if (modification != null && modification.isModified()) {
-      final CtClass c = modification.getInterfaceCtClass();
-      if (c != null) {
-        final URL location = c.getURL();
-        if (location == null) {
-          throw new IllegalArgumentException("c.getURL() == null");
-        }
+      final URL location = modification.getLocation();
+      if (location != null) {
         final String scheme = location.getProtocol();
         assert scheme != null;
-        JarFile jarFile = null;
         DataOutputStream outputStream = null;
         try {
           if ("file".equals(scheme)) {
-            File f;
-            try {
-              f = new File(location.toURI());
-            } catch (final URISyntaxException e) {
-              f = new File(location.getPath());
-            }
-            outputStream = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(f)));
-            this.recordModification(modification, outputStream);
+            this.recordModification(modification, toFile(location));
+          } else if ("jar".equals(scheme)) {
+            this.recordModifications(Collections.singleton(modification), getArchiveFile(location));
           } else {
-            URLConnection urlConnection = null;
-            urlConnection = location.openConnection();
+            final URLConnection urlConnection = location.openConnection();
             assert urlConnection != null;
-            if (urlConnection instanceof JarURLConnection) {
-              jarFile = ((JarURLConnection)urlConnection).getJarFile();
-              this.recordModifications(Collections.singleton(modification), jarFile);
-            } else {
-              // Blindly try to open an output stream?
-              outputStream = new DataOutputStream(new BufferedOutputStream(urlConnection.getOutputStream()));
-              this.recordModification(modification, outputStream);
-            }
+            // Blindly try to open an output stream?
+            outputStream = new DataOutputStream(new BufferedOutputStream(urlConnection.getOutputStream()));
+            this.recordModification(modification, outputStream);
           }
         } finally {
           if (outputStream != null) {
@@ -227,27 +850,101 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
               kaboom.printStackTrace();
             }
           }
-          if (jarFile != null) {
-            try {
-              jarFile.close();
-            } catch (final IOException boom) {
-              boom.printStackTrace();
-            }
-          }
         }
       }
     }
   }
 
+  /**
+   * Atomically replaces the supplied class file with the bytes of the
+   * supplied {@link InterfaceDecorator.Modification}.
+   *
+   * <p>The bytes are written to a temporary file in the same
+   * directory, {@linkplain #isSyncWrites() optionally forced} to
+   * storage, and then moved over the original, so a crash never
+   * leaves a truncated class file behind.  If the class file already
+   * holds exactly those bytes it is not written at all, so its
+   * modification time is preserved.</p>
+   *
+   * @param mod the {@link InterfaceDecorator.Modification}; may be
+   * {@code null} in which case no action will be taken
+   *
+   * @param file the class file to replace; must not be {@code null}
+   *
+   * @return {@code true} if the class file was written
+   *
+   * @exception IOException if the class file could not be replaced,
+   * in which case it is left untouched
+   */
+  public boolean recordModification(final InterfaceDecorator.Modification mod, final File file) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("file", new NullPointerException("file"));
+    }
+    if (mod != null) {
+      final byte[] bytes = mod.toByteArray();
+      if (bytes != null && bytes.length > 0) {
+        return AtomicFileReplacement.replace(file.toPath(), bytes, this.isSyncWrites());
+      }
+    }
+    return false;
+  }
+
   public void recordModification(final InterfaceDecorator.Modification mod, final DataOutputStream outputStream) throws CannotCompileException, IOException, NotFoundException {
     if (mod != null) {
-      final CtClass c = mod.getInterfaceCtClass();
-      if (c != null) {
-        c.toBytecode(outputStream);
+      final byte[] bytes = mod.toByteArray();
+      if (bytes != null && bytes.length > 0) {
+        outputStream.write(bytes);
       }
     }
   }
 
+  /**
+   * Returns the local jar file that the supplied {@code jar:} {@link
+   * URL} refers to, without opening a {@link java.net.JarURLConnection}
+   * and so without touching the JVM-wide cache of {@link JarFile}s.
+   *
+   * @param location a {@code jar:} {@link URL} whose archive is a
+   * {@code file:} {@link URL}; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link File}
+   *
+   * @exception IllegalArgumentException if {@code location} is {@code
+   * null} or is not a {@code jar:} {@link URL}
+   *
+   * @exception UnknownServiceException if the archive is not a
+   * {@code file:} {@link URL}
+   *
+   * @exception MalformedURLException if the archive {@link URL} is
+   * malformed
+   */
+  static final File getArchiveFile(final URL location) throws MalformedURLException, UnknownServiceException {
+    if (location == null) {
+      throw new IllegalArgumentException("location", new NullPointerException("location"));
+    }
+    if (!"jar".equals(location.getProtocol())) {
+      throw new IllegalArgumentException("Not a jar: URL: " + location);
+    }
+    final String path = location.getPath();
+    final int separatorIndex = path.indexOf("!/");
+    final URL archive = new URL(separatorIndex < 0 ? path : path.substring(0, separatorIndex));
+    if (!"file".equals(archive.getProtocol())) {
+      throw new UnknownServiceException(archive.getProtocol());
+    }
+    return toFile(archive);
+  }
+
+  private static final File toFile(final URL fileURL) {
+    assert fileURL != null;
+    assert "file".equals(fileURL.getProtocol());
+    try {
+      return new File(fileURL.toURI());
+    } catch (final URISyntaxException e) {
+      return new File(fileURL.getPath());
+    } catch (final IllegalArgumentException e) {
+      return new File(fileURL.getPath());
+    }
+  }
+
   public String getAdapterPackageName(final String interfaceName, final String implementationClassName) {
     return "foo"; // todo implement for realz
   }
@@ -339,14 +1036,14 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
     return String.format(template, packageName, this.getSimpleName(interfaceName), this.getSimpleName(className));
   }
 
-  public boolean shouldModifyImmediately(final CtClass cls) throws NotFoundException {
+  public boolean shouldModifyImmediately(final InterfaceDecorator.Modification modification) throws NotFoundException {
     return false;
     /*
-    if (cls == null) {
-      throw new IllegalArgumentException("cls", new NullPointerException("cls"));
+    if (modification == null) {
+      throw new IllegalArgumentException("modification", new NullPointerException("modification"));
     }
     boolean returnValue = false;
-    final URL location = cls.getURL();
+    final URL location = modification.getLocation();
     if (location != null) {
       returnValue = "file".equals(location.getProtocol());
     }
@@ -398,4 +1095,207 @@ public class ImplementationClassBinder implements ImplementationClassDiscoveryLi
     return returnValue;
   }
 
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Per-location timings, byte counts and failures of one write
+   * phase.
+   *
+   * <p>Bytes that were not written because they were identical to
+   * what was already at their locations are counted as {@linkplain
+   * #getBytesSkipped() skipped}.</p>
+   *
+   * <p>Instances of this class are safe for use by multiple
+   * threads.</p>
+   *
+   * @see ImplementationClassBinder#getLastWriteReport()
+   */
+  public static final class WriteReport {
+
+    /**
+     * Nanoseconds spent writing, indexed by location key.  Guarded by
+     * {@code this}.
+     */
+    private final Map<String, Long> timings;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private final Map<String, Throwable> failures;
+
+    /**
+     * Locations at which nothing needed to be written.  Guarded by
+     * {@code this}.
+     */
+    private final Set<String> unchangedLocations;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private long bytesWritten;
+
+    /**
+     * Guarded by {@code this}.
+     */
+    private long bytesSkipped;
+
+    WriteReport() {
+      super();
+      this.timings = new LinkedHashMap<String, Long>();
+      this.failures = new LinkedHashMap<String, Throwable>();
+      this.unchangedLocations = new LinkedHashSet<String>();
+    }
+
+    /**
+     * Returns the time spent writing each location, in the supplied
+     * {@link TimeUnit}, indexed by {@linkplain
+     * ModificationQueue#getKey(URL) location key}, in the order in
+     * which writes finished.
+     *
+     * @param unit the {@link TimeUnit}; must not be {@code null}
+     *
+     * @return a non-{@code null}, unmodifiable, point-in-time {@link
+     * Map}
+     *
+     * @exception IllegalArgumentException if {@code unit} is {@code
+     * null}
+     */
+    public synchronized Map<String, Long> getTimings(final TimeUnit unit) {
+      if (unit == null) {
+        throw new IllegalArgumentException("unit", new NullPointerException("unit"));
+      }
+      final Map<String, Long> returnValue = new LinkedHashMap<String, Long>(this.timings.size() * 4 / 3 + 1);
+      for (final Entry<String, Long> entry : this.timings.entrySet()) {
+        returnValue.put(entry.getKey(), Long.valueOf(unit.convert(entry.getValue().longValue(), TimeUnit.NANOSECONDS)));
+      }
+      return Collections.unmodifiableMap(returnValue);
+    }
+
+    /**
+     * Returns the {@link Throwable}s that prevented locations from
+     * being written, indexed by {@linkplain
+     * ModificationQueue#getKey(URL) location key}.
+     *
+     * @return a non-{@code null}, unmodifiable, point-in-time {@link
+     * Map}
+     */
+    public synchronized Map<String, Throwable> getFailures() {
+      return Collections.unmodifiableMap(new LinkedHashMap<String, Throwable>(this.failures));
+    }
+
+    /**
+     * Returns {@code true} if every location was written.
+     *
+     * @return {@code true} if there were no failures
+     */
+    public synchronized boolean isSuccessful() {
+      return this.failures.isEmpty();
+    }
+
+    /**
+     * Returns the number of class file bytes that were written.
+     *
+     * @return the number of bytes written
+     */
+    public synchronized long getBytesWritten() {
+      return this.bytesWritten;
+    }
+
+    /**
+     * Returns the number of class file bytes that were not written
+     * because identical bytes were already present.
+     *
+     * @return the number of bytes skipped
+     */
+    public synchronized long getBytesSkipped() {
+      return this.bytesSkipped;
+    }
+
+    /**
+     * Returns the {@linkplain ModificationQueue#getKey(URL) location
+     * keys} of locations that were left untouched because every one
+     * of their modifications was identical to what was already
+     * present.
+     *
+     * @return a non-{@code null}, unmodifiable, point-in-time {@link
+     * Set}
+     */
+    public synchronized Set<String> getUnchangedLocations() {
+      return Collections.unmodifiableSet(new LinkedHashSet<String>(this.unchangedLocations));
+    }
+
+    final synchronized void record(final String location, final long nanos, final Collection<InterfaceDecorator.Modification> mods, final long bytesWritten, final Throwable failure) {
+      assert location != null;
+      assert bytesWritten >= 0L;
+      final Long previous = this.timings.get(location);
+      this.timings.put(location, Long.valueOf(previous == null ? nanos : previous.longValue() + nanos));
+      if (failure == null && mods != null) {
+        long bytes = 0L;
+        for (final InterfaceDecorator.Modification mod : mods) {
+          if (mod != null && mod.isModified()) {
+            final byte[] modBytes = mod.toByteArray();
+            if (modBytes != null) {
+              bytes += modBytes.length;
+            }
+          }
+        }
+        assert bytes >= bytesWritten;
+        this.bytesWritten += bytesWritten;
+        this.bytesSkipped += bytes - bytesWritten;
+        if (bytes > 0L && bytesWritten == 0L) {
+          this.unchangedLocations.add(location);
+        }
+      }
+      if (failure != null) {
+        final Throwable previousFailure = this.failures.get(location);
+        if (previousFailure == null) {
+          this.failures.put(location, failure);
+        } else if (previousFailure != failure) {
+          previousFailure.addSuppressed(failure);
+        }
+      }
+    }
+
+    /**
+     * Throws the first recorded failure, if any, with every other
+     * failure {@linkplain Throwable#addSuppressed(Throwable)
+     * suppressed} by it.
+     */
+    final void throwFailures() throws CannotCompileException, IOException, NotFoundException {
+      Throwable failure = null;
+      synchronized (this) {
+        for (final Throwable t : this.failures.values()) {
+          if (failure == null) {
+            failure = t;
+          } else if (t != failure) {
+            failure.addSuppressed(t);
+          }
+        }
+      }
+      if (failure instanceof CannotCompileException) {
+        throw (CannotCompileException)failure;
+      } else if (failure instanceof IOException) {
+        throw (IOException)failure;
+      } else if (failure instanceof NotFoundException) {
+        throw (NotFoundException)failure;
+      } else if (failure instanceof RuntimeException) {
+        throw (RuntimeException)failure;
+      } else if (failure instanceof Error) {
+        throw (Error)failure;
+      } else if (failure != null) {
+        throw new IOException(failure);
+      }
+    }
+
+    @Override
+    public final synchronized String toString() {
+      return String.format("Wrote %d locations (%d failed, %d unchanged; %d bytes written, %d bytes skipped): %s", this.timings.size(), this.failures.size(), this.unchangedLocations.size(), this.bytesWritten, this.bytesSkipped, this.getTimings(TimeUnit.MILLISECONDS));
+    }
+
+  }
+
 }
@@ -27,6 +27,8 @@
  */
 package com.edugility.jaxb;
 
+import java.net.URL;
+
 import java.util.EventObject;
 
 public class ImplementationClassDiscoveryEvent extends EventObject {
@@ -36,11 +38,65 @@ public class ImplementationClassDiscoveryEvent extends EventObject {
   private final String interfaceName;
   
   private final String implementationClassName;
+
+  private final URL archive;
+
+  private final ClassFileTrackingAnnotationDB.ScanStatus scanStatus;
   
   public ImplementationClassDiscoveryEvent(final ImplementationClassFinder source) {
     super(source);
     this.interfaceName = null;
     this.implementationClassName = null;
+    this.archive = null;
+    this.scanStatus = null;
+  }
+
+  /**
+   * Creates a new {@link ImplementationClassDiscoveryEvent} reporting
+   * that a {@linkplain
+   * ClassFileTrackingAnnotationDB#scanArchives(ScanProgressListener,
+   * ClassFileTrackingAnnotationDB.CancellationToken, long, URL...)
+   * monitored scan} has ended with the supplied status.
+   *
+   * @param source the {@link ImplementationClassFinder} that scanned;
+   * must not be {@code null}
+   *
+   * @param scanStatus how the scan ended; must not be {@code null}
+   *
+   * @see ImplementationClassDiscoveryListener#discoveryEnded(ImplementationClassDiscoveryEvent)
+   */
+  public ImplementationClassDiscoveryEvent(final ImplementationClassFinder source, final ClassFileTrackingAnnotationDB.ScanStatus scanStatus) {
+    super(source);
+    if (scanStatus == null) {
+      throw new IllegalArgumentException("scanStatus", new NullPointerException("scanStatus"));
+    }
+    this.interfaceName = null;
+    this.implementationClassName = null;
+    this.archive = null;
+    this.scanStatus = scanStatus;
+  }
+
+  /**
+   * Creates a new {@link ImplementationClassDiscoveryEvent} reporting
+   * that the supplied archive has been scanned.
+   *
+   * @param source the {@link ImplementationClassFinder} that scanned
+   * the archive; must not be {@code null}
+   *
+   * @param archive the {@link URL} of the archive; must not be {@code
+   * null}
+   *
+   * @see ArchiveScanListener#archiveScanned(ImplementationClassDiscoveryEvent)
+   */
+  public ImplementationClassDiscoveryEvent(final ImplementationClassFinder source, final URL archive) {
+    super(source);
+    if (archive == null) {
+      throw new IllegalArgumentException("archive", new NullPointerException("archive"));
+    }
+    this.interfaceName = null;
+    this.implementationClassName = null;
+    this.archive = archive;
+    this.scanStatus = null;
   }
 
   public ImplementationClassDiscoveryEvent(final ImplementationClassFinder source, final String interfaceName, final String implementationClassName) {
@@ -53,6 +109,8 @@ public class ImplementationClassDiscoveryEvent extends EventObject {
     }
     this.interfaceName = interfaceName;
     this.implementationClassName = implementationClassName;
+    this.archive = null;
+    this.scanStatus = null;
   }
 
   @Override
@@ -67,5 +125,56 @@ public class ImplementationClassDiscoveryEvent extends EventObject {
   public final String getImplementationClassName() {
     return this.implementationClassName;
   }
+
+  /**
+   * Returns the {@link URL} of the archive that was scanned, if this
+   * {@link ImplementationClassDiscoveryEvent} reports the end of an
+   * archive's scan.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the {@link URL} of the scanned archive, or {@code null}
+   */
+  public final URL getArchive() {
+    return this.archive;
+  }
+
+  /**
+   * Returns how the scan ended, if this {@link
+   * ImplementationClassDiscoveryEvent} reports the end of a
+   * {@linkplain
+   * ClassFileTrackingAnnotationDB#scanArchives(ScanProgressListener,
+   * ClassFileTrackingAnnotationDB.CancellationToken, long, URL...)
+   * monitored scan}.
+   *
+   * <p>A scan that was {@linkplain
+   * ClassFileTrackingAnnotationDB.ScanStatus#CANCELLED cancelled} or
+   * {@linkplain ClassFileTrackingAnnotationDB.ScanStatus#TIMED_OUT
+   * timed out} saw only some of the implementation classes, so
+   * listeners should not act on its discoveries as though they were
+   * all there are.</p>
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the {@link ClassFileTrackingAnnotationDB.ScanStatus} of
+   * the scan that ended, or {@code null}
+   */
+  public final ClassFileTrackingAnnotationDB.ScanStatus getScanStatus() {
+    return this.scanStatus;
+  }
+
+  /**
+   * Returns {@code true} unless this {@link
+   * ImplementationClassDiscoveryEvent} reports the end of a scan that
+   * stopped before it {@linkplain
+   * ClassFileTrackingAnnotationDB.ScanStatus#isComplete() completed}.
+   *
+   * @return {@code false} if this event reports an incomplete scan
+   *
+   * @see #getScanStatus()
+   */
+  public final boolean isComplete() {
+    return this.scanStatus == null || this.scanStatus.isComplete();
+  }
   
 }
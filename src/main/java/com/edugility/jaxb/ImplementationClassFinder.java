@@ -70,13 +70,55 @@ public class ImplementationClassFinder extends ClassFileTrackingAnnotationDB {
   }
   
   public ImplementationClassDiscoveryListener[] getImplementationClassDiscoveryListeners() {
+    if (this.listeners == null) {
+      return new ImplementationClassDiscoveryListener[0];
+    }
     return this.listeners.toArray(new ImplementationClassDiscoveryListener[this.listeners.size()]);
   }
   
   @Override
   public void scanArchives(final URL... urls) throws IOException {
+    final ImplementationClassDiscoveryEvent event = this.fireDiscoveryStarted();
+    super.scanArchives(urls);
+    this.fireDiscoveryEnded(event);
+  }
+
+  @Override
+  public ScanStatus scanArchives(final ScanProgressListener listener, final CancellationToken cancellationToken, final long timeBudgetMillis, final URL... urls) throws IOException {
+    this.fireDiscoveryStarted();
+    final ScanStatus returnValue = super.scanArchives(listener, cancellationToken, timeBudgetMillis, urls);
+    // Listeners must be able to tell a partial scan from a full one.
+    this.fireDiscoveryEnded(new ImplementationClassDiscoveryEvent(this, returnValue));
+    return returnValue;
+  }
+
+  /**
+   * Scans the supplied archives without notifying any {@link
+   * ImplementationClassDiscoveryListener}s that discovery has
+   * {@linkplain ImplementationClassDiscoveryListener#discoveryStarted(ImplementationClassDiscoveryEvent)
+   * started} or {@linkplain
+   * ImplementationClassDiscoveryListener#discoveryEnded(ImplementationClassDiscoveryEvent)
+   * ended}.
+   *
+   * <p>This is used by callers, such as {@link
+   * ImplementationClassWatcher}, that need to bracket several
+   * incremental scans with a single discovery session.</p>
+   *
+   * @param urls the archives to scan; may be {@code null}
+   *
+   * @exception IOException if an error occurs during scanning
+   *
+   * @see #fireDiscoveryStarted()
+   *
+   * @see #fireDiscoveryEnded(ImplementationClassDiscoveryEvent)
+   */
+  final void rescanArchives(final URL... urls) throws IOException {
+    super.scanArchives(urls);
+  }
+
+  final ImplementationClassDiscoveryEvent fireDiscoveryStarted() {
     final ImplementationClassDiscoveryEvent event;
-    ImplementationClassDiscoveryListener[] listeners = this.getImplementationClassDiscoveryListeners();
+    final ImplementationClassDiscoveryListener[] listeners = this.getImplementationClassDiscoveryListeners();
     if (listeners != null && listeners.length > 0) {
       event = new ImplementationClassDiscoveryEvent(this);
       for (final ImplementationClassDiscoveryListener l : listeners) {
@@ -87,8 +129,11 @@ public class ImplementationClassFinder extends ClassFileTrackingAnnotationDB {
     } else {
       event = null;
     }
-    super.scanArchives(urls);
-    listeners = this.getImplementationClassDiscoveryListeners();
+    return event;
+  }
+
+  final void fireDiscoveryEnded(final ImplementationClassDiscoveryEvent event) {
+    final ImplementationClassDiscoveryListener[] listeners = this.getImplementationClassDiscoveryListeners();
     if (listeners != null && listeners.length > 0) {
       for (final ImplementationClassDiscoveryListener l : listeners) {
         if (l != null) {
@@ -98,6 +143,38 @@ public class ImplementationClassFinder extends ClassFileTrackingAnnotationDB {
     }
   }
 
+  /**
+   * Notifies {@link ArchiveScanListener}s that the archive designated
+   * by the supplied {@link URL} has been scanned.
+   *
+   * @param archive the {@link URL} of the archive that was scanned;
+   * must not be {@code null}
+   */
+  @Override
+  protected void archiveScanned(final URL archive) {
+    final ImplementationClassDiscoveryListener[] listeners = this.getImplementationClassDiscoveryListeners();
+    if (listeners != null && listeners.length > 0) {
+      final ImplementationClassDiscoveryEvent event = new ImplementationClassDiscoveryEvent(this, archive);
+      for (final ImplementationClassDiscoveryListener l : listeners) {
+        if (l instanceof ArchiveScanListener) {
+          ((ArchiveScanListener)l).archiveScanned(event);
+        }
+      }
+    }
+  }
+
+  final void fireImplementationClassRemoved(final String interfaceName, final String implementationClassName) {
+    final ImplementationClassDiscoveryListener[] listeners = this.getImplementationClassDiscoveryListeners();
+    if (listeners != null && listeners.length > 0) {
+      final ImplementationClassDiscoveryEvent event = new ImplementationClassDiscoveryEvent(this, interfaceName, implementationClassName);
+      for (final ImplementationClassDiscoveryListener l : listeners) {
+        if (l instanceof ImplementationClassRemovalListener) {
+          ((ImplementationClassRemovalListener)l).implementationClassRemoved(event);
+        }
+      }
+    }
+  }
+
   @Override
   protected void populate(final Annotation[] annotations, final ClassFile cf) {
     if (annotations != null && annotations.length > 0 && cf != null && !cf.isInterface()) {
@@ -0,0 +1,517 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.URI;
+
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+
+import java.nio.file.attribute.BasicFileAttributes;
+
+import java.util.AbstractMap.SimpleImmutableEntry;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import static java.nio.file.StandardWatchEventKinds.ENTRY_CREATE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_DELETE;
+import static java.nio.file.StandardWatchEventKinds.ENTRY_MODIFY;
+import static java.nio.file.StandardWatchEventKinds.OVERFLOW;
+
+/**
+ * Watches the {@linkplain ImplementationClassFinder#getURIs() URIs}
+ * of an {@link ImplementationClassFinder} for changes and rescans
+ * only the class files and archives that changed.
+ *
+ * <p>Changes are debounced: once a change is noticed, the watcher
+ * waits until no further changes have arrived for the {@linkplain
+ * #getQuietPeriod() quiet period} and then rescans everything that
+ * changed in one discovery session.  {@link
+ * ImplementationClassDiscoveryListener}s registered with the finder
+ * receive the usual events for each rescanned class, and those that
+ * are {@link ImplementationClassRemovalListener}s are additionally
+ * told about bindings that disappeared.</p>
+ *
+ * <p>Directory URIs are watched recursively.  Archive URIs are
+ * watched by watching their parent directories.  URIs that do not
+ * designate local files are scanned once at {@linkplain #start()
+ * startup} but are not watched.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassFinder
+ *
+ * @see ImplementationClassRemovalListener
+ */
+public class ImplementationClassWatcher implements Closeable {
+
+  /**
+   * The default {@linkplain #getQuietPeriod() quiet period} in
+   * milliseconds.
+   */
+  public static final long DEFAULT_QUIET_PERIOD = 200L;
+
+  protected transient Logger logger;
+
+  private final ImplementationClassFinder finder;
+
+  private final Set<Path> directories;
+
+  private final Set<Path> archives;
+
+  private final Map<WatchKey, Path> watchKeys;
+
+  /**
+   * The bindings most recently discovered in each class file or
+   * archive, indexed by the {@link Path} of that class file or
+   * archive.  Accessed only by the thread performing a scan.
+   */
+  private final Map<Path, Set<Entry<String, String>>> bindingsBySource;
+
+  private final ImplementationClassDiscoveryListener recorder;
+
+  private volatile long quietPeriod;
+
+  private WatchService watchService;
+
+  private Thread thread;
+
+  private Path currentSource;
+
+  private Path currentDirectory;
+
+  public ImplementationClassWatcher(final ImplementationClassFinder finder) {
+    super();
+    if (finder == null) {
+      throw new IllegalArgumentException("finder", new NullPointerException("finder"));
+    }
+    this.logger = this.createLogger();
+    if (this.logger == null) {
+      this.logger = Logger.getLogger(this.getClass().getName());
+    }
+    this.finder = finder;
+    this.directories = new LinkedHashSet<Path>();
+    this.archives = new LinkedHashSet<Path>();
+    this.watchKeys = new HashMap<WatchKey, Path>();
+    this.bindingsBySource = new HashMap<Path, Set<Entry<String, String>>>();
+    this.recorder = new Recorder();
+    this.setQuietPeriod(DEFAULT_QUIET_PERIOD);
+  }
+
+  protected Logger createLogger() {
+    return Logger.getLogger(this.getClass().getName());
+  }
+
+  public final ImplementationClassFinder getFinder() {
+    return this.finder;
+  }
+
+  /**
+   * Returns the number of milliseconds that must pass without any
+   * further changes before a burst of changes is rescanned.
+   *
+   * @return the quiet period in milliseconds; never negative
+   */
+  public long getQuietPeriod() {
+    return this.quietPeriod;
+  }
+
+  /**
+   * Sets the number of milliseconds that must pass without any
+   * further changes before a burst of changes is rescanned.
+   *
+   * @param quietPeriod the quiet period in milliseconds; must not be
+   * negative
+   *
+   * @exception IllegalArgumentException if {@code quietPeriod} is
+   * negative
+   */
+  public void setQuietPeriod(final long quietPeriod) {
+    if (quietPeriod < 0L) {
+      throw new IllegalArgumentException("quietPeriod < 0: " + quietPeriod);
+    }
+    this.quietPeriod = quietPeriod;
+  }
+
+  /**
+   * Performs an initial full scan of the {@linkplain
+   * ImplementationClassFinder#getURIs() finder's URIs} and then
+   * starts watching them for changes on a daemon thread.
+   *
+   * @exception IOException if the initial scan or the registration
+   * of watches failed
+   *
+   * @exception IllegalStateException if this watcher has already
+   * been started
+   */
+  public synchronized void start() throws IOException {
+    if (this.thread != null || this.watchService != null) {
+      throw new IllegalStateException("already started");
+    }
+    this.watchService = FileSystems.getDefault().newWatchService();
+    this.finder.addImplementationClassDiscoveryListener(this.recorder);
+
+    final Collection<URI> unwatchable = new ArrayList<URI>();
+    final Set<URI> uris = this.finder.getURIs();
+    if (uris != null) {
+      for (final URI uri : uris) {
+        if (uri != null) {
+          if ("file".equals(uri.getScheme())) {
+            final Path path = Paths.get(uri).toAbsolutePath().normalize();
+            if (Files.isDirectory(path)) {
+              this.directories.add(path);
+              this.registerAll(path);
+            } else {
+              this.archives.add(path);
+              final Path parent = path.getParent();
+              if (parent != null && !this.watchKeys.containsValue(parent)) {
+                this.register(parent);
+              }
+            }
+          } else {
+            unwatchable.add(uri);
+          }
+        }
+      }
+    }
+
+    final ImplementationClassDiscoveryEvent event = this.finder.fireDiscoveryStarted();
+    try {
+      for (final Path directory : this.directories) {
+        this.currentDirectory = directory;
+        try {
+          this.finder.rescanArchives(directory.toUri().toURL());
+        } finally {
+          this.currentDirectory = null;
+        }
+      }
+      for (final Path archive : this.archives) {
+        this.rescan(archive, false);
+      }
+      for (final URI uri : unwatchable) {
+        this.finder.rescanArchives(uri.toURL());
+      }
+    } finally {
+      this.finder.fireDiscoveryEnded(event);
+    }
+
+    final Thread thread = new Thread(new Runnable() {
+        @Override
+        public final void run() {
+          watch();
+        }
+      }, this.getClass().getSimpleName());
+    thread.setDaemon(true);
+    this.thread = thread;
+    thread.start();
+  }
+
+  /**
+   * Stops watching for changes.  This watcher cannot be restarted.
+   *
+   * @exception IOException if the underlying {@link WatchService}
+   * could not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    final Thread thread;
+    final WatchService watchService;
+    synchronized (this) {
+      thread = this.thread;
+      watchService = this.watchService;
+    }
+    if (watchService != null) {
+      watchService.close();
+    }
+    if (thread != null && thread != Thread.currentThread()) {
+      try {
+        thread.join();
+      } catch (final InterruptedException interrupted) {
+        Thread.currentThread().interrupt();
+      }
+    }
+    this.finder.removeImplementationClassDiscoveryListener(this.recorder);
+  }
+
+  private final void watch() {
+    final WatchService watchService = this.watchService;
+    assert watchService != null;
+    try {
+      while (true) {
+        final Set<Path> changes = new LinkedHashSet<Path>();
+        WatchKey key = watchService.take();
+        boolean overflow = this.drain(key, changes);
+        final long quietPeriod = this.getQuietPeriod();
+        while ((key = watchService.poll(quietPeriod, TimeUnit.MILLISECONDS)) != null) {
+          overflow = this.drain(key, changes) || overflow;
+        }
+        try {
+          this.process(changes, overflow);
+        } catch (final IOException ohWell) {
+          if (this.logger != null && this.logger.isLoggable(Level.WARNING)) {
+            this.logger.log(Level.WARNING, "Rescan failed", ohWell);
+          }
+        } catch (final RuntimeException ohWell) {
+          if (this.logger != null && this.logger.isLoggable(Level.WARNING)) {
+            this.logger.log(Level.WARNING, "Rescan failed", ohWell);
+          }
+        }
+      }
+    } catch (final ClosedWatchServiceException done) {
+      // We were closed; fall through
+    } catch (final InterruptedException interrupted) {
+      Thread.currentThread().interrupt();
+    }
+  }
+
+  /**
+   * Adds the {@link Path}s affected by the events pending on the
+   * supplied {@link WatchKey} to the supplied {@link Set} and resets
+   * the key.
+   *
+   * @return {@code true} if events were lost and a full rescan is
+   * required
+   */
+  private final boolean drain(final WatchKey key, final Set<Path> changes) {
+    boolean overflow = false;
+    final Path directory = this.watchKeys.get(key);
+    for (final WatchEvent<?> event : key.pollEvents()) {
+      if (event != null) {
+        final WatchEvent.Kind<?> kind = event.kind();
+        if (OVERFLOW.equals(kind)) {
+          overflow = true;
+        } else if (directory != null) {
+          final Path path = directory.resolve((Path)event.context());
+          if (ENTRY_CREATE.equals(kind) && Files.isDirectory(path) && this.isUnderDirectory(path)) {
+            try {
+              this.registerAll(path);
+              changes.addAll(this.findClassFiles(path));
+            } catch (final IOException ohWell) {
+              overflow = true;
+            }
+          }
+          changes.add(path);
+        }
+      }
+    }
+    if (!key.reset()) {
+      this.watchKeys.remove(key);
+    }
+    return overflow;
+  }
+
+  private final void process(Set<Path> changes, final boolean overflow) throws IOException {
+    if (overflow) {
+      changes = new LinkedHashSet<Path>(changes);
+      changes.addAll(this.bindingsBySource.keySet());
+      for (final Path directory : this.directories) {
+        changes.addAll(this.findClassFiles(directory));
+      }
+      changes.addAll(this.archives);
+    }
+    if (changes.isEmpty()) {
+      return;
+    }
+    final ImplementationClassDiscoveryEvent event = this.finder.fireDiscoveryStarted();
+    try {
+      for (final Path path : changes) {
+        if (this.archives.contains(path)) {
+          this.rescan(path, true);
+        } else if (this.isUnderDirectory(path)) {
+          if (path.toString().endsWith(".class")) {
+            this.rescan(path, true);
+          } else if (!Files.exists(path)) {
+            // Possibly a deleted directory; forget everything that
+            // was beneath it.
+            final Iterator<Path> sources = new ArrayList<Path>(this.bindingsBySource.keySet()).iterator();
+            while (sources.hasNext()) {
+              final Path source = sources.next();
+              if (source.startsWith(path)) {
+                this.rescan(source, true);
+              }
+            }
+          }
+        }
+      }
+    } finally {
+      this.finder.fireDiscoveryEnded(event);
+    }
+  }
+
+  /**
+   * Rescans the class file or archive designated by the supplied
+   * {@link Path}, and, if {@code fireRemovals} is {@code true},
+   * notifies {@link ImplementationClassRemovalListener}s of any
+   * bindings it previously contained that are now gone.
+   */
+  private final void rescan(final Path source, final boolean fireRemovals) throws IOException {
+    final Set<Entry<String, String>> oldBindings = this.bindingsBySource.remove(source);
+    if (Files.exists(source)) {
+      this.currentSource = source;
+      try {
+        if (this.archives.contains(source)) {
+          this.finder.rescanArchives(source.toUri().toURL());
+        } else {
+          final InputStream stream = new BufferedInputStream(Files.newInputStream(source));
+          try {
+            this.finder.scanClass(stream);
+          } finally {
+            stream.close();
+          }
+        }
+      } catch (final NoSuchFileException deletedInTheMeantime) {
+        // The next event will clean up
+      } finally {
+        this.currentSource = null;
+      }
+    }
+    if (fireRemovals && oldBindings != null && !oldBindings.isEmpty()) {
+      final Set<Entry<String, String>> newBindings = this.bindingsBySource.get(source);
+      for (final Entry<String, String> binding : oldBindings) {
+        if (binding != null && (newBindings == null || !newBindings.contains(binding))) {
+          this.finder.fireImplementationClassRemoved(binding.getKey(), binding.getValue());
+        }
+      }
+    }
+  }
+
+  private final boolean isUnderDirectory(final Path path) {
+    if (path != null) {
+      for (final Path directory : this.directories) {
+        if (path.startsWith(directory)) {
+          return true;
+        }
+      }
+    }
+    return false;
+  }
+
+  private final void register(final Path directory) throws IOException {
+    final WatchKey key = directory.register(this.watchService, ENTRY_CREATE, ENTRY_DELETE, ENTRY_MODIFY);
+    this.watchKeys.put(key, directory);
+  }
+
+  private final void registerAll(final Path root) throws IOException {
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public final FileVisitResult preVisitDirectory(final Path directory, final BasicFileAttributes attributes) throws IOException {
+          register(directory);
+          return FileVisitResult.CONTINUE;
+        }
+      });
+  }
+
+  private final Collection<Path> findClassFiles(final Path root) throws IOException {
+    final Collection<Path> returnValue = new ArrayList<Path>();
+    Files.walkFileTree(root, new SimpleFileVisitor<Path>() {
+        @Override
+        public final FileVisitResult visitFile(final Path file, final BasicFileAttributes attributes) {
+          if (file.toString().endsWith(".class")) {
+            returnValue.add(file);
+          }
+          return FileVisitResult.CONTINUE;
+        }
+      });
+    return returnValue;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Records which class file or archive each discovered binding came
+   * from so that removals can be detected on rescan.
+   */
+  private final class Recorder implements ImplementationClassDiscoveryListener {
+
+    private Recorder() {
+      super();
+    }
+
+    @Override
+    public final void discoveryStarted(final ImplementationClassDiscoveryEvent event) {
+
+    }
+
+    @Override
+    public final void implementationClassDiscovered(final ImplementationClassDiscoveryEvent event) {
+      if (event != null) {
+        final String implementationClassName = event.getImplementationClassName();
+        Path source = currentSource;
+        if (source == null && currentDirectory != null && implementationClassName != null) {
+          source = currentDirectory.resolve(implementationClassName.replace('.', '/') + ".class");
+        }
+        if (source != null) {
+          Set<Entry<String, String>> bindings = bindingsBySource.get(source);
+          if (bindings == null) {
+            bindings = new HashSet<Entry<String, String>>();
+            bindingsBySource.put(source, bindings);
+          }
+          bindings.add(new SimpleImmutableEntry<String, String>(event.getInterfaceName(), implementationClassName));
+        }
+      }
+    }
+
+    @Override
+    public final void discoveryEnded(final ImplementationClassDiscoveryEvent event) {
+
+    }
+
+  }
+
+}
@@ -0,0 +1,726 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.lang.instrument.ClassFileTransformer;
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+
+import java.net.URI;
+
+import java.security.ProtectionDomain;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A {@linkplain java.lang.instrument Java agent} that {@linkplain
+ * InterfaceDecorator decorates} interfaces as they are loaded, and
+ * defines the {@link UniversalXmlAdapter} subclasses they refer to
+ * in memory, so that no class file or archive is ever rewritten.
+ *
+ * <p>To use it, name the jar containing this class in a {@code
+ * -javaagent} option.  The agent's argument, if present, is the path
+ * to a {@linkplain MappedBindingIndex binding index} file; if it is
+ * absent, the entries of the {@code java.class.path} system property
+ * are {@linkplain JAXBElementScanner#scan() scanned} instead:</p>
+ *
+ * <blockquote><pre>java -javaagent:jaxb-tools.jar=/var/cache/bindings.jxbi ...</pre></blockquote>
+ *
+ * <p>Only interfaces that are actually loaded pay for decoration,
+ * and each adapter is generated once no matter how many {@link
+ * ClassLoader}s load its interface.</p>
+ *
+ * <p>The agent may also be loaded into a running JVM, in which case
+ * its {@link #agentmain(String, Instrumentation)} method {@linkplain
+ * #retransform(Instrumentation, Map, int) retransforms} bound
+ * interfaces that were loaded before it arrived.  The same argument
+ * conventions apply.</p>
+ *
+ * <p>However many times the agent is started, it installs only one
+ * {@link Transformer}.  Starting it again replaces that {@link
+ * Transformer}'s bindings and also retransforms the interfaces it
+ * decorated under the old ones, so that bindings that were removed or
+ * changed take effect.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see Transformer
+ *
+ * @see InterfaceDecorator#modify(byte[], String)
+ *
+ * @see XmlAdapterBytecodeGenerator
+ */
+public final class InterfaceDecorationAgent {
+
+  private static final Logger logger = Logger.getLogger(InterfaceDecorationAgent.class.getName());
+
+  /**
+   * The number of classes the {@link #agentmain(String,
+   * Instrumentation)} method passes to each call to {@link
+   * Instrumentation#retransformClasses(Class...)}.
+   */
+  public static final int DEFAULT_BATCH_SIZE = 64;
+
+  /**
+   * The one {@link Transformer} this agent installs.  Guarded by
+   * {@code InterfaceDecorationAgent.class}.
+   */
+  private static Transformer installedTransformer;
+
+  private InterfaceDecorationAgent() {
+    super();
+  }
+
+  /**
+   * Installs a {@link Transformer} built from the bindings described
+   * by the supplied agent argument or, if one is already installed,
+   * replaces its bindings.
+   *
+   * @param agentArgs the path to a {@linkplain MappedBindingIndex
+   * binding index} file, or {@code null} or an empty {@link String}
+   * to scan the class path
+   *
+   * @param instrumentation the {@link Instrumentation} supplied by the
+   * JVM; must not be {@code null}
+   *
+   * @exception IOException if the bindings could not be loaded
+   */
+  public static final void premain(final String agentArgs, final Instrumentation instrumentation) throws IOException {
+    if (instrumentation == null) {
+      throw new IllegalArgumentException("instrumentation", new NullPointerException("instrumentation"));
+    }
+    final Map<String, String> bindings = loadBindings(agentArgs);
+    assert bindings != null;
+    if (logger.isLoggable(Level.CONFIG)) {
+      logger.logp(Level.CONFIG, InterfaceDecorationAgent.class.getName(), "premain", "Decorating {0} interfaces", bindings.size());
+    }
+    openJavaLang(instrumentation);
+    synchronized (InterfaceDecorationAgent.class) {
+      if (installedTransformer == null) {
+        installedTransformer = new Transformer(bindings);
+        instrumentation.addTransformer(installedTransformer, instrumentation.isRetransformClassesSupported());
+      } else {
+        installedTransformer.setBindings(bindings);
+      }
+    }
+  }
+
+  /**
+   * {@linkplain #retransform(Instrumentation, Map, int) Retransforms}
+   * already loaded interfaces using the bindings described by the
+   * supplied agent argument, and installs a {@link Transformer} for
+   * interfaces that have yet to be loaded.
+   *
+   * @param agentArgs the path to a {@linkplain MappedBindingIndex
+   * binding index} file, or {@code null} or an empty {@link String}
+   * to scan the class path
+   *
+   * @param instrumentation the {@link Instrumentation} supplied by the
+   * JVM; must not be {@code null}
+   *
+   * @exception IOException if the bindings could not be loaded
+   *
+   * @exception UnmodifiableClassException never in practice, since
+   * classes that cannot be modified are skipped
+   */
+  public static final void agentmain(final String agentArgs, final Instrumentation instrumentation) throws IOException, UnmodifiableClassException {
+    if (instrumentation == null) {
+      throw new IllegalArgumentException("instrumentation", new NullPointerException("instrumentation"));
+    }
+    final Map<String, String> bindings = loadBindings(agentArgs);
+    assert bindings != null;
+    openJavaLang(instrumentation);
+    final Report report = retransform(instrumentation, bindings, DEFAULT_BATCH_SIZE);
+    assert report != null;
+    if (logger.isLoggable(Level.INFO)) {
+      logger.logp(Level.INFO, InterfaceDecorationAgent.class.getName(), "agentmain", report.toString());
+    }
+  }
+
+  /**
+   * Installs a {@link Transformer} for the supplied bindings, or
+   * replaces the bindings of the one already installed, and uses it to
+   * retransform, in batches of the supplied size, every currently
+   * loaded interface that the bindings cover or that was decorated
+   * under the replaced bindings, returning a {@link Report} of what
+   * happened.
+   *
+   * <p>Interfaces loaded after this method is called are decorated
+   * as they load, exactly as though the agent had been started with
+   * the JVM.</p>
+   *
+   * <p>If a batch cannot be retransformed, its classes are retried
+   * one at a time so that a single bad class does not prevent the
+   * others from being decorated; failures are recorded in the
+   * returned {@link Report}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param instrumentation an {@link Instrumentation} that
+   * {@linkplain Instrumentation#isRetransformClassesSupported()
+   * supports retransformation}; must not be {@code null}
+   *
+   * @param bindings a {@link Map} of implementation class names
+   * indexed by interface names; must not be {@code null}
+   *
+   * @param batchSize the maximum number of classes to retransform at
+   * once; values less than {@code 1} are treated as {@code 1}
+   *
+   * @return a non-{@code null} {@link Report}
+   *
+   * @exception IllegalArgumentException if either {@code
+   * instrumentation} or {@code bindings} is {@code null}
+   *
+   * @exception IllegalStateException if {@code instrumentation} does
+   * not support retransformation
+   *
+   * @exception UnmodifiableClassException never in practice, since
+   * classes that cannot be modified are skipped
+   */
+  public static final Report retransform(final Instrumentation instrumentation, final Map<String, String> bindings, final int batchSize) throws UnmodifiableClassException {
+    if (instrumentation == null) {
+      throw new IllegalArgumentException("instrumentation", new NullPointerException("instrumentation"));
+    }
+    if (bindings == null) {
+      throw new IllegalArgumentException("bindings", new NullPointerException("bindings"));
+    }
+    if (!instrumentation.isRetransformClassesSupported()) {
+      throw new IllegalStateException("Retransformation is not supported");
+    }
+    final long start = System.nanoTime();
+    final Transformer transformer;
+    final Set<String> staleInterfaceNames;
+    synchronized (InterfaceDecorationAgent.class) {
+      if (installedTransformer == null) {
+        installedTransformer = new Transformer(bindings);
+        instrumentation.addTransformer(installedTransformer, true);
+        staleInterfaceNames = Collections.emptySet();
+      } else {
+        // Adding another Transformer would leave the old one running
+        // first, still applying the old bindings.
+        staleInterfaceNames = installedTransformer.setBindings(bindings);
+      }
+      transformer = installedTransformer;
+    }
+
+    final List<Class<?>> candidates = new ArrayList<Class<?>>();
+    final Map<String, String> boundBindings = transformer.getBindings();
+    for (final Class<?> c : instrumentation.getAllLoadedClasses()) {
+      if (c != null && c.getClassLoader() != null && (boundBindings.containsKey(c.getName()) || staleInterfaceNames.contains(c.getName())) && instrumentation.isModifiableClass(c)) {
+        candidates.add(c);
+      }
+    }
+
+    final int size = Math.max(1, batchSize);
+    final Map<String, Throwable> failures = new LinkedHashMap<String, Throwable>();
+    for (int from = 0; from < candidates.size(); from += size) {
+      final List<Class<?>> batch = candidates.subList(from, Math.min(candidates.size(), from + size));
+      try {
+        instrumentation.retransformClasses(batch.toArray(new Class<?>[batch.size()]));
+      } catch (final UnmodifiableClassException batchFailure) {
+        retransformIndividually(instrumentation, batch, failures);
+      } catch (final RuntimeException batchFailure) {
+        retransformIndividually(instrumentation, batch, failures);
+      } catch (final LinkageError batchFailure) {
+        retransformIndividually(instrumentation, batch, failures);
+      }
+    }
+
+    final List<String> candidateNames = new ArrayList<String>(candidates.size());
+    for (final Class<?> c : candidates) {
+      candidateNames.add(c.getName());
+    }
+    return new Report(candidateNames, transformer.getDecoratedInterfaceNames(), failures, System.nanoTime() - start);
+  }
+
+  /**
+   * Returns the {@link Transformer} this agent has installed, or
+   * {@code null} if it has not been started.
+   *
+   * @return the installed {@link Transformer}, or {@code null}
+   */
+  static final synchronized Transformer getInstalledTransformer() {
+    return installedTransformer;
+  }
+
+  private static final void retransformIndividually(final Instrumentation instrumentation, final List<Class<?>> batch, final Map<String, Throwable> failures) {
+    assert instrumentation != null;
+    assert batch != null;
+    assert failures != null;
+    for (final Class<?> c : batch) {
+      try {
+        instrumentation.retransformClasses(c);
+      } catch (final UnmodifiableClassException e) {
+        failures.put(c.getName(), e);
+      } catch (final RuntimeException e) {
+        failures.put(c.getName(), e);
+      } catch (final LinkageError e) {
+        failures.put(c.getName(), e);
+      }
+    }
+  }
+
+  /**
+   * Returns the bindings described by the supplied agent argument.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param agentArgs the path to a {@linkplain MappedBindingIndex
+   * binding index} file, or {@code null} or an empty {@link String}
+   * to scan the class path
+   *
+   * @return a non-{@code null} {@link Map} of implementation class
+   * names indexed by interface names
+   *
+   * @exception IOException if the bindings could not be loaded
+   */
+  static final Map<String, String> loadBindings(final String agentArgs) throws IOException {
+    if (agentArgs != null && !agentArgs.trim().isEmpty()) {
+      return MappedBindingIndex.open(new File(agentArgs.trim()));
+    }
+    final Set<URI> uris = new LinkedHashSet<URI>();
+    final String classPath = System.getProperty("java.class.path");
+    if (classPath != null) {
+      for (final String entry : classPath.split(File.pathSeparator)) {
+        if (entry != null && !entry.isEmpty()) {
+          final File file = new File(entry);
+          if (file.exists()) {
+            uris.add(file.toURI());
+          }
+        }
+      }
+    }
+    if (uris.isEmpty()) {
+      return Collections.emptyMap();
+    }
+    final JAXBElementScanner scanner = new JAXBElementScanner();
+    scanner.setURIs(uris);
+    return scanner.scan();
+  }
+
+  /**
+   * On Java 9 and later, opens the {@code java.lang} package to this
+   * class' module so that {@link Transformer#defineClass(ClassLoader,
+   * String, byte[], ProtectionDomain)} may reflectively call {@link
+   * ClassLoader}'s {@code defineClass} method.  On earlier Java
+   * versions this method does nothing.
+   */
+  private static final void openJavaLang(final Instrumentation instrumentation) {
+    assert instrumentation != null;
+    try {
+      final Method getModule = Class.class.getMethod("getModule");
+      final Object javaBase = getModule.invoke(ClassLoader.class);
+      final Object self = getModule.invoke(InterfaceDecorationAgent.class);
+      final Method redefineModule = Instrumentation.class.getMethod("redefineModule", Class.forName("java.lang.Module"), Set.class, Map.class, Map.class, Set.class, Map.class);
+      redefineModule.invoke(instrumentation,
+                            javaBase,
+                            Collections.emptySet(),
+                            Collections.emptyMap(),
+                            Collections.singletonMap("java.lang", Collections.singleton(self)),
+                            Collections.emptySet(),
+                            Collections.emptyMap());
+    } catch (final NoSuchMethodException beforeJava9) {
+      // Nothing to open.
+    } catch (final ClassNotFoundException beforeJava9) {
+      // Nothing to open.
+    } catch (final IllegalAccessException e) {
+      logger.logp(Level.WARNING, InterfaceDecorationAgent.class.getName(), "openJavaLang", "Could not open java.lang", e);
+    } catch (final InvocationTargetException e) {
+      logger.logp(Level.WARNING, InterfaceDecorationAgent.class.getName(), "openJavaLang", "Could not open java.lang", e.getCause());
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A {@link ClassFileTransformer} that {@linkplain
+   * InterfaceDecorator#modify(byte[], String) decorates} bound
+   * interfaces as they are loaded and defines their adapters in the
+   * loading {@link ClassLoader}.
+   *
+   * <p>Adapters are named by the {@link
+   * XmlAdapterBytecodeGenerator#getAdapterClassName(String, String,
+   * String)} method and placed in the same package as the interface
+   * they adapt.</p>
+   *
+   * <p>Classes loaded by the bootstrap {@link ClassLoader} are never
+   * transformed.</p>
+   */
+  public static class Transformer implements ClassFileTransformer {
+
+    private static volatile Method defineClassMethod;
+
+    private final InterfaceDecorator interfaceDecorator;
+
+    private final XmlAdapterBytecodeGenerator generator;
+
+    /**
+     * The bindings this {@link Transformer} applies, together with
+     * what it has done with them; replaced as a unit by the {@link
+     * #setBindings(Map)} method.
+     */
+    private volatile State state;
+
+    /**
+     * Creates a new {@link Transformer}.
+     *
+     * @param bindings a {@link Map} of implementation class names
+     * indexed by the names of the interfaces they implement; must not
+     * be {@code null}
+     */
+    public Transformer(final Map<String, String> bindings) {
+      super();
+      if (bindings == null) {
+        throw new IllegalArgumentException("bindings", new NullPointerException("bindings"));
+      }
+      this.state = new State(bindings);
+      this.interfaceDecorator = new InterfaceDecorator();
+      this.generator = new XmlAdapterBytecodeGenerator();
+    }
+
+    /**
+     * Returns the bindings this {@link Transformer} applies.
+     *
+     * @return a non-{@code null}, immutable {@link Map} of
+     * implementation class names indexed by interface names
+     */
+    public final Map<String, String> getBindings() {
+      return this.state.bindings;
+    }
+
+    /**
+     * Atomically replaces the bindings this {@link Transformer}
+     * applies, discarding the adapters generated for the old ones.
+     *
+     * @param bindings a {@link Map} of implementation class names
+     * indexed by the names of the interfaces they implement; must not
+     * be {@code null}
+     *
+     * @return a non-{@code null} {@link Set} of the names of the
+     * interfaces decorated under the old bindings, which must be
+     * retransformed for the new bindings to take effect
+     */
+    final synchronized Set<String> setBindings(final Map<String, String> bindings) {
+      if (bindings == null) {
+        throw new IllegalArgumentException("bindings", new NullPointerException("bindings"));
+      }
+      final State old = this.state;
+      this.state = new State(bindings);
+      return new LinkedHashSet<String>(old.decoratedInterfaceNames);
+    }
+
+    /**
+     * Returns the names of the interfaces this {@link Transformer} has
+     * decorated so far under its current bindings.
+     *
+     * @return a non-{@code null}, unmodifiable, point-in-time {@link
+     * Set} of interface names
+     */
+    public final Set<String> getDecoratedInterfaceNames() {
+      return Collections.unmodifiableSet(new LinkedHashSet<String>(this.state.decoratedInterfaceNames));
+    }
+
+    @Override
+    public byte[] transform(final ClassLoader loader, final String className, final Class<?> classBeingRedefined, final ProtectionDomain protectionDomain, final byte[] classfileBuffer) {
+      if (loader == null || className == null || classfileBuffer == null) {
+        return null;
+      }
+      final State state = this.state;
+      final String interfaceName = className.replace('/', '.');
+      final String implementationClassName = state.bindings.get(interfaceName);
+      if (implementationClassName == null) {
+        return null;
+      }
+      try {
+        final String adapterClassName = this.generator.getAdapterClassName(ImplementationClassBinder.getPackageName(interfaceName), interfaceName, implementationClassName);
+        final InterfaceDecorator.Modification modification = this.interfaceDecorator.modify(classfileBuffer, adapterClassName);
+        assert modification != null;
+        if (!modification.isModified()) {
+          return null;
+        }
+        if (!this.defineAdapter(state.adapters, loader, adapterClassName, interfaceName, implementationClassName, protectionDomain)) {
+          // Better to leave the interface alone than to point it at
+          // an adapter that can't be loaded.
+          return null;
+        }
+        state.decoratedInterfaceNames.add(interfaceName);
+        return modification.toByteArray();
+      } catch (final RuntimeException e) {
+        // Exceptions thrown out of transform() are silently
+        // discarded by the JVM; make sure they're seen.
+        logger.logp(Level.WARNING, this.getClass().getName(), "transform", "Could not decorate " + interfaceName, e);
+      } catch (final Exception e) {
+        logger.logp(Level.WARNING, this.getClass().getName(), "transform", "Could not decorate " + interfaceName, e);
+      }
+      return null;
+    }
+
+    private final boolean defineAdapter(final ConcurrentMap<String, byte[]> adapters, final ClassLoader loader, final String adapterClassName, final String interfaceName, final String implementationClassName, final ProtectionDomain protectionDomain) throws Exception {
+      assert adapters != null;
+      assert loader != null;
+      byte[] adapterBytes = adapters.get(adapterClassName);
+      if (adapterBytes == null) {
+        // Generation is cheap and has no side effects, so two threads
+        // racing here may both generate; only one result is kept.
+        adapterBytes = this.generator.generate(adapterClassName, interfaceName, implementationClassName);
+        final byte[] existing = adapters.putIfAbsent(adapterClassName, adapterBytes);
+        if (existing != null) {
+          adapterBytes = existing;
+        }
+      }
+      try {
+        return this.defineClass(loader, adapterClassName, adapterBytes, protectionDomain) != null;
+      } catch (final LinkageError e) {
+        // Most likely the interface is being retransformed, or
+        // another thread got here first, and the adapter is already
+        // there.  But make sure: a class that failed to define for
+        // any other reason must not end up named by the interface.
+        final Class<?> adapterClass;
+        try {
+          adapterClass = Class.forName(adapterClassName, false, loader);
+        } catch (final ClassNotFoundException notThere) {
+          logger.logp(Level.WARNING, this.getClass().getName(), "defineAdapter", "Could not define " + adapterClassName, e);
+          return false;
+        } catch (final LinkageError unusable) {
+          logger.logp(Level.WARNING, this.getClass().getName(), "defineAdapter", "Could not define " + adapterClassName, e);
+          return false;
+        }
+        if (adapterClass.getSuperclass() != UniversalXmlAdapter.class) {
+          logger.logp(Level.WARNING, this.getClass().getName(), "defineAdapter", adapterClassName + " exists but is not a UniversalXmlAdapter", e);
+          return false;
+        }
+        return true;
+      }
+    }
+
+    /**
+     * Defines a class in the supplied {@link ClassLoader} from the
+     * supplied bytes and returns it, or returns {@code null} if that
+     * is not possible.
+     *
+     * <p>The default implementation reflectively calls {@link
+     * ClassLoader}'s {@code protected} {@code defineClass} method.
+     * Overrides may define classes in other ways.</p>
+     *
+     * @param loader the {@link ClassLoader} in which to define the
+     * class; will not be {@code null}
+     *
+     * @param className the name of the class; will not be {@code
+     * null}
+     *
+     * @param bytes the class' bytes; will not be {@code null}
+     *
+     * @param protectionDomain the {@link ProtectionDomain} of the
+     * interface being transformed; may be {@code null}
+     *
+     * @return the new {@link Class}, or {@code null}
+     *
+     * @exception LinkageError if the class is already defined in the
+     * supplied {@link ClassLoader}
+     */
+    protected Class<?> defineClass(final ClassLoader loader, final String className, final byte[] bytes, final ProtectionDomain protectionDomain) {
+      final Method defineClass = getDefineClassMethod();
+      if (defineClass == null) {
+        return null;
+      }
+      try {
+        return (Class<?>)defineClass.invoke(loader, className, bytes, 0, bytes.length, protectionDomain);
+      } catch (final IllegalAccessException e) {
+        logger.logp(Level.WARNING, this.getClass().getName(), "defineClass", "Could not define " + className, e);
+      } catch (final InvocationTargetException e) {
+        final Throwable cause = e.getCause();
+        if (cause instanceof LinkageError) {
+          throw (LinkageError)cause;
+        }
+        logger.logp(Level.WARNING, this.getClass().getName(), "defineClass", "Could not define " + className, cause);
+      }
+      return null;
+    }
+
+    private static final Method getDefineClassMethod() {
+      Method returnValue = defineClassMethod;
+      if (returnValue == null) {
+        try {
+          returnValue = ClassLoader.class.getDeclaredMethod("defineClass", String.class, byte[].class, int.class, int.class, ProtectionDomain.class);
+          returnValue.setAccessible(true);
+          defineClassMethod = returnValue;
+        } catch (final NoSuchMethodException e) {
+          logger.logp(Level.WARNING, Transformer.class.getName(), "getDefineClassMethod", "ClassLoader#defineClass is unavailable", e);
+          returnValue = null;
+        } catch (final RuntimeException e) {
+          // SecurityException, or, on Java 9 and later, the
+          // InaccessibleObjectException thrown when java.lang has not
+          // been opened to us.
+          logger.logp(Level.WARNING, Transformer.class.getName(), "getDefineClassMethod", "ClassLoader#defineClass is inaccessible", e);
+          returnValue = null;
+        }
+      }
+      return returnValue;
+    }
+
+
+    /*
+     * Inner and nested classes.
+     */
+
+
+    /**
+     * The bindings a {@link Transformer} applies, the adapters it has
+     * generated for them and the interfaces it has decorated with
+     * them.
+     */
+    private static final class State {
+
+      private final Map<String, String> bindings;
+
+      /**
+       * Generated adapter bytes indexed by adapter class name, so that
+       * an adapter is generated only once however many {@link
+       * ClassLoader}s need it.
+       */
+      private final ConcurrentMap<String, byte[]> adapters;
+
+      private final Set<String> decoratedInterfaceNames;
+
+      private State(final Map<String, String> bindings) {
+        super();
+        this.bindings = BindingTable.of(bindings);
+        this.adapters = new ConcurrentHashMap<String, byte[]>();
+        this.decoratedInterfaceNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+      }
+
+    }
+
+  }
+
+
+  /**
+   * A summary of a {@linkplain InterfaceDecorationAgent#retransform(Instrumentation,
+   * Map, int) retransformation}.
+   */
+  public static final class Report {
+
+    private final List<String> retransformedClassNames;
+
+    private final Set<String> decoratedClassNames;
+
+    private final Map<String, Throwable> failures;
+
+    private final long elapsedNanos;
+
+    private Report(final List<String> retransformedClassNames, final Set<String> decoratedClassNames, final Map<String, Throwable> failures, final long elapsedNanos) {
+      super();
+      this.retransformedClassNames = Collections.unmodifiableList(retransformedClassNames);
+      this.decoratedClassNames = decoratedClassNames;
+      this.failures = Collections.unmodifiableMap(failures);
+      this.elapsedNanos = elapsedNanos;
+    }
+
+    /**
+     * Returns the names of the loaded classes that were submitted for
+     * retransformation.
+     *
+     * @return a non-{@code null}, unmodifiable {@link List}
+     */
+    public final List<String> getRetransformedClassNames() {
+      return this.retransformedClassNames;
+    }
+
+    /**
+     * Returns the names of the classes whose bytes were actually
+     * changed; classes that were already correctly decorated are not
+     * included.
+     *
+     * @return a non-{@code null}, unmodifiable {@link Set}
+     */
+    public final Set<String> getDecoratedClassNames() {
+      return this.decoratedClassNames;
+    }
+
+    /**
+     * Returns the {@link Throwable}s that prevented classes from being
+     * retransformed, indexed by class name.
+     *
+     * @return a non-{@code null}, unmodifiable {@link Map}
+     */
+    public final Map<String, Throwable> getFailures() {
+      return this.failures;
+    }
+
+    /**
+     * Returns the time the retransformation took in the supplied
+     * {@link TimeUnit}.
+     *
+     * @param unit a {@link TimeUnit}; must not be {@code null}
+     *
+     * @return the elapsed time
+     */
+    public final long getElapsedTime(final TimeUnit unit) {
+      if (unit == null) {
+        throw new IllegalArgumentException("unit", new NullPointerException("unit"));
+      }
+      return unit.convert(this.elapsedNanos, TimeUnit.NANOSECONDS);
+    }
+
+    @Override
+    public final String toString() {
+      return String.format("Retransformed %d classes (%d decorated, %d failed) in %d ms: %s",
+                           this.retransformedClassNames.size(),
+                           this.decoratedClassNames.size(),
+                           this.failures.size(),
+                           this.getElapsedTime(TimeUnit.MILLISECONDS),
+                           this.retransformedClassNames);
+    }
+
+  }
+
+}
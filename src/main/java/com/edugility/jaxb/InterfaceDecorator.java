@@ -27,16 +27,29 @@
  */
 package com.edugility.jaxb;
 
+import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
+import java.net.URL;
+
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
 import java.util.Set;
 
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -48,22 +61,32 @@ import javassist.ClassPool;
 import javassist.CtClass;
 import javassist.NotFoundException;
 
-import javassist.bytecode.AnnotationsAttribute;
-import javassist.bytecode.ClassFile;
-import javassist.bytecode.ConstPool;
-
-import javassist.bytecode.annotation.Annotation;
-import javassist.bytecode.annotation.AnnotationMemberValue;
-import javassist.bytecode.annotation.ArrayMemberValue;
-import javassist.bytecode.annotation.ClassMemberValue;
-import javassist.bytecode.annotation.MemberValue;
-
 public class InterfaceDecorator {
 
   protected transient Logger logger;
 
+  private final ClassPool classPool;
+
   public InterfaceDecorator() {
+    this(null);
+  }
+
+  /**
+   * Creates a new {@link InterfaceDecorator} that will use the
+   * supplied {@link ClassPool}.
+   *
+   * @param classPool the {@link ClassPool} to use; if {@code null}, a
+   * new {@link BoundedClassPool} will be used instead
+   *
+   * @see #getClassPool(String)
+   */
+  public InterfaceDecorator(final ClassPool classPool) {
     super();
+    if (classPool == null) {
+      this.classPool = new BoundedClassPool();
+    } else {
+      this.classPool = classPool;
+    }
     this.logger = this.createLogger();
     if (this.logger == null) {
       this.logger = Logger.getLogger(this.getClass().getName());
@@ -91,19 +114,21 @@ public class InterfaceDecorator {
     }
     assert classPool != null;
 
-    final CtClass interfaceCtClass = classPool.getOrNull(interfaceName);
-    if (interfaceCtClass == null) {
+    // Only the ClassPool's class path is consulted; no CtClass is
+    // created.
+    final URL location = classPool.find(interfaceName);
+    if (location == null) {
       throw new IllegalArgumentException("interfaceName");
     }
-    assert interfaceCtClass != null;
 
-    final boolean modified = this.installXmlJavaTypeAdapter(interfaceCtClass, adapterClassName);
-    
-    final byte[] bytes = interfaceCtClass.toBytecode();
+    // If the interface is already correctly annotated, the injector
+    // hands back the very same array without copying anything.
+    final byte[] originalBytes = ClassFileAnnotationInjector.read(location);
+    final byte[] bytes = ClassFileAnnotationInjector.installXmlJavaTypeAdapter(originalBytes, adapterClassName);
     assert bytes != null;
     assert bytes.length > 0;
 
-    final Modification returnValue = new Modification(interfaceCtClass, modified ? Modification.Kind.MODIFIED : Modification.Kind.UNMODIFIED, bytes);
+    final Modification returnValue = new Modification(interfaceName, location, bytes == originalBytes ? Modification.Kind.UNMODIFIED : Modification.Kind.MODIFIED, bytes);
 
     if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
       this.logger.exiting(this.getClass().getName(), "modify", returnValue);
@@ -112,227 +137,299 @@ public class InterfaceDecorator {
   }
 
   /**
-   * Returns a Javassist {@link ClassPool} that is appropriate for the
-   * supplied class name.
+   * Calls the {@link #modifyAll(Map, int)} method with a parallelism
+   * equal to the number of available processors and returns its
+   * result.
    *
-   * <p>The default implementation of this method ignores the {@code
-   * className} parameter and returns the return value of {@link
-   * ClassPool#getDefault()}.  For nearly all cases, this is the
-   * correct behavior and this method should not be overridden.</p>
+   * <p>This method never returns {@code null}.</p>
    *
-   * <p>If overrides of this method opt to return {@code null}, the
-   * return value of {@link ClassPool#getDefault()} will be used
-   * internally instead.</p>
+   * @param adapterClassNames a {@link Map} of adapter class names
+   * indexed by the names of the interfaces they should decorate; must
+   * not be {@code null}
    *
-   * @param className the class name for which the returned {@link
-   * ClassPool} might be appropriate; may be {@code null} and may
-   * safely be ignored; provided for contextual information only
+   * @return a non-{@code null} {@link Map} of {@link Modification}s
+   * indexed by interface name, in the iteration order of {@code
+   * adapterClassNames}
    *
-   * @return a {@link ClassPool} instance, or {@code null}
+   * @exception IOException if an interface's class file could not be
+   * read
    *
-   * @see ClassPool
-   *
-   * @see ClassPool#getDefault()
+   * @see #modifyAll(Map, int)
    */
-  protected ClassPool getClassPool(final String className) {
-    return ClassPool.getDefault();
+  public Map<String, Modification> modifyAll(final Map<String, String> adapterClassNames) throws IOException {
+    return this.modifyAll(adapterClassNames, Runtime.getRuntime().availableProcessors());
   }
 
   /**
-   * Installs an {@link XmlJavaTypeAdapter} annotation on the supplied
-   * {@link CtClass} or modifies an existing one.
+   * Decorates many interfaces in one pass, as though by calling the
+   * {@link #modify(String, String)} method for each entry in the
+   * supplied {@link Map}, and returns the results.
    *
-   * @param interfaceCtClass the {@link CtClass} to decorate; must not
-   * be {@code null}
+   * <p>The work is split into at most {@code parallelism} contiguous
+   * slices that are processed concurrently.  Each interface's class
+   * file is read and checked to see whether it is already correctly
+   * decorated, but the decorated bytes of a {@linkplain
+   * Modification#isModified() modified} interface are not produced
+   * until its {@link Modification#toByteArray()} method is first
+   * called, so {@link Modification}s that are never written cost
+   * only a read.</p>
    *
-   * @param adapterClassName the name of the {@link
-   * XmlJavaTypeAdapter} class to use as the value for the {@link
-   * XmlJavaTypeAdapter#value()} attribute; must not be {@code null}
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param adapterClassNames a {@link Map} of adapter class names
+   * indexed by the names of the interfaces they should decorate; must
+   * not be {@code null} and must not contain {@code null} keys or
+   * values
+   *
+   * @param parallelism the maximum number of threads to use; values
+   * less than {@code 1} are treated as {@code 1}
    *
-   * @return {@code true} if the supplied {@link CtClass} was
-   * modified; {@code false} otherwise
+   * @return a non-{@code null} {@link Map} of {@link Modification}s
+   * indexed by interface name, in the iteration order of {@code
+   * adapterClassNames}
    *
-   * @exception NotFoundException if Javassist couldn't find something
+   * @exception IOException if an interface's class file could not be
+   * read; if several could not be, the others' exceptions are
+   * {@linkplain Throwable#getSuppressed() suppressed} by the first
+   *
+   * @exception IllegalArgumentException if {@code adapterClassNames}
+   * is {@code null} or contains {@code null} keys or values, or if
+   * an interface could not be found
    */
-  private final boolean installXmlJavaTypeAdapter(final CtClass interfaceCtClass, final String adapterClassName) throws NotFoundException {
-    if (interfaceCtClass == null) {
-      throw new IllegalArgumentException("interfaceCtClass", new NullPointerException("interfaceCtClass"));
+  public Map<String, Modification> modifyAll(final Map<String, String> adapterClassNames, final int parallelism) throws IOException {
+    if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
+      this.logger.entering(this.getClass().getName(), "modifyAll", new Object[] { adapterClassNames, parallelism });
     }
-    if (adapterClassName == null) {
-      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
+    if (adapterClassNames == null) {
+      throw new IllegalArgumentException("adapterClassNames", new NullPointerException("adapterClassNames"));
     }
-
-    boolean modified = false;
-
-    final ClassFile interfaceClassFile = interfaceCtClass.getClassFile();
-    assert interfaceClassFile != null;
-
-    final ConstPool constantPool = interfaceClassFile.getConstPool();
-    assert constantPool != null;
-
-    AnnotationsAttribute annotationsAttribute = (AnnotationsAttribute)interfaceClassFile.getAttribute(AnnotationsAttribute.visibleTag);
-    if (annotationsAttribute == null) {
-      annotationsAttribute = new AnnotationsAttribute(constantPool, AnnotationsAttribute.visibleTag);
-      interfaceClassFile.addAttribute(annotationsAttribute);
-      assert annotationsAttribute == interfaceClassFile.getAttribute(AnnotationsAttribute.visibleTag);
-      modified = true;
+    final int size = adapterClassNames.size();
+    if (size <= 0) {
+      return Collections.emptyMap();
     }
-    assert annotationsAttribute != null;
 
-    Annotation adapterAnnotation = annotationsAttribute.getAnnotation(XmlJavaTypeAdapter.class.getName());
-    if (adapterAnnotation == null) {
-      ClassPool classPool = this.getClassPool(XmlJavaTypeAdapter.class.getName());
-      if (classPool == null) {
-        classPool = ClassPool.getDefault();
+    final String[] interfaceNames = new String[size];
+    final String[] adapterNames = new String[size];
+    final ClassPool[] classPools = new ClassPool[size];
+    int i = 0;
+    for (final Entry<String, String> entry : adapterClassNames.entrySet()) {
+      interfaceNames[i] = entry.getKey();
+      if (interfaceNames[i] == null) {
+        throw new IllegalArgumentException("adapterClassNames", new NullPointerException("interfaceName"));
       }
-      assert classPool != null;
-      final CtClass xmlJavaTypeAdapterCtClass = classPool.getOrNull(XmlJavaTypeAdapter.class.getName());
-      assert xmlJavaTypeAdapterCtClass != null;
-      adapterAnnotation = new Annotation(constantPool, xmlJavaTypeAdapterCtClass);
-      modified = true;
-    } else if (adapterAnnotation.getMemberValue("value") == null) {
-      final ArrayMemberValue amv = new ArrayMemberValue(constantPool);
-      amv.setValue(new AnnotationMemberValue[0]);
-      adapterAnnotation.addMemberValue("value", amv);
-      modified = true;
-    }
-    assert adapterAnnotation != null;
-    assert adapterAnnotation.getMemberValue("value") != null;
-
-    modified = this.installXmlJavaTypeAdapter(adapterAnnotation, adapterClassName, constantPool) || modified;
-
-    /*
-     * You would think this line would be required ONLY in the case
-     * where the annotation itself was not found.  But you actually
-     * have to add it to its containing AnnotationsAttribute in ALL
-     * cases.  This doesn't make any sense.  See
-     * http://stackoverflow.com/questions/8689156/why-does-javassist-insist-on-looking-for-a-default-annotation-value-when-one-is/8689214#8689214
-     * for details.
-     *
-     * Additionally, you must re-add the annotation as the last
-     * operation here in all cases.  Otherwise the changes made by the
-     * installXmlJavaTypeAdapter() method above are not actually made
-     * permanent.
-     */
-    if (modified) {
-      annotationsAttribute.addAnnotation(adapterAnnotation);
+      adapterNames[i] = entry.getValue();
+      if (adapterNames[i] == null) {
+        throw new IllegalArgumentException("adapterClassNames", new NullPointerException("adapterClassName"));
+      }
+      classPools[i] = this.getClassPool(interfaceNames[i]);
+      if (classPools[i] == null) {
+        classPools[i] = ClassPool.getDefault();
+      }
+      i++;
     }
 
-    return modified;
-  }
-
-  private final boolean installXmlJavaTypeAdapter(Annotation adapterAnnotation, final String adapterClassName, final ConstPool constantPool) throws NotFoundException {
-    if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
-      this.logger.entering(this.getClass().getName(), "installXmlJavaTypeAdapter", new Object[] { adapterAnnotation, constantPool });
-    }
-    if (adapterClassName == null) {
-      throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
-    }
-    if (!XmlJavaTypeAdapter.class.getName().equals(adapterAnnotation.getTypeName())) {
-      throw new IllegalArgumentException("Wrong annotation: " + adapterAnnotation.getTypeName());
+    final Modification[] modifications = new Modification[size];
+    final int sliceCount = Math.max(1, Math.min(parallelism, size));
+    if (sliceCount == 1) {
+      modify(classPools, interfaceNames, adapterNames, modifications, 0, size);
+    } else {
+      final ExecutorService executor = Executors.newFixedThreadPool(sliceCount, new ThreadFactory() {
+          @Override
+          public final Thread newThread(final Runnable runnable) {
+            final Thread thread = new Thread(runnable, "InterfaceDecorator");
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      try {
+        final List<Future<Void>> futures = new ArrayList<Future<Void>>(sliceCount);
+        for (int slice = 0; slice < sliceCount; slice++) {
+          final int from = (int)((long)size * slice / sliceCount);
+          final int to = (int)((long)size * (slice + 1) / sliceCount);
+          futures.add(executor.submit(new Callable<Void>() {
+              @Override
+              public final Void call() throws IOException {
+                modify(classPools, interfaceNames, adapterNames, modifications, from, to);
+                return null;
+              }
+            }));
+        }
+        Throwable failure = null;
+        for (final Future<Void> future : futures) {
+          try {
+            future.get();
+          } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause() == null ? e : e.getCause();
+            if (failure == null) {
+              failure = cause;
+            } else {
+              failure.addSuppressed(cause);
+            }
+          } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+          }
+        }
+        if (failure instanceof IOException) {
+          throw (IOException)failure;
+        } else if (failure instanceof RuntimeException) {
+          throw (RuntimeException)failure;
+        } else if (failure instanceof Error) {
+          throw (Error)failure;
+        } else if (failure != null) {
+          throw new IOException(failure);
+        }
+      } finally {
+        executor.shutdownNow();
+      }
     }
 
-    boolean modified = false;
-
-    ClassPool classPool = this.getClassPool(XmlJavaTypeAdapter.class.getName());
-    if (classPool == null) {
-      classPool = ClassPool.getDefault();
+    final Map<String, Modification> returnValue = new LinkedHashMap<String, Modification>(size * 4 / 3 + 1);
+    for (i = 0; i < size; i++) {
+      returnValue.put(interfaceNames[i], modifications[i]);
     }
-    assert classPool != null;
-    
-    final CtClass xmlJavaTypeAdapterCtClass = classPool.get(XmlJavaTypeAdapter.class.getName());
-    assert xmlJavaTypeAdapterCtClass != null;
-
-    if (adapterAnnotation != null) {
-      // Preexisting
-      final ClassMemberValue v = (ClassMemberValue)adapterAnnotation.getMemberValue("value");
-      assert v != null;
-      final String existingClassName = v.getValue();
-      if (adapterClassName.equals(existingClassName)) {
-        // The annotation is already correctly specified
-        // TODO do something; return?
-        return false;
-      }
-    } else {
-      adapterAnnotation = this.newXmlJavaTypeAdapter(constantPool);
-      modified = true;
+    if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
+      this.logger.exiting(this.getClass().getName(), "modifyAll", returnValue);
     }
-
-    assert adapterAnnotation != null;
-
-    assert XmlJavaTypeAdapter.class.getName().equals(adapterAnnotation.getTypeName());
-
-    modified = setXmlAdapter(adapterAnnotation, adapterClassName) || modified;
-    assert adapterClassName.equals(((ClassMemberValue)adapterAnnotation.getMemberValue("value")).getValue());
-
-    System.out.println("Modified: " + modified);
-    return modified;
+    return returnValue;
   }
 
-  private final Annotation newXmlJavaTypeAdapter(final ConstPool constantPool) throws NotFoundException {
-
-    ClassPool classPool = this.getClassPool(XmlJavaTypeAdapter.class.getName());
-    if (classPool == null) {
-      classPool = ClassPool.getDefault();
+  private static final void modify(final ClassPool[] classPools, final String[] interfaceNames, final String[] adapterNames, final Modification[] modifications, final int from, final int to) throws IOException {
+    for (int i = from; i < to; i++) {
+      // Only the ClassPool's class path is consulted; no CtClass is
+      // created, so one ClassPool may safely serve every thread.
+      final URL location = classPools[i].find(interfaceNames[i]);
+      if (location == null) {
+        throw new IllegalArgumentException("interfaceName: " + interfaceNames[i]);
+      }
+      modifications[i] = new Modification(interfaceNames[i], location, ClassFileAnnotationInjector.read(location), adapterNames[i]);
     }
-    assert classPool != null;
-    
-    return new Annotation(constantPool, classPool.getOrNull(XmlJavaTypeAdapter.class.getName()));
   }
 
-  private static final boolean setXmlAdapter(final Annotation adapterAnnotation, final String adapterClassName) {
+  /**
+   * Installs an {@link XmlJavaTypeAdapter} annotation whose {@link
+   * XmlJavaTypeAdapter#value() value()} is the class named by the
+   * supplied {@code adapterClassName} on the class represented by the
+   * supplied class file bytes, or modifies an existing one, and
+   * returns the result.
+   *
+   * <p>The returned {@link Modification}'s {@linkplain
+   * Modification#getLocation() location} will be {@code null}.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param classBytes the bytes of a class file; must not be {@code
+   * null}
+   *
+   * @param adapterClassName the name of the {@link
+   * javax.xml.bind.annotation.adapters.XmlAdapter} class to use; must
+   * not be {@code null}
+   *
+   * @return a non-{@code null} {@link Modification}
+   *
+   * @exception IllegalArgumentException if either parameter is {@code
+   * null} or if {@code classBytes} is not a well-formed class file
+   */
+  public Modification modify(final byte[] classBytes, final String adapterClassName) {
+    if (classBytes == null) {
+      throw new IllegalArgumentException("classBytes", new NullPointerException("classBytes"));
+    }
     if (adapterClassName == null) {
       throw new IllegalArgumentException("adapterClassName", new NullPointerException("adapterClassName"));
     }
-    if (adapterAnnotation == null) {
-      throw new IllegalArgumentException("adapterAnnotation", new NullPointerException("adapterAnnotation"));
-    }
-    if (!XmlJavaTypeAdapter.class.getName().equals(adapterAnnotation.getTypeName())) {
-      throw new IllegalArgumentException("adapterAnnotation does not represent " + XmlJavaTypeAdapter.class.getName());
-    }
-
-    // Retrieve the "holder" for the value() annotation
-    // attribute ("FooToFooImplAdapter.class" in the
-    // following sample:
-    // 
-    //   @XmlJavaTypeAdapter(type = Foo.class, value = FooToFooImplAdapter.class)
-    //
-    final ClassMemberValue adapterClassHolder = (ClassMemberValue)adapterAnnotation.getMemberValue("value");
-    assert adapterClassHolder != null;
-
-    final String old = adapterClassHolder.getValue();
-
-    // Set the holder's value, thus installing the
-    // annotation's value() value.
-    adapterClassHolder.setValue(adapterClassName);
+    final byte[] bytes = ClassFileAnnotationInjector.installXmlJavaTypeAdapter(classBytes, adapterClassName);
+    assert bytes != null;
+    return new Modification(ClassFileAnnotationInjector.getClassName(classBytes), null, bytes == classBytes ? Modification.Kind.UNMODIFIED : Modification.Kind.MODIFIED, bytes);
+  }
 
-    if (old == null) {
-      return adapterClassName != null;
-    }
-    return !old.equals(adapterClassName);
+  /**
+   * Returns a Javassist {@link ClassPool} that is appropriate for the
+   * supplied class name.
+   *
+   * <p>The default implementation of this method ignores the {@code
+   * className} parameter and returns the {@link ClassPool} supplied at
+   * {@linkplain #InterfaceDecorator(ClassPool) construction time},
+   * which by default is a new {@link BoundedClassPool} private to this
+   * {@link InterfaceDecorator}.  Unlike {@link
+   * ClassPool#getDefault()}, such a {@link ClassPool} does not retain
+   * every {@link CtClass} ever touched for the life of the JVM.  For
+   * nearly all cases, this is the correct behavior and this method
+   * should not be overridden.</p>
+   *
+   * <p>If overrides of this method opt to return {@code null}, the
+   * return value of {@link ClassPool#getDefault()} will be used
+   * internally instead.</p>
+   *
+   * @param className the class name for which the returned {@link
+   * ClassPool} might be appropriate; may be {@code null} and may
+   * safely be ignored; provided for contextual information only
+   *
+   * @return a {@link ClassPool} instance, or {@code null}
+   *
+   * @see ClassPool
+   *
+   * @see ClassPool#getDefault()
+   */
+  protected ClassPool getClassPool(final String className) {
+    return this.classPool;
   }
 
+  /**
+   * The result of {@linkplain InterfaceDecorator#modify(String,
+   * String) decorating} an interface.
+   *
+   * <p>{@link Modification}s are {@link Serializable}; they consist
+   * only of the interface name, its location and its bytes.</p>
+   */
   public static final class Modification implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     public static enum Kind {
       UNMODIFIED, MODIFIED;
     }
 
-    private final CtClass interfaceCtClass;
+    private final String interfaceName;
+
+    private final URL location;
+
+    /**
+     * The decorated bytes; {@code null} until first requested if this
+     * {@link Modification} was produced lazily.  Guarded by {@code
+     * this}.
+     */
+    private byte[] bytes;
+
+    /**
+     * The undecorated bytes of a lazily produced {@link
+     * Modification}; {@code null} once {@link #bytes} has been
+     * computed.  Guarded by {@code this}.
+     */
+    private transient byte[] originalBytes;
+
+    /**
+     * The adapter class name of a lazily produced {@link
+     * Modification}; {@code null} once {@link #bytes} has been
+     * computed.  Guarded by {@code this}.
+     */
+    private transient String adapterClassName;
 
-    private final byte[] bytes;
+    /**
+     * A {@link CtClass} parsed from {@link #bytes} on demand by the
+     * deprecated {@link #getInterfaceCtClass()} method.  Guarded by
+     * {@code this}.
+     */
+    private transient CtClass interfaceCtClass;
 
     private final Kind kind;
 
-    private Modification(final CtClass interfaceCtClass, final Kind kind, final byte[] bytes) {
+    Modification(final String interfaceName, final URL location, final Kind kind, final byte[] bytes) {
       super();
-      if (interfaceCtClass == null) {
-        throw new IllegalArgumentException("interfaceCtClass", new NullPointerException("interfaceCtClass"));
+      if (interfaceName == null) {
+        throw new IllegalArgumentException("interfaceName", new NullPointerException("interfaceName"));
       }
-      this.interfaceCtClass = interfaceCtClass;
-      assert interfaceCtClass.isFrozen();
+      this.interfaceName = interfaceName;
+      this.location = location;
       if (kind == null) {
         this.kind = Kind.MODIFIED;
       } else {
@@ -345,10 +442,82 @@ public class InterfaceDecorator {
       }
     }
 
-    public CtClass getInterfaceCtClass() {
+    /**
+     * Creates a new {@link Modification} whose decorated bytes are
+     * not computed until the {@link #toByteArray()} method is first
+     * called.
+     */
+    private Modification(final String interfaceName, final URL location, final byte[] originalBytes, final String adapterClassName) {
+      super();
+      if (interfaceName == null) {
+        throw new IllegalArgumentException("interfaceName", new NullPointerException("interfaceName"));
+      }
+      this.interfaceName = interfaceName;
+      this.location = location;
+      if (ClassFileAnnotationInjector.hasXmlJavaTypeAdapter(originalBytes, adapterClassName)) {
+        this.kind = Kind.UNMODIFIED;
+        this.bytes = originalBytes;
+      } else {
+        this.kind = Kind.MODIFIED;
+        this.originalBytes = originalBytes;
+        this.adapterClassName = adapterClassName;
+      }
+    }
+
+    /**
+     * Returns a frozen {@link CtClass} representing the decorated
+     * interface.
+     *
+     * <p>Decoration no longer goes through Javassist, so the {@link
+     * CtClass} is parsed from the {@linkplain #toByteArray() decorated
+     * bytes} into a private {@link ClassPool} the first time this
+     * method is called, including after deserialization.</p>
+     *
+     * @return a {@link CtClass}, or {@code null} if the decorated
+     * bytes could not be parsed
+     *
+     * @deprecated Use {@link #toByteArray()} instead.
+     */
+    @Deprecated
+    public synchronized CtClass getInterfaceCtClass() {
+      if (this.interfaceCtClass == null) {
+        try {
+          final CtClass interfaceCtClass = new ClassPool(true).makeClass(new ByteArrayInputStream(this.toByteArray()));
+          interfaceCtClass.freeze();
+          this.interfaceCtClass = interfaceCtClass;
+        } catch (final IOException unparseable) {
+          return null;
+        } catch (final RuntimeException unparseable) {
+          return null;
+        }
+      }
       return this.interfaceCtClass;
     }
 
+    /**
+     * Returns the name of the interface that was decorated.
+     *
+     * <p>This method never returns {@code null}.</p>
+     *
+     * @return the non-{@code null} name of the decorated interface
+     */
+    public final String getInterfaceName() {
+      return this.interfaceName;
+    }
+
+    /**
+     * Returns the {@link URL} of the class file from which the
+     * decorated interface was read.
+     *
+     * <p>This method may return {@code null}.</p>
+     *
+     * @return the location of the original class file, or {@code
+     * null}
+     */
+    public final URL getLocation() {
+      return this.location;
+    }
+
     public boolean isModified() {
       return Kind.MODIFIED.equals(this.getKind());
     }
@@ -357,10 +526,20 @@ public class InterfaceDecorator {
       return this.kind;
     }
 
-    public final byte[] toByteArray() {
+    public final synchronized byte[] toByteArray() {
+      if (this.bytes == null) {
+        this.bytes = ClassFileAnnotationInjector.installXmlJavaTypeAdapter(this.originalBytes, this.adapterClassName);
+        this.originalBytes = null;
+        this.adapterClassName = null;
+      }
       return this.bytes;
     }
 
+    private final synchronized void writeObject(final ObjectOutputStream stream) throws IOException {
+      this.toByteArray();
+      stream.defaultWriteObject();
+    }
+
   }
 
 }
@@ -27,7 +27,15 @@
  */
 package com.edugility.jaxb;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
 import java.io.Serializable;
 
 import java.net.URI;
@@ -39,6 +47,7 @@ import java.util.Collection;
 import java.util.EventListener;
 import java.util.EventObject;
 import java.util.LinkedHashSet;
+import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
@@ -78,8 +87,13 @@ public class JAXBElementScanner implements Serializable {
 
   private BindingFilter bindingFilter;
 
+  private File bindingIndexFile;
+
+  private int shardCount;
+
   public JAXBElementScanner() {
     super();
+    this.setShardCount(1);
   }
 
   public Set<String> getIgnoredPackages() {
@@ -91,76 +105,255 @@ public class JAXBElementScanner implements Serializable {
   }
 
   /**
-   * Returns a {@link Map} of efficiently discovered JAXB-annotated
-   * implementation class names indexed by the interface names they
-   * implement.
+   * Returns an immutable {@link BindingTable} of efficiently
+   * discovered JAXB-annotated implementation class names indexed by
+   * the interface names they implement.
    *
    * <p>The default implementation of this method does no classloading
    * but scans the bytecode directly.</p>
    *
-   * @return a non-{@code null} {@link Map} of names of discovered
-   * JAXB-annotated classes indexed by the names of interfaces they
-   * implement
+   * <p>If a {@linkplain #getBindingIndexFile() binding index file}
+   * has been set, the result is also written to it so that other
+   * JVMs may {@linkplain MappedBindingIndex#open(File) map it}
+   * instead of scanning.</p>
+   *
+   * @return a non-{@code null} {@link BindingTable} of names of
+   * discovered JAXB-annotated classes indexed by the names of
+   * interfaces they implement
    *
    * @exception IOException if an error occurs during the processing
    * of class files
    */
-  public Map<String, String> scan() throws IOException {
+  public BindingTable scan() throws IOException {
     final SortedMap<String, String> bindings = new TreeMap<String, String>();
     final Set<URI> uris = this.getURIs();
     if (uris != null && !uris.isEmpty()) {
+      if (this.getShardCount() > 1 && uris.size() > 1) {
+        this.scanSharded(uris, bindings);
+      } else {
+        this.scan(uris, bindings);
+      }
+    }
+    final BindingTable returnValue = BindingTable.of(bindings);
+    final File bindingIndexFile = this.getBindingIndexFile();
+    if (bindingIndexFile != null) {
+      MappedBindingIndex.write(returnValue, bindingIndexFile);
+    }
+    return returnValue;
+  }
 
-      final ClassFileTrackingAnnotationDB db = new ClassFileTrackingAnnotationDB(this.getIgnoredPackages()) {        
-          private static final long serialVersionUID = 1L;
-          @Override
-          protected final void populate(final Annotation[] annotations, final ClassFile cf) {
-            if (annotations != null && annotations.length > 0 && cf != null && !cf.isInterface()) {
-              final BindingFilter bindingFilter = getBindingFilter();            
-              for (final Annotation a : annotations) {
-                if (a != null) {
-                  final String typeName = a.getTypeName();
-                  assert typeName != null;
-                  if (typeName.startsWith("javax.xml.bind.annotation.")) {
-                    // OK, we have a class with JAXB annotations on it.
-                    // Get its interfaces efficiently.
-                    boolean atLeastOneInterfaceProcessed = false;
-                    final String[] interfaces = cf.getInterfaces();
-                    if (interfaces != null && interfaces.length > 0) {
-                      for (final String interfaceName : interfaces) {
-                        assert interfaceName != null;
-                        final String implementationClassName = cf.getName();
-                        if (bindingFilter == null || bindingFilter.accept(interfaceName, implementationClassName)) {
-                          atLeastOneInterfaceProcessed = true;
-                          if (bindings.containsKey(interfaceName)) {
-                            // TODO: warn
-                          }
-                          bindings.put(interfaceName, implementationClassName);
+  /**
+   * Scans the supplied {@link URI}s in this JVM and places the
+   * results in the supplied {@link Map}.
+   */
+  private final void scan(final Set<URI> uris, final Map<String, String> bindings) throws IOException {
+    assert uris != null;
+    assert bindings != null;
+    final ClassFileTrackingAnnotationDB db = new ClassFileTrackingAnnotationDB(this.getIgnoredPackages()) {
+        private static final long serialVersionUID = 1L;
+        @Override
+        protected final void populate(final Annotation[] annotations, final ClassFile cf) {
+          if (annotations != null && annotations.length > 0 && cf != null && !cf.isInterface()) {
+            final BindingFilter bindingFilter = getBindingFilter();            
+            for (final Annotation a : annotations) {
+              if (a != null) {
+                final String typeName = a.getTypeName();
+                assert typeName != null;
+                if (typeName.startsWith("javax.xml.bind.annotation.")) {
+                  // OK, we have a class with JAXB annotations on it.
+                  // Get its interfaces efficiently.
+                  boolean atLeastOneInterfaceProcessed = false;
+                  final String[] interfaces = cf.getInterfaces();
+                  if (interfaces != null && interfaces.length > 0) {
+                    for (final String interfaceName : interfaces) {
+                      assert interfaceName != null;
+                      final String implementationClassName = cf.getName();
+                      if (bindingFilter == null || bindingFilter.accept(interfaceName, implementationClassName)) {
+                        atLeastOneInterfaceProcessed = true;
+                        if (bindings.containsKey(interfaceName)) {
+                          // TODO: warn
                         }
+                        bindings.put(interfaceName, implementationClassName);
                       }
                     }
-                    if (atLeastOneInterfaceProcessed) {
-                      break; // out of the annotation processing loop
-                    }
+                  }
+                  if (atLeastOneInterfaceProcessed) {
+                    break; // out of the annotation processing loop
                   }
                 }
               }
             }
           }
-        };
-
-      try {
-        // Scans the URIs and places the results in the bindings map
-        db.scanArchives(uris);
-      } catch (final IllegalStateException unwrapMe) {
-        final Throwable cause = unwrapMe.getCause();
-        if (cause instanceof IOException) {
-          throw (IOException)cause;
-        } else {
-          throw unwrapMe;
+        }
+      };
+
+    try {
+      // Scans the URIs and places the results in the bindings map
+      db.scanArchives(uris);
+    } catch (final IllegalStateException unwrapMe) {
+      final Throwable cause = unwrapMe.getCause();
+      if (cause instanceof IOException) {
+        throw (IOException)cause;
+      } else {
+        throw unwrapMe;
+      }
+    }
+  }
+
+  /**
+   * Splits the supplied {@link URI}s into {@linkplain
+   * #getShardCount() shards}, scans each shard in a separate local
+   * JVM and merges the partial results into the supplied {@link
+   * Map}.
+   *
+   * <p>Shards are contiguous runs of the supplied {@link Set}'s
+   * iteration order and are merged in that same order, so the result
+   * is the same as that of a single-JVM scan.  Each worker writes its
+   * partial result in {@link MappedBindingIndex} format, which is
+   * compact and deterministic.</p>
+   */
+  private final void scanSharded(final Set<URI> uris, final Map<String, String> bindings) throws IOException {
+    assert uris != null;
+    assert bindings != null;
+    final List<URI> uriList = new ArrayList<URI>(uris);
+    final int shardCount = Math.min(this.getShardCount(), uriList.size());
+    final int shardSize = (uriList.size() + shardCount - 1) / shardCount;
+    final List<File> temporaryFiles = new ArrayList<File>();
+    final List<File> partialResults = new ArrayList<File>();
+    final List<Process> workers = new ArrayList<Process>();
+    try {
+      for (int i = 0; i < uriList.size(); i += shardSize) {
+        final JAXBElementScanner worker = new JAXBElementScanner();
+        worker.setURIs(new LinkedHashSet<URI>(uriList.subList(i, Math.min(i + shardSize, uriList.size()))));
+        worker.setIgnoredPackages(this.getIgnoredPackages() == null ? null : new LinkedHashSet<String>(this.getIgnoredPackages()));
+        worker.setBindingFilter(this.getBindingFilter());
+        final File partialResult = File.createTempFile("jaxbshard", ".jxbi");
+        temporaryFiles.add(partialResult);
+        partialResults.add(partialResult);
+        worker.setBindingIndexFile(partialResult);
+
+        final File configuration = File.createTempFile("jaxbshard", ".ser");
+        temporaryFiles.add(configuration);
+        final ObjectOutputStream out = new ObjectOutputStream(new BufferedOutputStream(new FileOutputStream(configuration)));
+        try {
+          out.writeObject(worker);
+        } finally {
+          out.close();
+        }
+
+        final ProcessBuilder processBuilder = new ProcessBuilder(this.getWorkerCommand(configuration));
+        processBuilder.redirectErrorStream(true);
+        processBuilder.redirectOutput(ProcessBuilder.Redirect.INHERIT);
+        workers.add(processBuilder.start());
+      }
+      for (int i = 0; i < workers.size(); i++) {
+        final int exitValue;
+        try {
+          exitValue = workers.get(i).waitFor();
+        } catch (final InterruptedException interrupted) {
+          Thread.currentThread().interrupt();
+          throw new InterruptedIOException("Interrupted while waiting for shard " + i);
+        }
+        if (exitValue != 0) {
+          throw new IOException("Shard " + i + " failed with exit value " + exitValue);
+        }
+      }
+      for (final File partialResult : partialResults) {
+        bindings.putAll(MappedBindingIndex.open(partialResult));
+      }
+    } finally {
+      for (final Process worker : workers) {
+        worker.destroy();
+      }
+      for (final File temporaryFile : temporaryFiles) {
+        if (!temporaryFile.delete()) {
+          temporaryFile.deleteOnExit();
         }
       }
     }
-    return bindings;
+  }
+
+  /**
+   * Returns the command line used to launch a local worker JVM that
+   * will scan one shard.
+   *
+   * <p>The default implementation runs the current JVM's {@code java}
+   * executable with the current {@code java.class.path}, invoking
+   * the {@link #main(String[])} method of this class.  Override this
+   * method to supply JVM options or a different class path.</p>
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param configuration a file containing a serialized {@link
+   * JAXBElementScanner} to be supplied to the worker; will not be
+   * {@code null}
+   *
+   * @return a non-{@code null} {@link List} of command line
+   * arguments
+   */
+  protected List<String> getWorkerCommand(final File configuration) {
+    final List<String> command = new ArrayList<String>();
+    command.add(new File(new File(System.getProperty("java.home"), "bin"), "java").getPath());
+    command.add("-cp");
+    command.add(System.getProperty("java.class.path"));
+    command.add(JAXBElementScanner.class.getName());
+    command.add(configuration.getAbsolutePath());
+    return command;
+  }
+
+  /**
+   * Runs a shard worker: deserializes the {@link JAXBElementScanner}
+   * stored in the file named by the sole argument and {@linkplain
+   * #scan() scans} with it, which writes its result to its
+   * {@linkplain #getBindingIndexFile() binding index file}.
+   *
+   * @param args the command line arguments; must contain exactly one
+   * element naming a file containing a serialized {@link
+   * JAXBElementScanner}
+   *
+   * @exception Exception if an error occurs
+   */
+  public static final void main(final String[] args) throws Exception {
+    if (args == null || args.length != 1) {
+      throw new IllegalArgumentException("Usage: " + JAXBElementScanner.class.getName() + " <serialized scanner file>");
+    }
+    final ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(args[0])));
+    final JAXBElementScanner scanner;
+    try {
+      scanner = (JAXBElementScanner)in.readObject();
+    } finally {
+      in.close();
+    }
+    scanner.scan();
+  }
+
+  /**
+   * Returns the number of local worker JVMs across which the {@link
+   * #scan()} method will spread its {@linkplain #getURIs() URIs}.
+   *
+   * @return the shard count; {@code 1} or less means scanning happens
+   * in this JVM
+   *
+   * @see #setShardCount(int)
+   */
+  public int getShardCount() {
+    return this.shardCount;
+  }
+
+  /**
+   * Sets the number of local worker JVMs across which the {@link
+   * #scan()} method will spread its {@linkplain #getURIs() URIs}.
+   *
+   * <p>When sharding, the {@linkplain #getBindingFilter() binding
+   * filter}, if any, must be {@link Serializable}.</p>
+   *
+   * @param shardCount the shard count; {@code 1} or less means
+   * scanning happens in this JVM
+   *
+   * @see #getShardCount()
+   */
+  public void setShardCount(final int shardCount) {
+    this.shardCount = shardCount;
   }
 
   public BindingFilter getBindingFilter() {
@@ -171,6 +364,37 @@ public class JAXBElementScanner implements Serializable {
     this.bindingFilter = bindingFilter;
   }
 
+  /**
+   * Returns the file to which the {@link #scan()} method will write
+   * its results in {@link MappedBindingIndex} format.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the binding index file, or {@code null}
+   *
+   * @see #setBindingIndexFile(File)
+   *
+   * @see MappedBindingIndex
+   */
+  public File getBindingIndexFile() {
+    return this.bindingIndexFile;
+  }
+
+  /**
+   * Sets the file to which the {@link #scan()} method will write its
+   * results in {@link MappedBindingIndex} format.
+   *
+   * @param bindingIndexFile the binding index file; may be {@code
+   * null} in which case no index will be written
+   *
+   * @see #getBindingIndexFile()
+   *
+   * @see MappedBindingIndex#open(File)
+   */
+  public void setBindingIndexFile(final File bindingIndexFile) {
+    this.bindingIndexFile = bindingIndexFile;
+  }
+
   public Set<URI> getURIs() {
     return this.uris;
   }
@@ -0,0 +1,795 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TimeZone;
+
+import java.util.concurrent.TimeUnit;
+
+import java.util.jar.JarFile;
+
+import java.util.zip.CRC32;
+import java.util.zip.Deflater;
+import java.util.zip.ZipException;
+
+/**
+ * Rewrites jar (and zip) files in a single pass, replacing or adding
+ * selected entries.
+ *
+ * <p>Entries that are not replaced are copied byte for byte, still
+ * compressed, together with their original local headers, CRCs and
+ * central directory records, so rewriting a large archive to change
+ * a handful of class files costs little more than copying it.  Only
+ * the replaced entries are compressed.  The order of entries and the
+ * archive comment are preserved; added entries follow the existing
+ * ones.</p>
+ *
+ * <p>When a jar file is rewritten in place, replacements whose
+ * contents are identical to the entries they would replace&mdash;as
+ * determined first by size and CRC from the central directory and
+ * then by comparing the entries' contents&mdash;are ignored, and if
+ * every replacement is ignored the jar file is not touched at
+ * all.</p>
+ *
+ * <p>Archives may also be rewritten {@linkplain #rewriteReproducibly(File,
+ * Map, boolean, long) reproducibly}: entries are sorted, every entry
+ * is stamped with the same time, and extra fields are dropped, so
+ * that rewriting the same archive with the same replacements always
+ * yields the same bytes.  Compressed data is still copied without
+ * being recompressed.</p>
+ *
+ * <p>Archives are read through a {@link MappedArchive}, privately
+ * and without any {@link java.net.JarURLConnection} caching, and
+ * ZIP64 archives are supported both when read and when written: the
+ * ZIP64 records and extra fields that a rewritten archive needs are
+ * added whenever its sizes, offsets or entry count require them.</p>
+ *
+ * <p>Because unchanged entries are copied verbatim, a signed jar's
+ * signatures will no longer verify if any of its signed entries are
+ * replaced.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassBinder#recordModifications(Iterable, File)
+ */
+public final class JarRewriter {
+
+  private static final int UTF8_FLAG = 0x0800;
+
+  /**
+   * The version needed to extract archives or entries that use ZIP64
+   * extensions.
+   */
+  private static final int ZIP64_VERSION = 45;
+
+  /**
+   * The time, in milliseconds since the epoch, with which entries are
+   * stamped when archives are rewritten {@linkplain
+   * #rewriteReproducibly(File, Map, boolean, long) reproducibly} and
+   * the {@code SOURCE_DATE_EPOCH} environment variable is not set:
+   * midnight UTC on January 1, 1980, the earliest time a zip file can
+   * record.
+   *
+   * @see #getReproducibleTime()
+   */
+  public static final long DEFAULT_REPRODUCIBLE_TIME = 315532800000L;
+
+  private JarRewriter() {
+    super();
+  }
+
+  /**
+   * Rewrites the supplied jar file in place, replacing or adding the
+   * entries named by the keys of the supplied {@link Map} with the
+   * corresponding contents.
+   *
+   * <p>This method behaves exactly as though the {@link
+   * #rewrite(File, Map, boolean)} method were called with {@code
+   * false} as its last argument.</p>
+   *
+   * @param jarFile the jar file to rewrite; must not be {@code null}
+   *
+   * @param replacements entry contents indexed by entry name (e.g.
+   * {@code com/foo/Bar.class}); must not be {@code null}
+   *
+   * @return a non-{@code null} {@link Set} of the names of the
+   * entries that were actually replaced or added
+   *
+   * @exception IllegalArgumentException if either parameter is {@code
+   * null}
+   *
+   * @exception IOException if the jar file could not be read or
+   * written
+   *
+   * @see #rewrite(File, Map, boolean)
+   */
+  public static final Set<String> rewrite(final File jarFile, final Map<String, byte[]> replacements) throws IOException {
+    return rewrite(jarFile, replacements, false);
+  }
+
+  /**
+   * Rewrites the supplied jar file in place, replacing or adding the
+   * entries named by the keys of the supplied {@link Map} with the
+   * corresponding contents.
+   *
+   * <p>The new archive is written to a temporary file in the same
+   * directory, optionally forced to storage, and then atomically
+   * moved over the original, so a reader or a crash never observes a
+   * partially written jar file.</p>
+   *
+   * <p>Replacements identical to the entries they would replace are
+   * ignored; if every replacement is ignored, the jar file is not
+   * rewritten.</p>
+   *
+   * <p>Entries with duplicate names, as found in some shaded jar
+   * files, are all kept; a replacement replaces every entry with its
+   * name.</p>
+   *
+   * @param jarFile the jar file to rewrite; must not be {@code null}
+   *
+   * @param replacements entry contents indexed by entry name (e.g.
+   * {@code com/foo/Bar.class}); must not be {@code null}
+   *
+   * @param force whether the new jar file should be forced to storage
+   * before it replaces the original
+   *
+   * @return a non-{@code null} {@link Set} of the names of the
+   * entries that were actually replaced or added; if it is empty, the
+   * jar file was not rewritten
+   *
+   * @exception IllegalArgumentException if either {@code jarFile} or
+   * {@code replacements} is {@code null}
+   *
+   * @exception IOException if the jar file could not be read or
+   * written, in which case it is left untouched
+   */
+  public static final Set<String> rewrite(final File jarFile, final Map<String, byte[]> replacements, final boolean force) throws IOException {
+    return rewrite(jarFile, replacements, force, -1L);
+  }
+
+  /**
+   * Rewrites the supplied jar file in place, exactly as the {@link
+   * #rewrite(File, Map, boolean)} method does, except that the new
+   * archive's entries are sorted by name, with {@code META-INF/} and
+   * the manifest first; every entry is stamped with the supplied
+   * time; and extra fields are dropped.
+   *
+   * <p>A jar file that is not rewritten because none of the
+   * replacements would change it is left as it is.</p>
+   *
+   * @param jarFile the jar file to rewrite; must not be {@code null}
+   *
+   * @param replacements entry contents indexed by entry name (e.g.
+   * {@code com/foo/Bar.class}); must not be {@code null}
+   *
+   * @param force whether the new jar file should be forced to storage
+   * before it replaces the original
+   *
+   * @param time the time, in milliseconds since the epoch, with which
+   * to stamp every entry; must not be negative; usually the return
+   * value of the {@link #getReproducibleTime()} method
+   *
+   * @return a non-{@code null} {@link Set} of the names of the
+   * entries that were actually replaced or added; if it is empty, the
+   * jar file was not rewritten
+   *
+   * @exception IllegalArgumentException if either {@code jarFile} or
+   * {@code replacements} is {@code null}, or if {@code time} is
+   * negative
+   *
+   * @exception IOException if the jar file could not be read or
+   * written, in which case it is left untouched
+   */
+  public static final Set<String> rewriteReproducibly(final File jarFile, final Map<String, byte[]> replacements, final boolean force, final long time) throws IOException {
+    if (time < 0L) {
+      throw new IllegalArgumentException("time < 0: " + time);
+    }
+    return rewrite(jarFile, replacements, force, time);
+  }
+
+  private static final Set<String> rewrite(final File jarFile, final Map<String, byte[]> replacements, final boolean force, final long reproducibleTime) throws IOException {
+    if (jarFile == null) {
+      throw new IllegalArgumentException("jarFile", new NullPointerException("jarFile"));
+    }
+    if (replacements == null) {
+      throw new IllegalArgumentException("replacements", new NullPointerException("replacements"));
+    }
+    final MappedArchive source = new MappedArchive(jarFile);
+    final Map<String, byte[]> changes;
+    try {
+      changes = getChanges(source, replacements);
+      if (!changes.isEmpty()) {
+        AtomicFileReplacement.replace(jarFile.toPath(), new AtomicFileReplacement.Content() {
+            @Override
+            public final void writeTo(final FileChannel target) throws IOException {
+              rewrite(source, changes, target, reproducibleTime);
+            }
+          }, force);
+      }
+    } finally {
+      source.close();
+    }
+    return Collections.unmodifiableSet(changes.keySet());
+  }
+
+  /**
+   * Returns those of the supplied replacements whose contents differ
+   * from those of the entries they would replace.
+   */
+  private static final Map<String, byte[]> getChanges(final MappedArchive source, final Map<String, byte[]> replacements) throws IOException {
+    assert source != null;
+    assert replacements != null;
+    final Map<String, byte[]> changes = new LinkedHashMap<String, byte[]>();
+    for (final Entry<String, byte[]> replacement : replacements.entrySet()) {
+      final String name = replacement.getKey();
+      final byte[] contents = replacement.getValue();
+      if (name == null || contents == null) {
+        throw new IllegalArgumentException("replacements", new NullPointerException(name == null ? "name" : name));
+      }
+      if (!isUnchanged(source, name, contents)) {
+        changes.put(name, contents);
+      }
+    }
+    return changes;
+  }
+
+  private static final boolean isUnchanged(final MappedArchive source, final String name, final byte[] contents) throws IOException {
+    final MappedArchive.Entry entry = source.getEntry(name);
+    if (entry == null || source.isDuplicated(name) || entry.isDirectory() || entry.getSize() != contents.length) {
+      return false;
+    }
+    final CRC32 crc32 = new CRC32();
+    crc32.update(contents);
+    // If the CRCs match, make sure.
+    return entry.getCrc() == crc32.getValue() && Arrays.equals(source.read(entry), contents);
+  }
+
+  /**
+   * Writes a copy of the supplied jar file to the supplied {@link
+   * OutputStream}, replacing or adding the entries named by the keys
+   * of the supplied {@link Map} with the corresponding contents.
+   *
+   * <p>The supplied {@link OutputStream} is not closed.</p>
+   *
+   * @param source the jar file to copy; must not be {@code null}
+   *
+   * @param replacements entry contents indexed by entry name (e.g.
+   * {@code com/foo/Bar.class}); must not be {@code null}
+   *
+   * @param out the {@link OutputStream} to write to; must not be
+   * {@code null}
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null}
+   *
+   * @exception ZipException if {@code source} is not a well-formed
+   * archive
+   *
+   * @exception IOException if {@code source} could not be read or
+   * {@code out} could not be written
+   */
+  public static final void rewrite(final File source, final Map<String, byte[]> replacements, final OutputStream out) throws IOException {
+    rewrite(source, replacements, out, -1L);
+  }
+
+  /**
+   * Writes a reproducible copy of the supplied jar file to the
+   * supplied {@link OutputStream}, exactly as the {@link
+   * #rewrite(File, Map, OutputStream)} method does, except that the
+   * copy's entries are sorted by name, with {@code META-INF/} and the
+   * manifest first; every entry is stamped with the supplied time;
+   * and extra fields are dropped.
+   *
+   * <p>The supplied {@link OutputStream} is not closed.</p>
+   *
+   * @param source the jar file to copy; must not be {@code null}
+   *
+   * @param replacements entry contents indexed by entry name (e.g.
+   * {@code com/foo/Bar.class}); must not be {@code null}
+   *
+   * @param out the {@link OutputStream} to write to; must not be
+   * {@code null}
+   *
+   * @param time the time, in milliseconds since the epoch, with which
+   * to stamp every entry; must not be negative; usually the return
+   * value of the {@link #getReproducibleTime()} method
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null}, or if {@code time} is negative
+   *
+   * @exception ZipException if {@code source} is not a well-formed
+   * archive
+   *
+   * @exception IOException if {@code source} could not be read or
+   * {@code out} could not be written
+   */
+  public static final void rewriteReproducibly(final File source, final Map<String, byte[]> replacements, final OutputStream out, final long time) throws IOException {
+    if (time < 0L) {
+      throw new IllegalArgumentException("time < 0: " + time);
+    }
+    rewrite(source, replacements, out, time);
+  }
+
+  /**
+   * Returns the time, in milliseconds since the epoch, with which
+   * entries should be stamped when archives are written reproducibly.
+   *
+   * <p>This is the value of the <a
+   * href="https://reproducible-builds.org/specs/source-date-epoch/">{@code
+   * SOURCE_DATE_EPOCH}</a> environment variable, which is expressed
+   * in seconds, if it is set, and {@link #DEFAULT_REPRODUCIBLE_TIME}
+   * otherwise.</p>
+   *
+   * @return a non-negative time in milliseconds since the epoch
+   *
+   * @exception IllegalStateException if {@code SOURCE_DATE_EPOCH} is
+   * set but is not a non-negative integer
+   */
+  public static final long getReproducibleTime() {
+    final String sourceDateEpoch = System.getenv("SOURCE_DATE_EPOCH");
+    if (sourceDateEpoch == null || sourceDateEpoch.trim().isEmpty()) {
+      return DEFAULT_REPRODUCIBLE_TIME;
+    }
+    final long seconds;
+    try {
+      seconds = Long.parseLong(sourceDateEpoch.trim());
+    } catch (final NumberFormatException e) {
+      throw new IllegalStateException("SOURCE_DATE_EPOCH: " + sourceDateEpoch, e);
+    }
+    if (seconds < 0L) {
+      throw new IllegalStateException("SOURCE_DATE_EPOCH: " + sourceDateEpoch);
+    }
+    return TimeUnit.SECONDS.toMillis(seconds);
+  }
+
+  private static final void rewrite(final File source, final Map<String, byte[]> replacements, final OutputStream out, final long reproducibleTime) throws IOException {
+    if (source == null) {
+      throw new IllegalArgumentException("source", new NullPointerException("source"));
+    }
+    if (replacements == null) {
+      throw new IllegalArgumentException("replacements", new NullPointerException("replacements"));
+    }
+    if (out == null) {
+      throw new IllegalArgumentException("out", new NullPointerException("out"));
+    }
+    final MappedArchive archive = new MappedArchive(source);
+    try {
+      final WritableByteChannel target;
+      if (out instanceof FileOutputStream) {
+        target = ((FileOutputStream)out).getChannel();
+      } else {
+        target = Channels.newChannel(out);
+      }
+      rewrite(archive, replacements, target, reproducibleTime);
+      out.flush();
+    } finally {
+      archive.close();
+    }
+  }
+
+  private static final void rewrite(final MappedArchive source, final Map<String, byte[]> replacements, final WritableByteChannel target, final long reproducibleTime) throws IOException {
+    assert source != null;
+    assert replacements != null;
+    assert target != null;
+    final boolean reproducible = reproducibleTime >= 0L;
+    final FileChannel sourceChannel = source.getChannel();
+
+    // Work out what will be written, and in what order.
+    final Map<String, byte[]> remaining = new LinkedHashMap<String, byte[]>(replacements);
+    final List<MappedArchive.Entry> entries = source.getEntries();
+    final List<Item> items = new ArrayList<Item>(entries.size() + remaining.size());
+    for (final MappedArchive.Entry entry : entries) {
+      // Every entry with a replaced name is replaced, so it makes no
+      // difference which duplicate a reader picks.
+      final String name = entry.getName();
+      items.add(new Item(name, entry.getNameBytes(), entry, replacements.get(name)));
+      remaining.remove(name);
+    }
+    for (final Entry<String, byte[]> entry : remaining.entrySet()) {
+      final String name = entry.getKey();
+      if (name == null || entry.getValue() == null) {
+        throw new IllegalArgumentException("replacements", new NullPointerException(name == null ? "name" : name));
+      }
+      items.add(new Item(name, name.getBytes(StandardCharsets.UTF_8), null, entry.getValue()));
+    }
+    if (reproducible) {
+      Collections.sort(items);
+    }
+    final int[] dosTime = reproducible ? dosTime(reproducibleTime, TimeZone.getTimeZone("UTC")) : dosTime(System.currentTimeMillis(), TimeZone.getDefault());
+
+    final List<ByteBuffer> newCentralRecords = new ArrayList<ByteBuffer>(items.size());
+    long position = 0L;
+    for (final Item item : items) {
+      final MappedArchive.Entry entry = item.entry;
+      final byte[] replacement = item.replacement;
+      final ByteBuffer header;
+      final byte[] extra;
+      final byte[] comment;
+      if (entry == null) {
+        header = ByteBuffer.allocate(MappedArchive.CENTRAL_HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.putInt(0, MappedArchive.CENTRAL_HEADER_SIGNATURE);
+        header.putShort(4, (short)20); // version made by
+        header.putShort(8, (short)UTF8_FLAG);
+        extra = new byte[0];
+        comment = new byte[0];
+      } else {
+        final ByteBuffer record = entry.getRecord();
+        final int nameLength = record.getShort(28) & 0xFFFF;
+        final int extraLength = record.getShort(30) & 0xFFFF;
+        header = copy(record, 0, MappedArchive.CENTRAL_HEADER_SIZE);
+        extra = reproducible ? new byte[0] : extraWithout(record, MappedArchive.CENTRAL_HEADER_SIZE + nameLength, extraLength, MappedArchive.ZIP64_EXTRA_TAG);
+        comment = new byte[record.getShort(32) & 0xFFFF];
+        ((ByteBuffer)record.duplicate().position(MappedArchive.CENTRAL_HEADER_SIZE + nameLength + extraLength)).get(comment);
+      }
+      if (reproducible || entry == null) {
+        header.putShort(12, (short)dosTime[0]);
+        header.putShort(14, (short)dosTime[1]);
+      }
+
+      final long localHeaderOffset = position;
+      final long compressedSize;
+      final long size;
+      if (replacement == null) {
+        assert entry != null;
+        compressedSize = entry.getCompressedSize();
+        size = entry.getSize();
+        // Copy the compressed data and any data descriptor verbatim,
+        // and, unless the archive is being made reproducible, the
+        // local header too.
+        final ByteBuffer localHeader = source.readLocalHeader(entry);
+        final long dataLength = compressedSize + source.getDataDescriptorLength(entry, localHeader);
+        if (reproducible) {
+          final int localNameLength = localHeader.getShort(26) & 0xFFFF;
+          final int localExtraLength = localHeader.getShort(28) & 0xFFFF;
+          final int zip64Offset = MappedArchive.findExtra(localHeader, MappedArchive.LOCAL_HEADER_SIZE + localNameLength, localExtraLength, MappedArchive.ZIP64_EXTRA_TAG);
+          // Keep only the ZIP64 block, without which the local
+          // header's sizes would be unreadable.
+          final int zip64Length = zip64Offset < 0 ? 0 : 4 + (localHeader.getShort(zip64Offset - 2) & 0xFFFF);
+          final ByteBuffer newLocalHeader = ByteBuffer.allocate(MappedArchive.LOCAL_HEADER_SIZE + localNameLength + zip64Length).order(ByteOrder.LITTLE_ENDIAN);
+          newLocalHeader.put(copy(localHeader, 0, MappedArchive.LOCAL_HEADER_SIZE + localNameLength));
+          if (zip64Offset >= 0) {
+            newLocalHeader.put(copy(localHeader, zip64Offset - 4, zip64Length));
+          }
+          newLocalHeader.flip();
+          newLocalHeader.putShort(10, (short)dosTime[0]);
+          newLocalHeader.putShort(12, (short)dosTime[1]);
+          newLocalHeader.putShort(28, (short)zip64Length);
+          write(target, newLocalHeader);
+          position += newLocalHeader.capacity();
+        } else {
+          write(target, localHeader);
+          position += localHeader.capacity();
+        }
+        transfer(sourceChannel, entry.getLocalHeaderOffset() + localHeader.capacity(), dataLength, target);
+        position += dataLength;
+      } else {
+        final Deflated deflated = new Deflated(replacement);
+        final int flags = (header.getShort(8) & 0xFFFF) & ~MappedArchive.DATA_DESCRIPTOR_FLAG;
+        header.putShort(8, (short)flags);
+        header.putShort(10, (short)MappedArchive.DEFLATED);
+        header.putInt(16, deflated.crc);
+        final ByteBuffer localHeader = localHeader(item.nameBytes, flags & UTF8_FLAG, header.getShort(12), header.getShort(14), deflated);
+        write(target, localHeader);
+        write(target, ByteBuffer.wrap(deflated.data, 0, deflated.compressedSize));
+        compressedSize = deflated.compressedSize;
+        size = replacement.length;
+        position += localHeader.capacity() + deflated.compressedSize;
+      }
+      newCentralRecords.add(centralRecord(header, item.nameBytes, extra, comment, compressedSize, size, localHeaderOffset));
+    }
+
+    // Write the new central directory and end records, preserving the
+    // archive comment.
+    final long newCentralDirectoryOffset = position;
+    long newCentralDirectorySize = 0L;
+    for (final ByteBuffer record : newCentralRecords) {
+      newCentralDirectorySize += record.remaining();
+      write(target, record);
+    }
+    final long entryCount = newCentralRecords.size();
+    final boolean zip64 = entryCount >= 0xFFFFL || newCentralDirectorySize >= MappedArchive.ZIP64_MAGIC || newCentralDirectoryOffset >= MappedArchive.ZIP64_MAGIC;
+    if (zip64) {
+      final long zip64EndOffset = newCentralDirectoryOffset + newCentralDirectorySize;
+      final ByteBuffer zip64End = ByteBuffer.allocate(MappedArchive.ZIP64_END_SIZE + MappedArchive.ZIP64_LOCATOR_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+      zip64End.putInt(MappedArchive.ZIP64_END_SIGNATURE);
+      zip64End.putLong(MappedArchive.ZIP64_END_SIZE - 12); // size of the rest of the record
+      zip64End.putShort((short)ZIP64_VERSION); // version made by
+      zip64End.putShort((short)ZIP64_VERSION); // version needed to extract
+      zip64End.putInt(0); // disk number
+      zip64End.putInt(0); // disk with the central directory
+      zip64End.putLong(entryCount); // entries on this disk
+      zip64End.putLong(entryCount);
+      zip64End.putLong(newCentralDirectorySize);
+      zip64End.putLong(newCentralDirectoryOffset);
+      zip64End.putInt(MappedArchive.ZIP64_LOCATOR_SIGNATURE);
+      zip64End.putInt(0); // disk with the ZIP64 end record
+      zip64End.putLong(zip64EndOffset);
+      zip64End.putInt(1); // total disks
+      zip64End.flip();
+      write(target, zip64End);
+    }
+    final byte[] archiveComment = source.getComment();
+    final ByteBuffer newEnd = ByteBuffer.allocate(MappedArchive.END_SIZE + archiveComment.length).order(ByteOrder.LITTLE_ENDIAN);
+    newEnd.putInt(MappedArchive.END_SIGNATURE);
+    newEnd.putShort((short)0); // disk number
+    newEnd.putShort((short)0); // disk with the central directory
+    newEnd.putShort((short)Math.min(entryCount, 0xFFFFL));
+    newEnd.putShort((short)Math.min(entryCount, 0xFFFFL));
+    newEnd.putInt((int)Math.min(newCentralDirectorySize, MappedArchive.ZIP64_MAGIC));
+    newEnd.putInt((int)Math.min(newCentralDirectoryOffset, MappedArchive.ZIP64_MAGIC));
+    newEnd.putShort((short)archiveComment.length);
+    newEnd.put(archiveComment);
+    newEnd.flip();
+    write(target, newEnd);
+  }
+
+  /**
+   * Assembles a central directory record from the supplied fixed-size
+   * header, whose signature, versions, flags, method, time, date, CRC
+   * and attributes are used as is, and the supplied values, adding a
+   * ZIP64 extra field block if any of the sizes or the offset does not
+   * fit in 32 bits.
+   */
+  private static final ByteBuffer centralRecord(final ByteBuffer header, final byte[] nameBytes, final byte[] extra, final byte[] comment, final long compressedSize, final long size, final long localHeaderOffset) {
+    final ByteBuffer zip64 = ByteBuffer.allocate(28).order(ByteOrder.LITTLE_ENDIAN);
+    zip64.putShort((short)MappedArchive.ZIP64_EXTRA_TAG);
+    zip64.putShort((short)0); // length, patched below
+    // The order of these values is fixed by the format.
+    if (size >= MappedArchive.ZIP64_MAGIC) {
+      zip64.putLong(size);
+    }
+    if (compressedSize >= MappedArchive.ZIP64_MAGIC) {
+      zip64.putLong(compressedSize);
+    }
+    if (localHeaderOffset >= MappedArchive.ZIP64_MAGIC) {
+      zip64.putLong(localHeaderOffset);
+    }
+    zip64.flip();
+    final int zip64Length = zip64.remaining() > 4 ? zip64.remaining() : 0;
+    zip64.putShort(2, (short)(zip64Length - 4));
+
+    final ByteBuffer record = ByteBuffer.allocate(MappedArchive.CENTRAL_HEADER_SIZE + nameBytes.length + extra.length + zip64Length + comment.length).order(ByteOrder.LITTLE_ENDIAN);
+    record.put((ByteBuffer)header.duplicate().rewind());
+    record.put(nameBytes);
+    if (zip64Length > 0) {
+      record.put(zip64);
+    }
+    record.put(extra);
+    record.put(comment);
+    record.flip();
+    final int versionNeeded = record.getShort(6) & 0xFFFF;
+    record.putShort(6, (short)Math.max(versionNeeded, zip64Length > 0 ? ZIP64_VERSION : 20));
+    record.putInt(20, (int)Math.min(compressedSize, MappedArchive.ZIP64_MAGIC));
+    record.putInt(24, (int)Math.min(size, MappedArchive.ZIP64_MAGIC));
+    record.putShort(28, (short)nameBytes.length);
+    record.putShort(30, (short)(extra.length + zip64Length));
+    record.putShort(32, (short)comment.length);
+    record.putInt(42, (int)Math.min(localHeaderOffset, MappedArchive.ZIP64_MAGIC));
+    return record;
+  }
+
+  /**
+   * Returns the supplied extra field without the block, if any, that
+   * has the supplied tag.
+   */
+  private static final byte[] extraWithout(final ByteBuffer buffer, final int extraOffset, final int extraLength, final int tag) throws ZipException {
+    final ByteBuffer returnValue = ByteBuffer.allocate(extraLength);
+    int offset = extraOffset;
+    final int limit = extraOffset + extraLength;
+    while (offset + 4 <= limit) {
+      final int blockTag = buffer.getShort(offset) & 0xFFFF;
+      final int blockLength = 4 + (buffer.getShort(offset + 2) & 0xFFFF);
+      if (offset + blockLength > limit) {
+        throw new ZipException("Bad extra field");
+      }
+      if (blockTag != tag) {
+        returnValue.put(copy(buffer, offset, blockLength));
+      }
+      offset += blockLength;
+    }
+    final byte[] bytes = new byte[returnValue.position()];
+    returnValue.flip();
+    returnValue.get(bytes);
+    return bytes;
+  }
+
+  private static final ByteBuffer localHeader(final byte[] nameBytes, final int flags, final short time, final short date, final Deflated deflated) {
+    final ByteBuffer header = ByteBuffer.allocate(MappedArchive.LOCAL_HEADER_SIZE + nameBytes.length).order(ByteOrder.LITTLE_ENDIAN);
+    header.putInt(MappedArchive.LOCAL_HEADER_SIGNATURE);
+    header.putShort((short)20); // version needed to extract
+    header.putShort((short)flags);
+    header.putShort((short)MappedArchive.DEFLATED);
+    header.putShort(time);
+    header.putShort(date);
+    header.putInt(deflated.crc);
+    header.putInt(deflated.compressedSize);
+    header.putInt(deflated.uncompressedSize);
+    header.putShort((short)nameBytes.length);
+    header.putShort((short)0); // extra field length
+    header.put(nameBytes);
+    header.flip();
+    return header;
+  }
+
+  private static final int[] dosTime(final long millis, final TimeZone timeZone) {
+    final Calendar calendar = Calendar.getInstance(timeZone);
+    calendar.setTimeInMillis(millis);
+    final int year = Math.max(1980, calendar.get(Calendar.YEAR));
+    final int time = (calendar.get(Calendar.HOUR_OF_DAY) << 11) | (calendar.get(Calendar.MINUTE) << 5) | (calendar.get(Calendar.SECOND) >> 1);
+    final int date = ((year - 1980) << 9) | ((calendar.get(Calendar.MONTH) + 1) << 5) | calendar.get(Calendar.DAY_OF_MONTH);
+    return new int[] { time, date };
+  }
+
+  private static final ByteBuffer copy(final ByteBuffer source, final int offset, final int length) {
+    final ByteBuffer returnValue = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    final ByteBuffer slice = source.duplicate();
+    slice.position(offset);
+    slice.limit(offset + length);
+    returnValue.put(slice);
+    returnValue.flip();
+    return returnValue;
+  }
+
+  private static final void transfer(final FileChannel source, final long position, final long length, final WritableByteChannel target) throws IOException {
+    long transferred = 0L;
+    while (transferred < length) {
+      final long count = source.transferTo(position + transferred, length - transferred, target);
+      if (count <= 0L) {
+        throw new ZipException("Unexpected end of archive");
+      }
+      transferred += count;
+    }
+  }
+
+  private static final void write(final WritableByteChannel target, final ByteBuffer buffer) throws IOException {
+    while (buffer.hasRemaining()) {
+      target.write(buffer);
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An entry to be written: either an existing {@linkplain
+   * MappedArchive.Entry entry} or a new one, and its replacement
+   * contents, if any.
+   *
+   * <p>{@link Item}s sort in the conventional order for jar files:
+   * {@code META-INF/} first, then {@code META-INF/MANIFEST.MF}, then
+   * everything else by name.</p>
+   */
+  private static final class Item implements Comparable<Item> {
+
+    private final String name;
+
+    private final byte[] nameBytes;
+
+    private final MappedArchive.Entry entry;
+
+    private final byte[] replacement;
+
+    private Item(final String name, final byte[] nameBytes, final MappedArchive.Entry entry, final byte[] replacement) {
+      super();
+      assert name != null;
+      assert nameBytes != null;
+      assert entry != null || replacement != null;
+      this.name = name;
+      this.nameBytes = nameBytes;
+      this.entry = entry;
+      this.replacement = replacement;
+    }
+
+    @Override
+    public final int compareTo(final Item other) {
+      final int rank = rank(this.name) - rank(other.name);
+      return rank != 0 ? rank : this.name.compareTo(other.name);
+    }
+
+    private static final int rank(final String name) {
+      if ("META-INF/".equals(name)) {
+        return 0;
+      } else if (JarFile.MANIFEST_NAME.equals(name)) {
+        return 1;
+      } else {
+        return 2;
+      }
+    }
+
+  }
+
+  /**
+   * The raw deflated form of an entry's contents, with its CRC.
+   */
+  private static final class Deflated {
+
+    private final byte[] data;
+
+    private final int compressedSize;
+
+    private final int uncompressedSize;
+
+    private final int crc;
+
+    private Deflated(final byte[] contents) {
+      super();
+      final CRC32 crc32 = new CRC32();
+      crc32.update(contents);
+      this.crc = (int)crc32.getValue();
+      this.uncompressedSize = contents.length;
+      final Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+      try {
+        deflater.setInput(contents);
+        deflater.finish();
+        byte[] data = new byte[Math.max(64, contents.length + contents.length / 1000 + 64)];
+        int size = 0;
+        while (!deflater.finished()) {
+          if (size == data.length) {
+            final byte[] bigger = new byte[data.length * 2];
+            System.arraycopy(data, 0, bigger, 0, size);
+            data = bigger;
+          }
+          size += deflater.deflate(data, size, data.length - size);
+        }
+        this.data = data;
+        this.compressedSize = size;
+      } finally {
+        deflater.end();
+      }
+    }
+
+  }
+
+}
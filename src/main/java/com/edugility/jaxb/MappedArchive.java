@@ -0,0 +1,564 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+import java.util.zip.DataFormatException;
+import java.util.zip.Inflater;
+import java.util.zip.ZipException;
+
+/**
+ * A read-only view of a zip (or jar) archive, including ZIP64
+ * archives, opened on a private {@link FileChannel}.
+ *
+ * <p>The central directory is {@linkplain FileChannel#map(FileChannel.MapMode,
+ * long, long) memory-mapped} and indexed once, when a {@link
+ * MappedArchive} is created.  Entry data is never mapped; it is
+ * either read on demand or {@linkplain
+ * FileChannel#transferTo(long, long, java.nio.channels.WritableByteChannel)
+ * transferred} without passing through the Java heap.</p>
+ *
+ * <p>Unlike the {@link java.util.jar.JarFile} returned by a {@link
+ * java.net.JarURLConnection}, a {@link MappedArchive} is never cached
+ * or shared, so closing it affects no one else.  Note that, as with
+ * any mapped file, the mapping itself is released only when it is
+ * garbage collected; on platforms that forbid replacing mapped files
+ * a replacement may fail until then.</p>
+ *
+ * <p>Instances of this class are not safe for use by multiple
+ * threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see JarRewriter
+ */
+final class MappedArchive implements Closeable {
+
+  static final int LOCAL_HEADER_SIGNATURE = 0x04034b50;
+
+  static final int CENTRAL_HEADER_SIGNATURE = 0x02014b50;
+
+  static final int END_SIGNATURE = 0x06054b50;
+
+  static final int ZIP64_END_SIGNATURE = 0x06064b50;
+
+  static final int ZIP64_LOCATOR_SIGNATURE = 0x07064b50;
+
+  static final int DATA_DESCRIPTOR_SIGNATURE = 0x08074b50;
+
+  static final int LOCAL_HEADER_SIZE = 30;
+
+  static final int CENTRAL_HEADER_SIZE = 46;
+
+  static final int END_SIZE = 22;
+
+  static final int ZIP64_END_SIZE = 56;
+
+  static final int ZIP64_LOCATOR_SIZE = 20;
+
+  static final int ZIP64_EXTRA_TAG = 0x0001;
+
+  static final int DATA_DESCRIPTOR_FLAG = 0x0008;
+
+  static final int STORED = 0;
+
+  static final int DEFLATED = 8;
+
+  /**
+   * The value that a 32-bit size or offset field holds when the real
+   * value is in a ZIP64 extra field.
+   */
+  static final long ZIP64_MAGIC = 0xFFFFFFFFL;
+
+  private final RandomAccessFile file;
+
+  private final FileChannel channel;
+
+  /**
+   * The end of central directory record, including the archive
+   * comment.
+   */
+  private final ByteBuffer end;
+
+  /**
+   * Every central directory record, in order, including any whose
+   * names duplicate those of earlier records.
+   */
+  private final List<Entry> entries;
+
+  /**
+   * The last {@link Entry} with each name, indexed by that name.
+   */
+  private final Map<String, Entry> entriesByName;
+
+  /**
+   * The names of entries that occur more than once.
+   */
+  private final Set<String> duplicateNames;
+
+  /**
+   * Opens and indexes the supplied archive.
+   *
+   * @param file the archive; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if {@code file} is {@code
+   * null}
+   *
+   * @exception ZipException if {@code file} is not a well-formed
+   * archive
+   *
+   * @exception IOException if {@code file} could not be read
+   */
+  MappedArchive(final File file) throws IOException {
+    super();
+    if (file == null) {
+      throw new IllegalArgumentException("file", new NullPointerException("file"));
+    }
+    this.file = new RandomAccessFile(file, "r");
+    boolean success = false;
+    try {
+      this.channel = this.file.getChannel();
+      this.end = readEnd(this.channel);
+      long entryCount = this.end.getShort(10) & 0xFFFF;
+      long centralDirectorySize = this.end.getInt(12) & 0xFFFFFFFFL;
+      long centralDirectoryOffset = this.end.getInt(16) & 0xFFFFFFFFL;
+      final long endOffset = this.channel.size() - this.end.capacity();
+      if (endOffset >= ZIP64_LOCATOR_SIZE) {
+        final ByteBuffer locator = read(this.channel, endOffset - ZIP64_LOCATOR_SIZE, ZIP64_LOCATOR_SIZE);
+        if (locator.getInt(0) == ZIP64_LOCATOR_SIGNATURE) {
+          final ByteBuffer zip64End = read(this.channel, locator.getLong(8), ZIP64_END_SIZE);
+          if (zip64End.getInt(0) != ZIP64_END_SIGNATURE) {
+            throw new ZipException("Bad ZIP64 end of central directory record");
+          }
+          entryCount = zip64End.getLong(32);
+          centralDirectorySize = zip64End.getLong(40);
+          centralDirectoryOffset = zip64End.getLong(48);
+        }
+      }
+      if (centralDirectorySize > Integer.MAX_VALUE || entryCount > Integer.MAX_VALUE) {
+        throw new ZipException("Central directory too large: " + centralDirectorySize + " bytes");
+      }
+      if (centralDirectoryOffset + centralDirectorySize > endOffset) {
+        throw new ZipException("Bad central directory bounds");
+      }
+      final ByteBuffer centralDirectory = this.channel.map(FileChannel.MapMode.READ_ONLY, centralDirectoryOffset, centralDirectorySize).order(ByteOrder.LITTLE_ENDIAN);
+      this.entries = new ArrayList<Entry>((int)entryCount);
+      this.entriesByName = new HashMap<String, Entry>((int)entryCount * 4 / 3 + 1);
+      this.duplicateNames = new HashSet<String>();
+      int recordOffset = 0;
+      for (long i = 0; i < entryCount; i++) {
+        final Entry entry = new Entry(centralDirectory, recordOffset);
+        this.entries.add(entry);
+        if (this.entriesByName.put(entry.getName(), entry) != null) {
+          this.duplicateNames.add(entry.getName());
+        }
+        recordOffset += entry.record.capacity();
+      }
+      success = true;
+    } finally {
+      if (!success) {
+        this.file.close();
+      }
+    }
+  }
+
+  /**
+   * Returns the private {@link FileChannel} through which this {@link
+   * MappedArchive} reads its archive.
+   *
+   * @return a non-{@code null} {@link FileChannel}
+   */
+  final FileChannel getChannel() {
+    return this.channel;
+  }
+
+  /**
+   * Returns the archive comment.
+   *
+   * @return a non-{@code null}, possibly empty, array of bytes
+   */
+  final byte[] getComment() {
+    final byte[] comment = new byte[this.end.capacity() - END_SIZE];
+    ((ByteBuffer)this.end.duplicate().position(END_SIZE)).get(comment);
+    return comment;
+  }
+
+  /**
+   * Returns this archive's entries in central directory order.
+   *
+   * <p>Entries whose names duplicate those of earlier entries, as
+   * are common in shaded archives, are all included.</p>
+   *
+   * @return a non-{@code null}, unmodifiable {@link List}
+   */
+  final List<Entry> getEntries() {
+    return Collections.unmodifiableList(this.entries);
+  }
+
+  /**
+   * Returns the {@link Entry} with the supplied name, or {@code null}
+   * if there is no such entry.
+   *
+   * <p>If several entries have the supplied name, the last of them
+   * is returned, as {@link java.util.zip.ZipFile} would return it.</p>
+   *
+   * @param name the entry name; may be {@code null}
+   *
+   * @return an {@link Entry}, or {@code null}
+   */
+  final Entry getEntry(final String name) {
+    return this.entriesByName.get(name);
+  }
+
+  /**
+   * Returns {@code true} if more than one entry has the supplied
+   * name.
+   *
+   * @param name the entry name; may be {@code null}
+   *
+   * @return {@code true} if the name is duplicated
+   */
+  final boolean isDuplicated(final String name) {
+    return this.duplicateNames.contains(name);
+  }
+
+  /**
+   * Returns the local file header, with its name and extra field, of
+   * the supplied {@link Entry}.
+   *
+   * @param entry the {@link Entry}; must not be {@code null}
+   *
+   * @return a non-{@code null}, little-endian {@link ByteBuffer}
+   *
+   * @exception ZipException if the local header is malformed
+   *
+   * @exception IOException if the local header could not be read
+   */
+  final ByteBuffer readLocalHeader(final Entry entry) throws IOException {
+    final ByteBuffer fixed = read(this.channel, entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE);
+    if (fixed.getInt(0) != LOCAL_HEADER_SIGNATURE) {
+      throw new ZipException("Bad local header for " + entry.getName());
+    }
+    return read(this.channel, entry.getLocalHeaderOffset(), LOCAL_HEADER_SIZE + (fixed.getShort(26) & 0xFFFF) + (fixed.getShort(28) & 0xFFFF));
+  }
+
+  /**
+   * Returns the length of the data descriptor, if any, that follows
+   * the compressed data of the supplied {@link Entry}.
+   *
+   * @param entry the {@link Entry}; must not be {@code null}
+   *
+   * @param localHeader the {@link Entry}'s {@linkplain
+   * #readLocalHeader(Entry) local header}; must not be {@code null}
+   *
+   * @return the length in bytes of the data descriptor, or {@code 0}
+   *
+   * @exception IOException if the data descriptor could not be read
+   */
+  final int getDataDescriptorLength(final Entry entry, final ByteBuffer localHeader) throws IOException {
+    if ((entry.getFlags() & DATA_DESCRIPTOR_FLAG) == 0) {
+      return 0;
+    }
+    final int nameLength = localHeader.getShort(26) & 0xFFFF;
+    final int extraLength = localHeader.getShort(28) & 0xFFFF;
+    final boolean zip64 = findExtra(localHeader, LOCAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_TAG) >= 0;
+    final long dataEnd = entry.getLocalHeaderOffset() + localHeader.capacity() + entry.getCompressedSize();
+    final int length = zip64 ? 20 : 12;
+    return read(this.channel, dataEnd, 4).getInt(0) == DATA_DESCRIPTOR_SIGNATURE ? length + 4 : length;
+  }
+
+  /**
+   * Reads and, if necessary, inflates the contents of the supplied
+   * {@link Entry}.
+   *
+   * @param entry the {@link Entry}; must not be {@code null}
+   *
+   * @return a non-{@code null} array of bytes
+   *
+   * @exception ZipException if the entry is too large to hold in an
+   * array, uses an unsupported compression method or is corrupt
+   *
+   * @exception IOException if the entry could not be read
+   */
+  final byte[] read(final Entry entry) throws IOException {
+    if (entry.getCompressedSize() > Integer.MAX_VALUE || entry.getSize() > Integer.MAX_VALUE) {
+      throw new ZipException("Entry too large: " + entry.getName());
+    }
+    final ByteBuffer localHeader = this.readLocalHeader(entry);
+    final ByteBuffer data = read(this.channel, entry.getLocalHeaderOffset() + localHeader.capacity(), (int)entry.getCompressedSize());
+    final byte[] compressed = data.array();
+    switch (entry.getMethod()) {
+    case STORED:
+      return compressed;
+    case DEFLATED:
+      final byte[] contents = new byte[(int)entry.getSize()];
+      final Inflater inflater = new Inflater(true);
+      try {
+        inflater.setInput(compressed);
+        int offset = 0;
+        while (offset < contents.length) {
+          final int count = inflater.inflate(contents, offset, contents.length - offset);
+          if (count == 0 && (inflater.finished() || inflater.needsInput() || inflater.needsDictionary())) {
+            throw new ZipException("Truncated entry: " + entry.getName());
+          }
+          offset += count;
+        }
+      } catch (final DataFormatException e) {
+        throw (ZipException)new ZipException("Corrupt entry: " + entry.getName()).initCause(e);
+      } finally {
+        inflater.end();
+      }
+      return contents;
+    default:
+      throw new ZipException("Unsupported compression method " + entry.getMethod() + " for " + entry.getName());
+    }
+  }
+
+  /**
+   * Closes the private {@link FileChannel} this {@link MappedArchive}
+   * reads from.
+   *
+   * @exception IOException if an error occurs
+   */
+  @Override
+  public final void close() throws IOException {
+    this.file.close();
+  }
+
+  /**
+   * Returns the end of central directory record, including the
+   * archive comment, of the supplied archive.
+   */
+  private static final ByteBuffer readEnd(final FileChannel source) throws IOException {
+    final long size = source.size();
+    if (size < END_SIZE) {
+      throw new ZipException("Not an archive");
+    }
+    // The record is at least END_SIZE bytes from the end and its
+    // comment is at most 65535 bytes long.
+    final int tailLength = (int)Math.min(size, END_SIZE + 0xFFFFL);
+    final ByteBuffer tail = read(source, size - tailLength, tailLength);
+    for (int offset = tailLength - END_SIZE; offset >= 0; offset--) {
+      if (tail.getInt(offset) == END_SIGNATURE) {
+        final int commentLength = tail.getShort(offset + 20) & 0xFFFF;
+        if (offset + END_SIZE + commentLength == tailLength) {
+          final ByteBuffer end = ByteBuffer.allocate(END_SIZE + commentLength).order(ByteOrder.LITTLE_ENDIAN);
+          end.put((ByteBuffer)tail.duplicate().position(offset));
+          end.flip();
+          return end;
+        }
+      }
+    }
+    throw new ZipException("No end of central directory record found");
+  }
+
+  /**
+   * Returns the offset within the supplied buffer of the data of the
+   * extra field block with the supplied tag, or {@code -1}.
+   */
+  static final int findExtra(final ByteBuffer buffer, final int extraOffset, final int extraLength, final int tag) {
+    int offset = extraOffset;
+    final int limit = extraOffset + extraLength;
+    while (offset + 4 <= limit) {
+      final int blockTag = buffer.getShort(offset) & 0xFFFF;
+      final int blockLength = buffer.getShort(offset + 2) & 0xFFFF;
+      if (blockTag == tag) {
+        return offset + 4;
+      }
+      offset += 4 + blockLength;
+    }
+    return -1;
+  }
+
+  static final ByteBuffer read(final FileChannel source, final long position, final int length) throws IOException {
+    final ByteBuffer buffer = ByteBuffer.allocate(length).order(ByteOrder.LITTLE_ENDIAN);
+    long p = position;
+    while (buffer.hasRemaining()) {
+      final int bytesRead = source.read(buffer, p);
+      if (bytesRead < 0) {
+        throw new ZipException("Unexpected end of archive");
+      }
+      p += bytesRead;
+    }
+    buffer.flip();
+    return buffer;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * An entry in a {@link MappedArchive}, described by its central
+   * directory record with any ZIP64 sizes and offset resolved.
+   */
+  static final class Entry {
+
+    private final String name;
+
+    private final byte[] nameBytes;
+
+    /**
+     * A little-endian copy of the complete central directory record.
+     */
+    private final ByteBuffer record;
+
+    private final long compressedSize;
+
+    private final long size;
+
+    private final long localHeaderOffset;
+
+    private Entry(final ByteBuffer centralDirectory, final int recordOffset) throws ZipException {
+      super();
+      if (recordOffset + CENTRAL_HEADER_SIZE > centralDirectory.capacity() || centralDirectory.getInt(recordOffset) != CENTRAL_HEADER_SIGNATURE) {
+        throw new ZipException("Bad central directory record at central directory offset " + recordOffset);
+      }
+      final int nameLength = centralDirectory.getShort(recordOffset + 28) & 0xFFFF;
+      final int extraLength = centralDirectory.getShort(recordOffset + 30) & 0xFFFF;
+      final int commentLength = centralDirectory.getShort(recordOffset + 32) & 0xFFFF;
+      final int recordLength = CENTRAL_HEADER_SIZE + nameLength + extraLength + commentLength;
+      if (recordOffset + recordLength > centralDirectory.capacity()) {
+        throw new ZipException("Bad central directory record at central directory offset " + recordOffset);
+      }
+      this.record = ByteBuffer.allocate(recordLength).order(ByteOrder.LITTLE_ENDIAN);
+      final ByteBuffer slice = centralDirectory.duplicate();
+      slice.position(recordOffset);
+      slice.limit(recordOffset + recordLength);
+      this.record.put(slice);
+      this.record.flip();
+      this.nameBytes = new byte[nameLength];
+      ((ByteBuffer)this.record.duplicate().position(CENTRAL_HEADER_SIZE)).get(this.nameBytes);
+      this.name = new String(this.nameBytes, StandardCharsets.UTF_8);
+
+      // Resolve ZIP64 values, which appear in the extra field in this
+      // order, and only if their 32-bit counterparts are saturated.
+      long size = this.record.getInt(24) & 0xFFFFFFFFL;
+      long compressedSize = this.record.getInt(20) & 0xFFFFFFFFL;
+      long localHeaderOffset = this.record.getInt(42) & 0xFFFFFFFFL;
+      if (size == ZIP64_MAGIC || compressedSize == ZIP64_MAGIC || localHeaderOffset == ZIP64_MAGIC) {
+        int offset = findExtra(this.record, CENTRAL_HEADER_SIZE + nameLength, extraLength, ZIP64_EXTRA_TAG);
+        if (offset < 0) {
+          throw new ZipException("Missing ZIP64 extra field for " + this.name);
+        }
+        if (size == ZIP64_MAGIC) {
+          size = this.record.getLong(offset);
+          offset += 8;
+        }
+        if (compressedSize == ZIP64_MAGIC) {
+          compressedSize = this.record.getLong(offset);
+          offset += 8;
+        }
+        if (localHeaderOffset == ZIP64_MAGIC) {
+          localHeaderOffset = this.record.getLong(offset);
+        }
+      }
+      this.size = size;
+      this.compressedSize = compressedSize;
+      this.localHeaderOffset = localHeaderOffset;
+    }
+
+    final String getName() {
+      return this.name;
+    }
+
+    final byte[] getNameBytes() {
+      return this.nameBytes.clone();
+    }
+
+    /**
+     * Returns a little-endian copy of this {@link Entry}'s central
+     * directory record.
+     *
+     * @return a non-{@code null} {@link ByteBuffer}
+     */
+    final ByteBuffer getRecord() {
+      final ByteBuffer copy = ByteBuffer.allocate(this.record.capacity()).order(ByteOrder.LITTLE_ENDIAN);
+      copy.put(this.record.duplicate());
+      copy.flip();
+      return copy;
+    }
+
+    final int getFlags() {
+      return this.record.getShort(8) & 0xFFFF;
+    }
+
+    final int getMethod() {
+      return this.record.getShort(10) & 0xFFFF;
+    }
+
+    final long getCrc() {
+      return this.record.getInt(16) & 0xFFFFFFFFL;
+    }
+
+    final long getCompressedSize() {
+      return this.compressedSize;
+    }
+
+    final long getSize() {
+      return this.size;
+    }
+
+    final long getLocalHeaderOffset() {
+      return this.localHeaderOffset;
+    }
+
+    final boolean isDirectory() {
+      return this.name.endsWith("/");
+    }
+
+    @Override
+    public final String toString() {
+      return this.name;
+    }
+
+  }
+
+}
@@ -0,0 +1,411 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.StreamCorruptedException;
+
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.StandardOpenOption;
+
+import java.util.AbstractMap;
+import java.util.AbstractSet;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.NoSuchElementException;
+import java.util.Set;
+
+/**
+ * A read-only {@link Map} of implementation class names indexed by
+ * interface names that is backed by a memory-mapped file, so that
+ * several JVMs on the same host can share one copy of a set of
+ * bindings without scanning for them or deserializing them onto the
+ * heap.
+ *
+ * <p>Index files are written by the {@link #write(Map, File)} method,
+ * or by a {@link JAXBElementScanner} whose {@linkplain
+ * JAXBElementScanner#setBindingIndexFile(File) binding index file}
+ * has been set, and are read with the {@link #open(File)}
+ * method.</p>
+ *
+ * <p>The file format, all of whose integers are big-endian, is:</p>
+ *
+ * <pre>
+ * int    magic ("JXBI")
+ * int    version
+ * int    entry count (n)
+ * int    string table offset
+ * int[4] per entry, sorted by the UTF-8 bytes of the interface name:
+ *        interface name offset, interface name length,
+ *        implementation class name offset, implementation class name length
+ * byte[] string table of UTF-8 encoded names, each distinct name stored once
+ * </pre>
+ *
+ * <p>Offsets in the entry table are relative to the start of the
+ * string table.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see #open(File)
+ *
+ * @see #write(Map, File)
+ *
+ * @see BindingTable
+ */
+public final class MappedBindingIndex extends AbstractMap<String, String> {
+
+  /**
+   * The magic number ({@code JXBI} in ASCII) that begins every index
+   * file.
+   */
+  public static final int MAGIC = 0x4A584249;
+
+  /**
+   * The version of the index file format written by this class.
+   */
+  public static final int VERSION = 1;
+
+  private static final int HEADER_SIZE = 16;
+
+  private static final int ENTRY_SIZE = 16;
+
+  private static final Comparator<byte[]> UNSIGNED_LEXICOGRAPHIC_ORDER = new Comparator<byte[]>() {
+      @Override
+      public final int compare(final byte[] a, final byte[] b) {
+        final int length = Math.min(a.length, b.length);
+        for (int i = 0; i < length; i++) {
+          final int difference = (a[i] & 0xFF) - (b[i] & 0xFF);
+          if (difference != 0) {
+            return difference;
+          }
+        }
+        return a.length - b.length;
+      }
+    };
+
+  private final ByteBuffer buffer;
+
+  private final int size;
+
+  private final int stringTableOffset;
+
+  private transient Set<Entry<String, String>> entrySet;
+
+  private MappedBindingIndex(final ByteBuffer buffer) throws IOException {
+    super();
+    assert buffer != null;
+    if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+      throw new StreamCorruptedException("Not a binding index");
+    }
+    final int version = buffer.getInt(4);
+    if (version != VERSION) {
+      throw new StreamCorruptedException("Unsupported binding index version: " + version);
+    }
+    this.size = buffer.getInt(8);
+    this.stringTableOffset = buffer.getInt(12);
+    if (this.size < 0 || this.stringTableOffset != HEADER_SIZE + (long)this.size * ENTRY_SIZE || this.stringTableOffset > buffer.capacity()) {
+      throw new StreamCorruptedException("Corrupt binding index header");
+    }
+    // Check every name's bounds now so that lookups need not.
+    final long stringTableSize = buffer.capacity() - (long)this.stringTableOffset;
+    for (int i = 0; i < this.size; i++) {
+      final int entryOffset = HEADER_SIZE + i * ENTRY_SIZE;
+      for (int field = 0; field < 4; field += 2) {
+        final int offset = buffer.getInt(entryOffset + field * 4);
+        final int length = buffer.getInt(entryOffset + field * 4 + 4);
+        if (offset < 0 || length < 0 || (long)offset + length > stringTableSize) {
+          throw new StreamCorruptedException("Corrupt binding index entry: " + i);
+        }
+      }
+    }
+    this.buffer = buffer;
+  }
+
+  /**
+   * Maps the supplied index file read-only and returns a {@link
+   * MappedBindingIndex} backed by it.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param file the index file; must not be {@code null}
+   *
+   * @return a non-{@code null} {@link MappedBindingIndex}
+   *
+   * @exception IOException if the file could not be mapped or is not
+   * a valid index file
+   */
+  public static final MappedBindingIndex open(final File file) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("file", new NullPointerException("file"));
+    }
+    final FileChannel channel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+    try {
+      final MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0L, channel.size());
+      return new MappedBindingIndex(buffer);
+    } finally {
+      // The mapping remains valid after the channel is closed.
+      channel.close();
+    }
+  }
+
+  /**
+   * Writes the supplied bindings to the supplied file in the format
+   * read by {@link #open(File)}.
+   *
+   * <p>The file is {@linkplain AtomicFileReplacement replaced
+   * atomically}, so readers never observe a partially written
+   * index.</p>
+   *
+   * <p>The output is a pure function of the supplied bindings.</p>
+   *
+   * @param bindings the bindings to write; may be {@code null}
+   *
+   * @param file the file to write; must not be {@code null}
+   *
+   * @exception IOException if the file could not be written
+   */
+  public static final void write(final Map<? extends String, ? extends String> bindings, final File file) throws IOException {
+    if (file == null) {
+      throw new IllegalArgumentException("file", new NullPointerException("file"));
+    }
+    final List<byte[][]> entries = new ArrayList<byte[][]>();
+    if (bindings != null) {
+      for (final Entry<? extends String, ? extends String> entry : bindings.entrySet()) {
+        if (entry != null && entry.getKey() != null && entry.getValue() != null) {
+          entries.add(new byte[][] { entry.getKey().getBytes(StandardCharsets.UTF_8), entry.getValue().getBytes(StandardCharsets.UTF_8) });
+        }
+      }
+    }
+    Collections.sort(entries, new Comparator<byte[][]>() {
+        @Override
+        public final int compare(final byte[][] a, final byte[][] b) {
+          return UNSIGNED_LEXICOGRAPHIC_ORDER.compare(a[0], b[0]);
+        }
+      });
+
+    // Lay out the string table, storing each distinct name once.
+    final Map<String, Integer> stringOffsets = new HashMap<String, Integer>();
+    final List<byte[]> strings = new ArrayList<byte[]>();
+    final int[] offsets = new int[entries.size() * 2];
+    int stringTableSize = 0;
+    for (int i = 0; i < entries.size(); i++) {
+      final byte[][] entry = entries.get(i);
+      for (int j = 0; j < 2; j++) {
+        final String key = new String(entry[j], StandardCharsets.UTF_8);
+        Integer offset = stringOffsets.get(key);
+        if (offset == null) {
+          offset = Integer.valueOf(stringTableSize);
+          stringOffsets.put(key, offset);
+          strings.add(entry[j]);
+          stringTableSize += entry[j].length;
+        }
+        offsets[i * 2 + j] = offset.intValue();
+      }
+    }
+
+    final int stringTableOffset = HEADER_SIZE + entries.size() * ENTRY_SIZE;
+    AtomicFileReplacement.replace(file.toPath(), new AtomicFileReplacement.Content() {
+        @Override
+        public final void writeTo(final FileChannel channel) throws IOException {
+          // The channel belongs to the caller, so the stream is
+          // flushed but not closed.
+          final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel)));
+          out.writeInt(MAGIC);
+          out.writeInt(VERSION);
+          out.writeInt(entries.size());
+          out.writeInt(stringTableOffset);
+          for (int i = 0; i < entries.size(); i++) {
+            final byte[][] entry = entries.get(i);
+            out.writeInt(offsets[i * 2]);
+            out.writeInt(entry[0].length);
+            out.writeInt(offsets[i * 2 + 1]);
+            out.writeInt(entry[1].length);
+          }
+          for (final byte[] string : strings) {
+            out.write(string);
+          }
+          out.flush();
+        }
+      }, false);
+  }
+
+  /**
+   * Returns the name of the implementation class bound to the
+   * interface with the supplied name, or {@code null} if there is no
+   * such binding.
+   *
+   * <p>Only the bytes of the entries visited by the binary search
+   * and of the returned name are read.</p>
+   *
+   * @param interfaceName the name of the interface; may be {@code
+   * null} in which case {@code null} will be returned
+   *
+   * @return the name of the implementation class, or {@code null}
+   */
+  public final String getImplementationClassName(final String interfaceName) {
+    if (interfaceName == null) {
+      return null;
+    }
+    final int index = this.indexOf(interfaceName.getBytes(StandardCharsets.UTF_8));
+    return index < 0 ? null : this.getString(index, 2);
+  }
+
+  /**
+   * Copies this index onto the heap as a {@link BindingTable}.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @return a non-{@code null} {@link BindingTable}
+   */
+  public final BindingTable toBindingTable() {
+    return BindingTable.of(this);
+  }
+
+  private final int indexOf(final byte[] key) {
+    int low = 0;
+    int high = this.size - 1;
+    while (low <= high) {
+      final int middle = (low + high) >>> 1;
+      final int comparison = this.compareKey(middle, key);
+      if (comparison < 0) {
+        low = middle + 1;
+      } else if (comparison > 0) {
+        high = middle - 1;
+      } else {
+        return middle;
+      }
+    }
+    return -(low + 1);
+  }
+
+  private final int compareKey(final int index, final byte[] key) {
+    final int entryOffset = HEADER_SIZE + index * ENTRY_SIZE;
+    final int offset = this.stringTableOffset + this.buffer.getInt(entryOffset);
+    final int length = this.buffer.getInt(entryOffset + 4);
+    final int limit = Math.min(length, key.length);
+    for (int i = 0; i < limit; i++) {
+      final int difference = (this.buffer.get(offset + i) & 0xFF) - (key[i] & 0xFF);
+      if (difference != 0) {
+        return difference;
+      }
+    }
+    return length - key.length;
+  }
+
+  /**
+   * Decodes the string referenced by the entry at the supplied index.
+   *
+   * @param index the entry index
+   *
+   * @param field {@code 0} for the interface name, {@code 2} for the
+   * implementation class name
+   */
+  private final String getString(final int index, final int field) {
+    final int entryOffset = HEADER_SIZE + index * ENTRY_SIZE + field * 4;
+    final int offset = this.stringTableOffset + this.buffer.getInt(entryOffset);
+    final int length = this.buffer.getInt(entryOffset + 4);
+    final byte[] bytes = new byte[length];
+    for (int i = 0; i < length; i++) {
+      bytes[i] = this.buffer.get(offset + i);
+    }
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  @Override
+  public final String get(final Object interfaceName) {
+    return interfaceName instanceof String ? this.getImplementationClassName((String)interfaceName) : null;
+  }
+
+  @Override
+  public final boolean containsKey(final Object interfaceName) {
+    return interfaceName instanceof String && this.indexOf(((String)interfaceName).getBytes(StandardCharsets.UTF_8)) >= 0;
+  }
+
+  @Override
+  public final int size() {
+    return this.size;
+  }
+
+  @Override
+  public final Set<Entry<String, String>> entrySet() {
+    if (this.entrySet == null) {
+      this.entrySet = new AbstractSet<Entry<String, String>>() {
+          @Override
+          public final int size() {
+            return size;
+          }
+
+          @Override
+          public final Iterator<Entry<String, String>> iterator() {
+            return new Iterator<Entry<String, String>>() {
+              private int index;
+
+              @Override
+              public final boolean hasNext() {
+                return this.index < size;
+              }
+
+              @Override
+              public final Entry<String, String> next() {
+                if (this.index >= size) {
+                  throw new NoSuchElementException();
+                }
+                final Entry<String, String> returnValue = new SimpleImmutableEntry<String, String>(getString(this.index, 0), getString(this.index, 2));
+                this.index++;
+                return returnValue;
+              }
+
+              @Override
+              public final void remove() {
+                throw new UnsupportedOperationException();
+              }
+            };
+          }
+        };
+    }
+    return this.entrySet;
+  }
+
+}
@@ -0,0 +1,299 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.IOException;
+
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.List;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Hands {@link InterfaceDecorator.Modification}s to a pool of writer
+ * threads as soon as the set of modifications for their location is
+ * known to be complete, so that writing overlaps with scanning.
+ *
+ * <p>A {@code file:} location holds exactly one class file, so its
+ * modification is written as soon as it is {@linkplain
+ * #add(InterfaceDecorator.Modification) added}.  Modifications to
+ * entries in a jar file are held until the jar file has been
+ * {@linkplain #archiveScanned(URL) scanned}; any that arrive later,
+ * because an implementation class in another archive implements an
+ * interface in the jar file, are written when the pipeline is
+ * {@linkplain #finish() finished}.</p>
+ *
+ * <p>Pending modifications are held in a map whose locations are
+ * guarded by striped locks, and writes to the same location are
+ * serialized by a second set of striped locks, so unrelated locations
+ * never contend.</p>
+ *
+ * <p>If an interface is modified more than once, for example because
+ * it has two implementations, the modification added last wins, just
+ * as it would if the modifications were written in one batch: earlier
+ * ones that have not yet been written when their turn comes are
+ * skipped, whichever writer thread picks them up.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassBinder#setPipelined(boolean)
+ */
+final class ModificationPipeline {
+
+  private static final int STRIPE_COUNT = 32;
+
+  private final ImplementationClassBinder binder;
+
+  /**
+   * Modifications waiting for their location to be complete, indexed
+   * by {@linkplain ModificationQueue#getKey(URL) location key}.  Each
+   * {@link List} is guarded by the {@linkplain #storeLock(String)
+   * store lock} for its key.
+   */
+  private final ConcurrentMap<String, List<InterfaceDecorator.Modification>> pending;
+
+  /**
+   * The modification most recently added for each interface, indexed
+   * by interface name.
+   */
+  private final ConcurrentMap<String, InterfaceDecorator.Modification> latest;
+
+  private final Object[] storeLocks;
+
+  private final Object[] writeLocks;
+
+  private final ExecutorService writers;
+
+  /**
+   * Guarded by itself.
+   */
+  private final List<Future<Void>> futures;
+
+  private final ImplementationClassBinder.WriteReport writeReport;
+
+  ModificationPipeline(final ImplementationClassBinder binder, final int writerThreadCount) {
+    super();
+    if (binder == null) {
+      throw new IllegalArgumentException("binder", new NullPointerException("binder"));
+    }
+    this.binder = binder;
+    this.pending = new ConcurrentHashMap<String, List<InterfaceDecorator.Modification>>();
+    this.latest = new ConcurrentHashMap<String, InterfaceDecorator.Modification>();
+    this.storeLocks = new Object[STRIPE_COUNT];
+    this.writeLocks = new Object[STRIPE_COUNT];
+    for (int i = 0; i < STRIPE_COUNT; i++) {
+      this.storeLocks[i] = new Object();
+      this.writeLocks[i] = new Object();
+    }
+    this.writers = Executors.newFixedThreadPool(Math.max(1, writerThreadCount), new ThreadFactory() {
+        @Override
+        public final Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "ImplementationClassBinder");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    this.futures = new ArrayList<Future<Void>>();
+    this.writeReport = new ImplementationClassBinder.WriteReport();
+  }
+
+  /**
+   * Returns the {@link ImplementationClassBinder.WriteReport} into
+   * which this pipeline's writes are recorded.
+   *
+   * @return a non-{@code null} {@link
+   * ImplementationClassBinder.WriteReport}
+   */
+  final ImplementationClassBinder.WriteReport getWriteReport() {
+    return this.writeReport;
+  }
+
+  /**
+   * Adds the supplied {@link InterfaceDecorator.Modification} to this
+   * pipeline, writing it right away if its location is a {@code
+   * file:} location.
+   *
+   * @param modification the {@link InterfaceDecorator.Modification};
+   * may be {@code null} in which case no action will be taken
+   */
+  final void add(final InterfaceDecorator.Modification modification) {
+    if (modification != null && modification.isModified()) {
+      final URL location = modification.getLocation();
+      if (location != null) {
+        this.latest.put(modification.getInterfaceName(), modification);
+        final String key = ModificationQueue.getKey(location);
+        if ("file".equals(location.getProtocol())) {
+          this.submit(key, Collections.singletonList(modification));
+        } else {
+          synchronized (this.storeLock(key)) {
+            List<InterfaceDecorator.Modification> mods = this.pending.get(key);
+            if (mods == null) {
+              mods = new ArrayList<InterfaceDecorator.Modification>();
+              this.pending.put(key, mods);
+            }
+            mods.add(modification);
+          }
+        }
+      }
+    }
+  }
+
+  /**
+   * Writes any modifications pending for entries in the archive
+   * designated by the supplied {@link URL}.
+   *
+   * @param archive the {@link URL} of an archive that has been
+   * scanned; may be {@code null} in which case no action will be
+   * taken
+   */
+  final void archiveScanned(final URL archive) {
+    if (archive != null) {
+      final String externalForm = archive.toExternalForm();
+      if ("jar".equals(archive.getProtocol())) {
+        this.flush(ModificationQueue.getKey(archive));
+      } else if (!externalForm.endsWith("/")) {
+        this.flush("jar:" + externalForm + "!/");
+      }
+    }
+  }
+
+  /**
+   * Writes every pending modification, waits for all writes to
+   * finish and shuts down the writer threads.  Failed writes are
+   * recorded in the {@linkplain #getWriteReport() write report}.
+   *
+   * @exception IOException if interrupted while waiting
+   */
+  final void finish() throws IOException {
+    try {
+      for (final String key : new ArrayList<String>(this.pending.keySet())) {
+        this.flush(key);
+      }
+      final List<Future<Void>> futures;
+      synchronized (this.futures) {
+        futures = new ArrayList<Future<Void>>(this.futures);
+        this.futures.clear();
+      }
+      for (final Future<Void> future : futures) {
+        try {
+          future.get();
+        } catch (final ExecutionException e) {
+          // Failures are recorded by the write itself, so this can
+          // only be an Error.
+          final Throwable cause = e.getCause();
+          if (cause instanceof Error) {
+            throw (Error)cause;
+          }
+          throw new IOException(cause);
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+      }
+    } finally {
+      this.writers.shutdownNow();
+    }
+  }
+
+  /**
+   * Abandons any pending modifications and stops the writer threads.
+   */
+  final void abort() {
+    this.pending.clear();
+    this.writers.shutdownNow();
+  }
+
+  private final void flush(final String key) {
+    assert key != null;
+    final List<InterfaceDecorator.Modification> mods;
+    synchronized (this.storeLock(key)) {
+      mods = this.pending.remove(key);
+    }
+    if (mods != null && !mods.isEmpty()) {
+      this.submit(key, mods);
+    }
+  }
+
+  private final void submit(final String key, final Collection<InterfaceDecorator.Modification> mods) {
+    assert key != null;
+    assert mods != null;
+    final Object writeLock = this.writeLock(key);
+    final Future<Void> future = this.writers.submit(new Callable<Void>() {
+        @Override
+        public final Void call() {
+          synchronized (writeLock) {
+            final List<InterfaceDecorator.Modification> current = new ArrayList<InterfaceDecorator.Modification>(mods.size());
+            for (final InterfaceDecorator.Modification mod : mods) {
+              if (latest.get(mod.getInterfaceName()) == mod) {
+                current.add(mod);
+              }
+            }
+            if (!current.isEmpty()) {
+              final long start = System.nanoTime();
+              try {
+                final long bytesWritten = binder.processModifications(key, current);
+                writeReport.record(key, System.nanoTime() - start, current, bytesWritten, null);
+              } catch (final Exception e) {
+                writeReport.record(key, System.nanoTime() - start, current, 0L, e);
+              }
+            }
+          }
+          return null;
+        }
+      });
+    synchronized (this.futures) {
+      this.futures.add(future);
+    }
+  }
+
+  private final Object storeLock(final String key) {
+    return this.storeLocks[stripe(key)];
+  }
+
+  private final Object writeLock(final String key) {
+    return this.writeLocks[stripe(key)];
+  }
+
+  private static final int stripe(final String key) {
+    final int h = key.hashCode();
+    return ((h ^ (h >>> 16)) & 0x7FFFFFFF) % STRIPE_COUNT;
+  }
+
+}
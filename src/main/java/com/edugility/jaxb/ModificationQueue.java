@@ -0,0 +1,449 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+
+import java.net.URL;
+
+import java.nio.ByteBuffer;
+
+import java.nio.channels.FileChannel;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A queue of {@link InterfaceDecorator.Modification}s, grouped by
+ * the {@linkplain #getKey(URL) location} to which they must
+ * eventually be written, whose memory use is bounded.
+ *
+ * <p>Only the decorated class bytes, the interface name and the
+ * location of each {@link InterfaceDecorator.Modification} are
+ * retained.  Once the total size of the bytes held in memory exceeds
+ * the {@linkplain #getMemoryThreshold() memory threshold}, they are
+ * spilled, grouped by location, to a temporary file, from which they
+ * are read back when {@linkplain #get(String) requested}.  Because
+ * spilled modifications for a given location are written
+ * contiguously, reading back all the modifications for one location
+ * is largely sequential.</p>
+ *
+ * <p>Modifications to entries in the same jar file share a key: the
+ * jar file's root {@link URL} (e.g. {@code
+ * jar:file:/foo.jar!/}).</p>
+ *
+ * <p>Instances of this class are safe for use by multiple
+ * threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassBinder#queueUpModification(InterfaceDecorator.Modification)
+ */
+public class ModificationQueue implements Closeable {
+
+  /**
+   * The default number of bytes of decorated class files that will
+   * be held in memory before spilling to disk ({@value}).
+   */
+  public static final long DEFAULT_MEMORY_THRESHOLD = 16L * 1024L * 1024L;
+
+  /**
+   * The directory in which the spill file will be created; {@code
+   * null} indicates the default temporary-file directory.
+   */
+  private final File directory;
+
+  /**
+   * {@link Record}s indexed by {@linkplain #getKey(URL) location
+   * key}.  Guarded by {@code this}.
+   */
+  private final Map<String, List<Record>> records;
+
+  /**
+   * Guarded by {@code this}.
+   */
+  private long memoryThreshold;
+
+  /**
+   * The number of bytes of class files currently held in memory.
+   * Guarded by {@code this}.
+   */
+  private long memoryUsage;
+
+  /**
+   * The number of {@link Record}s in this {@link ModificationQueue}.
+   * Guarded by {@code this}.
+   */
+  private int size;
+
+  /**
+   * The spill file; {@code null} until first needed.  Guarded by
+   * {@code this}.
+   */
+  private File spillFile;
+
+  /**
+   * A {@link FileChannel} open on the {@link #spillFile}; {@code
+   * null} until first needed.  Guarded by {@code this}.
+   */
+  private FileChannel spillChannel;
+
+  /**
+   * Creates a new {@link ModificationQueue} with a {@linkplain
+   * #DEFAULT_MEMORY_THRESHOLD default memory threshold} that spills
+   * to the default temporary-file directory.
+   */
+  public ModificationQueue() {
+    this(DEFAULT_MEMORY_THRESHOLD, null);
+  }
+
+  /**
+   * Creates a new {@link ModificationQueue}.
+   *
+   * @param memoryThreshold the number of bytes of decorated class
+   * files to hold in memory before spilling to disk; values less
+   * than {@code 0} are treated as {@code 0}, which causes every
+   * {@linkplain #add(InterfaceDecorator.Modification) addition} to
+   * be spilled
+   *
+   * @param directory the directory in which the spill file will be
+   * created; may be {@code null} in which case the default
+   * temporary-file directory will be used
+   */
+  public ModificationQueue(final long memoryThreshold, final File directory) {
+    super();
+    this.directory = directory;
+    this.records = new LinkedHashMap<String, List<Record>>();
+    this.setMemoryThreshold(memoryThreshold);
+  }
+
+  /**
+   * Returns the number of bytes of decorated class files that will be
+   * held in memory before spilling to disk.
+   *
+   * @return the memory threshold
+   */
+  public synchronized long getMemoryThreshold() {
+    return this.memoryThreshold;
+  }
+
+  /**
+   * Sets the number of bytes of decorated class files that will be
+   * held in memory before spilling to disk.  The new threshold takes
+   * effect at the next {@linkplain
+   * #add(InterfaceDecorator.Modification) addition}.
+   *
+   * @param memoryThreshold the new threshold; values less than
+   * {@code 0} are treated as {@code 0}
+   */
+  public synchronized void setMemoryThreshold(final long memoryThreshold) {
+    this.memoryThreshold = Math.max(0L, memoryThreshold);
+  }
+
+  /**
+   * Returns the number of bytes of decorated class files currently
+   * held in memory.
+   *
+   * @return the memory usage
+   */
+  public synchronized long getMemoryUsage() {
+    return this.memoryUsage;
+  }
+
+  /**
+   * Returns {@code true} if any modification has been spilled to
+   * disk since this {@link ModificationQueue} was created or last
+   * {@linkplain #clear() cleared}.
+   *
+   * @return {@code true} if a spill file is in use
+   */
+  public synchronized boolean isSpilled() {
+    return this.spillFile != null;
+  }
+
+  /**
+   * Returns the number of modifications in this {@link
+   * ModificationQueue}.
+   *
+   * @return the number of modifications
+   */
+  public synchronized int size() {
+    return this.size;
+  }
+
+  /**
+   * Returns {@code true} if this {@link ModificationQueue} holds no
+   * modifications.
+   *
+   * @return {@code true} if this {@link ModificationQueue} is empty
+   */
+  public synchronized boolean isEmpty() {
+    return this.size == 0;
+  }
+
+  /**
+   * Adds the supplied {@link InterfaceDecorator.Modification} to this
+   * {@link ModificationQueue}, spilling to disk if the {@linkplain
+   * #getMemoryThreshold() memory threshold} is thereby exceeded.
+   *
+   * <p>{@link InterfaceDecorator.Modification}s that {@linkplain
+   * InterfaceDecorator.Modification#isModified() are not modified} or
+   * that have no {@linkplain
+   * InterfaceDecorator.Modification#getLocation() location} are
+   * ignored.</p>
+   *
+   * @param modification the {@link InterfaceDecorator.Modification}
+   * to add; may be {@code null} in which case no action will be
+   * taken
+   *
+   * @exception IOException if spilling failed
+   */
+  public synchronized void add(final InterfaceDecorator.Modification modification) throws IOException {
+    if (modification != null && modification.isModified()) {
+      final URL location = modification.getLocation();
+      if (location != null) {
+        final byte[] bytes = modification.toByteArray();
+        assert bytes != null;
+        final String key = getKey(location);
+        List<Record> records = this.records.get(key);
+        if (records == null) {
+          records = new ArrayList<Record>();
+          this.records.put(key, records);
+        }
+        records.add(new Record(modification.getInterfaceName(), location, bytes));
+        this.size++;
+        this.memoryUsage += bytes.length;
+        if (this.memoryUsage > this.memoryThreshold) {
+          this.spill();
+        }
+      }
+    }
+  }
+
+  /**
+   * Returns the {@linkplain #getKey(URL) location keys} of the
+   * modifications in this {@link ModificationQueue}, in the order in
+   * which they were first added.
+   *
+   * @return a non-{@code null}, unmodifiable, point-in-time {@link
+   * Set} of location keys
+   */
+  public synchronized Set<String> getLocations() {
+    return Collections.unmodifiableSet(new LinkedHashSet<String>(this.records.keySet()));
+  }
+
+  /**
+   * Returns the {@link InterfaceDecorator.Modification}s queued for
+   * the supplied {@linkplain #getKey(URL) location key}, reading
+   * spilled ones back from disk.
+   *
+   * <p>This method never returns {@code null}.</p>
+   *
+   * @param location a location key as returned by the {@link
+   * #getLocations()} method; may be {@code null} in which case an
+   * empty {@link List} will be returned
+   *
+   * @return a non-{@code null} {@link List} of {@link
+   * InterfaceDecorator.Modification}s
+   *
+   * @exception IOException if spilled modifications could not be
+   * read
+   */
+  public synchronized List<InterfaceDecorator.Modification> get(final String location) throws IOException {
+    final List<Record> records = location == null ? null : this.records.get(location);
+    if (records == null || records.isEmpty()) {
+      return Collections.emptyList();
+    }
+    final List<InterfaceDecorator.Modification> returnValue = new ArrayList<InterfaceDecorator.Modification>(records.size());
+    for (final Record record : records) {
+      assert record != null;
+      byte[] bytes = record.bytes;
+      if (bytes == null) {
+        bytes = this.read(record.offset, record.length);
+      }
+      returnValue.add(new InterfaceDecorator.Modification(record.interfaceName, record.location, InterfaceDecorator.Modification.Kind.MODIFIED, bytes));
+    }
+    return returnValue;
+  }
+
+  /**
+   * Removes all modifications from this {@link ModificationQueue} and
+   * deletes its spill file, if any.
+   *
+   * @exception IOException if the spill file could not be closed
+   */
+  public synchronized void clear() throws IOException {
+    this.records.clear();
+    this.size = 0;
+    this.memoryUsage = 0L;
+    final FileChannel spillChannel = this.spillChannel;
+    final File spillFile = this.spillFile;
+    this.spillChannel = null;
+    this.spillFile = null;
+    try {
+      if (spillChannel != null) {
+        spillChannel.close();
+      }
+    } finally {
+      if (spillFile != null && !spillFile.delete()) {
+        spillFile.deleteOnExit();
+      }
+    }
+  }
+
+  /**
+   * {@linkplain #clear() Clears} this {@link ModificationQueue}.
+   *
+   * @exception IOException if the spill file could not be closed
+   */
+  @Override
+  public void close() throws IOException {
+    this.clear();
+  }
+
+  /**
+   * Writes every in-memory {@link Record} to the spill file, grouped
+   * by location, and releases its bytes.
+   */
+  private final void spill() throws IOException {
+    assert Thread.holdsLock(this);
+    if (this.spillChannel == null) {
+      final File spillFile = File.createTempFile("icb", ".modifications", this.directory);
+      spillFile.deleteOnExit();
+      this.spillFile = spillFile;
+      this.spillChannel = new RandomAccessFile(spillFile, "rw").getChannel();
+    }
+    final FileChannel channel = this.spillChannel;
+    long offset = channel.size();
+    for (final List<Record> records : this.records.values()) {
+      for (final Record record : records) {
+        final byte[] bytes = record.bytes;
+        if (bytes != null) {
+          final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+          long position = offset;
+          while (buffer.hasRemaining()) {
+            position += channel.write(buffer, position);
+          }
+          record.offset = offset;
+          record.length = bytes.length;
+          record.bytes = null;
+          offset += bytes.length;
+        }
+      }
+    }
+    this.memoryUsage = 0L;
+  }
+
+  private final byte[] read(final long offset, final int length) throws IOException {
+    assert Thread.holdsLock(this);
+    assert this.spillChannel != null;
+    final byte[] bytes = new byte[length];
+    final ByteBuffer buffer = ByteBuffer.wrap(bytes);
+    long position = offset;
+    while (buffer.hasRemaining()) {
+      final int bytesRead = this.spillChannel.read(buffer, position);
+      if (bytesRead < 0) {
+        throw new EOFException();
+      }
+      position += bytesRead;
+    }
+    return bytes;
+  }
+
+  /**
+   * Returns the key under which modifications to the class file at
+   * the supplied {@link URL} are grouped.
+   *
+   * <p>For {@code jar:} {@link URL}s this is the root of the jar file
+   * (everything up to and including {@code !/}); for all others it is
+   * the {@link URL}'s {@linkplain URL#toString() string form}.</p>
+   *
+   * @param location the {@link URL}; must not be {@code null}
+   *
+   * @return a non-{@code null} key
+   *
+   * @exception IllegalArgumentException if {@code location} is
+   * {@code null}
+   */
+  public static final String getKey(final URL location) {
+    if (location == null) {
+      throw new IllegalArgumentException("location", new NullPointerException("location"));
+    }
+    final String key = location.toString();
+    if ("jar".equals(location.getProtocol())) {
+      final int separatorIndex = key.indexOf("!/");
+      if (separatorIndex >= 0) {
+        return key.substring(0, separatorIndex + 2);
+      }
+    }
+    return key;
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * A compact record of a queued modification.  Either {@link
+   * #bytes} is non-{@code null}, or {@link #offset} and {@link
+   * #length} locate the bytes in the spill file.
+   */
+  private static final class Record {
+
+    private final String interfaceName;
+
+    private final URL location;
+
+    private byte[] bytes;
+
+    private long offset;
+
+    private int length;
+
+    private Record(final String interfaceName, final URL location, final byte[] bytes) {
+      super();
+      this.interfaceName = interfaceName;
+      this.location = location;
+      this.bytes = bytes;
+    }
+
+  }
+
+}
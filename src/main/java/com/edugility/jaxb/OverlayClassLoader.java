@@ -0,0 +1,550 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+
+import java.nio.ByteBuffer;
+
+import java.security.ProtectionDomain;
+
+import java.util.Collections;
+import java.util.Set;
+
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import javassist.CannotCompileException;
+import javassist.NotFoundException;
+
+import javassist.bytecode.BadBytecode;
+
+/**
+ * A {@link ClassLoader} that serves decorated interfaces, modified
+ * {@code package-info} classes and generated {@link
+ * UniversalXmlAdapter} subclasses from memory instead of from the
+ * class path, so that they can be used&mdash;to create a {@link
+ * javax.xml.bind.JAXBContext}, for example&mdash;without any original
+ * class file or jar entry being rewritten.
+ *
+ * <p>Class bytes are held in {@link ByteBuffer}s that are either on
+ * the heap or, if this {@link OverlayClassLoader} was so {@linkplain
+ * #OverlayClassLoader(ClassLoader, boolean) constructed}, {@linkplain
+ * ByteBuffer#allocateDirect(int) off-heap}.  Classes and resources
+ * present in the overlay are loaded child-first; everything else is
+ * delegated to the parent {@link ClassLoader}.</p>
+ *
+ * <p>A class loaded by the parent that refers to an overlaid type
+ * will see the parent's version of that type, not the overlaid one.
+ * Classes that must see the overlaid types&mdash;implementation
+ * classes that implement decorated interfaces, and the beans that
+ * refer to them, for example&mdash;should therefore either be
+ * {@linkplain #put(String, byte[]) put} into the overlay as well, or
+ * live in a directory or archive that has been {@linkplain
+ * #addChildFirstLocation(URL) designated child-first}, in which case
+ * this {@link OverlayClassLoader} defines them itself from the bytes
+ * the parent would have used.</p>
+ *
+ * <p>Every package containing a class this {@link
+ * OverlayClassLoader} defines is defined by it too, so an overlaid
+ * {@code package-info} class is the one consulted for that package's
+ * annotations, even on Java versions whose {@link
+ * ClassLoader#getPackage(String)} would otherwise find the parent's
+ * {@link Package}.</p>
+ *
+ * <p>Instances of this class are safe for use by multiple
+ * threads.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ImplementationClassBinder#setOverlayClassLoader(OverlayClassLoader)
+ */
+public class OverlayClassLoader extends ClassLoader {
+
+  static {
+    ClassLoader.registerAsParallelCapable();
+  }
+
+  /**
+   * The URL protocol used for the {@link URL}s returned by the
+   * {@link #getResource(String)} method for overlaid resources.
+   */
+  private static final String PROTOCOL = "overlay";
+
+  /**
+   * Whether class bytes should be stored off-heap.
+   */
+  private final boolean direct;
+
+  /**
+   * Read-only {@link ByteBuffer}s of class bytes indexed by
+   * {@linkplain ClassLoader#getResource(String) resource name}
+   * (e.g. {@code com/foo/Bar.class}).
+   */
+  private final ConcurrentMap<String, ByteBuffer> resources;
+
+  /**
+   * {@linkplain #getLocationPrefix(URL) Prefixes} of the {@link URL}s
+   * of class files that are loaded child-first.
+   */
+  private final Set<String> childFirstLocations;
+
+  /**
+   * The names of the packages this {@link OverlayClassLoader} has
+   * defined.
+   */
+  private final Set<String> packageNames;
+
+  private final URLStreamHandler urlStreamHandler;
+
+  /**
+   * Creates a new {@link OverlayClassLoader} that stores class bytes
+   * on the heap.
+   *
+   * @param parent the parent {@link ClassLoader}; may be {@code null}
+   * in which case the bootstrap class loader will be used
+   */
+  public OverlayClassLoader(final ClassLoader parent) {
+    this(parent, false);
+  }
+
+  /**
+   * Creates a new {@link OverlayClassLoader}.
+   *
+   * @param parent the parent {@link ClassLoader}; may be {@code null}
+   * in which case the bootstrap class loader will be used
+   *
+   * @param direct whether class bytes should be stored in {@linkplain
+   * ByteBuffer#allocateDirect(int) direct} {@link ByteBuffer}s
+   */
+  public OverlayClassLoader(final ClassLoader parent, final boolean direct) {
+    super(parent);
+    this.direct = direct;
+    this.resources = new ConcurrentHashMap<String, ByteBuffer>();
+    this.childFirstLocations = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.packageNames = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+    this.urlStreamHandler = new URLStreamHandler() {
+        @Override
+        protected final URLConnection openConnection(final URL url) throws IOException {
+          assert url != null;
+          String resourceName = url.getPath();
+          if (resourceName != null && resourceName.startsWith("/")) {
+            resourceName = resourceName.substring(1);
+          }
+          final ByteBuffer buffer = resourceName == null ? null : resources.get(resourceName);
+          if (buffer == null) {
+            throw new IOException("No such overlaid resource: " + url);
+          }
+          return new URLConnection(url) {
+            @Override
+            public final void connect() {
+              this.connected = true;
+            }
+
+            @Override
+            public final int getContentLength() {
+              return buffer.remaining();
+            }
+
+            @Override
+            public final InputStream getInputStream() {
+              return new ByteArrayInputStream(toByteArray(buffer));
+            }
+          };
+        }
+      };
+  }
+
+  /**
+   * Returns {@code true} if class bytes are stored off-heap.
+   *
+   * @return {@code true} if class bytes are stored off-heap
+   */
+  public final boolean isDirect() {
+    return this.direct;
+  }
+
+  /**
+   * Adds the supplied class bytes to the overlay under the supplied
+   * class name, replacing any bytes already present.
+   *
+   * <p>If a class with the supplied name has already been loaded by
+   * this {@link OverlayClassLoader}, the new bytes will be served as
+   * a resource but will not affect the loaded class.</p>
+   *
+   * @param className the {@linkplain Class#getName() binary name} of
+   * the class; must not be {@code null}
+   *
+   * @param classBytes the class file; must not be {@code null}; is
+   * copied
+   *
+   * @exception IllegalArgumentException if either parameter is
+   * {@code null}
+   */
+  public void put(final String className, final byte[] classBytes) {
+    if (className == null) {
+      throw new IllegalArgumentException("className", new NullPointerException("className"));
+    }
+    if (classBytes == null) {
+      throw new IllegalArgumentException("classBytes", new NullPointerException("classBytes"));
+    }
+    final ByteBuffer buffer;
+    if (this.direct) {
+      buffer = ByteBuffer.allocateDirect(classBytes.length);
+    } else {
+      buffer = ByteBuffer.allocate(classBytes.length);
+    }
+    buffer.put(classBytes);
+    buffer.flip();
+    this.resources.put(getResourceName(className), buffer.asReadOnlyBuffer());
+  }
+
+  /**
+   * Adds the decorated interface described by the supplied {@link
+   * InterfaceDecorator.Modification} to the overlay.
+   *
+   * @param modification the {@link InterfaceDecorator.Modification};
+   * may be {@code null} in which case no action will be taken
+   */
+  public void put(final InterfaceDecorator.Modification modification) {
+    if (modification != null) {
+      this.put(modification.getInterfaceName(), modification.toByteArray());
+    }
+  }
+
+  /**
+   * Adds the {@code package-info} class described by the supplied
+   * {@link PackageInfoModifier.Modification} to the overlay.
+   *
+   * @param modification the {@link PackageInfoModifier.Modification};
+   * may be {@code null} in which case no action will be taken
+   */
+  public void put(final PackageInfoModifier.Modification modification) {
+    if (modification != null) {
+      final String packageName = modification.getPackageName();
+      if (packageName.isEmpty()) {
+        this.put("package-info", modification.toByteArray());
+      } else {
+        this.put(packageName + ".package-info", modification.toByteArray());
+      }
+    }
+  }
+
+  /**
+   * {@linkplain XmlAdapterBytecodeGenerator#generate(String, String,
+   * String) Generates} a {@link UniversalXmlAdapter} subclass with
+   * the supplied {@link XmlAdapterBytecodeGenerator} and adds it to
+   * the overlay.
+   *
+   * @param generator the {@link XmlAdapterBytecodeGenerator}; must
+   * not be {@code null}
+   *
+   * @param adapterClassName the name of the adapter class; must not
+   * be {@code null}
+   *
+   * @param interfaceClassName the name of the interface; must not be
+   * {@code null}
+   *
+   * @param implementationClassName the name of the implementation
+   * class; must not be {@code null}
+   *
+   * @exception IllegalArgumentException if any parameter is {@code
+   * null}
+   *
+   * @exception BadBytecode if the adapter could not be generated
+   *
+   * @exception CannotCompileException if the adapter could not be
+   * generated
+   *
+   * @exception IOException if the adapter could not be generated
+   *
+   * @exception NotFoundException if the adapter could not be
+   * generated
+   *
+   * @see XmlAdapterBytecodeGenerator#generate(String, String, String)
+   */
+  public void putAdapter(final XmlAdapterBytecodeGenerator generator, final String adapterClassName, final String interfaceClassName, final String implementationClassName) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    if (generator == null) {
+      throw new IllegalArgumentException("generator", new NullPointerException("generator"));
+    }
+    this.put(adapterClassName, generator.generate(adapterClassName, interfaceClassName, implementationClassName));
+  }
+
+  /**
+   * Arranges for any class that the parent {@link ClassLoader} would
+   * load from a class file in the directory or archive designated by
+   * the supplied {@link URL} to be defined by this {@link
+   * OverlayClassLoader} instead, from the same bytes, so that it sees
+   * overlaid types rather than the parent's versions of them.
+   *
+   * <p>Classes already loaded are unaffected.</p>
+   *
+   * @param location a {@code file:} {@link URL} designating a
+   * directory or archive, or a {@code jar:} {@link URL}, as reported
+   * by {@link ImplementationClassDiscoveryEvent#getArchive()}; must
+   * not be {@code null}
+   *
+   * @exception IllegalArgumentException if {@code location} is {@code
+   * null}
+   */
+  public void addChildFirstLocation(final URL location) {
+    if (location == null) {
+      throw new IllegalArgumentException("location", new NullPointerException("location"));
+    }
+    this.childFirstLocations.add(getLocationPrefix(location));
+  }
+
+  /**
+   * Returns {@code true} if bytes for a class with the supplied name
+   * are present in the overlay.
+   *
+   * @param className the {@linkplain Class#getName() binary name} of
+   * the class; may be {@code null} in which case {@code false} will
+   * be returned
+   *
+   * @return {@code true} if the class is overlaid
+   */
+  public boolean contains(final String className) {
+    return className != null && this.resources.containsKey(getResourceName(className));
+  }
+
+  /**
+   * Returns the resource names of the overlaid class files.
+   *
+   * @return a non-{@code null}, unmodifiable, live {@link Set} of
+   * resource names
+   */
+  public Set<String> getResourceNames() {
+    return Collections.unmodifiableSet(this.resources.keySet());
+  }
+
+  /**
+   * Loads the class with the supplied name from the overlay if it is
+   * present there, or from a {@linkplain #addChildFirstLocation(URL)
+   * child-first location} if the parent would find it in one, and
+   * otherwise delegates to the superclass implementation.
+   */
+  @Override
+  protected Class<?> loadClass(final String className, final boolean resolve) throws ClassNotFoundException {
+    if (className != null) {
+      synchronized (this.getClassLoadingLock(className)) {
+        Class<?> c = this.findLoadedClass(className);
+        if (c == null) {
+          c = this.findOverlaidClass(className);
+        }
+        if (c != null) {
+          if (resolve) {
+            this.resolveClass(c);
+          }
+          return c;
+        }
+      }
+    }
+    return super.loadClass(className, resolve);
+  }
+
+  /**
+   * Defines the class with the supplied name from the overlay or from
+   * a {@linkplain #addChildFirstLocation(URL) child-first location}
+   * if possible, and otherwise delegates to the superclass
+   * implementation.
+   *
+   * <p>Some callers, such as {@link Package#getAnnotations()} on Java
+   * 9 and later when it looks for a {@code package-info} class, call
+   * this method directly rather than going through {@link
+   * #loadClass(String, boolean)}.</p>
+   */
+  @Override
+  protected Class<?> findClass(final String className) throws ClassNotFoundException {
+    if (className != null) {
+      final Class<?> c = this.findOverlaidClass(className);
+      if (c != null) {
+        return c;
+      }
+    }
+    return super.findClass(className);
+  }
+
+  /**
+   * Defines the class with the supplied name from the overlay if it
+   * is present there, or from a {@linkplain
+   * #addChildFirstLocation(URL) child-first location} if the parent
+   * would find it in one, and returns it, or returns {@code null} if
+   * neither is the case.
+   *
+   * <p>Callers must hold the {@linkplain
+   * #getClassLoadingLock(String) class loading lock} for {@code
+   * className} and must have checked that it has not already been
+   * {@linkplain #findLoadedClass(String) loaded}.</p>
+   */
+  private final Class<?> findOverlaidClass(final String className) throws ClassNotFoundException {
+    assert className != null;
+    final ByteBuffer buffer = this.resources.get(getResourceName(className));
+    if (buffer != null) {
+      this.definePackage(className);
+      return this.defineClass(className, buffer.duplicate(), (ProtectionDomain)null);
+    }
+    final URL childFirstResource = this.getChildFirstResource(className);
+    if (childFirstResource != null) {
+      final byte[] classBytes;
+      try {
+        classBytes = read(childFirstResource);
+      } catch (final IOException e) {
+        throw new ClassNotFoundException(className, e);
+      }
+      this.definePackage(className);
+      return this.defineClass(className, classBytes, 0, classBytes.length);
+    }
+    return null;
+  }
+
+  /**
+   * Returns the {@link URL} of the class file from which the parent
+   * {@link ClassLoader} would load the class with the supplied name,
+   * if it lies in a {@linkplain #addChildFirstLocation(URL)
+   * child-first location}, or {@code null}.
+   */
+  private final URL getChildFirstResource(final String className) {
+    assert className != null;
+    if (this.childFirstLocations.isEmpty() || className.startsWith("java.")) {
+      return null;
+    }
+    final URL resource = super.getResource(getResourceName(className));
+    if (resource != null) {
+      final String externalForm = resource.toExternalForm();
+      for (final String location : this.childFirstLocations) {
+        if (externalForm.startsWith(location)) {
+          return resource;
+        }
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Defines the package of the class with the supplied name in this
+   * {@link OverlayClassLoader}, unless it already has.
+   *
+   * <p>This must happen before the class itself is defined: on Java 8
+   * and earlier, {@link ClassLoader#getPackage(String)} would
+   * otherwise find, and remember, the parent's {@link Package}, whose
+   * {@code package-info} class is not the overlaid one.</p>
+   */
+  private final void definePackage(final String className) {
+    assert className != null;
+    final int lastDot = className.lastIndexOf('.');
+    if (lastDot > 0) {
+      final String packageName = className.substring(0, lastDot);
+      if (this.packageNames.add(packageName)) {
+        try {
+          this.definePackage(packageName, null, null, null, null, null, null, null);
+        } catch (final IllegalArgumentException alreadyDefined) {
+          // Another thread, loading another class in the same
+          // package, got here first.
+        }
+      }
+    }
+  }
+
+  @Override
+  public URL getResource(final String name) {
+    if (name != null && this.resources.containsKey(name)) {
+      try {
+        return new URL(PROTOCOL, null, -1, "/" + name, this.urlStreamHandler);
+      } catch (final MalformedURLException cannotHappen) {
+        throw new IllegalStateException(cannotHappen);
+      }
+    }
+    return super.getResource(name);
+  }
+
+  @Override
+  public InputStream getResourceAsStream(final String name) {
+    final ByteBuffer buffer = name == null ? null : this.resources.get(name);
+    if (buffer == null) {
+      return super.getResourceAsStream(name);
+    }
+    return new ByteArrayInputStream(toByteArray(buffer));
+  }
+
+  private static final byte[] read(final URL url) throws IOException {
+    assert url != null;
+    final InputStream stream = url.openStream();
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, bytesRead);
+      }
+      return out.toByteArray();
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * Returns the prefix shared by the {@link URL}s of all class files
+   * in the directory or archive designated by the supplied {@link
+   * URL}.
+   */
+  private static final String getLocationPrefix(final URL location) {
+    assert location != null;
+    if ("jar".equals(location.getProtocol())) {
+      return ModificationQueue.getKey(location);
+    }
+    final String externalForm = location.toExternalForm();
+    if (externalForm.endsWith("/")) {
+      return externalForm;
+    }
+    return "jar:" + externalForm + "!/";
+  }
+
+  private static final byte[] toByteArray(final ByteBuffer buffer) {
+    assert buffer != null;
+    final ByteBuffer duplicate = buffer.duplicate();
+    final byte[] bytes = new byte[duplicate.remaining()];
+    duplicate.get(bytes);
+    return bytes;
+  }
+
+  private static final String getResourceName(final String className) {
+    assert className != null;
+    return className.replace('.', '/') + ".class";
+  }
+
+}
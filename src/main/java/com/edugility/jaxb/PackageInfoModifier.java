@@ -27,15 +27,20 @@
  */
 package com.edugility.jaxb;
 
+import java.io.File;
 import java.io.IOException;
 import java.io.Serializable;
 
+import java.net.URL;
+import java.nio.file.Files;
+
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeMap;
 
 import java.util.logging.Level;
 import java.util.logging.Logger;
@@ -62,10 +67,30 @@ public class PackageInfoModifier {
 
   protected transient Logger logger;
 
+  private final ClassPool classPool;
+
   private Map<String, String> bindings;
 
   public PackageInfoModifier() {
+    this(null);
+  }
+
+  /**
+   * Creates a new {@link PackageInfoModifier} that will use the
+   * supplied {@link ClassPool}.
+   *
+   * @param classPool the {@link ClassPool} to use; if {@code null}, a
+   * new {@link BoundedClassPool} will be used instead
+   *
+   * @see #getClassPool(String)
+   */
+  public PackageInfoModifier(final ClassPool classPool) {
     super();
+    if (classPool == null) {
+      this.classPool = new BoundedClassPool();
+    } else {
+      this.classPool = classPool;
+    }
     this.logger = this.createLogger();
     if (this.logger == null) {
       this.logger = Logger.getLogger(this.getClass().getName());
@@ -92,6 +117,21 @@ public class PackageInfoModifier {
     }
     assert classPool != null;
 
+    // Fast path: if the package-info class already has all the right
+    // @XmlJavaTypeAdapter annotations, return its bytes untouched
+    // without involving Javassist at all.
+    final URL location = classPool.find(packageInfoClassName);
+    if (location != null) {
+      final byte[] originalBytes = ClassFileAnnotationInjector.read(location);
+      if (ClassFileAnnotationInjector.hasXmlJavaTypeAdapters(originalBytes, this.getBindings())) {
+        final Modification returnValue = new Modification(pkg, Modification.Kind.UNMODIFIED, originalBytes);
+        if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
+          this.logger.exiting(this.getClass().getName(), "modify", returnValue);
+        }
+        return returnValue;
+      }
+    }
+
     Modification.Kind kind = Modification.Kind.UNMODIFIED;
 
     CtClass packageInfoCtClass = classPool.getOrNull(packageInfoClassName);
@@ -112,6 +152,10 @@ public class PackageInfoModifier {
 
     final Modification returnValue = new Modification(packageInfoCtClass, kind, bytes);
 
+    // The bytes have been captured; don't let the ClassPool hold on
+    // to the (now frozen) CtClass any longer.
+    packageInfoCtClass.detach();
+
     if (this.logger != null && this.logger.isLoggable(Level.FINER)) {
       this.logger.exiting(this.getClass().getName(), "modify", returnValue);
     }
@@ -123,9 +167,14 @@ public class PackageInfoModifier {
    * supplied class name.
    *
    * <p>The default implementation of this method ignores the {@code
-   * className} parameter and returns the return value of {@link
-   * ClassPool#getDefault()}.  For nearly all cases, this is the
-   * correct behavior and this method should not be overridden.</p>
+   * className} parameter and returns the {@link ClassPool} supplied at
+   * {@linkplain #PackageInfoModifier(ClassPool) construction time},
+   * which by default is a new {@link BoundedClassPool} private to this
+   * {@link PackageInfoModifier}.  Unlike {@link
+   * ClassPool#getDefault()}, such a {@link ClassPool} does not retain
+   * every {@link CtClass} ever touched for the life of the JVM.  For
+   * nearly all cases, this is the correct behavior and this method
+   * should not be overridden.</p>
    *
    * <p>If overrides of this method opt to return {@code null}, the
    * return value of {@link ClassPool#getDefault()} will be used
@@ -142,7 +191,7 @@ public class PackageInfoModifier {
    * @see ClassPool#getDefault()
    */
   protected ClassPool getClassPool(final String className) {
-    return ClassPool.getDefault();
+    return this.classPool;
   }
 
   /**
@@ -191,7 +240,7 @@ public class PackageInfoModifier {
         classPool = ClassPool.getDefault();
       }
       assert classPool != null;
-      CtClass xmlJavaTypeAdaptersCtClass = classPool.getOrNull(XmlJavaTypeAdapters.class.getName());
+      final CtClass xmlJavaTypeAdaptersCtClass = BoundedClassPool.getSharedCtClass(classPool, XmlJavaTypeAdapters.class.getName());
       assert xmlJavaTypeAdaptersCtClass != null;
       adaptersAnnotation = new Annotation(constantPool, xmlJavaTypeAdaptersCtClass);
       modified = true;
@@ -265,7 +314,16 @@ public class PackageInfoModifier {
 
     Map<String, String> bindings = this.getBindings();
     if (bindings != null && !bindings.isEmpty()) {
-      final Set<Entry<String, String>> bindingEntries = bindings.entrySet();
+      // Visit the bindings in a stable order so that the same
+      // bindings always produce the same constant pool and the same
+      // annotation order, and hence the same bytes.
+      final Map<String, String> sortedBindings = new TreeMap<String, String>();
+      for (final Entry<String, String> entry : bindings.entrySet()) {
+        if (entry != null && entry.getKey() != null) {
+          sortedBindings.put(entry.getKey(), entry.getValue());
+        }
+      }
+      final Set<Entry<String, String>> bindingEntries = sortedBindings.entrySet();
       if (bindingEntries != null && !bindingEntries.isEmpty()) {
 
         ClassPool classPool = this.getClassPool(XmlJavaTypeAdapter.class.getName());
@@ -280,7 +338,7 @@ public class PackageInfoModifier {
 
         final List<AnnotationMemberValue> adapters = new ArrayList<AnnotationMemberValue>();
 
-        final CtClass xmlJavaTypeAdapterCtClass = classPool.get(XmlJavaTypeAdapter.class.getName());
+        final CtClass xmlJavaTypeAdapterCtClass = BoundedClassPool.getSharedCtClass(classPool, XmlJavaTypeAdapter.class.getName());
         assert xmlJavaTypeAdapterCtClass != null;
 
         for (final Entry<String, String> entry : bindingEntries) {
@@ -358,7 +416,7 @@ public class PackageInfoModifier {
     }
     assert classPool != null;
 
-    final CtClass xmlJavaTypeAdapterCtClass = classPool.getOrNull(XmlJavaTypeAdapter.class.getName());
+    final CtClass xmlJavaTypeAdapterCtClass = BoundedClassPool.getSharedCtClass(classPool, XmlJavaTypeAdapter.class.getName());
     assert xmlJavaTypeAdapterCtClass != null;
     
     final Annotation adapterAnnotation = new Annotation(constantPool, xmlJavaTypeAdapterCtClass);
@@ -475,30 +533,39 @@ public class PackageInfoModifier {
     this.bindings = bindings;
   }
 
+  /**
+   * The result of {@linkplain PackageInfoModifier#modify(String)
+   * modifying} a {@code package-info} class.
+   *
+   * <p>{@link Modification}s are {@link Serializable}: they retain
+   * only the package name and the class bytes, not the Javassist
+   * {@link CtClass} from which they were produced.</p>
+   */
   public static final class Modification implements Serializable {
 
-    private static final long serialVersionUID = 1L;
+    private static final long serialVersionUID = 2L;
 
     public static enum Kind {
       UNMODIFIED, GENERATED, MODIFIED;
     }
 
-    private final CtClass packageInfoCtClass;
+    private final String packageName;
 
     private final byte[] bytes;
 
     private final Kind kind;
 
     private Modification(final CtClass packageInfoCtClass, final Kind kind, final byte[] bytes) {
+      this(getPackageName(packageInfoCtClass), kind, bytes);
+      assert packageInfoCtClass.isFrozen();
+    }
+
+    private Modification(final String packageName, final Kind kind, final byte[] bytes) {
       super();
-      if (packageInfoCtClass == null) {
-        throw new IllegalArgumentException("packageInfoCtClass", new NullPointerException("packageInfoCtClass"));
-      }
-      if (!"package-info".equals(packageInfoCtClass.getSimpleName())) {
-        throw new IllegalArgumentException("packageInfoCtClass must be a package-info class: " + packageInfoCtClass);
+      if (packageName == null) {
+        throw new IllegalArgumentException("packageName", new NullPointerException("packageName"));
       }
-      this.packageInfoCtClass = packageInfoCtClass;
-      assert packageInfoCtClass.isFrozen();
+      this.packageName = packageName;
       if (kind == null) {
         this.kind = Kind.MODIFIED;
       } else {
@@ -511,8 +578,18 @@ public class PackageInfoModifier {
       }
     }
 
+    private static final String getPackageName(final CtClass packageInfoCtClass) {
+      if (packageInfoCtClass == null) {
+        throw new IllegalArgumentException("packageInfoCtClass", new NullPointerException("packageInfoCtClass"));
+      }
+      if (!"package-info".equals(packageInfoCtClass.getSimpleName())) {
+        throw new IllegalArgumentException("packageInfoCtClass must be a package-info class: " + packageInfoCtClass);
+      }
+      return packageInfoCtClass.getPackageName();
+    }
+
     public final String getPackageName() {
-      return this.packageInfoCtClass.getPackageName();
+      return this.packageName;
     }
 
     public final Kind getKind() {
@@ -523,6 +600,42 @@ public class PackageInfoModifier {
       return this.bytes;
     }
 
+    /**
+     * Writes this {@link Modification}'s class bytes to the {@code
+     * package-info.class} file for its package beneath the supplied
+     * classes directory, unless this {@link Modification} is {@link
+     * Kind#UNMODIFIED} or that file already holds exactly these bytes.
+     *
+     * <p>Skipping identical writes leaves the file's modification
+     * time alone, so incremental builds downstream do not see a
+     * spurious change.</p>
+     *
+     * @param classesDirectory the root of the class file tree; must
+     * not be {@code null}
+     *
+     * @param force whether the written file should be {@linkplain
+     * java.nio.channels.FileChannel#force(boolean) forced} to storage
+     *
+     * @return {@code true} if the file was written; {@code false} if
+     * it was skipped
+     *
+     * @exception IllegalArgumentException if {@code classesDirectory}
+     * is {@code null}
+     *
+     * @exception IOException if the file could not be written
+     */
+    public final boolean writeTo(final File classesDirectory, final boolean force) throws IOException {
+      if (classesDirectory == null) {
+        throw new IllegalArgumentException("classesDirectory", new NullPointerException("classesDirectory"));
+      }
+      if (this.kind == Kind.UNMODIFIED || this.bytes.length <= 0) {
+        return false;
+      }
+      final File directory = this.packageName.isEmpty() ? classesDirectory : new File(classesDirectory, this.packageName.replace('.', File.separatorChar));
+      Files.createDirectories(directory.toPath());
+      return AtomicFileReplacement.replace(new File(directory, "package-info.class").toPath(), this.bytes, force);
+    }
+
   }
 
 }
@@ -0,0 +1,106 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.net.URL;
+
+import java.util.EventObject;
+
+/**
+ * An {@link EventObject} describing how far a {@linkplain
+ * ClassFileTrackingAnnotationDB#scanArchives(ScanProgressListener,
+ * ClassFileTrackingAnnotationDB.CancellationToken, long, URL...)
+ * monitored scan} has progressed.
+ *
+ * <p>Byte counts are the uncompressed sizes of the class files
+ * involved, as recorded in directory listings and in the central
+ * directories of archives, so totals are known before scanning
+ * begins.</p>
+ *
+ * @author <a href="http://about.me/lairdnelson"
+ * target="_parent">Laird Nelson</a>
+ *
+ * @see ScanProgressListener
+ */
+public class ScanProgressEvent extends EventObject {
+
+  private static final long serialVersionUID = 1L;
+
+  private final URL archive;
+
+  private final int archivesScanned;
+
+  private final int archiveCount;
+
+  private final long bytesScanned;
+
+  private final long byteCount;
+
+  public ScanProgressEvent(final ClassFileTrackingAnnotationDB source, final URL archive, final int archivesScanned, final int archiveCount, final long bytesScanned, final long byteCount) {
+    super(source);
+    this.archive = archive;
+    this.archivesScanned = archivesScanned;
+    this.archiveCount = archiveCount;
+    this.bytesScanned = bytesScanned;
+    this.byteCount = byteCount;
+  }
+
+  @Override
+  public final ClassFileTrackingAnnotationDB getSource() {
+    return (ClassFileTrackingAnnotationDB)super.getSource();
+  }
+
+  /**
+   * Returns the archive currently being scanned.
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return the {@link URL} of the archive being scanned, or {@code
+   * null}
+   */
+  public final URL getArchive() {
+    return this.archive;
+  }
+
+  public final int getArchivesScanned() {
+    return this.archivesScanned;
+  }
+
+  public final int getArchiveCount() {
+    return this.archiveCount;
+  }
+
+  public final long getBytesScanned() {
+    return this.bytesScanned;
+  }
+
+  public final long getByteCount() {
+    return this.byteCount;
+  }
+
+}
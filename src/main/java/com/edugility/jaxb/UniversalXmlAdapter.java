@@ -109,13 +109,17 @@ public abstract class UniversalXmlAdapter<UnmappableType, MappableType extends U
    * construction time ensure that this is always a valid thing to
    * do.</p>
    *
+   * <p>Adapters generated by the {@link XmlAdapterBytecodeGenerator}
+   * class override this method, by way of a bridge method, with one
+   * specialized to their own type arguments.</p>
+   *
    * @param mappableObject the object to unmarshal or deserialize; may
    * be {@code null}
    *
    * @return the supplied {@code mappableObject}
    */
   @Override
-  public final UnmappableType unmarshal(final MappableType mappableObject) {
+  public UnmappableType unmarshal(final MappableType mappableObject) {
     return mappableObject;
   }
 
@@ -133,6 +137,12 @@ public abstract class UniversalXmlAdapter<UnmappableType, MappableType extends U
    * unmappableObject} parameter as representing a Java object in the
    * graph.</p>
    *
+   * <p>Adapters generated by the {@link XmlAdapterBytecodeGenerator}
+   * class override this method, by way of a bridge method, with one
+   * specialized to their own type arguments that casts explicitly to
+   * their {@code MappableType}, so that a {@link ClassCastException}
+   * is thrown here rather than later.</p>
+   *
    * @param unmappableObject an object that for some reason or another
    * JAXB is incapable of handling natively; may be {@code null}
    *
@@ -144,7 +154,7 @@ public abstract class UniversalXmlAdapter<UnmappableType, MappableType extends U
    */
   @Override
   @SuppressWarnings("unchecked")
-  public final MappableType marshal(final UnmappableType unmappableObject) {
+  public MappableType marshal(final UnmappableType unmappableObject) {
     return (MappableType)unmappableObject;
   }
 }
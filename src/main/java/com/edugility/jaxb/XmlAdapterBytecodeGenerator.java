@@ -27,18 +27,38 @@
  */
 package com.edugility.jaxb;
 
+import java.io.File;
 import java.io.IOException;
 
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.Formatter; // for javadoc only
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.SortedMap;
+import java.util.TimeZone;
+import java.util.TreeMap;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
 
 import javassist.CannotCompileException;
 import javassist.ClassPool;
-import javassist.CtClass;
 import javassist.NotFoundException;
 
 import javassist.bytecode.BadBytecode;
-import javassist.bytecode.ClassFile;
-import javassist.bytecode.SignatureAttribute;
 
 /**
  * A generator of bytecode for {@link UniversalXmlAdapter} subclasses.
@@ -48,16 +68,19 @@ import javassist.bytecode.SignatureAttribute;
  *
  * @see #generate(String, String, String)
  *
+ * @see #generateAll(Map, JarOutputStream, int)
+ *
  * @see UniversalXmlAdapter
  */
 public class XmlAdapterBytecodeGenerator {
 
   /**
-   * An empty {@code byte} array suitable for edge cases encountered
-   * by the {@link #generate(String, String, String)} method.  This
-   * field is never {@code null}.
+   * The version of the class files this class generates.  It is part
+   * of every {@link AdapterBytecodeCache} key and is incremented
+   * whenever the bytes generated for a given adapter change, so that
+   * class files cached by earlier versions are never used.
    */
-  private static final byte[] EMPTY_BYTE_ARRAY = new byte[0];
+  public static final int GENERATOR_VERSION = 2;
 
   /**
    * A {@linkplain Formatter format string} used to name a {@link
@@ -71,13 +94,52 @@ public class XmlAdapterBytecodeGenerator {
    */
   private String adapterClassNameTemplate;
 
+  /**
+   * The {@link ClassPool} returned by the default implementation of
+   * the {@link #getClassPool(String)} method.  This field is {@code
+   * null} until that method first needs it, since adapter generation
+   * itself does not use a {@link ClassPool}.  Guarded by {@code
+   * this}.
+   */
+  private ClassPool classPool;
+
+  private volatile boolean reproducible;
+
+  /**
+   * The {@link AdapterBytecodeCache} consulted by the {@link
+   * #generate(String, String, String)} method.  This field may be
+   * {@code null}, in which case nothing is cached.
+   *
+   * @see #getCache()
+   *
+   * @see #setCache(AdapterBytecodeCache)
+   */
+  private volatile AdapterBytecodeCache cache;
+
   /**
    * Creates a new {@link XmlAdapterBytecodeGenerator} and {@linkplain
    * #setAdapterClassNameTemplate(String) sets the default adapter
    * class name template} to be {@code %s.%sTo%sAdapter}.
    */
   public XmlAdapterBytecodeGenerator() {
+    this(null);
+  }
+
+  /**
+   * Creates a new {@link XmlAdapterBytecodeGenerator} that will use
+   * the supplied {@link ClassPool} and {@linkplain
+   * #setAdapterClassNameTemplate(String) sets the default adapter
+   * class name template} to be {@code %s.%sTo%sAdapter}.
+   *
+   * @param classPool the {@link ClassPool} to use; if {@code null}, a
+   * new {@link BoundedClassPool} will be created if and when one is
+   * needed
+   *
+   * @see #getClassPool(String)
+   */
+  public XmlAdapterBytecodeGenerator(final ClassPool classPool) {
     super();
+    this.classPool = classPool;
     this.setAdapterClassNameTemplate("%s.%sTo%sAdapter");
   }
 
@@ -283,6 +345,20 @@ public class XmlAdapterBytecodeGenerator {
    * Consequently the resulting bytecode may not be functional in
    * certain cases.</p>
    *
+   * <p>The default implementation of this method patches the name
+   * and generic signature into a pre-built class file template.  It
+   * uses no {@link ClassPool}, leaves {@link ClassPool#getDefault()}
+   * untouched and never actually throws any of the <a
+   * href="http://javassist.org/">Javassist</a> exceptions it declares;
+   * they remain for the benefit of overrides.</p>
+   *
+   * <p>If this {@link XmlAdapterBytecodeGenerator} has a {@linkplain
+   * #getCache() cache}, it is consulted first, and anything generated
+   * is stored in it.  Calling this method any number of times with the
+   * same arguments therefore yields equal arrays, the first time at
+   * the cost of generating one and thereafter at the cost of copying
+   * one.  A cache that cannot be written to is not fatal.</p>
+   *
    * <p>This method never returns {@code null}.</p>
    *
    * @param adapterClassName the name of the {@link
@@ -327,34 +403,426 @@ public class XmlAdapterBytecodeGenerator {
     if (implementationClassName == null) {
       throw new IllegalArgumentException("implementationClassName", new NullPointerException("implementationClassName"));
     }
-    
-    ClassPool classPool = this.getClassPool(adapterClassName);
-    if (classPool == null) {
-      classPool = ClassPool.getDefault();
+    final AdapterBytecodeCache cache = this.getCache();
+    if (cache != null) {
+      final byte[] cached = cache.get(adapterClassName, interfaceClassName, implementationClassName);
+      if (cached != null) {
+        return cached;
+      }
+    }
+    // Every adapter is the same class file apart from its name and
+    // generic signature, so splice those into a pre-built template
+    // rather than building a CtClass for each one.
+    final byte[] returnValue = AdapterClassFileTemplate.generate(adapterClassName, interfaceClassName, implementationClassName);
+    if (cache != null) {
+      try {
+        cache.put(adapterClassName, interfaceClassName, implementationClassName, returnValue);
+      } catch (final IOException ignored) {
+        // The adapter can always be generated again.
+      }
     }
-    assert classPool != null;
+    return returnValue;
+  }
+
+  /**
+   * Generates a {@link UniversalXmlAdapter} subclass for every
+   * binding in the supplied {@link Map} and writes them all, as class
+   * file entries, to the supplied {@link JarOutputStream}.
+   *
+   * <p>This method behaves exactly as though the {@link
+   * #generateAll(Map, JarOutputStream, int)} method were called with
+   * the number of available processors as its last argument.</p>
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; must not be {@code null}
+   *
+   * @param out the {@link JarOutputStream} to write to; must not be
+   * {@code null}; it is not closed
+   *
+   * @return a non-{@code null} {@link Map} of the names of the
+   * generated adapter classes indexed by the names of the interfaces
+   * they adapt, in the order in which they were written
+   *
+   * @exception BadBytecode if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception CannotCompileException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception IOException if there was a problem writing
+   *
+   * @exception NotFoundException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @see #generateAll(Map, JarOutputStream, int)
+   */
+  public final Map<String, String> generateAll(final Map<String, String> bindings, final JarOutputStream out) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    return this.generateAll(bindings, out, Runtime.getRuntime().availableProcessors());
+  }
+
+  /**
+   * Generates a {@link UniversalXmlAdapter} subclass for every
+   * binding in the supplied {@link Map}, using up to the supplied
+   * number of threads, and writes them all, as class file entries, to
+   * the supplied {@link JarOutputStream}.
+   *
+   * <p>Adapters are named by the {@link #getAdapterClassName(String,
+   * String, String)} method, in the {@linkplain
+   * #getAdapterPackageName(String, String) package} of the interface
+   * each adapts.  While adapters are generated in parallel, they are
+   * written by the calling thread alone, in adapter class name order,
+   * so the jar file is produced in one sequential pass and its
+   * contents do not depend on thread scheduling.  If this {@link
+   * XmlAdapterBytecodeGenerator} is {@linkplain #isReproducible()
+   * reproducible}, every entry is stamped with the {@linkplain
+   * JarRewriter#getReproducibleTime() reproducible time}.</p>
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; must not be {@code null}
+   *
+   * @param out the {@link JarOutputStream} to write to; must not be
+   * {@code null}; it is not closed
+   *
+   * @param parallelism the maximum number of threads to generate
+   * adapters with; if less than {@code 2}, the calling thread
+   * generates every adapter itself
+   *
+   * @return a non-{@code null} {@link Map} of the names of the
+   * generated adapter classes indexed by the names of the interfaces
+   * they adapt, in the order in which they were written
+   *
+   * @exception IllegalArgumentException if {@code bindings} or {@code
+   * out} is {@code null}, or if {@code bindings} contains a {@code
+   * null} key or value
+   *
+   * @exception BadBytecode if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception CannotCompileException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception IOException if there was a problem writing
+   *
+   * @exception NotFoundException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   */
+  public final Map<String, String> generateAll(final Map<String, String> bindings, final JarOutputStream out, final int parallelism) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    if (out == null) {
+      throw new IllegalArgumentException("out", new NullPointerException("out"));
+    }
+    final long time;
+    if (this.isReproducible()) {
+      // JarEntry interprets times in the default time zone; shift the
+      // reproducible time so that the recorded fields are the same
+      // everywhere and match those JarRewriter records.
+      final long reproducibleTime = JarRewriter.getReproducibleTime();
+      time = reproducibleTime - TimeZone.getDefault().getOffset(reproducibleTime);
+    } else {
+      time = -1L;
+    }
+    return this.generateAll(bindings, new Sink() {
+        @Override
+        public final void write(final String adapterClassName, final byte[] classBytes) throws IOException {
+          final JarEntry entry = new JarEntry(adapterClassName.replace('.', '/') + ".class");
+          if (time >= 0L) {
+            entry.setTime(time);
+          }
+          out.putNextEntry(entry);
+          out.write(classBytes);
+          out.closeEntry();
+        }
+      }, parallelism);
+  }
+
+  /**
+   * Generates a {@link UniversalXmlAdapter} subclass for every
+   * binding in the supplied {@link Map} and writes each to its class
+   * file beneath the supplied directory.
+   *
+   * <p>This method behaves exactly as though the {@link
+   * #generateAll(Map, File, int)} method were called with the number
+   * of available processors as its last argument.</p>
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; must not be {@code null}
+   *
+   * @param directory the root of the class file tree to write to;
+   * must not be {@code null}
+   *
+   * @return a non-{@code null} {@link Map} of the names of the
+   * generated adapter classes indexed by the names of the interfaces
+   * they adapt, in the order in which they were written
+   *
+   * @exception BadBytecode if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception CannotCompileException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception IOException if there was a problem writing
+   *
+   * @exception NotFoundException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @see #generateAll(Map, File, int)
+   */
+  public final Map<String, String> generateAll(final Map<String, String> bindings, final File directory) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    return this.generateAll(bindings, directory, Runtime.getRuntime().availableProcessors());
+  }
 
-    final CtClass universalXmlAdapterCtClass = classPool.get(UniversalXmlAdapter.class.getName());
-    assert universalXmlAdapterCtClass != null;
+  /**
+   * Generates a {@link UniversalXmlAdapter} subclass for every
+   * binding in the supplied {@link Map}, using up to the supplied
+   * number of threads, and writes each to its class file beneath the
+   * supplied directory.
+   *
+   * <p>Adapters are named and ordered exactly as they are by the
+   * {@link #generateAll(Map, JarOutputStream, int)} method.  Each
+   * class file is replaced atomically, and class files that already
+   * hold exactly the generated bytes are left untouched.</p>
+   *
+   * @param bindings implementation class names indexed by the names
+   * of the interfaces they implement; must not be {@code null}
+   *
+   * @param directory the root of the class file tree to write to;
+   * must not be {@code null}
+   *
+   * @param parallelism the maximum number of threads to generate
+   * adapters with; if less than {@code 2}, the calling thread
+   * generates every adapter itself
+   *
+   * @return a non-{@code null} {@link Map} of the names of the
+   * generated adapter classes indexed by the names of the interfaces
+   * they adapt, in the order in which they were written
+   *
+   * @exception IllegalArgumentException if {@code bindings} or {@code
+   * directory} is {@code null}, or if {@code bindings} contains a
+   * {@code null} key or value
+   *
+   * @exception BadBytecode if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception CannotCompileException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   *
+   * @exception IOException if there was a problem writing
+   *
+   * @exception NotFoundException if <a
+   * href="http://javassist.org/">Javassist</a> had problems with
+   * bytecode generation
+   */
+  public final Map<String, String> generateAll(final Map<String, String> bindings, final File directory, final int parallelism) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    if (directory == null) {
+      throw new IllegalArgumentException("directory", new NullPointerException("directory"));
+    }
+    final Path root = directory.toPath();
+    return this.generateAll(bindings, new Sink() {
+        @Override
+        public final void write(final String adapterClassName, final byte[] classBytes) throws IOException {
+          final Path classFile = root.resolve(adapterClassName.replace('.', File.separatorChar) + ".class");
+          Files.createDirectories(classFile.getParent());
+          AtomicFileReplacement.replace(classFile, classBytes, false);
+        }
+      }, parallelism);
+  }
 
-    final CtClass adapterCtClass = classPool.makeClass(adapterClassName, universalXmlAdapterCtClass);
-    assert adapterCtClass != null;
-    final ClassFile adapterClassFile = adapterCtClass.getClassFile();
-    assert adapterClassFile != null;
+  private final Map<String, String> generateAll(final Map<String, String> bindings, final Sink sink, final int parallelism) throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+    if (bindings == null) {
+      throw new IllegalArgumentException("bindings", new NullPointerException("bindings"));
+    }
+    assert sink != null;
 
-    assert adapterClassFile.getAttribute(SignatureAttribute.tag) == null; // we just created it after all
+    // Name every adapter up front and sort by name, which fixes the
+    // order in which they are written.
+    final SortedMap<String, String[]> work = new TreeMap<String, String[]>();
+    for (final Entry<String, String> binding : bindings.entrySet()) {
+      final String interfaceName = binding.getKey();
+      final String implementationClassName = binding.getValue();
+      if (interfaceName == null || implementationClassName == null) {
+        throw new IllegalArgumentException("bindings", new NullPointerException(interfaceName == null ? "interfaceName" : "implementationClassName"));
+      }
+      final String adapterClassName = this.getAdapterClassName(this.getAdapterPackageName(interfaceName, implementationClassName), interfaceName, implementationClassName);
+      if (work.put(adapterClassName, new String[] { interfaceName, implementationClassName }) != null) {
+        throw new IllegalArgumentException("More than one binding would produce " + adapterClassName);
+      }
+    }
+    final Map<String, String> returnValue = new LinkedHashMap<String, String>(work.size() * 4 / 3 + 1);
+    if (work.isEmpty()) {
+      return returnValue;
+    }
 
-    final SignatureAttribute adapterClassSignatureAttribute = new SignatureAttribute(adapterClassFile.getConstPool(), String.format("L%s<L%s;L%s;>;", UniversalXmlAdapter.class.getName().replace('.', '/'), interfaceClassName.replace('.', '/'), implementationClassName.replace('.', '/')));
-    adapterClassFile.addAttribute(adapterClassSignatureAttribute);
+    final int threadCount = Math.min(parallelism, work.size());
+    if (threadCount < 2) {
+      for (final Entry<String, String[]> entry : work.entrySet()) {
+        final String adapterClassName = entry.getKey();
+        final String[] names = entry.getValue();
+        sink.write(adapterClassName, this.generate(adapterClassName, names[0], names[1]));
+        returnValue.put(names[0], adapterClassName);
+      }
+      return returnValue;
+    }
 
-    assert adapterClassFile.getAttribute(SignatureAttribute.tag) != null;
-    
-    byte[] returnValue = adapterCtClass.toBytecode();
-    if (returnValue == null) {
-      returnValue = EMPTY_BYTE_ARRAY;
+    final ExecutorService executor = Executors.newFixedThreadPool(threadCount, new ThreadFactory() {
+        @Override
+        public final Thread newThread(final Runnable runnable) {
+          final Thread thread = new Thread(runnable, "XmlAdapterBytecodeGenerator");
+          thread.setDaemon(true);
+          return thread;
+        }
+      });
+    try {
+      // Keep a bounded window of adapters in flight so that memory
+      // use does not grow with the size of the model; the calling
+      // thread writes each one, in order, as soon as it is ready.
+      final int window = threadCount * 4;
+      final Deque<Future<byte[]>> inFlight = new ArrayDeque<Future<byte[]>>(window);
+      final Deque<String> inFlightNames = new ArrayDeque<String>(window);
+      final Iterator<Entry<String, String[]>> iterator = work.entrySet().iterator();
+      while (iterator.hasNext() || !inFlight.isEmpty()) {
+        while (iterator.hasNext() && inFlight.size() < window) {
+          final Entry<String, String[]> entry = iterator.next();
+          final String adapterClassName = entry.getKey();
+          final String[] names = entry.getValue();
+          inFlight.addLast(executor.submit(new Callable<byte[]>() {
+              @Override
+              public final byte[] call() throws BadBytecode, CannotCompileException, IOException, NotFoundException {
+                return generate(adapterClassName, names[0], names[1]);
+              }
+            }));
+          inFlightNames.addLast(adapterClassName);
+        }
+        final String adapterClassName = inFlightNames.removeFirst();
+        final byte[] classBytes;
+        try {
+          classBytes = inFlight.removeFirst().get();
+        } catch (final ExecutionException e) {
+          final Throwable cause = e.getCause() == null ? e : e.getCause();
+          if (cause instanceof BadBytecode) {
+            throw (BadBytecode)cause;
+          } else if (cause instanceof CannotCompileException) {
+            throw (CannotCompileException)cause;
+          } else if (cause instanceof IOException) {
+            throw (IOException)cause;
+          } else if (cause instanceof NotFoundException) {
+            throw (NotFoundException)cause;
+          } else if (cause instanceof RuntimeException) {
+            throw (RuntimeException)cause;
+          } else if (cause instanceof Error) {
+            throw (Error)cause;
+          } else {
+            throw new IOException(cause);
+          }
+        } catch (final InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new IOException(e);
+        }
+        sink.write(adapterClassName, classBytes);
+        returnValue.put(work.get(adapterClassName)[0], adapterClassName);
+      }
+    } finally {
+      executor.shutdownNow();
     }
     return returnValue;
+  }
 
+  /**
+   * Returns the name of the package in which the adapter for the
+   * supplied interface and implementation class should be generated
+   * by the {@code generateAll} methods.
+   *
+   * <p>The default implementation returns the package of the
+   * interface, or the empty string if it is in the unnamed
+   * package.</p>
+   *
+   * @param interfaceName the name of the interface being adapted;
+   * must not be {@code null}
+   *
+   * @param implementationClassName the name of its implementation
+   * class; must not be {@code null}
+   *
+   * @return a non-{@code null} package name
+   */
+  protected String getAdapterPackageName(final String interfaceName, final String implementationClassName) {
+    final int lastDotIndex = interfaceName.lastIndexOf('.');
+    return lastDotIndex < 0 ? "" : interfaceName.substring(0, lastDotIndex);
+  }
+
+  /**
+   * Returns {@code true} if jar entries written by the {@link
+   * #generateAll(Map, JarOutputStream, int)} method are stamped with
+   * the {@linkplain JarRewriter#getReproducibleTime() reproducible
+   * time} rather than the current time.
+   *
+   * @return {@code true} if jar output is reproducible
+   *
+   * @see #setReproducible(boolean)
+   */
+  public boolean isReproducible() {
+    return this.reproducible;
+  }
+
+  /**
+   * Sets whether jar entries written by the {@link #generateAll(Map,
+   * JarOutputStream, int)} method should be stamped with the
+   * {@linkplain JarRewriter#getReproducibleTime() reproducible time}
+   * rather than the current time, so that the same bindings always
+   * produce the same jar file.
+   *
+   * @param reproducible whether jar output should be reproducible
+   *
+   * @see #isReproducible()
+   */
+  public void setReproducible(final boolean reproducible) {
+    this.reproducible = reproducible;
+  }
+
+  /**
+   * Returns the {@link AdapterBytecodeCache} consulted by the {@link
+   * #generate(String, String, String)} method.
+   *
+   * <p>By default there is no cache: generating an adapter is a
+   * splice into a class file template and costs no more than a cache
+   * lookup would.  Callers that want adapters shared across builds
+   * may {@linkplain #setCache(AdapterBytecodeCache) supply} a cache
+   * with a {@linkplain AdapterBytecodeCache#getDirectory()
+   * directory}.</p>
+   *
+   * <p>This method may return {@code null}.</p>
+   *
+   * @return an {@link AdapterBytecodeCache}, or {@code null} if
+   * nothing is cached
+   *
+   * @see #setCache(AdapterBytecodeCache)
+   */
+  public AdapterBytecodeCache getCache() {
+    return this.cache;
+  }
+
+  /**
+   * Sets the {@link AdapterBytecodeCache} consulted by the {@link
+   * #generate(String, String, String)} method.  Supplying a cache
+   * with a {@linkplain AdapterBytecodeCache#getDirectory() directory}
+   * lets repeated builds reuse each other's adapters; supplying
+   * {@code null} turns caching off.
+   *
+   * @param cache the {@link AdapterBytecodeCache} to use; may be
+   * {@code null}
+   *
+   * @see #getCache()
+   */
+  public void setCache(final AdapterBytecodeCache cache) {
+    this.cache = cache;
   }
 
   /**
@@ -362,13 +830,19 @@ public class XmlAdapterBytecodeGenerator {
    * ClassPool} that is appropriate for the supplied class name.
    *
    * <p>The default implementation of this method ignores the {@code
-   * className} parameter and returns the return value of {@link
-   * ClassPool#getDefault()}.  For nearly all cases, this is the
-   * correct behavior and this method should not be overridden.</p>
-   *
-   * <p>If overrides of this method opt to return {@code null}, the
-   * return value of {@link ClassPool#getDefault()} will be used
-   * internally instead.</p>
+   * className} parameter and returns the {@link ClassPool} supplied at
+   * {@linkplain #XmlAdapterBytecodeGenerator(ClassPool) construction
+   * time}, which by default is a new {@link BoundedClassPool} private
+   * to this {@link XmlAdapterBytecodeGenerator}.  Unlike {@link
+   * ClassPool#getDefault()}, such a {@link ClassPool} does not retain
+   * every {@link javassist.CtClass} ever touched for the life of the
+   * JVM.  For nearly all cases, this is the correct behavior and this
+   * method should not be overridden.</p>
+   *
+   * <p>The {@link #generate(String, String, String)} method does not
+   * call this method; adapters are produced from a pre-built class
+   * file template without the aid of any {@link ClassPool}.  This
+   * method remains for the benefit of subclasses.</p>
    *
    * <p>This method is {@code protected}, not {@code private}, only
    * because the actual semantics of the {@link
@@ -391,7 +865,28 @@ public class XmlAdapterBytecodeGenerator {
    * @see ClassPool#getDefault()
    */
   protected ClassPool getClassPool(final String className) {
-    return ClassPool.getDefault();
+    synchronized (this) {
+      if (this.classPool == null) {
+        this.classPool = new BoundedClassPool();
+      }
+      return this.classPool;
+    }
+  }
+
+
+  /*
+   * Inner and nested classes.
+   */
+
+
+  /**
+   * Receives generated adapters, in order, from the private {@code
+   * generateAll} method.
+   */
+  private static interface Sink {
+
+    void write(final String adapterClassName, final byte[] classBytes) throws IOException;
+
   }
 
 }
@@ -0,0 +1,93 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseAdapterBytecodeCache {
+
+  private static final String ADAPTER = "com.edugility.jaxb.PersonToPersonImplementationAdapter";
+
+  @Test
+  public void testEviction() throws Exception {
+    final AdapterBytecodeCache cache = new AdapterBytecodeCache(1, null);
+    final byte[] first = AdapterClassFileTemplate.generate(ADAPTER, Person.class.getName(), PersonImplementation.class.getName());
+    cache.put(ADAPTER, Person.class.getName(), PersonImplementation.class.getName(), first);
+    assertArrayEquals(first, cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()));
+    assertEquals(1L, cache.getHits());
+
+    // Returned arrays are copies.
+    assertNotSame(cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()), cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()));
+
+    // Every part of the key matters.
+    assertNull(cache.get(ADAPTER, Person.class.getName(), AnyTypeAdapter.class.getName()));
+    assertEquals(1L, cache.getMisses());
+
+    final byte[] second = AdapterClassFileTemplate.generate(ADAPTER, Person.class.getName(), AnyTypeAdapter.class.getName());
+    cache.put(ADAPTER, Person.class.getName(), AnyTypeAdapter.class.getName(), second);
+    assertEquals(1, cache.size());
+    assertNull(cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()));
+  }
+
+  @Test
+  public void testDirectory() throws Exception {
+    final File directory = new File(System.getProperty("maven.project.build.directory", System.getProperty("project.build.directory", "target")), "adapter-cache");
+    final File[] stale = directory.listFiles();
+    if (stale != null) {
+      for (final File file : stale) {
+        assertTrue(file.delete());
+      }
+    }
+
+    // A generator caching to disk...
+    final XmlAdapterBytecodeGenerator generator = new XmlAdapterBytecodeGenerator();
+    generator.setCache(new AdapterBytecodeCache(1, directory));
+    final byte[] generated = generator.generate(ADAPTER, Person.class, PersonImplementation.class);
+    assertArrayEquals(generated, generator.generate(ADAPTER, Person.class, PersonImplementation.class));
+    assertEquals(1L, generator.getCache().getHits());
+    final File[] files = directory.listFiles();
+    assertNotNull(files);
+    assertEquals(1, files.length);
+
+    // ...lets a later one skip generation entirely.
+    final AdapterBytecodeCache cache = new AdapterBytecodeCache(1, directory);
+    assertArrayEquals(generated, cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()));
+    assertEquals(1, cache.size());
+
+    // A damaged disk entry is ignored.
+    cache.clear();
+    assertTrue(files[0].delete());
+    assertTrue(files[0].createNewFile());
+    assertNull(cache.get(ADAPTER, Person.class.getName(), PersonImplementation.class.getName()));
+  }
+
+}
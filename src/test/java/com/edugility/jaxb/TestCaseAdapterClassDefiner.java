@@ -0,0 +1,160 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+
+import java.lang.reflect.ParameterizedType;
+
+import java.util.Collections;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseAdapterClassDefiner {
+
+  @Test
+  public void testGetAdapterClass() throws Exception {
+    final AdapterClassDefiner definer = new AdapterClassDefiner(Collections.singletonMap(Person.class.getName(), PersonImplementation.class.getName()));
+    assertNull(definer.getAdapterClass(null));
+    assertNull(definer.getAdapterClass(String.class));
+
+    final Class<?> adapterClass = definer.getAdapterClass(Person.class);
+    assertNotNull(adapterClass);
+    assertEquals("com.edugility.jaxb.PersonToPersonImplementationAdapter", adapterClass.getName());
+    assertSame(UniversalXmlAdapter.class, adapterClass.getSuperclass());
+    final ParameterizedType adapterSuperType = (ParameterizedType)adapterClass.getGenericSuperclass();
+    assertSame(Person.class, adapterSuperType.getActualTypeArguments()[0]);
+    assertSame(PersonImplementation.class, adapterSuperType.getActualTypeArguments()[1]);
+    assertTrue(adapterClass.getConstructor().newInstance() instanceof UniversalXmlAdapter);
+
+    // Repeat lookups are cached.
+    assertSame(adapterClass, definer.getAdapterClass(Person.class));
+
+    // Adapters are defined alongside their interfaces when the
+    // platform allows it, and either way can see them.
+    assertSame(Person.class, Class.forName(Person.class.getName(), false, adapterClass.getClassLoader()));
+
+    if (adapterClass.getClassLoader() == Person.class.getClassLoader()) {
+      // Another definer finds the adapter that is already there.
+      assertSame(adapterClass, new AdapterClassDefiner(definer.getBindings()).getAdapterClass(Person.class));
+    }
+  }
+
+  @Test
+  public void testDefineInClassLoaderWithoutPrivateLookup() throws Exception {
+    // This is the only way adapters get into their interfaces'
+    // ClassLoaders before Java 9; on later versions it needs java.lang
+    // to be opened to the tests.
+    Assume.assumeTrue(AdapterClassDefiner.canDefineInClassLoader());
+
+    // Use private copies of the bound types so that no other test's
+    // adapter is visible.
+    final IsolatingClassLoader loader = new IsolatingClassLoader();
+    final Class<?> person = loader.loadClass(Person.class.getName());
+    assertNotSame(Person.class, person);
+    final Class<?> personImplementation = loader.loadClass(PersonImplementation.class.getName());
+
+    final AdapterClassDefiner definer = new AdapterClassDefiner(Collections.singletonMap(Person.class.getName(), PersonImplementation.class.getName()), null, false);
+    final Class<?> adapterClass = definer.getAdapterClass(person);
+    assertNotNull(adapterClass);
+    assertSame(loader, adapterClass.getClassLoader());
+    final ParameterizedType adapterSuperType = (ParameterizedType)adapterClass.getGenericSuperclass();
+    assertSame(person, adapterSuperType.getActualTypeArguments()[0]);
+    assertSame(personImplementation, adapterSuperType.getActualTypeArguments()[1]);
+
+    // A decorated interface resolves its adapter by name through its
+    // own ClassLoader.
+    assertSame(adapterClass, Class.forName("com.edugility.jaxb.PersonToPersonImplementationAdapter", false, loader));
+
+    // Another definer finds the adapter that is already there instead
+    // of defining it again.
+    assertSame(adapterClass, new AdapterClassDefiner(definer.getBindings(), null, false).getAdapterClass(person));
+  }
+
+  /**
+   * Loads its own copies of {@link Person}, {@link
+   * PersonImplementation} and their adapter rather than delegating to
+   * its parent.
+   */
+  private static final class IsolatingClassLoader extends ClassLoader {
+
+    private IsolatingClassLoader() {
+      super(TestCaseAdapterClassDefiner.class.getClassLoader());
+    }
+
+    @Override
+    protected final Class<?> loadClass(final String className, final boolean resolve) throws ClassNotFoundException {
+      if (!className.startsWith(Person.class.getName())) {
+        return super.loadClass(className, resolve);
+      }
+      synchronized (this.getClassLoadingLock(className)) {
+        Class<?> c = this.findLoadedClass(className);
+        if (c == null) {
+          c = this.findClass(className);
+        }
+        if (resolve) {
+          this.resolveClass(c);
+        }
+        return c;
+      }
+    }
+
+    @Override
+    protected final Class<?> findClass(final String className) throws ClassNotFoundException {
+      final InputStream stream = this.getParent().getResourceAsStream(className.replace('.', '/') + ".class");
+      if (stream == null) {
+        throw new ClassNotFoundException(className);
+      }
+      try {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final byte[] buffer = new byte[4096];
+        int bytesRead;
+        while ((bytesRead = stream.read(buffer)) != -1) {
+          out.write(buffer, 0, bytesRead);
+        }
+        final byte[] classBytes = out.toByteArray();
+        return this.defineClass(className, classBytes, 0, classBytes.length);
+      } catch (final IOException e) {
+        throw new ClassNotFoundException(className, e);
+      } finally {
+        try {
+          stream.close();
+        } catch (final IOException ignored) {
+          // ignored
+        }
+      }
+    }
+
+  }
+
+}
@@ -0,0 +1,73 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseBindingTable {
+
+  @Test
+  public void testLookups() throws Exception {
+    final Map<String, String> bindings = new HashMap<String, String>();
+    bindings.put(Person.class.getName(), PersonImplementation.class.getName());
+    bindings.put("com.foo.B", "com.foo.BImpl");
+    bindings.put("com.foo.A", "com.foo.AImpl");
+    final BindingTable table = BindingTable.of(bindings);
+    assertEquals(3, table.size());
+    assertEquals(bindings, table);
+    assertEquals("com.foo.AImpl", table.getImplementationClassName("com.foo.A"));
+    assertNull(table.getImplementationClassName("com.foo.C"));
+    assertEquals(Person.class.getName(), table.keySet().iterator().next());
+    assertSame(PersonImplementation.class, table.getImplementationClass(Person.class));
+    assertSame(PersonImplementation.class, table.getImplementationClass(Person.class));
+    assertNull(table.getImplementationClass(Map.class));
+  }
+
+  @Test(expected = UnsupportedOperationException.class)
+  public void testImmutability() throws Exception {
+    BindingTable.of(new HashMap<String, String>()).put("a", "b");
+  }
+
+  @Test
+  public void testBuilder() throws Exception {
+    final BindingTable.Builder builder = new BindingTable.Builder();
+    final ImplementationClassFinder finder = new ImplementationClassFinder();
+    builder.implementationClassDiscovered(new ImplementationClassDiscoveryEvent(finder, "com.foo.A", "com.foo.AImpl"));
+    builder.implementationClassDiscovered(new ImplementationClassDiscoveryEvent(finder, "com.foo.B", "com.foo.BImpl"));
+    builder.implementationClassRemoved(new ImplementationClassDiscoveryEvent(finder, "com.foo.B", "com.foo.BImpl"));
+    final BindingTable table = builder.build();
+    assertEquals(1, table.size());
+    assertEquals("com.foo.AImpl", table.get("com.foo.A"));
+  }
+
+}
@@ -0,0 +1,63 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import javassist.CtClass;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseBoundedClassPool {
+
+  @Test
+  public void testEviction() throws Exception {
+    final BoundedClassPool pool = new BoundedClassPool(2);
+    final CtClass adapter = pool.getXmlJavaTypeAdapterCtClass();
+    assertNotNull(adapter);
+    assertNotNull(pool.get(Person.class.getName()));
+    assertNotNull(pool.get(PersonImplementation.class.getName()));
+    assertNotNull(pool.get(AnyTypeAdapter.class.getName()));
+    assertNotNull(pool.get(UniversalXmlAdapter.class.getName()));
+    assertTrue(pool.size() <= 2);
+    // Shared types survive eviction.
+    assertSame(adapter, pool.getXmlJavaTypeAdapterCtClass());
+    assertSame(adapter, pool.get(adapter.getName()));
+  }
+
+  @Test
+  public void testDetach() throws Exception {
+    final BoundedClassPool pool = new BoundedClassPool();
+    final CtClass person = pool.get(Person.class.getName());
+    assertEquals(1, pool.size());
+    person.detach();
+    assertEquals(0, pool.size());
+    assertNotSame(person, pool.get(Person.class.getName()));
+  }
+
+}
@@ -0,0 +1,141 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+
+import java.net.URL;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+
+import javassist.bytecode.ClassFile;
+
+import javassist.bytecode.annotation.Annotation;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseClassFileTrackingAnnotationDB {
+
+  @Test
+  public void testProgress() throws Exception {
+    final List<ScanProgressEvent> events = new ArrayList<ScanProgressEvent>();
+    final DB db = new DB();
+    final ClassFileTrackingAnnotationDB.ScanStatus status = db.scanArchives(new ScanProgressListener() {
+        @Override
+        public final void scanProgressed(final ScanProgressEvent event) {
+          events.add(event);
+        }
+      }, null, 0L, this.getTestOutputDirectory().toURI().toURL(), this.getClass().getResource("/source.jar"));
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.COMPLETE, status);
+    assertFalse(events.isEmpty());
+    final ScanProgressEvent last = events.get(events.size() - 1);
+    assertEquals(2, last.getArchiveCount());
+    assertEquals(2, last.getArchivesScanned());
+    assertTrue(last.getByteCount() > 0L);
+    assertEquals(last.getByteCount(), last.getBytesScanned());
+    assertFalse(db.classNames.isEmpty());
+  }
+
+  @Test
+  public void testCancellation() throws Exception {
+    final ClassFileTrackingAnnotationDB.CancellationToken token = new ClassFileTrackingAnnotationDB.CancellationToken();
+    token.cancel();
+    final DB db = new DB();
+    final ClassFileTrackingAnnotationDB.ScanStatus status = db.scanArchives(null, token, 0L, this.getTestOutputDirectory().toURI().toURL());
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.CANCELLED, status);
+    assertFalse(status.isComplete());
+    assertTrue(db.classNames.isEmpty());
+  }
+
+  @Test
+  public void testTimeBudget() throws Exception {
+    final List<ScanProgressEvent> events = new ArrayList<ScanProgressEvent>();
+    // Each class file takes longer than the whole budget, so the scan
+    // must stop after the first one.
+    final DB db = new DB(600L);
+    final ClassFileTrackingAnnotationDB.ScanStatus status = db.scanArchives(new ScanProgressListener() {
+        @Override
+        public final void scanProgressed(final ScanProgressEvent event) {
+          events.add(event);
+        }
+      }, null, 500L, this.getTestOutputDirectory().toURI().toURL(), this.getClass().getResource("/source.jar"));
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.TIMED_OUT, status);
+    assertFalse(status.isComplete());
+    assertEquals(1, new HashSet<String>(db.classNames).size());
+    for (final ScanProgressEvent event : events) {
+      assertEquals(2, event.getArchiveCount());
+      assertEquals(0, event.getArchivesScanned());
+      assertTrue(event.getBytesScanned() < event.getByteCount());
+    }
+  }
+
+  public File getTestOutputDirectory() {
+    final File directory = new File(System.getProperty("maven.project.build.testOutputDirectory", System.getProperty("project.build.testOutputDirectory", "target/test-classes")));
+    assertTrue(directory.isDirectory());
+    return directory;
+  }
+
+  private static final class DB extends ClassFileTrackingAnnotationDB {
+
+    private static final long serialVersionUID = 1L;
+
+    private final List<String> classNames = new ArrayList<String>();
+
+    private final long delayMillis;
+
+    private DB() {
+      this(0L);
+    }
+
+    private DB(final long delayMillis) {
+      super();
+      this.delayMillis = delayMillis;
+    }
+
+    @Override
+    protected final void populate(final Annotation[] annotations, final ClassFile cf) {
+      if (cf != null) {
+        final boolean newClassFile = this.classNames.isEmpty() || !cf.getName().equals(this.classNames.get(this.classNames.size() - 1));
+        this.classNames.add(cf.getName());
+        if (newClassFile && this.delayMillis > 0L) {
+          try {
+            Thread.sleep(this.delayMillis);
+          } catch (final InterruptedException interrupted) {
+            Thread.currentThread().interrupt();
+          }
+        }
+      }
+    }
+
+  }
+
+}
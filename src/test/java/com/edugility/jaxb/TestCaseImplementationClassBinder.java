@@ -28,14 +28,25 @@
 package com.edugility.jaxb;
 
 import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.io.StringWriter;
 
 import java.net.URI;
 import java.net.URL;
 
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
 import java.util.Collections;
+import java.util.List;
 import java.util.Map;
 
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.JAXBContext;
+
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -54,6 +65,233 @@ public class TestCaseImplementationClassBinder {
     finder.scanArchives();
   }
 
+  @Test
+  public void testPipelined() throws Exception {
+    final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+    final List<URL> archives = new ArrayList<URL>();
+    final ImplementationClassFinder finder = new ImplementationClassFinder(null, Arrays.asList("java.io"));
+    final ImplementationClassBinder binder = new ImplementationClassBinder() {
+        @Override
+        public long processModifications(final String location, final Collection<InterfaceDecorator.Modification> mods) {
+          assertEquals("ImplementationClassBinder", Thread.currentThread().getName());
+          for (final InterfaceDecorator.Modification mod : mods) {
+            writes.add(mod.getInterfaceName());
+          }
+          return 0L;
+        }
+
+        @Override
+        public void archiveScanned(final ImplementationClassDiscoveryEvent event) {
+          archives.add(event.getArchive());
+          super.archiveScanned(event);
+        }
+      };
+    // Other tests may already have decorated Person with the default
+    // adapter name, so use a distinct one.
+    binder.setAdapterClassNameTemplate("%s.%sTo%sPipelinedAdapter");
+    binder.setPipelined(true);
+    binder.setWriterThreadCount(2);
+    assertTrue(binder.isPipelined());
+    finder.addImplementationClassDiscoveryListener(binder);
+    final File testOutputDirectory = this.getTestOutputDirectory();
+    finder.setURIs(Collections.singleton(testOutputDirectory.toURI()));
+    finder.scanArchives();
+    assertEquals(Collections.singletonList(testOutputDirectory.toURI().toURL()), archives);
+    assertEquals(Collections.singletonList(Person.class.getName()), writes);
+  }
+
+  @Test
+  public void testCancelledScanWritesNothing() throws Exception {
+    final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+    final ImplementationClassFinder finder = new ImplementationClassFinder(null, Arrays.asList("java.io"));
+    final ClassFileTrackingAnnotationDB.CancellationToken token = new ClassFileTrackingAnnotationDB.CancellationToken();
+    final List<ImplementationClassDiscoveryEvent> endings = new ArrayList<ImplementationClassDiscoveryEvent>();
+    // Cancels the scan as soon as something has been discovered.
+    finder.addImplementationClassDiscoveryListener(new ImplementationClassDiscoveryListener() {
+        @Override
+        public final void discoveryStarted(final ImplementationClassDiscoveryEvent event) {
+
+        }
+
+        @Override
+        public final void implementationClassDiscovered(final ImplementationClassDiscoveryEvent event) {
+          token.cancel();
+        }
+
+        @Override
+        public final void discoveryEnded(final ImplementationClassDiscoveryEvent event) {
+          endings.add(event);
+        }
+      });
+    final ImplementationClassBinder binder = new ImplementationClassBinder() {
+        @Override
+        public long processModifications(final String location, final Collection<InterfaceDecorator.Modification> mods) {
+          for (final InterfaceDecorator.Modification mod : mods) {
+            writes.add(mod.getInterfaceName());
+          }
+          return 0L;
+        }
+      };
+    binder.setAdapterClassNameTemplate("%s.%sTo%sCancelledAdapter");
+    finder.addImplementationClassDiscoveryListener(binder);
+    final URL testOutputDirectory = this.getTestOutputDirectory().toURI().toURL();
+
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.CANCELLED, finder.scanArchives(null, token, 0L, testOutputDirectory));
+    assertEquals(1, endings.size());
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.CANCELLED, endings.get(0).getScanStatus());
+    assertFalse(endings.get(0).isComplete());
+    assertTrue(writes.isEmpty());
+    assertNotNull(binder.getLastWriteReport());
+    assertEquals(0L, binder.getLastWriteReport().getBytesWritten());
+
+    // A complete scan is written as usual.
+    assertSame(ClassFileTrackingAnnotationDB.ScanStatus.COMPLETE, finder.scanArchives(null, null, 0L, testOutputDirectory));
+    assertTrue(endings.get(1).isComplete());
+    assertEquals(Collections.singletonList(Person.class.getName()), writes);
+  }
+
+  @Test
+  public void testPipelinedLastModificationWins() throws Exception {
+    final CountDownLatch blocked = new CountDownLatch(1);
+    final List<String> writes = Collections.synchronizedList(new ArrayList<String>());
+    final ImplementationClassBinder binder = new ImplementationClassBinder() {
+        @Override
+        public long processModifications(final String location, final Collection<InterfaceDecorator.Modification> mods) throws IOException {
+          for (final InterfaceDecorator.Modification mod : mods) {
+            if ("com.foo.Blocker".equals(mod.getInterfaceName())) {
+              try {
+                blocked.await();
+              } catch (final InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IOException(e);
+              }
+            }
+            writes.add(mod.getInterfaceName() + "=" + mod.toByteArray()[0]);
+          }
+          return 0L;
+        }
+      };
+    // One writer thread, kept busy until both modifications of
+    // com.foo.Person, from two implementations, have been added.
+    final ModificationPipeline pipeline = new ModificationPipeline(binder, 1);
+    pipeline.add(new InterfaceDecorator.Modification("com.foo.Blocker", new URL("file:/tmp/com/foo/Blocker.class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 0 }));
+    pipeline.add(new InterfaceDecorator.Modification("com.foo.Person", new URL("file:/tmp/com/foo/Person.class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 1 }));
+    pipeline.add(new InterfaceDecorator.Modification("com.foo.Person", new URL("file:/tmp/com/foo/Person.class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 2 }));
+    blocked.countDown();
+    pipeline.finish();
+    assertEquals(Arrays.asList("com.foo.Blocker=0", "com.foo.Person=2"), writes);
+    assertTrue(pipeline.getWriteReport().isSuccessful());
+  }
+
+  @Test
+  public void testParallelWrites() throws Exception {
+    final List<String> threads = Collections.synchronizedList(new ArrayList<String>());
+    final ImplementationClassBinder binder = new ImplementationClassBinder() {
+        @Override
+        public long processModifications(final String location, final Collection<InterfaceDecorator.Modification> mods) throws IOException {
+          threads.add(Thread.currentThread().getName());
+          if (location.contains("Broken")) {
+            throw new IOException(location);
+          }
+          // Pretend the class files in the jar file were already
+          // up to date.
+          return location.startsWith("jar:") ? 0L : 1L;
+        }
+      };
+    binder.setWriterThreadCount(4);
+    for (int i = 0; i < 8; i++) {
+      final String name = i == 3 ? "Broken" : "Class" + i;
+      binder.queueUpModification(new InterfaceDecorator.Modification("com.foo." + name, new URL("file:/tmp/com/foo/" + name + ".class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 1 }));
+    }
+    binder.queueUpModification(new InterfaceDecorator.Modification("com.foo.A", new URL("jar:file:/tmp/foo.jar!/com/foo/A.class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 1 }));
+    binder.queueUpModification(new InterfaceDecorator.Modification("com.foo.B", new URL("jar:file:/tmp/foo.jar!/com/foo/B.class"), InterfaceDecorator.Modification.Kind.MODIFIED, new byte[] { 1 }));
+    try {
+      binder.processModifications();
+      fail();
+    } catch (final IOException expected) {
+      assertEquals("file:/tmp/com/foo/Broken.class", expected.getMessage());
+    }
+
+    // The failure did not stop the other writes.
+    assertEquals(9, threads.size());
+    assertFalse(threads.contains(Thread.currentThread().getName()));
+    final ImplementationClassBinder.WriteReport report = binder.getLastWriteReport();
+    assertNotNull(report);
+    assertFalse(report.isSuccessful());
+    assertEquals(9, report.getTimings(TimeUnit.NANOSECONDS).size());
+    assertTrue(report.getTimings(TimeUnit.NANOSECONDS).containsKey("jar:file:/tmp/foo.jar!/"));
+    assertEquals(Collections.singleton("file:/tmp/com/foo/Broken.class"), report.getFailures().keySet());
+    assertEquals(7L, report.getBytesWritten());
+    assertEquals(2L, report.getBytesSkipped());
+    assertEquals(Collections.singleton("jar:file:/tmp/foo.jar!/"), report.getUnchangedLocations());
+  }
+
+  @Test
+  public void testOverlay() throws Exception {
+    final File testOutputDirectory = this.getTestOutputDirectory();
+    final File personClassFile = new File(testOutputDirectory, "com/edugility/jaxb/Person.class");
+    final long lastModified = personClassFile.lastModified();
+    final OverlayClassLoader overlay = new OverlayClassLoader(this.getClass().getClassLoader());
+    final ImplementationClassFinder finder = new ImplementationClassFinder(null, Arrays.asList("java.io"));
+    final ImplementationClassBinder binder = new ImplementationClassBinder();
+    binder.setAdapterClassNameTemplate("%s.%sTo%sOverlayAdapter");
+    binder.setOverlayClassLoader(overlay);
+    finder.addImplementationClassDiscoveryListener(binder);
+    finder.setURIs(Collections.singleton(testOutputDirectory.toURI()));
+    finder.scanArchives();
+    assertEquals(lastModified, personClassFile.lastModified());
+    assertFalse(new File(testOutputDirectory, "com/edugility/jaxb/PersonToPersonImplementationOverlayAdapter.class").exists());
+
+    // Household refers to the Person interface, which JAXB can only
+    // handle if it sees the decorated version.
+    final Class<?> householdClass = overlay.loadClass(Household.class.getName());
+    assertSame(overlay, householdClass.getClassLoader());
+    final Class<?> personImplementationClass = overlay.loadClass(PersonImplementation.class.getName());
+    assertSame(overlay, personImplementationClass.getClassLoader());
+    assertNotSame(Household.class.getPackage(), householdClass.getPackage());
+    final JAXBContext jaxbContext = JAXBContext.newInstance(householdClass);
+
+    final Object person = personImplementationClass.newInstance();
+    personImplementationClass.getMethod("setName", String.class).invoke(person, "Alice");
+    personImplementationClass.getMethod("setAge", int.class).invoke(person, 42);
+    final Object household = householdClass.newInstance();
+    householdClass.getMethod("setHead", overlay.loadClass(Person.class.getName())).invoke(household, person);
+    final StringWriter writer = new StringWriter();
+    jaxbContext.createMarshaller().marshal(household, writer);
+    final String xml = writer.toString();
+    assertTrue(xml, xml.contains("<name>Alice</name>"));
+
+    final Object unmarshalledHousehold = jaxbContext.createUnmarshaller().unmarshal(new StringReader(xml));
+    assertSame(householdClass, unmarshalledHousehold.getClass());
+    final Object unmarshalledPerson = householdClass.getMethod("getHead").invoke(unmarshalledHousehold);
+    assertSame(personImplementationClass, unmarshalledPerson.getClass());
+    assertEquals("Alice", personImplementationClass.getMethod("getName").invoke(unmarshalledPerson));
+    assertEquals(Integer.valueOf(42), personImplementationClass.getMethod("getAge").invoke(unmarshalledPerson));
+  }
+
+  @Test
+  public void testUnchangedClassFileIsNotWritten() throws Exception {
+    final File file = File.createTempFile("Unchanged", ".class");
+    try {
+      final byte[] bytes = new byte[] { (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE };
+      final InterfaceDecorator.Modification mod = new InterfaceDecorator.Modification("com.foo.Unchanged", file.toURI().toURL(), InterfaceDecorator.Modification.Kind.MODIFIED, bytes);
+      final ImplementationClassBinder binder = new ImplementationClassBinder();
+      assertTrue(binder.recordModification(mod, file));
+      assertTrue(file.setLastModified(1000L));
+      assertFalse(binder.recordModification(mod, file));
+      assertEquals(1000L, file.lastModified());
+
+      binder.queueUpModification(mod);
+      final ImplementationClassBinder.WriteReport report = binder.processModifications();
+      assertTrue(report.isSuccessful());
+      assertEquals(0L, report.getBytesWritten());
+      assertEquals(4L, report.getBytesSkipped());
+      assertEquals(1000L, file.lastModified());
+    } finally {
+      assertTrue(file.delete());
+    }
+  }
+
   public File getTestOutputDirectory() {
     final File directory = new File(System.getProperty("maven.project.build.testOutputDirectory", System.getProperty("project.build.testOutputDirectory", "target/test-classes")));
     assertTrue(directory.isDirectory());
@@ -0,0 +1,131 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+import java.io.IOException;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import java.util.Arrays;
+import java.util.Collections;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseImplementationClassWatcher {
+
+  @Test
+  public void testRemovalIsDetected() throws Exception {
+    final Path root = Files.createTempDirectory(this.getTargetDirectory().toPath(), "watched");
+    final Path packageDirectory = Files.createDirectories(root.resolve("com/edugility/jaxb"));
+    final Path classFile = packageDirectory.resolve("PersonImplementation.class");
+    Files.copy(new File(this.getTestOutputDirectory(), "com/edugility/jaxb/PersonImplementation.class").toPath(), classFile, StandardCopyOption.REPLACE_EXISTING);
+
+    final ImplementationClassFinder finder = new ImplementationClassFinder(Collections.singleton(root.toUri()), Arrays.asList("java.io"));
+    final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    addListener(finder, events);
+
+    final ImplementationClassWatcher watcher = new ImplementationClassWatcher(finder);
+    watcher.setQuietPeriod(50L);
+    try {
+      watcher.start();
+      assertEquals("+com.edugility.jaxb.Person=com.edugility.jaxb.PersonImplementation", events.poll(10L, TimeUnit.SECONDS));
+      Files.delete(classFile);
+      assertEquals("-com.edugility.jaxb.Person=com.edugility.jaxb.PersonImplementation", events.poll(30L, TimeUnit.SECONDS));
+    } finally {
+      watcher.close();
+    }
+  }
+
+  @Test
+  public void testAdditionIsDetected() throws Exception {
+    final Path root = Files.createTempDirectory(this.getTargetDirectory().toPath(), "watched");
+    final Path packageDirectory = Files.createDirectories(root.resolve("com/edugility/jaxb"));
+
+    final ImplementationClassFinder finder = new ImplementationClassFinder(Collections.singleton(root.toUri()), Arrays.asList("java.io"));
+    final BlockingQueue<String> events = new LinkedBlockingQueue<String>();
+    addListener(finder, events);
+
+    final ImplementationClassWatcher watcher = new ImplementationClassWatcher(finder);
+    watcher.setQuietPeriod(50L);
+    try {
+      watcher.start();
+      assertTrue(events.isEmpty());
+      Files.copy(new File(this.getTestOutputDirectory(), "com/edugility/jaxb/PersonImplementation.class").toPath(), packageDirectory.resolve("PersonImplementation.class"));
+      assertEquals("+com.edugility.jaxb.Person=com.edugility.jaxb.PersonImplementation", events.poll(30L, TimeUnit.SECONDS));
+    } finally {
+      watcher.close();
+    }
+  }
+
+  private static final void addListener(final ImplementationClassFinder finder, final BlockingQueue<String> events) {
+    finder.addImplementationClassDiscoveryListener(new ImplementationClassRemovalListener() {
+        @Override
+        public final void discoveryStarted(final ImplementationClassDiscoveryEvent event) {
+
+        }
+
+        @Override
+        public final void implementationClassDiscovered(final ImplementationClassDiscoveryEvent event) {
+          events.add("+" + event.getInterfaceName() + "=" + event.getImplementationClassName());
+        }
+
+        @Override
+        public final void implementationClassRemoved(final ImplementationClassDiscoveryEvent event) {
+          events.add("-" + event.getInterfaceName() + "=" + event.getImplementationClassName());
+        }
+
+        @Override
+        public final void discoveryEnded(final ImplementationClassDiscoveryEvent event) {
+
+        }
+      });
+  }
+
+  public File getTestOutputDirectory() {
+    final File directory = new File(System.getProperty("maven.project.build.testOutputDirectory", System.getProperty("project.build.testOutputDirectory", "target/test-classes")));
+    assertTrue(directory.isDirectory());
+    return directory;
+  }
+
+  public File getTargetDirectory() throws IOException {
+    final File targetDirectory = new File(System.getProperty("maven.project.build.directory", System.getProperty("project.build.directory", "target")));
+    assertTrue(targetDirectory.isDirectory());
+    assertTrue(targetDirectory.canWrite());
+    return targetDirectory;
+  }
+
+}
@@ -0,0 +1,250 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import java.lang.instrument.Instrumentation;
+import java.lang.instrument.UnmodifiableClassException;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+
+import java.security.ProtectionDomain;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.concurrent.TimeUnit;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+import org.junit.Assume;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseInterfaceDecorationAgent {
+
+  @Test
+  public void testTransform() throws Exception {
+    final InterfaceDecorationAgent.Transformer transformer = new InterfaceDecorationAgent.Transformer(Collections.singletonMap(Person.class.getName(), PersonImplementation.class.getName())) {
+        @Override
+        protected final Class<?> defineClass(final ClassLoader loader, final String className, final byte[] bytes, final ProtectionDomain protectionDomain) {
+          return ((ClassDefiner)loader).define(className, bytes);
+        }
+      };
+    final ClassDefiner loader = new ClassDefiner();
+
+    assertNull(transformer.transform(loader, "com/edugility/jaxb/AnyTypeAdapter", null, null, this.read(AnyTypeAdapter.class)));
+
+    final byte[] decorated = transformer.transform(loader, "com/edugility/jaxb/Person", null, null, this.read(Person.class));
+    assertNotNull(decorated);
+    final Class<?> person = loader.define(Person.class.getName(), decorated);
+    final XmlJavaTypeAdapter adapter = person.getAnnotation(XmlJavaTypeAdapter.class);
+    assertNotNull(adapter);
+    assertEquals("com.edugility.jaxb.PersonToPersonImplementationAdapter", adapter.value().getName());
+    assertSame(loader, adapter.value().getClassLoader());
+    assertSame(UniversalXmlAdapter.class, adapter.value().getSuperclass());
+
+    // Already decorated bytes are left alone.
+    assertNull(transformer.transform(loader, "com/edugility/jaxb/Person", person, null, decorated));
+  }
+
+  @Test
+  public void testTransformWithUndefinableAdapter() throws Exception {
+    final InterfaceDecorationAgent.Transformer transformer = new InterfaceDecorationAgent.Transformer(Collections.singletonMap(Person.class.getName(), PersonImplementation.class.getName())) {
+        @Override
+        protected final Class<?> defineClass(final ClassLoader loader, final String className, final byte[] bytes, final ProtectionDomain protectionDomain) {
+          throw new ClassFormatError(className);
+        }
+      };
+    // An adapter that could not be defined is not mistaken for one
+    // that already was, and the interface is left alone.  The loader
+    // has no parent, so no other test's adapter can be found through
+    // it.
+    final ClassLoader loader = new ClassLoader(null) {};
+    assertNull(transformer.transform(loader, "com/edugility/jaxb/Person", null, null, this.read(Person.class)));
+  }
+
+  @Test
+  public void testRetransform() throws Exception {
+    final Map<String, String> bindings = new HashMap<String, String>();
+    bindings.put(Person.class.getName(), PersonImplementation.class.getName());
+    bindings.put(AnyTypeAdapter.class.getName(), PersonImplementation.class.getName());
+    bindings.put(String.class.getName(), PersonImplementation.class.getName());
+
+    // Records each batch; any batch containing AnyTypeAdapter fails.
+    final List<List<Class<?>>> batches = new ArrayList<List<Class<?>>>();
+    final Instrumentation instrumentation = (Instrumentation)Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { Instrumentation.class }, new InvocationHandler() {
+        @Override
+        public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+          final String name = method.getName();
+          if ("isRetransformClassesSupported".equals(name) || "isModifiableClass".equals(name)) {
+            return Boolean.TRUE;
+          } else if ("getAllLoadedClasses".equals(name)) {
+            return new Class<?>[] { String.class, Person.class, PersonImplementation.class, AnyTypeAdapter.class };
+          } else if ("retransformClasses".equals(name)) {
+            final List<Class<?>> batch = Arrays.asList((Class<?>[])args[0]);
+            batches.add(batch);
+            if (batch.contains(AnyTypeAdapter.class)) {
+              throw new UnmodifiableClassException();
+            }
+          }
+          return null;
+        }
+      });
+
+    final InterfaceDecorationAgent.Report report = InterfaceDecorationAgent.retransform(instrumentation, bindings, 2);
+    assertNotNull(report);
+    // String is skipped because it was loaded by the bootstrap loader.
+    assertEquals(Arrays.asList(Person.class.getName(), AnyTypeAdapter.class.getName()), report.getRetransformedClassNames());
+    assertEquals(Collections.singleton(AnyTypeAdapter.class.getName()), report.getFailures().keySet());
+    assertTrue(report.getElapsedTime(TimeUnit.NANOSECONDS) >= 0L);
+
+    // One failed batch, then each of its members on its own.
+    assertEquals(3, batches.size());
+    assertEquals(Arrays.<Class<?>>asList(Person.class, AnyTypeAdapter.class), batches.get(0));
+    assertEquals(Collections.<Class<?>>singletonList(Person.class), batches.get(1));
+    assertEquals(Collections.<Class<?>>singletonList(AnyTypeAdapter.class), batches.get(2));
+  }
+
+  @Test
+  public void testRetransformWithChangedBindings() throws Exception {
+    Assume.assumeTrue(AdapterClassDefiner.canDefineInClassLoader());
+    final String otherImplementationClassName = "com.edugility.jaxb.OtherPersonImplementation";
+    final Map<String, byte[]> results = new HashMap<String, byte[]>();
+
+    // The first attach decorates Person.
+    final CountingInstrumentation first = new CountingInstrumentation(results);
+    InterfaceDecorationAgent.Report report = InterfaceDecorationAgent.retransform(first.instrumentation, Collections.singletonMap(Person.class.getName(), PersonImplementation.class.getName()), 64);
+    assertEquals(Collections.singleton(Person.class.getName()), report.getDecoratedClassNames());
+    assertTrue(ClassFileAnnotationInjector.hasXmlJavaTypeAdapter(results.get(Person.class.getName()), "com.edugility.jaxb.PersonToPersonImplementationAdapter"));
+    final InterfaceDecorationAgent.Transformer transformer = InterfaceDecorationAgent.getInstalledTransformer();
+    assertNotNull(transformer);
+
+    // Attaching again with a changed binding reuses the installed
+    // Transformer, which now applies only the new binding.
+    final CountingInstrumentation second = new CountingInstrumentation(results);
+    report = InterfaceDecorationAgent.retransform(second.instrumentation, Collections.singletonMap(Person.class.getName(), otherImplementationClassName), 64);
+    assertEquals(0, second.transformersAdded);
+    assertSame(transformer, InterfaceDecorationAgent.getInstalledTransformer());
+    assertEquals(Collections.singleton(Person.class.getName()), report.getDecoratedClassNames());
+    assertTrue(ClassFileAnnotationInjector.hasXmlJavaTypeAdapter(results.get(Person.class.getName()), "com.edugility.jaxb.PersonToOtherPersonImplementationAdapter"));
+
+    // Attaching with the binding removed restores Person's original
+    // bytes.
+    final CountingInstrumentation third = new CountingInstrumentation(results);
+    report = InterfaceDecorationAgent.retransform(third.instrumentation, Collections.<String, String>emptyMap(), 64);
+    assertEquals(0, third.transformersAdded);
+    assertEquals(Collections.singletonList(Person.class.getName()), report.getRetransformedClassNames());
+    assertTrue(report.getDecoratedClassNames().isEmpty());
+    assertTrue(results.containsKey(Person.class.getName()));
+    assertNull(results.get(Person.class.getName()));
+  }
+
+  private final byte[] read(final Class<?> c) throws Exception {
+    final InputStream stream = c.getResourceAsStream(c.getSimpleName() + ".class");
+    assertNotNull(stream);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, bytesRead);
+      }
+      return out.toByteArray();
+    } finally {
+      stream.close();
+    }
+  }
+
+  /**
+   * An {@link Instrumentation} whose {@code retransformClasses}
+   * method runs the installed {@link InterfaceDecorationAgent.Transformer}
+   * over the original bytes of each class, as the JVM would, and
+   * records the results.
+   */
+  private final class CountingInstrumentation implements InvocationHandler {
+
+    private final Instrumentation instrumentation;
+
+    private final Map<String, byte[]> results;
+
+    private int transformersAdded;
+
+    private CountingInstrumentation(final Map<String, byte[]> results) {
+      super();
+      this.results = results;
+      this.instrumentation = (Instrumentation)Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { Instrumentation.class }, this);
+    }
+
+    @Override
+    public final Object invoke(final Object proxy, final Method method, final Object[] args) throws Throwable {
+      final String name = method.getName();
+      if ("isRetransformClassesSupported".equals(name) || "isModifiableClass".equals(name)) {
+        return Boolean.TRUE;
+      } else if ("getAllLoadedClasses".equals(name)) {
+        return new Class<?>[] { Person.class, PersonImplementation.class };
+      } else if ("addTransformer".equals(name)) {
+        this.transformersAdded++;
+      } else if ("retransformClasses".equals(name)) {
+        for (final Class<?> c : (Class<?>[])args[0]) {
+          // A fresh loader each time, so that each adapter can be
+          // defined.
+          final ClassLoader loader = new ClassLoader(TestCaseInterfaceDecorationAgent.class.getClassLoader()) {};
+          this.results.put(c.getName(), InterfaceDecorationAgent.getInstalledTransformer().transform(loader, c.getName().replace('.', '/'), c, null, read(c)));
+        }
+      }
+      return null;
+    }
+
+  }
+
+  private static final class ClassDefiner extends ClassLoader {
+
+    private ClassDefiner() {
+      super(TestCaseInterfaceDecorationAgent.class.getClassLoader());
+    }
+
+    public final Class<?> define(final String className, final byte[] classBytes) {
+      final Class<?> c = this.defineClass(className, classBytes, 0, classBytes.length);
+      assertNotNull(c);
+      this.resolveClass(c);
+      return c;
+    }
+
+  }
+
+}
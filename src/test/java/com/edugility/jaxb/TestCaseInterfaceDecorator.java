@@ -0,0 +1,162 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+
+import javassist.CtClass;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseInterfaceDecorator {
+
+  private InterfaceDecorator decorator;
+
+  public TestCaseInterfaceDecorator() {
+    super();
+  }
+
+  @Before
+  public void setUp() throws Exception {
+    this.decorator = new InterfaceDecorator();
+  }
+
+  @Test
+  public void testModifyBytes() throws Exception {
+    final byte[] original = this.read(Person.class);
+    final InterfaceDecorator.Modification mod = this.decorator.modify(original, AnyTypeAdapter.class.getName());
+    assertNotNull(mod);
+    assertTrue(mod.isModified());
+    assertEquals(Person.class.getName(), mod.getInterfaceName());
+    assertNull(mod.getLocation());
+    assertSame(AnyTypeAdapter.class, this.getAdapterClass(mod.toByteArray()));
+
+    // Decorating an already-decorated class changes nothing.
+    final InterfaceDecorator.Modification again = this.decorator.modify(mod.toByteArray(), AnyTypeAdapter.class.getName());
+    assertFalse(again.isModified());
+    assertSame(mod.toByteArray(), again.toByteArray());
+
+    // Decorating it with a different adapter patches the annotation.
+    final InterfaceDecorator.Modification changed = this.decorator.modify(mod.toByteArray(), DateAdapter.class.getName());
+    assertTrue(changed.isModified());
+    assertSame(DateAdapter.class, this.getAdapterClass(changed.toByteArray()));
+  }
+
+  @Test
+  public void testModifyByName() throws Exception {
+    final InterfaceDecorator.Modification mod = this.decorator.modify(Person.class.getName(), AnyTypeAdapter.class.getName());
+    assertNotNull(mod);
+    assertTrue(mod.isModified());
+    assertNotNull(mod.getLocation());
+    assertSame(AnyTypeAdapter.class, this.getAdapterClass(mod.toByteArray()));
+  }
+
+  @Test
+  public void testModifyAll() throws Exception {
+    final Map<String, String> adapterClassNames = new LinkedHashMap<String, String>();
+    adapterClassNames.put(Person.class.getName(), AnyTypeAdapter.class.getName());
+    adapterClassNames.put(AnyTypeAdapter.class.getName(), DateAdapter.class.getName());
+    final Map<String, InterfaceDecorator.Modification> mods = this.decorator.modifyAll(adapterClassNames, 2);
+    assertNotNull(mods);
+    assertEquals(adapterClassNames.keySet(), mods.keySet());
+    final InterfaceDecorator.Modification mod = mods.get(Person.class.getName());
+    assertTrue(mod.isModified());
+
+    // The lazily produced bytes survive serialization.
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ObjectOutputStream out = new ObjectOutputStream(bytes);
+    out.writeObject(mod);
+    out.close();
+    final ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    final InterfaceDecorator.Modification copy = (InterfaceDecorator.Modification)in.readObject();
+    in.close();
+    assertArrayEquals(mod.toByteArray(), copy.toByteArray());
+    assertSame(AnyTypeAdapter.class, this.getAdapterClass(copy.toByteArray()));
+  }
+
+  @SuppressWarnings("deprecation")
+  @Test
+  public void testGetInterfaceCtClass() throws Exception {
+    final InterfaceDecorator.Modification mod = this.decorator.modify(this.read(Person.class), AnyTypeAdapter.class.getName());
+    final CtClass interfaceCtClass = mod.getInterfaceCtClass();
+    assertNotNull(interfaceCtClass);
+    assertEquals(Person.class.getName(), interfaceCtClass.getName());
+    assertTrue(interfaceCtClass.isFrozen());
+    assertNotNull(interfaceCtClass.getAnnotation(XmlJavaTypeAdapter.class));
+    assertSame(interfaceCtClass, mod.getInterfaceCtClass());
+  }
+
+  private final Class<?> getAdapterClass(final byte[] classBytes) throws Exception {
+    final Class<?> c = new ClassDefiner().define(Person.class.getName(), classBytes);
+    assertNotNull(c);
+    assertNotSame(Person.class, c);
+    final XmlJavaTypeAdapter adapter = c.getAnnotation(XmlJavaTypeAdapter.class);
+    assertNotNull(adapter);
+    return adapter.value();
+  }
+
+  private final byte[] read(final Class<?> c) throws Exception {
+    final InputStream stream = c.getResourceAsStream(c.getSimpleName() + ".class");
+    assertNotNull(stream);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, bytesRead);
+      }
+      return out.toByteArray();
+    } finally {
+      stream.close();
+    }
+  }
+
+  private static final class ClassDefiner extends ClassLoader {
+
+    public final Class<?> define(final String className, final byte[] classBytes) throws Exception {
+      final Class<?> c = this.defineClass(className, classBytes, 0, classBytes.length);
+      assertNotNull(c);
+      this.resolveClass(c);
+      return c;
+    }
+
+  }
+
+}
@@ -33,7 +33,9 @@ import java.net.URI;
 import java.net.URL;
 
 import java.util.Collections;
+import java.util.LinkedHashSet;
 import java.util.Map;
+import java.util.Set;
 
 import org.junit.Test;
 
@@ -56,6 +58,21 @@ public class TestCaseJAXBElementScanner {
     System.out.println("Map: " + map);
   }
 
+  @Test
+  public void testSharding() throws Exception {
+    final Set<URI> uris = new LinkedHashSet<URI>();
+    uris.add(this.getTestOutputDirectory().toURI());
+    uris.add(this.getClass().getResource("/source.jar").toURI());
+    final JAXBElementScanner scanner = new JAXBElementScanner();
+    scanner.setBindingFilter(new JAXBElementScanner.WhitelistRegexBindingFilter("^com\\.edugility\\."));
+    scanner.setURIs(uris);
+    final Map<String, String> unsharded = scanner.scan();
+    scanner.setShardCount(2);
+    final Map<String, String> sharded = scanner.scan();
+    assertEquals(unsharded, sharded);
+    assertEquals("com.edugility.jaxb.PersonImplementation", sharded.get("com.edugility.jaxb.Person"));
+  }
+
   public File getTestOutputDirectory() {
     final File directory = new File(System.getProperty("maven.project.build.testOutputDirectory", System.getProperty("project.build.testOutputDirectory", "target/test-classes")));
     assertTrue(directory.isDirectory());
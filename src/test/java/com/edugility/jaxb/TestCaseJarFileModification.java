@@ -29,6 +29,7 @@ package com.edugility.jaxb;
 
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.InputStream;
@@ -38,12 +39,34 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 
+import java.nio.charset.StandardCharsets;
+
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+
+import java.nio.file.attribute.PosixFileAttributeView;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
 import java.util.Enumeration;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TimeZone;
 
 import java.util.jar.JarEntry;
 import java.util.jar.JarFile;
 import java.util.jar.JarOutputStream;
 
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+import java.util.zip.ZipOutputStream;
+
+import org.junit.Assume;
 import org.junit.Test;
 
 import static org.junit.Assert.*;
@@ -67,6 +90,276 @@ public class TestCaseJarFileModification {
     return targetDirectory;
   }
 
+  @Test
+  public void testRewrite() throws IOException, URISyntaxException {
+    final File source = this.getSourceJarFile();
+    final File copy = new File(this.getTargetDirectory(), "rewritten.jar");
+    Files.copy(source.toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+
+    final Map<String, byte[]> replacements = new LinkedHashMap<String, byte[]>();
+    replacements.put("a.txt", "Replaced contents".getBytes(StandardCharsets.UTF_8));
+    replacements.put("com/foo/B.class", new byte[] { (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE });
+    assertEquals(replacements.keySet(), JarRewriter.rewrite(copy, replacements, true));
+
+    // Rewriting with the same contents touches nothing.
+    assertTrue(copy.setLastModified(1000L));
+    assertTrue(JarRewriter.rewrite(copy, replacements).isEmpty());
+    assertEquals(1000L, copy.lastModified());
+
+    // The jar file was replaced atomically, leaving no temporary
+    // files behind.
+    final File[] siblings = copy.getParentFile().listFiles();
+    assertNotNull(siblings);
+    for (final File sibling : siblings) {
+      assertFalse(sibling.getName(), sibling.getName().startsWith(".rewritten.jar"));
+    }
+
+    final JarFile original = new JarFile(source);
+    final JarFile rewritten = new JarFile(copy);
+    try {
+      // Unchanged entries are copied in their compressed form.
+      final ZipEntry originalManifest = original.getEntry("META-INF/MANIFEST.MF");
+      final ZipEntry rewrittenManifest = rewritten.getEntry("META-INF/MANIFEST.MF");
+      assertNotNull(rewrittenManifest);
+      assertEquals(originalManifest.getCrc(), rewrittenManifest.getCrc());
+      assertEquals(originalManifest.getCompressedSize(), rewrittenManifest.getCompressedSize());
+      assertEquals(originalManifest.getTime(), rewrittenManifest.getTime());
+      assertArrayEquals(this.read(original, originalManifest), this.read(rewritten, rewrittenManifest));
+      assertNotNull(rewritten.getManifest());
+
+      assertEquals("Replaced contents", new String(this.read(rewritten, rewritten.getEntry("a.txt")), StandardCharsets.UTF_8));
+      assertArrayEquals(replacements.get("com/foo/B.class"), this.read(rewritten, rewritten.getEntry("com/foo/B.class")));
+      assertEquals(original.size() + 1, rewritten.size());
+    } finally {
+      original.close();
+      rewritten.close();
+    }
+  }
+
+  @Test
+  public void testRewriteReproducibly() throws Exception {
+    final Map<String, byte[]> replacements = new LinkedHashMap<String, byte[]>();
+    replacements.put("com/foo/B.class", new byte[] { (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE });
+    replacements.put("a.txt", "Replaced contents".getBytes(StandardCharsets.UTF_8));
+    final Map<String, byte[]> reversed = new LinkedHashMap<String, byte[]>();
+    reversed.put("a.txt", replacements.get("a.txt"));
+    reversed.put("com/foo/B.class", replacements.get("com/foo/B.class"));
+
+    final File first = new File(this.getTargetDirectory(), "reproducible-1.jar");
+    Files.copy(this.getSourceJarFile().toPath(), first.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    assertEquals(replacements.keySet(), JarRewriter.rewriteReproducibly(first, replacements, false, JarRewriter.DEFAULT_REPRODUCIBLE_TIME));
+
+    // The same inputs, supplied in a different order, produce the
+    // same bytes.
+    final ByteArrayOutputStream second = new ByteArrayOutputStream();
+    JarRewriter.rewriteReproducibly(this.getSourceJarFile(), reversed, second, JarRewriter.DEFAULT_REPRODUCIBLE_TIME);
+    assertArrayEquals(Files.readAllBytes(first.toPath()), second.toByteArray());
+
+    // Entries are stamped with the UTC wall clock time of the
+    // reproducible time, which ZipEntry reads back as a time in the
+    // default time zone.
+    final Calendar utc = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+    utc.setTimeInMillis(JarRewriter.DEFAULT_REPRODUCIBLE_TIME);
+    final Calendar local = Calendar.getInstance();
+    local.clear();
+    local.set(utc.get(Calendar.YEAR), utc.get(Calendar.MONTH), utc.get(Calendar.DAY_OF_MONTH), utc.get(Calendar.HOUR_OF_DAY), utc.get(Calendar.MINUTE), utc.get(Calendar.SECOND));
+    final long expectedTime = local.getTimeInMillis();
+
+    final JarFile jarFile = new JarFile(first);
+    try {
+      assertNotNull(jarFile.getManifest());
+      final List<String> names = new ArrayList<String>();
+      final Enumeration<JarEntry> entries = jarFile.entries();
+      while (entries.hasMoreElements()) {
+        final JarEntry entry = entries.nextElement();
+        names.add(entry.getName());
+        assertEquals(entry.getName(), expectedTime, entry.getTime());
+        assertNull(entry.getName(), entry.getExtra());
+      }
+      assertTrue(names.contains("a.txt"));
+      assertTrue(names.contains("com/foo/B.class"));
+      final List<String> sorted = new ArrayList<String>(names);
+      sorted.remove(JarFile.MANIFEST_NAME);
+      sorted.remove("META-INF/");
+      Collections.sort(sorted);
+      sorted.add(0, JarFile.MANIFEST_NAME);
+      if (names.contains("META-INF/")) {
+        sorted.add(0, "META-INF/");
+      }
+      assertEquals(sorted, names);
+      assertEquals("Replaced contents", new String(this.read(jarFile, jarFile.getEntry("a.txt")), StandardCharsets.UTF_8));
+    } finally {
+      jarFile.close();
+    }
+  }
+
+  @Test
+  public void testRewriteZip64() throws Exception {
+    // More than 65535 entries forces ZIP64 end records.
+    final int entryCount = 0xFFFF + 10;
+    final File zip64 = new File(this.getTargetDirectory(), "zip64.jar");
+    final ZipOutputStream out = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(zip64)));
+    try {
+      for (int i = 0; i < entryCount; i++) {
+        out.putNextEntry(new ZipEntry("e/" + i));
+        out.write(i & 0xFF);
+        out.closeEntry();
+      }
+    } finally {
+      out.close();
+    }
+
+    final Map<String, byte[]> replacements = new LinkedHashMap<String, byte[]>();
+    replacements.put("e/7", "Replaced".getBytes(StandardCharsets.UTF_8));
+    replacements.put("added", "Added".getBytes(StandardCharsets.UTF_8));
+    assertEquals(replacements.keySet(), JarRewriter.rewrite(zip64, replacements));
+
+    final ZipFile rewritten = new ZipFile(zip64);
+    try {
+      assertEquals(entryCount + 1, rewritten.size());
+      assertEquals("Replaced", new String(this.read(rewritten, rewritten.getEntry("e/7")), StandardCharsets.UTF_8));
+      assertEquals("Added", new String(this.read(rewritten, rewritten.getEntry("added")), StandardCharsets.UTF_8));
+      assertArrayEquals(new byte[] { (byte)(entryCount - 1) }, this.read(rewritten, rewritten.getEntry("e/" + (entryCount - 1))));
+    } finally {
+      rewritten.close();
+    }
+
+    // The rewritten archive can itself be read and rewritten.
+    final MappedArchive archive = new MappedArchive(zip64);
+    try {
+      assertEquals(entryCount + 1, archive.getEntries().size());
+      assertArrayEquals(replacements.get("added"), archive.read(archive.getEntry("added")));
+    } finally {
+      archive.close();
+    }
+    assertTrue(JarRewriter.rewrite(zip64, replacements).isEmpty());
+  }
+
+  @Test
+  public void testRewriteDuplicates() throws Exception {
+    // ZipOutputStream refuses duplicate names, so write "dup.txt" and
+    // "duq.txt" and then rename the latter in place.
+    final File duplicates = new File(this.getTargetDirectory(), "duplicates.jar");
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final ZipOutputStream out = new ZipOutputStream(bytes);
+    try {
+      out.putNextEntry(new ZipEntry("dup.txt"));
+      out.write("First".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("duq.txt"));
+      out.write("Second".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+      out.putNextEntry(new ZipEntry("other.txt"));
+      out.write("Other".getBytes(StandardCharsets.UTF_8));
+      out.closeEntry();
+    } finally {
+      out.close();
+    }
+    final byte[] zip = bytes.toByteArray();
+    final byte[] from = "duq.txt".getBytes(StandardCharsets.UTF_8);
+    for (int i = 0; i + from.length <= zip.length; i++) {
+      boolean match = true;
+      for (int j = 0; match && j < from.length; j++) {
+        match = zip[i + j] == from[j];
+      }
+      if (match) {
+        zip[i + 2] = (byte)'p';
+      }
+    }
+    Files.write(duplicates.toPath(), zip);
+
+    // Replacing another entry keeps both duplicates.
+    JarRewriter.rewrite(duplicates, Collections.singletonMap("other.txt", "Replaced".getBytes(StandardCharsets.UTF_8)));
+    MappedArchive archive = new MappedArchive(duplicates);
+    try {
+      final List<MappedArchive.Entry> entries = archive.getEntries();
+      assertEquals(3, entries.size());
+      assertEquals("First", new String(archive.read(entries.get(0)), StandardCharsets.UTF_8));
+      assertEquals("Second", new String(archive.read(entries.get(1)), StandardCharsets.UTF_8));
+      assertEquals("Replaced", new String(archive.read(entries.get(2)), StandardCharsets.UTF_8));
+      assertSame(entries.get(1), archive.getEntry("dup.txt"));
+    } finally {
+      archive.close();
+    }
+
+    // Replacing a duplicated name replaces every entry with it, even
+    // when the last one already has the new contents.
+    assertEquals(Collections.singleton("dup.txt"), JarRewriter.rewrite(duplicates, Collections.singletonMap("dup.txt", "Second".getBytes(StandardCharsets.UTF_8))));
+    archive = new MappedArchive(duplicates);
+    try {
+      final List<MappedArchive.Entry> entries = archive.getEntries();
+      assertEquals(3, entries.size());
+      assertEquals("Second", new String(archive.read(entries.get(0)), StandardCharsets.UTF_8));
+      assertEquals("Second", new String(archive.read(entries.get(1)), StandardCharsets.UTF_8));
+    } finally {
+      archive.close();
+    }
+  }
+
+  @Test
+  public void testRewritePreservesPermissions() throws Exception {
+    final File copy = new File(this.getTargetDirectory(), "permissions.jar");
+    Files.copy(this.getSourceJarFile().toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    Assume.assumeNotNull(Files.getFileAttributeView(copy.toPath(), PosixFileAttributeView.class));
+    final Set<PosixFilePermission> permissions = PosixFilePermissions.fromString("rw-r-----");
+    Files.setPosixFilePermissions(copy.toPath(), permissions);
+
+    final Map<String, byte[]> replacements = Collections.singletonMap("a.txt", "Replaced contents".getBytes(StandardCharsets.UTF_8));
+    assertEquals(replacements.keySet(), JarRewriter.rewrite(copy, replacements));
+    assertEquals(permissions, Files.getPosixFilePermissions(copy.toPath()));
+
+    // New files get the same permissions as any other new file.
+    final File probe = new File(this.getTargetDirectory(), "permissions.probe");
+    Files.deleteIfExists(probe.toPath());
+    Files.createFile(probe.toPath());
+    final File created = new File(this.getTargetDirectory(), "permissions.class");
+    Files.deleteIfExists(created.toPath());
+    assertTrue(AtomicFileReplacement.replace(created.toPath(), new byte[] { (byte)0xCA, (byte)0xFE, (byte)0xBA, (byte)0xBE }, false));
+    assertEquals(Files.getPosixFilePermissions(probe.toPath()), Files.getPosixFilePermissions(created.toPath()));
+  }
+
+  @Test
+  public void testGetArchiveFile() throws Exception {
+    final File jarFile = new File(this.getTargetDirectory(), "with space.jar").getAbsoluteFile();
+    assertEquals(jarFile, ImplementationClassBinder.getArchiveFile(new URL("jar:" + jarFile.toURI().toURL() + "!/com/foo/A.class")));
+  }
+
+  @Test
+  public void testRecordModifications() throws Exception {
+    final File copy = new File(this.getTargetDirectory(), "recorded.jar");
+    Files.copy(this.getSourceJarFile().toPath(), copy.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    final byte[] bytes = "Decorated".getBytes(StandardCharsets.UTF_8);
+    final URL location = new URL("jar:" + copy.toURI().toURL() + "!/a.txt");
+    final JarFile jarFile = new JarFile(copy);
+    try {
+      assertEquals(bytes.length, new ImplementationClassBinder().recordModifications(Collections.singleton(new InterfaceDecorator.Modification("a", location, InterfaceDecorator.Modification.Kind.MODIFIED, bytes)), jarFile));
+    } finally {
+      jarFile.close();
+    }
+    final JarFile rewritten = new JarFile(copy);
+    try {
+      assertArrayEquals(bytes, this.read(rewritten, rewritten.getEntry("a.txt")));
+    } finally {
+      rewritten.close();
+    }
+  }
+
+  private final byte[] read(final ZipFile jarFile, final ZipEntry entry) throws IOException {
+    assertNotNull(entry);
+    final InputStream stream = jarFile.getInputStream(entry);
+    try {
+      final ByteArrayOutputStream out = new ByteArrayOutputStream();
+      final byte[] buffer = new byte[4096];
+      int bytesRead;
+      while ((bytesRead = stream.read(buffer)) != -1) {
+        out.write(buffer, 0, bytesRead);
+      }
+      return out.toByteArray();
+    } finally {
+      stream.close();
+    }
+  }
+
   @Test
   public void testDeletion() throws IOException, URISyntaxException {
     final File file = this.getSourceJarFile();
@@ -0,0 +1,124 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ *
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.StreamCorruptedException;
+
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseMappedBindingIndex {
+
+  @Test
+  public void testRoundTrip() throws Exception {
+    final Map<String, String> bindings = new HashMap<String, String>();
+    bindings.put("com.foo.B", "com.foo.Impl");
+    bindings.put("com.foo.A", "com.foo.Impl");
+    bindings.put("com.foo.\u00E9t\u00E9", "com.foo.\u00C9t\u00E9Impl");
+    bindings.put("com.foo.\uD834\uDD1E", "com.foo.ClefImpl");
+    final File file = new File(this.getTargetDirectory(), "testRoundTrip.jxbi");
+    MappedBindingIndex.write(bindings, file);
+    final MappedBindingIndex index = MappedBindingIndex.open(file);
+    assertEquals(4, index.size());
+    assertEquals(bindings, index);
+    for (final String interfaceName : bindings.keySet()) {
+      assertEquals(bindings.get(interfaceName), index.getImplementationClassName(interfaceName));
+    }
+    assertNull(index.get("com.foo.C"));
+    assertNull(index.get("com.foo"));
+    assertEquals(bindings, index.toBindingTable());
+  }
+
+  @Test
+  public void testOpenCorruptEntry() throws Exception {
+    final File file = new File(this.getTargetDirectory(), "testOpenCorruptEntry.jxbi");
+    MappedBindingIndex.write(Collections.singletonMap("com.foo.A", "com.foo.Impl"), file);
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      // Point the first entry's implementation name past the end of
+      // the file.
+      raf.seek(16 + 12);
+      raf.writeInt(Integer.MAX_VALUE);
+    } finally {
+      raf.close();
+    }
+    try {
+      MappedBindingIndex.open(file);
+      fail();
+    } catch (final StreamCorruptedException expected) {
+
+    }
+  }
+
+  @Test
+  public void testOpenTruncated() throws Exception {
+    final File file = new File(this.getTargetDirectory(), "testOpenTruncated.jxbi");
+    MappedBindingIndex.write(Collections.singletonMap("com.foo.A", "com.foo.Impl"), file);
+    final RandomAccessFile raf = new RandomAccessFile(file, "rw");
+    try {
+      raf.setLength(raf.length() - 1);
+    } finally {
+      raf.close();
+    }
+    try {
+      MappedBindingIndex.open(file);
+      fail();
+    } catch (final StreamCorruptedException expected) {
+
+    }
+  }
+
+  @Test
+  public void testScannerWritesIndex() throws Exception {
+    final File file = new File(this.getTargetDirectory(), "testScannerWritesIndex.jxbi");
+    final JAXBElementScanner scanner = new JAXBElementScanner();
+    scanner.setBindingFilter(new JAXBElementScanner.WhitelistRegexBindingFilter("^com\\.edugility\\."));
+    scanner.setURIs(Collections.singleton(new TestCaseJAXBElementScanner().getTestOutputDirectory().toURI()));
+    scanner.setBindingIndexFile(file);
+    final Map<String, String> bindings = scanner.scan();
+    final MappedBindingIndex index = MappedBindingIndex.open(file);
+    assertEquals(bindings, index);
+    assertEquals(PersonImplementation.class.getName(), index.get(Person.class.getName()));
+  }
+
+  public File getTargetDirectory() throws IOException {
+    final File targetDirectory = new File(System.getProperty("maven.project.build.directory", System.getProperty("project.build.directory", "target")));
+    assertTrue(targetDirectory.isDirectory());
+    assertTrue(targetDirectory.canWrite());
+    return targetDirectory;
+  }
+
+}
@@ -0,0 +1,104 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.net.URL;
+
+import java.util.Arrays;
+import java.util.List;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseModificationQueue {
+
+  @Test
+  public void testInMemory() throws Exception {
+    final ModificationQueue queue = new ModificationQueue();
+    try {
+      this.exercise(queue);
+      assertFalse(queue.isSpilled());
+      assertEquals(10L, queue.getMemoryUsage());
+    } finally {
+      queue.close();
+    }
+  }
+
+  @Test
+  public void testSpill() throws Exception {
+    final ModificationQueue queue = new ModificationQueue(5L, null);
+    try {
+      this.exercise(queue);
+      assertTrue(queue.isSpilled());
+      assertTrue(queue.getMemoryUsage() <= 5L);
+    } finally {
+      queue.close();
+    }
+    assertFalse(queue.isSpilled());
+    assertTrue(queue.isEmpty());
+  }
+
+  private final void exercise(final ModificationQueue queue) throws Exception {
+    final URL a = new URL("jar:file:/tmp/archive.jar!/com/foo/A.class");
+    final URL b = new URL("file:/tmp/classes/com/foo/B.class");
+    final URL c = new URL("jar:file:/tmp/archive.jar!/com/foo/bar/C.class");
+    queue.add(modification("com.foo.A", a, 1, 2, 3));
+    queue.add(modification("com.foo.B", b, 4, 5, 6, 7));
+    queue.add(new InterfaceDecorator.Modification("com.foo.Unmodified", b, InterfaceDecorator.Modification.Kind.UNMODIFIED, new byte[] { 0 }));
+    queue.add(modification("com.foo.bar.C", c, 8, 9, 10));
+    assertEquals(3, queue.size());
+
+    // Entries in the same jar file share a key.
+    assertEquals(Arrays.asList("jar:file:/tmp/archive.jar!/", b.toString()), Arrays.asList(queue.getLocations().toArray()));
+
+    final List<InterfaceDecorator.Modification> jarMods = queue.get("jar:file:/tmp/archive.jar!/");
+    assertEquals(2, jarMods.size());
+    assertEquals("com.foo.A", jarMods.get(0).getInterfaceName());
+    assertEquals(a, jarMods.get(0).getLocation());
+    assertArrayEquals(new byte[] { 1, 2, 3 }, jarMods.get(0).toByteArray());
+    assertEquals("com.foo.bar.C", jarMods.get(1).getInterfaceName());
+    assertArrayEquals(new byte[] { 8, 9, 10 }, jarMods.get(1).toByteArray());
+
+    final List<InterfaceDecorator.Modification> fileMods = queue.get(b.toString());
+    assertEquals(1, fileMods.size());
+    assertTrue(fileMods.get(0).isModified());
+    assertArrayEquals(new byte[] { 4, 5, 6, 7 }, fileMods.get(0).toByteArray());
+
+    assertTrue(queue.get("file:/nowhere").isEmpty());
+  }
+
+  private static final InterfaceDecorator.Modification modification(final String interfaceName, final URL location, final int... bytes) {
+    final byte[] b = new byte[bytes.length];
+    for (int i = 0; i < bytes.length; i++) {
+      b[i] = (byte)bytes[i];
+    }
+    return new InterfaceDecorator.Modification(interfaceName, location, InterfaceDecorator.Modification.Kind.MODIFIED, b);
+  }
+
+}
@@ -0,0 +1,154 @@
+/* -*- mode: Java; c-basic-offset: 2; indent-tabs-mode: nil; coding: utf-8-unix -*-
+ *
+ * Copyright (c) 2013 Edugility LLC.
+ *
+ * Permission is hereby granted, free of charge, to any person
+ * obtaining a copy of this software and associated documentation
+ * files (the "Software"), to deal in the Software without
+ * restriction, including without limitation the rights to use, copy,
+ * modify, merge, publish, distribute, sublicense and/or sell copies
+ * of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ * 
+ * The above copyright notice and this permission notice shall be
+ * included in all copies or substantial portions of the Software.
+ * 
+ * THIS SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND,
+ * EXPRESS OR IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF
+ * MERCHANTABILITY, FITNESS FOR A PARTICULAR PURPOSE AND
+ * NONINFRINGEMENT.  IN NO EVENT SHALL THE AUTHORS OR COPYRIGHT
+ * HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER LIABILITY,
+ * WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER
+ * DEALINGS IN THE SOFTWARE.
+ *
+ * The original copy of this license is available at
+ * http://www.opensource.org/license/mit-license.html.
+ */
+package com.edugility.jaxb;
+
+import java.io.ByteArrayOutputStream;
+import java.io.InputStream;
+
+import java.net.URL;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapter;
+import javax.xml.bind.annotation.adapters.XmlJavaTypeAdapters;
+
+import javassist.ClassPool;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+public class TestCaseOverlayClassLoader {
+
+  private static final String ADAPTER_CLASS_NAME = "com.edugility.jaxb.overlay.PersonToPersonImplementationAdapter";
+
+  @Test
+  public void testHeap() throws Exception {
+    this.testOverlay(new OverlayClassLoader(this.getClass().getClassLoader()));
+  }
+
+  @Test
+  public void testDirect() throws Exception {
+    this.testOverlay(new OverlayClassLoader(this.getClass().getClassLoader(), true));
+  }
+
+  private final void testOverlay(final OverlayClassLoader loader) throws Exception {
+    final InterfaceDecorator.Modification decoration = new InterfaceDecorator().modify(Person.class.getName(), ADAPTER_CLASS_NAME);
+    assertNotNull(decoration);
+    assertTrue(decoration.isModified());
+    loader.put(decoration);
+    loader.putAdapter(new XmlAdapterBytecodeGenerator(), ADAPTER_CLASS_NAME, Person.class.getName(), PersonImplementation.class.getName());
+    final byte[] implementationBytes = read(this.getClass().getClassLoader(), PersonImplementation.class.getName());
+    loader.put(PersonImplementation.class.getName(), implementationBytes);
+    assertTrue(loader.contains(Person.class.getName()));
+    assertFalse(loader.contains(AnyTypeAdapter.class.getName()));
+
+    // Overlaid classes are loaded child-first...
+    final Class<?> person = loader.loadClass(Person.class.getName());
+    assertSame(loader, person.getClassLoader());
+    final XmlJavaTypeAdapter annotation = person.getAnnotation(XmlJavaTypeAdapter.class);
+    assertNotNull(annotation);
+    assertEquals(ADAPTER_CLASS_NAME, annotation.value().getName());
+    assertSame(loader, annotation.value().getClassLoader());
+    final Class<?> implementation = loader.loadClass(PersonImplementation.class.getName());
+    assertTrue(person.isAssignableFrom(implementation));
+    assertSame(person, loader.loadClass(Person.class.getName()));
+
+    // ...and everything else is delegated.
+    assertSame(AnyTypeAdapter.class, loader.loadClass(AnyTypeAdapter.class.getName()));
+    assertSame(UniversalXmlAdapter.class, annotation.value().getSuperclass());
+
+    // Resources reflect the overlay.
+    assertArrayEquals(decoration.toByteArray(), read(loader, Person.class.getName()));
+    final URL url = loader.getResource("com/edugility/jaxb/PersonImplementation.class");
+    assertNotNull(url);
+    assertEquals("overlay", url.getProtocol());
+    final InputStream stream = url.openStream();
+    try {
+      assertArrayEquals(implementationBytes, read(stream));
+    } finally {
+      stream.close();
+    }
+    assertEquals(this.getClass().getClassLoader().getResource("com/edugility/jaxb/AnyTypeAdapter.class"), loader.getResource("com/edugility/jaxb/AnyTypeAdapter.class"));
+  }
+
+  @Test
+  public void testChildFirstPackageInfo() throws Exception {
+    final OverlayClassLoader loader = new OverlayClassLoader(this.getClass().getClassLoader());
+    final PackageInfoModifier modifier = new PackageInfoModifier(new ClassPool(true));
+    final Map<String, String> bindings = new HashMap<String, String>();
+    bindings.put(Person.class.getName(), AnyTypeAdapter.class.getName());
+    modifier.setBindings(bindings);
+    final PackageInfoModifier.Modification modification = modifier.modify(Person.class.getPackage().getName());
+    assertNotNull(modification);
+    loader.put(modification);
+    loader.addChildFirstLocation(this.getClass().getProtectionDomain().getCodeSource().getLocation());
+
+    // Household is not in the overlay, but it lives in a child-first
+    // location...
+    final Class<?> household = loader.loadClass(Household.class.getName());
+    assertSame(loader, household.getClassLoader());
+    assertSame(household, loader.loadClass(Household.class.getName()));
+
+    // ...so its package is the overlay's, and so is its package-info.
+    final Package pkg = household.getPackage();
+    assertNotNull(pkg);
+    assertNotSame(Household.class.getPackage(), pkg);
+    assertSame(pkg, loader.loadClass(Person.class.getName()).getPackage());
+    final XmlJavaTypeAdapters annotation = pkg.getAnnotation(XmlJavaTypeAdapters.class);
+    assertNotNull(annotation);
+    assertEquals(1, annotation.value().length);
+    assertEquals(Person.class.getName(), annotation.value()[0].type().getName());
+    assertEquals(AnyTypeAdapter.class.getName(), annotation.value()[0].value().getName());
+
+    // Classes elsewhere are still delegated.
+    assertSame(UniversalXmlAdapter.class, loader.loadClass(UniversalXmlAdapter.class.getName()));
+  }
+
+  private static final byte[] read(final ClassLoader loader, final String className) throws Exception {
+    final InputStream stream = loader.getResourceAsStream(className.replace('.', '/') + ".class");
+    assertNotNull(stream);
+    try {
+      return read(stream);
+    } finally {
+      stream.close();
+    }
+  }
+
+  private static final byte[] read(final InputStream stream) throws Exception {
+    final ByteArrayOutputStream out = new ByteArrayOutputStream();
+    final byte[] buffer = new byte[4096];
+    int bytesRead;
+    while ((bytesRead = stream.read(buffer)) != -1) {
+      out.write(buffer, 0, bytesRead);
+    }
+    return out.toByteArray();
+  }
+
+}
@@ -173,6 +173,19 @@ public class TestCasePackageInfoModifier {
     assertNotNull(mod);
     assertEquals(PackageInfoModifier.Modification.Kind.UNMODIFIED, mod.getKind());
     validateOneAnnotation(mod);
+
+    // The original class file should have been handed back untouched.
+    final InputStream original = this.getClass().getResourceAsStream("/com/edugility/jaxb/unmodifiedxmljavatypeadaptersannotation/withvalue/package-info.class");
+    assertNotNull(original);
+    try {
+      final byte[] bytes = mod.toByteArray();
+      for (final byte b : bytes) {
+        assertEquals(b & 0xFF, original.read());
+      }
+      assertEquals(-1, original.read());
+    } finally {
+      original.close();
+    }
   }
 
   @Test
@@ -183,6 +196,29 @@ public class TestCasePackageInfoModifier {
     validateTwoAnnotations(mod);
   }
 
+  @Test
+  public void testWriteTo() throws Exception {
+    final File directory = new File(System.getProperty("maven.project.build.directory", System.getProperty("project.build.directory", "target")), "package-info-output");
+    final PackageInfoModifier.Modification mod = modifier.modify("com.edugility.jaxb.generation");
+    assertNotNull(mod);
+    final File file = new File(directory, "com/edugility/jaxb/generation/package-info.class");
+    if (file.exists()) {
+      assertTrue(file.delete());
+    }
+    assertTrue(mod.writeTo(directory, false));
+    assertTrue(file.isFile());
+    assertTrue(file.setLastModified(1000L));
+
+    // Identical bytes are not written again.
+    assertFalse(mod.writeTo(directory, false));
+    assertEquals(1000L, file.lastModified());
+
+    // Nor are unmodified package-info classes.
+    final PackageInfoModifier.Modification unmodified = modifier.modify("com.edugility.jaxb.unmodifiedxmljavatypeadaptersannotation.withvalue");
+    assertFalse(unmodified.writeTo(directory, false));
+    assertFalse(new File(directory, "com/edugility/jaxb/unmodifiedxmljavatypeadaptersannotation/withvalue/package-info.class").exists());
+  }
+
   @Test(expected = JAXBException.class)
   public void testJAXBContextWithInterfaceThrowsException() throws Exception {
     final JAXBContext c = JAXBContext.newInstance(Person.class);
@@ -27,12 +27,33 @@
  */
 package com.edugility.jaxb;
 
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
 import java.lang.reflect.ParameterizedType;
+import java.lang.reflect.Proxy;
 import java.lang.reflect.Type;
 import java.lang.reflect.TypeVariable;
 
+import java.nio.file.Files;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import java.util.jar.JarEntry;
+import java.util.jar.JarInputStream;
+import java.util.jar.JarOutputStream;
+
 import javax.xml.bind.annotation.adapters.XmlAdapter;
 
+import javassist.ClassPool;
+
 import org.junit.After;
 import org.junit.Before;
 import org.junit.Test;
@@ -87,6 +108,117 @@ public class TestCaseXmlAdapterBytecodeGenerator {
 
     final UniversalXmlAdapter adapter = (UniversalXmlAdapter)adapterClass.newInstance();
     assertNotNull(adapter);
+
+    // Each adapter has its own specialized marshal and unmarshal
+    // methods, reached through bridges.
+    assertSame(PersonImplementation.class, adapterClass.getDeclaredMethod("marshal", Person.class).getReturnType());
+    assertSame(Person.class, adapterClass.getDeclaredMethod("unmarshal", PersonImplementation.class).getReturnType());
+    assertTrue(adapterClass.getDeclaredMethod("marshal", Object.class).isBridge());
+    assertTrue(adapterClass.getDeclaredMethod("unmarshal", Object.class).isBridge());
+
+    @SuppressWarnings("unchecked")
+    final XmlAdapter<Object, Object> xmlAdapter = (XmlAdapter<Object, Object>)adapter;
+    final PersonImplementation person = new PersonImplementation();
+    assertSame(person, xmlAdapter.marshal(person));
+    assertSame(person, xmlAdapter.unmarshal(person));
+    assertNull(xmlAdapter.marshal(null));
+
+    // A Person that is not a PersonImplementation is rejected as soon
+    // as it is marshalled.
+    final Object otherPerson = Proxy.newProxyInstance(this.getClass().getClassLoader(), new Class<?>[] { Person.class }, new InvocationHandler() {
+        @Override
+        public final Object invoke(final Object proxy, final Method method, final Object[] args) {
+          return null;
+        }
+      });
+    try {
+      xmlAdapter.marshal(otherPerson);
+      fail();
+    } catch (final ClassCastException expected) {
+      // expected
+    }
+  }
+
+  @Test
+  public void testGenerateAll() throws Exception {
+    final Map<String, String> bindings = new HashMap<String, String>();
+    bindings.put(Person.class.getName(), PersonImplementation.class.getName());
+    for (int i = 0; i < 50; i++) {
+      bindings.put("com.foo.Interface" + i, "com.foo.Implementation" + i);
+    }
+    this.generator.setReproducible(true);
+
+    final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    final JarOutputStream out = new JarOutputStream(bytes);
+    final Map<String, String> adapterClassNames = this.generator.generateAll(bindings, out, 4);
+    out.close();
+    assertEquals(bindings.keySet(), adapterClassNames.keySet());
+    assertEquals("com.edugility.jaxb.PersonToPersonImplementationAdapter", adapterClassNames.get(Person.class.getName()));
+
+    // Entries are written in adapter class name order.
+    final List<String> entryNames = new ArrayList<String>();
+    byte[] personAdapter = null;
+    final JarInputStream in = new JarInputStream(new ByteArrayInputStream(bytes.toByteArray()));
+    try {
+      JarEntry entry;
+      while ((entry = in.getNextJarEntry()) != null) {
+        entryNames.add(entry.getName());
+        if ("com/edugility/jaxb/PersonToPersonImplementationAdapter.class".equals(entry.getName())) {
+          final ByteArrayOutputStream adapter = new ByteArrayOutputStream();
+          final byte[] buffer = new byte[4096];
+          int bytesRead;
+          while ((bytesRead = in.read(buffer)) != -1) {
+            adapter.write(buffer, 0, bytesRead);
+          }
+          personAdapter = adapter.toByteArray();
+        }
+      }
+    } finally {
+      in.close();
+    }
+    final List<String> sorted = new ArrayList<String>(entryNames);
+    Collections.sort(sorted);
+    assertEquals(sorted, entryNames);
+    assertEquals(bindings.size(), entryNames.size());
+    assertNotNull(personAdapter);
+    assertSame(UniversalXmlAdapter.class, new ClassDefiner().define("com.edugility.jaxb.PersonToPersonImplementationAdapter", personAdapter).getSuperclass());
+
+    // Generating serially produces the same jar.
+    final ByteArrayOutputStream serialBytes = new ByteArrayOutputStream();
+    final JarOutputStream serialOut = new JarOutputStream(serialBytes);
+    this.generator.generateAll(bindings, serialOut, 1);
+    serialOut.close();
+    assertArrayEquals(bytes.toByteArray(), serialBytes.toByteArray());
+
+    // Directories get one class file per adapter.
+    final File directory = new File(System.getProperty("maven.project.build.directory", System.getProperty("project.build.directory", "target")), "generated-adapters");
+    this.generator.generateAll(bindings, directory, 4);
+    assertArrayEquals(personAdapter, Files.readAllBytes(new File(directory, "com/edugility/jaxb/PersonToPersonImplementationAdapter.class").toPath()));
+    assertTrue(new File(directory, "com/foo/Interface49ToImplementation49Adapter.class").isFile());
+  }
+
+  @Test
+  public void testGenerateWithoutClassPool() throws Exception {
+    // Caching is opt-in.
+    assertNull(this.generator.getCache());
+    final String adapterClassName = "com.edugility.jaxb.PersonToPersonImplementation\u00c9\u4eba\u0000Adapter";
+    final byte[] newClass = this.generator.generate(adapterClassName, Person.class, PersonImplementation.class);
+    assertNotNull(newClass);
+
+    // Nothing was cached on the adapter's behalf.
+    assertNull(ClassPool.getDefault().getOrNull(adapterClassName));
+
+    // Names that need the longer modified UTF-8 encodings still make
+    // valid class files.
+    final Class<?> adapterClass = new ClassDefiner().define(adapterClassName, newClass);
+    assertEquals(adapterClassName, adapterClass.getName());
+    final ParameterizedType adapterSuperType = (ParameterizedType)adapterClass.getGenericSuperclass();
+    assertSame(Person.class, adapterSuperType.getActualTypeArguments()[0]);
+    assertSame(PersonImplementation.class, adapterSuperType.getActualTypeArguments()[1]);
+    assertNotNull(adapterClass.newInstance());
+
+    // Generation is a pure function of its inputs.
+    assertArrayEquals(newClass, this.generator.generate(adapterClassName, Person.class.getName(), PersonImplementation.class.getName()));
   }
 
   private static final class ClassDefiner extends ClassLoader {